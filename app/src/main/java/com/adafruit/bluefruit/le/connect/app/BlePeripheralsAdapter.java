@@ -26,20 +26,19 @@ import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.adafruit.bluefruit.le.connect.R;
-import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.ble.central.BleAdvertisement;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
 import com.adafruit.bluefruit.le.connect.style.RssiUI;
 import com.adafruit.bluefruit.le.connect.utils.AdapterUtils;
 import com.adafruit.bluefruit.le.connect.utils.KeyboardUtils;
 import com.adafruit.bluefruit.le.connect.utils.LocalizationManager;
-import com.adafruit.bluefruit.le.connect.utils.UriBeaconUtils;
 
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
-
-import no.nordicsemi.android.support.v18.scanner.ScanRecord;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.ViewHolder> {
     // Constants
@@ -55,6 +54,17 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
     private final Context mContext;
     private RecyclerView mRecyclerView;
     private final Listener mListener;
+    private final Map<BleAdvertisement, CachedDescription> mCachedDescriptions = new WeakHashMap<>();      // Advertisement descriptions only change when the advertisement changes (or the device name is resolved)
+
+    private static class CachedDescription {
+        final String name;
+        final Spanned text;
+
+        CachedDescription(String name, Spanned text) {
+            this.name = name;
+            this.text = text;
+        }
+    }
 
     BlePeripheralsAdapter(@NonNull Context context, @NonNull Listener listener) {
         mContext = context.getApplicationContext();
@@ -119,18 +129,14 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
         final String address = blePeripheral.getDevice().getAddress();
         result.append(context.getString(R.string.scanresult_advertisement_address)).append(": <b>").append(address == null ? "" : address).append("</b><br>");
 
-        final ScanRecord scanRecord = blePeripheral.getScanRecord();
-        if (scanRecord != null) {
-            byte[] scanRecordBytes = scanRecord.getBytes();
-            if (scanRecordBytes != null) {
-                String uri = UriBeaconUtils.getUriFromAdvertisingPacket(scanRecordBytes) + "</b><br>";
-                result.append(context.getString(R.string.scanresult_advertisement_uribeacon_uri)).append(": <b>").append(uri);
+        final BleAdvertisement advertisement = blePeripheral.getAdvertisement();
+        final String uri = advertisement.getUri();
+        if (uri != null) {
+            result.append(context.getString(R.string.scanresult_advertisement_uribeacon_uri)).append(": <b>").append(uri).append("</b><br>");
+        }
 
-                final int txPower = scanRecord.getTxPowerLevel();
-                if (txPower > -255) {       // is valid?
-                    result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(txPower).append("</b>");
-                }
-            }
+        if (advertisement.isTxPowerLevelValid()) {
+            result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(advertisement.getTxPowerLevel()).append("</b>");
         }
 
         return result.toString();
@@ -162,12 +168,9 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
             result.append(context.getString(R.string.scanresult_advertisement_servicesuuids)).append(": <b>").append(serviceText).append("</b><br>");
         }
 
-        ScanRecord scanRecord = blePeripheral.getScanRecord();
-        if (scanRecord != null) {
-            final int txPower = scanRecord.getTxPowerLevel();
-            if (txPower > -255) {       // is valid?
-                result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(txPower).append("</b>");
-            }
+        final BleAdvertisement advertisement = blePeripheral.getAdvertisement();
+        if (advertisement.isTxPowerLevelValid()) {
+            result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(advertisement.getTxPowerLevel()).append("</b>");
         }
 
         return result.toString();
@@ -186,15 +189,11 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
         final String address = blePeripheral.getDevice().getAddress();
         result.append(context.getString(R.string.scanresult_advertisement_address)).append(": <b>").append(address == null ? "" : address).append("</b><br>");
 
-        ScanRecord scanRecord = blePeripheral.getScanRecord();
-        if (scanRecord != null) {
-            byte[] advertisedBytes = scanRecord.getBytes();
-            if (advertisedBytes != null && advertisedBytes.length > 6) {
-                final byte[] manufacturerBytes = {advertisedBytes[6], advertisedBytes[5]};      // Little endian
-                String manufacturerId = BleUtils.bytesToHex(manufacturerBytes);
-                String manufacturer = getManufacturerName(manufacturerId);
-                result.append(context.getString(R.string.scanresult_advertisement_manufacturer)).append(": <b>").append(manufacturer == null ? "" : manufacturer).append("</b><br>");
-            }
+        final BleAdvertisement advertisement = blePeripheral.getAdvertisement();
+        final String manufacturerId = advertisement.getBeaconManufacturerId();
+        if (manufacturerId != null) {
+            String manufacturer = getManufacturerName(manufacturerId);
+            result.append(context.getString(R.string.scanresult_advertisement_manufacturer)).append(": <b>").append(manufacturer == null ? "" : manufacturer).append("</b><br>");
         }
 
         StringBuilder text = new StringBuilder();
@@ -205,24 +204,18 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
         }
         result.append(context.getString(R.string.scanresult_advertisement_beacon_major)).append(": <b>").append(text).append("</b><br>");
 
-        if (scanRecord != null) {
-            byte[] advertisedBytes = scanRecord.getBytes();
-            if (advertisedBytes != null && advertisedBytes.length > 26) {
-                final byte[] majorBytes = {advertisedBytes[25], advertisedBytes[26]};           // Big endian
-                final String major = BleUtils.bytesToHex(majorBytes);
-                result.append(context.getString(R.string.scanresult_advertisement_beacon_major)).append(": <b>").append(major).append("</b><br>");
-            }
+        final String major = advertisement.getBeaconMajor();
+        if (major != null) {
+            result.append(context.getString(R.string.scanresult_advertisement_beacon_major)).append(": <b>").append(major).append("</b><br>");
+        }
 
-            if (advertisedBytes != null && advertisedBytes.length > 28) {
-                final byte[] minorBytes = {advertisedBytes[27], advertisedBytes[28]};           // Big endian
-                final String minor = BleUtils.bytesToHex(minorBytes);
-                result.append(context.getString(R.string.scanresult_advertisement_beacon_minor)).append(": <b>").append(minor).append("</b><br>");
-            }
+        final String minor = advertisement.getBeaconMinor();
+        if (minor != null) {
+            result.append(context.getString(R.string.scanresult_advertisement_beacon_minor)).append(": <b>").append(minor).append("</b><br>");
+        }
 
-            final int txPower = scanRecord.getTxPowerLevel();
-            if (txPower > -255) {       // is valid?
-                result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(txPower).append("</b>");
-            }
+        if (advertisement.isTxPowerLevelValid()) {
+            result.append(context.getString(R.string.scanresult_advertisement_txpower)).append(": <b>").append(advertisement.getTxPowerLevel()).append("</b>");
         }
 
         return result.toString();
@@ -358,18 +351,28 @@ class BlePeripheralsAdapter extends RecyclerView.Adapter<BlePeripheralsAdapter.V
         holder.view.setOnClickListener(view -> holder.togleExpanded());
 
         // Expanded view
-        Spanned text;
-        try {
-            text = getAdvertisementDescription(mContext, blePeripheral);
-        } catch (SecurityException e) {
-            Log.e(TAG, "getAdvertisementDescription security exception: " + e);
-            text = new SpannedString("");
-        }
-        holder.dataTextView.setText(text);
+        holder.dataTextView.setText(getCachedAdvertisementDescription(blePeripheral, name));
 
         holder.rawDataButton.setOnClickListener(v -> mListener.onAdvertisementData(blePeripheral));
     }
 
+    private Spanned getCachedAdvertisementDescription(@NonNull BlePeripheral blePeripheral, String name) {
+        final BleAdvertisement advertisement = blePeripheral.getAdvertisement();
+        CachedDescription cachedDescription = mCachedDescriptions.get(advertisement);
+        if (cachedDescription == null || !cachedDescription.name.equals(name)) {
+            Spanned text;
+            try {
+                text = getAdvertisementDescription(mContext, blePeripheral);
+            } catch (SecurityException e) {
+                Log.e(TAG, "getAdvertisementDescription security exception: " + e);
+                text = new SpannedString("");
+            }
+            cachedDescription = new CachedDescription(name, text);
+            mCachedDescriptions.put(advertisement, cachedDescription);
+        }
+        return cachedDescription.text;
+    }
+
     @Override
     public int getItemCount() {
         return mBlePeripherals == null ? 0 : mBlePeripherals.size();
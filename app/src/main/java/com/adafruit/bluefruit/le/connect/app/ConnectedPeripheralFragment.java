@@ -1,6 +1,7 @@
 package com.adafruit.bluefruit.le.connect.app;
 
 import android.os.Bundle;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
@@ -13,7 +14,6 @@ import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
 // helper class with common behaviour for all peripheral modules
 public class ConnectedPeripheralFragment extends Fragment {
     // Constants
-    @SuppressWarnings("unused")
     private final static String TAG = ConnectedPeripheralFragment.class.getSimpleName();
 
     // Fragment parameters
@@ -45,6 +45,28 @@ public class ConnectedPeripheralFragment extends Fragment {
         setHasOptionsMenu(true);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // Request the connection parameters for this module workload. When the user goes back, the module that is resumed sets its own profile
+        if (mBlePeripheral != null) {
+            try {
+                mBlePeripheral.setLinkProfile(getLinkProfile());
+            } catch (SecurityException e) {
+                Log.e(TAG, "setLinkProfile security exception: " + e);
+            }
+        }
+    }
+
+    // endregion
+
+    // region Link Profile
+    // Override in modules with specific throughput or latency needs. Only used in single peripheral mode
+    protected int getLinkProfile() {
+        return BlePeripheral.LINK_PROFILE_BALANCED;
+    }
+
     // endregion
 
     // region Action Bar
@@ -17,6 +17,7 @@ import android.location.Location;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -43,6 +44,7 @@ import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.UartDataManager;
 import com.adafruit.bluefruit.le.connect.utils.AdapterUtils;
@@ -59,6 +61,10 @@ import com.google.android.gms.location.LocationServices;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class ControllerFragment extends ConnectedPeripheralFragment implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, SensorEventListener, ControllerColorPickerFragment.ControllerColorPickerFragmentListener, ControllerPadFragment.ControllerPadFragmentListener, UartDataManager.UartDataManagerListener {
     // Log
@@ -66,7 +72,12 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
 
     // Config
     private final static boolean kKeepUpdatingParentValuesInChildActivities = true;
-    private final static int kSendDataInterval = 500;   // milliseconds
+    private final static int kSendDataInterval = 500;   // milliseconds. Used at the default rate
+    private final static int[] kStreamRates = {2, 10, 25, 50, 100};     // Hz
+    private final static int kDefaultStreamRate = 2;
+    private final static long kUnchangedResendInterval = 500;      // milliseconds. When streaming, sensors whose values have not changed are only sent with this interval
+    private final static long kFrameInFlightTimeout = 1000;        // milliseconds
+    private final static long kSensorUIUpdateInterval = 100;       // milliseconds
 
     // Permission requests
     private final static int PERMISSION_REQUEST_FINE_LOCATION = 1;
@@ -74,6 +85,7 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
     // Constants - Preferences
     private final static String kPreferences = "ControllerActivity_prefs";
     private final static String kPreferences_uartToolTip = "uarttooltip";
+    private final static String kPreferences_streamRate = "streamrate";
 
     // Constants - Sensor Types
     private static final int kSensorType_Quaternion = 0;
@@ -83,6 +95,11 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
     private static final int kSensorType_Location = 4;
     private static final int kNumSensorTypes = 5;
 
+    // Constants - Sensor records: [prefix (2 bytes)] [float values] [crc]
+    private static final byte[][] kSensorPrefixes = {{'!', 'Q'}, {'!', 'A'}, {'!', 'G'}, {'!', 'M'}, {'!', 'L'}};     // same order that kSensorType
+    private static final int kMaxValuesPerRecord = 4;
+    private static final int kMaxRecordLength = 2 + kMaxValuesPerRecord * 4 + 1;
+
     private static final int kModule_ControlPad = 0;
     private static final int kModule_ColorPicker = 1;
     private static final int kNumModules = 2;
@@ -112,6 +129,18 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
 
     private boolean isSensorPollingEnabled = false;
 
+    // Data - Stream
+    private int mStreamRate = kDefaultStreamRate;       // Hz
+    private long mNextSendDataTime = 0;                 // uptimeMillis
+    private final ByteBuffer mFrameBuffer = ByteBuffer.allocate(kNumSensorTypes * kMaxRecordLength).order(ByteOrder.LITTLE_ENDIAN);
+    private final float[][] mLastSentValues = new float[kNumSensorTypes][kMaxValuesPerRecord];
+    private final int[] mLastSentValuesCount = new int[kNumSensorTypes];
+    private final long[] mLastSentTime = new long[kNumSensorTypes];
+    private final long[] mLastSensorUIUpdateTime = new long[kNumSensorTypes];
+    private int mFrameSequence = 0;                     // Sequence number of the last frame sent
+    private int mFrameInFlightSequence = -1;            // Sequence number of the frame being written (-1 if none)
+    private long mFrameSentTime = 0;
+
     private WeakReference<ControllerPadFragment> mWeakControllerPadFragment = null;
 
 
@@ -194,6 +223,7 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
             ViewGroup uartTooltipViewGroup = view.findViewById(R.id.uartTooltipViewGroup);
             SharedPreferences preferences = context.getSharedPreferences(kPreferences, Context.MODE_PRIVATE);
             final boolean showUartTooltip = preferences.getBoolean(kPreferences_uartToolTip, true);
+            mStreamRate = preferences.getInt(kPreferences_streamRate, kDefaultStreamRate);
             uartTooltipViewGroup.setVisibility(showUartTooltip ? View.VISIBLE : View.GONE);
 
             ImageButton closeTipButton = view.findViewById(R.id.closeTipButton);
@@ -360,8 +390,7 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
 
         // Setup send data task
         if (!isSensorPollingEnabled) {
-            sendDataHandler.postDelayed(mPeriodicallySendData, kSendDataInterval);
-            isSensorPollingEnabled = true;
+            startSendDataTask();
         }
     }
 
@@ -438,6 +467,14 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
 
     // endregion
 
+    // region Link Profile
+    @Override
+    protected int getLinkProfile() {
+        return BlePeripheral.LINK_PROFILE_INTERACTIVE;
+    }
+
+    // endregion
+
     // region Uart
     private void setupUart() {
         if (mBlePeripheral == null) {
@@ -477,15 +514,18 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
     @Override
     public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
-        inflater.inflate(R.menu.menu_help, menu);
+        inflater.inflate(R.menu.menu_controller, menu);
     }
 
-    @SuppressWarnings("SwitchStatementWithTooFewBranches")
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         FragmentActivity activity = getActivity();
 
         switch (item.getItemId()) {
+            case R.id.action_streamrate:
+                showStreamRateDialog();
+                return true;
+
             case R.id.action_help:
                 if (activity != null) {
                     FragmentManager fragmentManager = activity.getSupportFragmentManager();
@@ -618,35 +658,177 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
 
     // region Sensors
 
-    private Runnable mPeriodicallySendData = new Runnable() {
+    private final Runnable mPeriodicallySendData = new Runnable() {
         @Override
         public void run() {
-            final String[] prefixes = {"!Q", "!A", "!G", "!M", "!L"};     // same order that kSensorType
+            sendSensorFrame();
 
-            for (int i = 0; i < mSensorData.length; i++) {
-                SensorData sensorData = mSensorData[i];
+            // Scheduled at absolute times, so the rate doesn't drift with the time spent building the frame
+            final long interval = getSendDataInterval();
+            final long now = SystemClock.uptimeMillis();
+            mNextSendDataTime = Math.max(mNextSendDataTime + interval, now + 1);
+            sendDataHandler.postAtTime(this, mNextSendDataTime);
+        }
+    };
 
-                if (sensorData.enabled && sensorData.values != null) {
-                    ByteBuffer buffer = ByteBuffer.allocate(2 + sensorData.values.length * 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+    private void startSendDataTask() {
+        sendDataHandler.removeCallbacks(mPeriodicallySendData);
+        mNextSendDataTime = SystemClock.uptimeMillis() + getSendDataInterval();
+        sendDataHandler.postAtTime(mPeriodicallySendData, mNextSendDataTime);
+        isSensorPollingEnabled = true;
+    }
 
-                    // prefix
-                    String prefix = prefixes[sensorData.sensorType];
-                    buffer.put(prefix.getBytes());
+    private long getSendDataInterval() {
+        return mStreamRate == kDefaultStreamRate ? kSendDataInterval : 1000 / mStreamRate;
+    }
 
-                    // values
-                    for (int j = 0; j < sensorData.values.length; j++) {
-                        buffer.putFloat(sensorData.values[j]);
-                    }
+    private boolean isStreaming() {
+        return mStreamRate != kDefaultStreamRate;
+    }
 
-                    byte[] result = buffer.array();
-                    Log.d(TAG, "Send data for sensor: " + i);
-                    sendCrcData(result);
-                }
+    // All the enabled sensors are sent in a single uart write (a frame). Each record keeps its prefix and crc, so the frame is read by the Bluefruit packet parser as consecutive packets
+    private void sendSensorFrame() {
+        if (mUartDataManager == null || mBlePeripheralUart == null) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mFrameInFlightSequence >= 0 && now - mFrameSentTime < kFrameInFlightTimeout) {
+            return;     // The previous frame is still being written. Skip this tick, so frames don't queue up (the next one will have the latest values)
+        }
+
+        final boolean isStreaming = isStreaming();
+        mFrameBuffer.clear();
+        for (int i = 0; i < mSensorData.length; i++) {
+            final SensorData sensorData = mSensorData[i];
+            if (!sensorData.enabled || sensorData.values == null) {
+                continue;
             }
 
-            sendDataHandler.postDelayed(this, kSendDataInterval);
+            final float[] values = sensorData.values;
+            final int count = Math.min(values.length, kMaxValuesPerRecord);
+            if (isStreaming && now - mLastSentTime[i] < kUnchangedResendInterval && isEqualToLastSentValues(i, values, count)) {
+                continue;       // Unchanged
+            }
+
+            // Record
+            final int start = mFrameBuffer.position();
+            mFrameBuffer.put(kSensorPrefixes[sensorData.sensorType]);
+            for (int j = 0; j < count; j++) {
+                mFrameBuffer.putFloat(values[j]);
+                mLastSentValues[i][j] = values[j];
+            }
+            mLastSentValuesCount[i] = count;
+            mLastSentTime[i] = now;
+
+            // Crc (same as BlePeripheralUart.appendCrc)
+            final byte[] frameBytes = mFrameBuffer.array();
+            byte checksum = 0;
+            for (int j = start; j < mFrameBuffer.position(); j++) {
+                checksum += frameBytes[j];
+            }
+            mFrameBuffer.put((byte) ~checksum);
         }
-    };
+
+        final int length = mFrameBuffer.position();
+        if (length == 0) {
+            return;
+        }
+
+        // A new array for each frame: the write keeps a reference to it until it finishes, which can be after the in-flight timeout
+        final byte[] frame = Arrays.copyOf(mFrameBuffer.array(), length);
+        final int sequence = mFrameSequence = (mFrameSequence + 1) & Integer.MAX_VALUE;
+        mFrameInFlightSequence = sequence;
+        mFrameSentTime = now;
+        mUartDataManager.send(mBlePeripheralUart, frame, status -> mMainHandler.post(() -> {
+            if (mFrameInFlightSequence == sequence) {       // Ignore the completion of a frame that already timed out
+                mFrameInFlightSequence = -1;
+            }
+        }));
+    }
+
+    private boolean isEqualToLastSentValues(int sensorIndex, @NonNull float[] values, int count) {
+        if (mLastSentValuesCount[sensorIndex] != count) {
+            return false;
+        }
+
+        final float[] lastSentValues = mLastSentValues[sensorIndex];
+        for (int i = 0; i < count; i++) {
+            if (Float.compare(lastSentValues[i], values[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void showStreamRateDialog() {
+        final Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        // Only the rates supported by the sensors
+        final int maxSensorRate = getMaxSensorRate();
+        List<Integer> rates = new ArrayList<>();
+        for (int rate : kStreamRates) {
+            if (rate == kDefaultStreamRate || rate <= maxSensorRate) {
+                rates.add(rate);
+            }
+        }
+
+        String[] items = new String[rates.size()];
+        int selectedIndex = 0;
+        for (int i = 0; i < rates.size(); i++) {
+            final int rate = rates.get(i);
+            items[i] = String.format(getString(rate == kDefaultStreamRate ? R.string.controller_streamrate_default_format : R.string.controller_streamrate_format), rate);
+            if (rate == mStreamRate) {
+                selectedIndex = i;
+            }
+        }
+
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle(R.string.controller_streamrate_title)
+                .setSingleChoiceItems(items, selectedIndex, (dialogInterface, which) -> {
+                    setStreamRate(context, rates.get(which));
+                    dialogInterface.dismiss();
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        DialogUtils.keepDialogOnOrientationChanges(dialog);
+    }
+
+    private void setStreamRate(@NonNull Context context, int streamRate) {
+        if (streamRate == mStreamRate) {
+            return;
+        }
+        mStreamRate = streamRate;
+
+        SharedPreferences.Editor editor = context.getSharedPreferences(kPreferences, Context.MODE_PRIVATE).edit();
+        editor.putInt(kPreferences_streamRate, streamRate);
+        editor.apply();
+
+        // Apply new rate (sensors have to be registered again to change their sampling period)
+        registerEnabledSensorListeners(context, false);
+        registerEnabledSensorListeners(context, true);
+        if (isSensorPollingEnabled) {
+            startSendDataTask();
+        }
+    }
+
+    // Maximum rate (in Hz) supported by all the motion sensors available
+    private int getMaxSensorRate() {
+        int maxRate = Integer.MAX_VALUE;
+        for (Sensor sensor : new Sensor[]{mAccelerometer, mGyroscope, mMagnetometer}) {
+            if (sensor != null && sensor.getMinDelay() > 0) {       // minDelay is 0 for sensors that only report changes
+                maxRate = Math.min(maxRate, 1000000 / sensor.getMinDelay());
+            }
+        }
+        return maxRate;
+    }
+
+    private int getSensorSamplingPeriod() {
+        return isStreaming() ? 1000000 / mStreamRate : SensorManager.SENSOR_DELAY_NORMAL;
+    }
 
     private void sendCrcData(byte[] data) {
         if (mUartDataManager == null) {     // Check because crash found on logs (mUartDataManager is null)
@@ -675,14 +857,14 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
         if (mSensorManager != null) {       // Check not null (crash detected when app is resumed and device has been disconnected and onDestroy tries to remove sensor manager listeners)
             // Accelerometer
             if (register && (mSensorData[kSensorType_Accelerometer].enabled || mSensorData[kSensorType_Quaternion].enabled)) {
-                mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);
+                mSensorManager.registerListener(this, mAccelerometer, getSensorSamplingPeriod());
             } else {
                 mSensorManager.unregisterListener(this, mAccelerometer);
             }
 
             // Gyroscope
             if (register && mSensorData[kSensorType_Gyroscope].enabled) {
-                mSensorManager.registerListener(this, mGyroscope, SensorManager.SENSOR_DELAY_NORMAL);
+                mSensorManager.registerListener(this, mGyroscope, getSensorSamplingPeriod());
             } else {
                 mSensorManager.unregisterListener(this, mGyroscope);
             }
@@ -699,7 +881,7 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
                     mControllerAdapter.notifySensorChanged(kSensorType_Magnetometer);
                     mControllerAdapter.notifySensorChanged(kSensorType_Quaternion);
                 } else {
-                    mSensorManager.registerListener(this, mMagnetometer, SensorManager.SENSOR_DELAY_NORMAL);
+                    mSensorManager.registerListener(this, mMagnetometer, getSensorSamplingPeriod());
                 }
             } else {
                 mSensorManager.unregisterListener(this, mMagnetometer);
@@ -783,16 +965,25 @@ public class ControllerFragment extends ConnectedPeripheralFragment implements G
         if (sensorType == Sensor.TYPE_ACCELEROMETER) {
             mSensorData[kSensorType_Accelerometer].values = event.values;
             updateOrientation();            // orientation depends on Accelerometer and Magnetometer
-            mControllerAdapter.notifySensorChanged(kSensorType_Accelerometer);
-            mControllerAdapter.notifySensorChanged(kSensorType_Quaternion);
+            notifySensorChangedThrottled(kSensorType_Accelerometer);
+            notifySensorChangedThrottled(kSensorType_Quaternion);
         } else if (sensorType == Sensor.TYPE_GYROSCOPE) {
             mSensorData[kSensorType_Gyroscope].values = event.values;
-            mControllerAdapter.notifySensorChanged(kSensorType_Gyroscope);
+            notifySensorChangedThrottled(kSensorType_Gyroscope);
         } else if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
             mSensorData[kSensorType_Magnetometer].values = event.values;
             updateOrientation();            // orientation depends on Accelerometer and Magnetometer
-            mControllerAdapter.notifySensorChanged(kSensorType_Magnetometer);
-            mControllerAdapter.notifySensorChanged(kSensorType_Quaternion);
+            notifySensorChangedThrottled(kSensorType_Magnetometer);
+            notifySensorChangedThrottled(kSensorType_Quaternion);
+        }
+    }
+
+    // When streaming, sensor events arrive faster than the values can be read on screen, so the cells are only refreshed every kSensorUIUpdateInterval
+    private void notifySensorChangedThrottled(int sensorId) {
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastSensorUIUpdateTime[sensorId] >= kSensorUIUpdateInterval) {
+            mLastSensorUIUpdateTime[sensorId] = now;
+            mControllerAdapter.notifySensorChanged(sensorId);
         }
     }
 
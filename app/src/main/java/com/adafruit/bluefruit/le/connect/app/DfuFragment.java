@@ -193,6 +193,14 @@ public class DfuFragment extends ConnectedPeripheralFragment implements DfuFileP
     }
     // endregion
 
+    // region Link Profile
+    @Override
+    protected int getLinkProfile() {
+        return BlePeripheral.LINK_PROFILE_BULK;
+    }
+
+    // endregion
+
     @SuppressWarnings("unused")
     @MainThread
     private void onDfuUpdateCheckResultReceived(@NonNull BlePeripheral blePeripheral, boolean isUpdateAvailable, @Nullable DfuUpdater.DeviceDfuInfo deviceDfuInfo, @Nullable ReleasesParser.FirmwareInfo latestRelease) {
@@ -0,0 +1,314 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import static android.Manifest.permission.BLUETOOTH_CONNECT;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ProgressBar;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+import androidx.appcompat.app.AlertDialog;
+import androidx.core.content.ContextCompat;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.adafruit.bluefruit.le.connect.R;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
+import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
+import com.adafruit.bluefruit.le.connect.dfu.FleetDfuUpdater;
+import com.adafruit.bluefruit.le.connect.models.DfuViewModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Updates all the peripherals connected in multi-connect mode to their latest firmware release
+public class FleetDfuFragment extends ConnectedPeripheralFragment {
+    // Log
+    private final static String TAG = FleetDfuFragment.class.getSimpleName();
+
+    // Config
+    private static final int kMaxRetries = 2;
+    private static final int kDefaultParallelUpdates = 1;
+
+    // Constants
+    private final static String kPreferences_ParallelUpdates = "pref_fleetdfu_parallelupdates";
+
+    // Models
+    private DfuViewModel mDfuViewModel;
+
+    // UI
+    private TextView mEmptyTextView;
+    private TextView mParallelUpdatesTextView;
+    private SeekBar mParallelUpdatesSeekBar;
+    private Button mStartButton;
+    private FleetDfuAdapter mAdapter;
+
+    // Data
+    private int mParallelUpdates = kDefaultParallelUpdates;
+
+    public FleetDfuFragment() {
+        // Required empty public constructor
+    }
+
+    // region Fragment Lifecycle
+    public static FleetDfuFragment newInstance() {
+        FleetDfuFragment fragment = new FleetDfuFragment();
+        fragment.setArguments(createFragmentArgs(null));
+        return fragment;
+    }
+
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        // Inflate the layout for this fragment
+        return inflater.inflate(R.layout.fragment_fleetdfu, container, false);
+    }
+
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+
+        // Update ActionBar
+        setActionBarTitle(R.string.dfu_tab_title);
+
+        final Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        // Read settings
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mParallelUpdates = Math.max(1, Math.min(FleetDfuUpdater.kMaxParallelUpdates, sharedPreferences.getInt(kPreferences_ParallelUpdates, kDefaultParallelUpdates)));
+
+        // UI
+        mEmptyTextView = view.findViewById(R.id.emptyTextView);
+        mParallelUpdatesTextView = view.findViewById(R.id.parallelUpdatesTextView);
+        mParallelUpdatesSeekBar = view.findViewById(R.id.parallelUpdatesSeekBar);
+        mParallelUpdatesSeekBar.setMax(FleetDfuUpdater.kMaxParallelUpdates - 1);
+        mParallelUpdatesSeekBar.setProgress(mParallelUpdates - 1);
+        mParallelUpdatesSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser) {
+                    mParallelUpdates = progress + 1;
+                    updateParallelUpdatesUI();
+
+                    SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+                    editor.putInt(kPreferences_ParallelUpdates, mParallelUpdates);
+                    editor.apply();
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+        updateParallelUpdatesUI();
+
+        mStartButton = view.findViewById(R.id.startButton);
+        mStartButton.setOnClickListener(view1 -> {
+            if (mDfuViewModel.isFleetUpdateInProgress()) {
+                mDfuViewModel.cancelFleetUpdate();
+            } else {
+                try {
+                    startFleetUpdate();
+                } catch (SecurityException e) {
+                    Log.e(TAG, "startFleetUpdate security exception: " + e);
+                }
+            }
+        });
+
+        // Devices recycler view
+        RecyclerView recyclerView = view.findViewById(R.id.recyclerView);
+        DividerItemDecoration itemDecoration = new DividerItemDecoration(context, DividerItemDecoration.VERTICAL);
+        Drawable lineSeparatorDrawable = ContextCompat.getDrawable(context, R.drawable.simpledivideritemdecoration);
+        assert lineSeparatorDrawable != null;
+        itemDecoration.setDrawable(lineSeparatorDrawable);
+        recyclerView.addItemDecoration(itemDecoration);
+        recyclerView.setHasFixedSize(false);
+        recyclerView.setLayoutManager(new LinearLayoutManager(context));
+        mAdapter = new FleetDfuAdapter(context);
+        recyclerView.setAdapter(mAdapter);
+    }
+
+    @Override
+    public void onActivityCreated(@Nullable Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        // ViewModel
+        FragmentActivity activity = getActivity();
+        if (activity != null) {
+            mDfuViewModel = new ViewModelProvider(activity).get(DfuViewModel.class);
+
+            mDfuViewModel.getFleetReports().observe(getViewLifecycleOwner(), reports -> {
+                mAdapter.setReports(reports);
+                updateUI();
+            });
+
+            mDfuViewModel.getFleetUpdateFinished().observe(getViewLifecycleOwner(), reports -> {
+                if (reports != null) {
+                    showReport(reports);
+                }
+                updateUI();
+            });
+
+            updateUI();
+        }
+    }
+    // endregion
+
+    // region Actions
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    private void startFleetUpdate() {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        FragmentActivity activity = getActivity();
+        if (activity instanceof MainActivity) {
+            ((MainActivity) activity).stopScanning();        // Scanning could still be active in batch mode and interfere with the updates
+        }
+
+        List<BlePeripheral> blePeripherals = BleScanner.getInstance().getConnectedPeripherals();
+        Log.d(TAG, "Start fleet update for " + blePeripherals.size() + " peripherals");
+        final boolean showBetaVersions = PreferenceManager.getDefaultSharedPreferences(context).getBoolean("pref_showbetaversions", false);
+        mDfuViewModel.startFleetUpdate(context, blePeripherals, mParallelUpdates, kMaxRetries, showBetaVersions);
+    }
+
+    private void showReport(@NonNull List<FleetDfuUpdater.DeviceReport> reports) {
+        FragmentActivity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        final String reportText = FleetDfuUpdater.getReportText(reports);
+        new AlertDialog.Builder(activity)
+                .setTitle(R.string.fleetdfu_finished_title)
+                .setMessage(reportText)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.fleetdfu_share_action, (dialog, which) -> {
+                    Intent sendIntent = new Intent();
+                    sendIntent.setAction(Intent.ACTION_SEND);
+                    sendIntent.putExtra(Intent.EXTRA_TEXT, reportText);
+                    sendIntent.setType("text/plain");
+                    startActivity(Intent.createChooser(sendIntent, getString(R.string.fleetdfu_share_action)));
+                })
+                .show();
+    }
+    // endregion
+
+    // region UI
+    private void updateUI() {
+        final boolean isInProgress = mDfuViewModel != null && mDfuViewModel.isFleetUpdateInProgress();
+        mStartButton.setText(isInProgress ? R.string.fleetdfu_cancel_action : R.string.fleetdfu_start_action);
+        mParallelUpdatesSeekBar.setEnabled(!isInProgress);
+        mEmptyTextView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    private void updateParallelUpdatesUI() {
+        mParallelUpdatesTextView.setText(String.format(Locale.ENGLISH, getString(R.string.fleetdfu_parallelupdates_format), mParallelUpdates));
+    }
+    // endregion
+
+    // region Adapter
+    private static class FleetDfuAdapter extends RecyclerView.Adapter<FleetDfuAdapter.ViewHolder> {
+        // Data
+        private final Context mContext;
+        private List<FleetDfuUpdater.DeviceReport> mReports = new ArrayList<>();
+
+        FleetDfuAdapter(@NonNull Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        void setReports(@Nullable List<FleetDfuUpdater.DeviceReport> reports) {
+            mReports = reports != null ? reports : new ArrayList<>();
+            notifyDataSetChanged();
+        }
+
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.layout_fleetdfu_item, parent, false);
+            return new ViewHolder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+            FleetDfuUpdater.DeviceReport report = mReports.get(position);
+
+            holder.titleTextView.setText(report.name != null ? report.name : report.address);
+            holder.descriptionTextView.setText(getStateDescription(report));
+
+            final boolean isProgressVisible = report.state == FleetDfuUpdater.STATE_DOWNLOADING || report.state == FleetDfuUpdater.STATE_UPDATING;
+            holder.progressBar.setVisibility(isProgressVisible ? View.VISIBLE : View.GONE);
+            holder.progressBar.setProgress(report.progress);
+        }
+
+        @Override
+        public int getItemCount() {
+            return mReports.size();
+        }
+
+        private String getStateDescription(@NonNull FleetDfuUpdater.DeviceReport report) {
+            switch (report.state) {
+                case FleetDfuUpdater.STATE_CHECKING:
+                    return mContext.getString(R.string.fleetdfu_state_checking);
+                case FleetDfuUpdater.STATE_UP_TO_DATE:
+                    return mContext.getString(R.string.fleetdfu_state_uptodate);
+                case FleetDfuUpdater.STATE_QUEUED:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_queued_format), report.currentVersion, report.targetVersion);
+                case FleetDfuUpdater.STATE_DOWNLOADING:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_downloading_format), report.targetVersion, report.progress);
+                case FleetDfuUpdater.STATE_UPDATING:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_updating_format), report.targetVersion, report.progress, report.attempts);
+                case FleetDfuUpdater.STATE_WAITING_RETRY:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_waitingretry_format), report.errorMessage);
+                case FleetDfuUpdater.STATE_COMPLETED:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_completed_format), report.targetVersion, report.updateMillis / 1000.f, report.averageSpeed);
+                case FleetDfuUpdater.STATE_FAILED:
+                    return String.format(Locale.ENGLISH, mContext.getString(R.string.fleetdfu_state_failed_format), report.errorMessage);
+                case FleetDfuUpdater.STATE_CANCELLED:
+                    return mContext.getString(R.string.fleetdfu_state_cancelled);
+                default:
+                    return null;
+            }
+        }
+
+        static class ViewHolder extends RecyclerView.ViewHolder {
+            final TextView titleTextView;
+            final TextView descriptionTextView;
+            final ProgressBar progressBar;
+
+            ViewHolder(View view) {
+                super(view);
+                titleTextView = view.findViewById(R.id.titleTextView);
+                descriptionTextView = view.findViewById(R.id.descriptionTextView);
+                progressBar = view.findViewById(R.id.progressBar);
+            }
+        }
+    }
+    // endregion
+}
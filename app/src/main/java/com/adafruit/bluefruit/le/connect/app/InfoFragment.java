@@ -1,14 +1,11 @@
 package com.adafruit.bluefruit.le.connect.app;
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -35,6 +32,7 @@ import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.ble.central.BleUUIDNames;
+import com.adafruit.bluefruit.le.connect.ble.central.GattSnapshotReader;
 import com.adafruit.bluefruit.le.connect.utils.LocalizationManager;
 
 import java.util.ArrayList;
@@ -53,9 +51,11 @@ public class InfoFragment extends ConnectedPeripheralFragment {
     // UI
     private InfoAdapter mInfoAdapter;
     private SwipeRefreshLayout mSwipeRefreshLayout;
+    private LinearLayoutManager mInfoLayoutManager;
 
     // Data
     private final InfoData mInfoData = new InfoData();
+    private GattSnapshotReader mSnapshotReader;
 
     // region Fragment Lifecycle
 
@@ -98,8 +98,8 @@ public class InfoFragment extends ConnectedPeripheralFragment {
             itemDecoration.setDrawable(lineSeparatorDrawable);
             infoRecyclerView.addItemDecoration(itemDecoration);
 
-            RecyclerView.LayoutManager infoLayoutManager = new LinearLayoutManager(getContext());
-            infoRecyclerView.setLayoutManager(infoLayoutManager);
+            mInfoLayoutManager = new LinearLayoutManager(getContext());
+            infoRecyclerView.setLayoutManager(mInfoLayoutManager);
 
             // Disable update animation
             SimpleItemAnimator animator = (SimpleItemAnimator) infoRecyclerView.getItemAnimator();
@@ -110,17 +110,35 @@ public class InfoFragment extends ConnectedPeripheralFragment {
             // Adapter
             mInfoAdapter = new InfoAdapter(context, mInfoData);
             infoRecyclerView.setAdapter(mInfoAdapter);
+
+            // Read first the values of the visible rows
+            infoRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                    if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                        prioritizeVisibleRows();
+                    }
+                }
+            });
         }
 
         // Swipe to refreshAll
         mSwipeRefreshLayout = view.findViewById(R.id.swipeRefreshLayout);
         mSwipeRefreshLayout.setOnRefreshListener(() -> {
-            refreshData();
+            refreshData(true);
             mSwipeRefreshLayout.postDelayed(() -> mSwipeRefreshLayout.setRefreshing(false), 500);
         });
 
         // Refresh
-        refreshData();
+        refreshData(false);
+    }
+
+    @Override
+    public void onDestroyView() {
+        if (mSnapshotReader != null) {
+            mSnapshotReader.cancel();
+        }
+        super.onDestroyView();
     }
 
     @Override
@@ -163,13 +181,16 @@ public class InfoFragment extends ConnectedPeripheralFragment {
 */
     }
 
-    private void refreshData() {
+    // Values are read by GattSnapshotReader: cached values (if not ignored) are displayed immediately, and the rest are read characteristics first and then descriptors, starting with the visible rows
+    private void refreshData(boolean isCacheIgnored) {
         // Remove old data
         mInfoData.clear();
 
         // Services
         List<BluetoothGattService> services = mBlePeripheral == null ? null : mBlePeripheral.getServices();     // Check if mBlePeripheral is null (crash detected on Google logs)
 
+        List<GattSnapshotReader.Attribute> characteristicAttributes = new ArrayList<>();
+        List<GattSnapshotReader.Attribute> descriptorAttributes = new ArrayList<>();
         if (services != null) {
             // Order services so "DIS" is at the top (if present)
             services.sort((serviceA, serviceB) -> {
@@ -178,7 +199,6 @@ public class InfoFragment extends ConnectedPeripheralFragment {
                 return isServiceADis ? -1 : (isServiceBDis ? 1 : serviceA.getUuid().compareTo(serviceB.getUuid()));
             });
 
-            final Handler mainHandler = new Handler(Looper.getMainLooper());
             // Discover characteristics and descriptors
             for (BluetoothGattService service : services) {
                 // Service
@@ -203,25 +223,7 @@ public class InfoFragment extends ConnectedPeripheralFragment {
 
                     // Read characteristic
                     if (BlePeripheral.isCharacteristicReadable(service, characteristicUuid)) {
-                        final String characteristicKey = characteristicElementPath.getKey();
-                        mBlePeripheral.readCharacteristic(service, characteristicUuid, (status, data) -> {
-                            if (status == BluetoothGatt.GATT_SUCCESS) {
-                                mInfoData.mValuesMap.put(characteristicKey, data);
-
-                                // Update UI
-                                mainHandler.post(this::updateUI);
-                            }
-                        });
-
-                        /*
-                        mBlePeripheral.readCharacteristic(service, characteristicUuid, status -> {
-                            if (status == BluetoothGatt.GATT_SUCCESS) {
-                                mInfoData.mValuesMap.put(characteristicKey, characteristic.getValue());
-
-                                // Update UI
-                                mainHandler.post(this::updateUI);
-                            }
-                        });*/
+                        characteristicAttributes.add(new GattSnapshotReader.Attribute(characteristicElementPath.getKey(), characteristic, null));
                     }
 
                     // Descriptors
@@ -236,17 +238,7 @@ public class InfoFragment extends ConnectedPeripheralFragment {
                         descriptorNamesList.add(descriptorElementPath);
 
                         // Read descriptor
-//                    if (BlePeripheral.isDescriptorReadable(service, characteristicUuid, descriptorUuid)) {
-                        final String descriptorKey = descriptorElementPath.getKey();
-                        mBlePeripheral.readDescriptor(service, characteristicUuid, descriptorUuid, status -> {
-                            if (status == BluetoothGatt.GATT_SUCCESS) {
-                                mInfoData.mValuesMap.put(descriptorKey, descriptor.getValue());
-
-                                // Update UI
-                                mainHandler.post(this::updateUI);
-                            }
-                        });
-//                    }
+                        descriptorAttributes.add(new GattSnapshotReader.Attribute(descriptorElementPath.getKey(), characteristic, descriptor));
                     }
 
                     mInfoData.mDescriptors.put(characteristicElementPath.getKey(), descriptorNamesList);
@@ -256,8 +248,62 @@ public class InfoFragment extends ConnectedPeripheralFragment {
         }
 
         updateUI();
+
+        // Read values
+        if (mBlePeripheral != null) {
+            if (mSnapshotReader == null) {
+                mSnapshotReader = new GattSnapshotReader(mBlePeripheral, mSnapshotListener);
+            }
+
+            List<GattSnapshotReader.Attribute> attributes = new ArrayList<>(characteristicAttributes.size() + descriptorAttributes.size());
+            attributes.addAll(characteristicAttributes);
+            attributes.addAll(descriptorAttributes);
+            mSnapshotReader.start(attributes, isCacheIgnored);
+
+            // Wait for the first layout to know the visible rows
+            View view = getView();
+            if (view != null) {
+                view.post(this::prioritizeVisibleRows);
+            }
+        }
+    }
+
+    private void prioritizeVisibleRows() {
+        if (mSnapshotReader == null || mInfoLayoutManager == null || mInfoAdapter == null) {
+            return;
+        }
+
+        final int firstPosition = mInfoLayoutManager.findFirstVisibleItemPosition();
+        final int lastPosition = mInfoLayoutManager.findLastVisibleItemPosition();
+        if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        List<String> visibleKeys = new ArrayList<>(lastPosition - firstPosition + 1);
+        for (int i = firstPosition; i <= lastPosition; i++) {
+            ElementPath elementPath = mInfoAdapter.getElementPath(i);
+            if (elementPath != null) {
+                visibleKeys.add(elementPath.getKey());
+            }
+        }
+        mSnapshotReader.prioritize(visibleKeys);
     }
 
+    private final GattSnapshotReader.Listener mSnapshotListener = new GattSnapshotReader.Listener() {
+        @Override
+        public void onValuesRead(@NonNull Map<String, byte[]> values) {
+            mInfoData.mValuesMap.putAll(values);
+            if (mInfoAdapter != null) {
+                updateUI();
+            }
+        }
+
+        @Override
+        public void onSnapshotFinished() {
+            Log.d(TAG, "Info values read: " + mInfoData.mValuesMap.size());
+        }
+    };
+
     // endregion
 
     // region Structures
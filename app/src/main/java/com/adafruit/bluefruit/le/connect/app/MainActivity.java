@@ -6,10 +6,7 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
@@ -23,13 +20,14 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
 import androidx.lifecycle.ViewModelProvider;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.adafruit.bluefruit.le.connect.BluefruitApplication;
 import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
 import com.adafruit.bluefruit.le.connect.ble.central.BleManager;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralEventBus;
+import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
 import com.adafruit.bluefruit.le.connect.dfu.DfuProgressFragmentDialog;
 import com.adafruit.bluefruit.le.connect.dfu.DfuService;
 import com.adafruit.bluefruit.le.connect.dfu.DfuUpdater;
@@ -133,7 +131,7 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
         checkPermissions();
 
         // Observe disconnections
-        registerGattReceiver();
+        BlePeripheralEventBus.getInstance().subscribe(mPeripheralEventSubscriber, BlePeripheralEventBus.EVENT_DISCONNECTED, false);
     }
 
     @Override
@@ -147,7 +145,7 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
     protected void onPause() {
         super.onPause();
         BluefruitApplication.activityPaused();
-        unregisterGattReceiver();
+        BlePeripheralEventBus.getInstance().unsubscribe(mPeripheralEventSubscriber);
 
         // Remove location dialog if present
         if (mRequestLocationDialog != null) {
@@ -156,6 +154,26 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        // Back from background: use low latency scanning again if the scanner is the visible fragment (otherwise it keeps scanning in batch mode)
+        if (mMainFragment != null && mMainFragment.isVisible() && mMainFragment.isScannerSelected()) {
+            setScanningInForeground(true);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // Keep scanning while the app is in background, but switch to the balanced batch scan settings to save power
+        if (!isChangingConfigurations()) {
+            setScanningInForeground(false);
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         return super.onCreateOptionsMenu(menu);
@@ -350,7 +368,8 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
         }
         final boolean isLastConnectedPeripheral = numConnectedPeripherals == 0;
 
-        if (isLastConnectedPeripheral && (!kAvoidPoppingFragmentsWhileOnDfu || !isIsDfuInProgress())) {
+        // Note: the peripherals disconnect while a fleet update is running, but its fragment is kept to show the progress and the report
+        if (isLastConnectedPeripheral && (!kAvoidPoppingFragmentsWhileOnDfu || !isIsDfuInProgress()) && !mDfuViewModel.isFleetUpdateInProgress()) {
             Log.d(TAG, "No peripherals connected. Pop all fragments");
             FragmentManager fragmentManager = getSupportFragmentManager();
             fragmentManager.popBackStack(null, FragmentManager.POP_BACK_STACK_INCLUSIVE);
@@ -393,28 +412,12 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
 
     // endregion
 
-    // region Broadcast Listener
-    private void registerGattReceiver() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BlePeripheral.kBlePeripheral_OnDisconnected);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mGattUpdateReceiver, filter);
-    }
-
-    private void unregisterGattReceiver() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mGattUpdateReceiver);
-    }
-
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BlePeripheral.kBlePeripheral_OnDisconnected.equals(action)) {
-                try {
-                    popFragmentsIfNoPeripheralsConnected();
-                } catch (SecurityException e) {
-                    Log.e(TAG, "security exception: " + e);
-                }
-            }
+    // region Peripheral Events
+    private final BlePeripheralEventBus.Subscriber mPeripheralEventSubscriber = event -> {
+        try {
+            popFragmentsIfNoPeripheralsConnected();
+        } catch (SecurityException e) {
+            Log.e(TAG, "security exception: " + e);
         }
     };
     // endregion
@@ -431,14 +434,31 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
 
     private boolean mIsDfuInProgress = false;
 
+    public void stopScanning() {
+        try {
+            BleScanner.getInstance().stop();
+        } catch (SecurityException e) {
+            Log.w(TAG, "stopScanning security exception: " + e);
+        }
+    }
+
+    private void setScanningInForeground(boolean isForeground) {
+        try {
+            BleScanner.getInstance().setForeground(isForeground);
+        } catch (SecurityException e) {
+            Log.w(TAG, "setScanningInForeground security exception: " + e);
+        }
+    }
+
     public boolean isIsDfuInProgress() {
-        return mIsDfuInProgress;
+        return mIsDfuInProgress || mDfuViewModel.isFleetUpdateInProgress();
     }
 
     @SuppressLint("InlinedApi")
     @RequiresPermission(value = BLUETOOTH_CONNECT)
     public void startUpdate(@NonNull BlePeripheral blePeripheral, @NonNull ReleasesParser.BasicVersionInfo versionInfo) {
         dismissDfuProgressDialog();
+        stopScanning();         // Scanning could still be active in batch mode and interfere with the update
 
         String message = getString(versionInfo.fileType == DfuService.TYPE_APPLICATION ? R.string.dfu_download_firmware_message : R.string.dfu_download_bootloader_message);
         mDfuProgressDialog = DfuProgressFragmentDialog.newInstance(blePeripheral.getDevice().getAddress(), message);
@@ -508,6 +528,7 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
 
     @Override
     public void onDfuCompleted(String deviceAddress) {
+        mDfuViewModel.onInstallFinished();
         dismissDfuProgressDialog();
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.dfu_status_completed).setMessage(R.string.dfu_updatecompleted_message)
@@ -517,6 +538,7 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
 
     @Override
     public void onDfuAborted(String deviceAddress) {
+        mDfuViewModel.onInstallFinished();
         dismissDfuProgressDialog();
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -527,6 +549,7 @@ public class MainActivity extends AppCompatActivity implements ScannerFragment.S
 
     @Override
     public void onError(String deviceAddress, int error, int errorType, String message) {
+        mDfuViewModel.onInstallFinished();
         dismissDfuProgressDialog();
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
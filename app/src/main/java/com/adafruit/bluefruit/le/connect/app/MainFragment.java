@@ -227,6 +227,10 @@ public class MainFragment extends Fragment {
     // endregion
 
     // region Actions
+    boolean isScannerSelected() {
+        return getCurrentFragment() instanceof ScannerFragment;
+    }
+
     @SuppressLint("InlinedApi")
     @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
     void startScanning() {
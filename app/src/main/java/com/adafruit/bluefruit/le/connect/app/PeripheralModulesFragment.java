@@ -188,6 +188,15 @@ public class PeripheralModulesFragment extends ConnectedPeripheralFragment {
 
     // endregion
 
+    // region Link Profile
+    @Override
+    protected int getLinkProfile() {
+        // Idle: only the module list is displayed
+        return BlePeripheral.LINK_PROFILE_LOW_POWER;
+    }
+
+    // endregion
+
     // region Battery
     private void startBatteryUI(@NonNull BlePeripheral blePeripheral) {
         final boolean hasBattery = BlePeripheralBattery.hasBattery(blePeripheral);
@@ -268,6 +277,8 @@ public class PeripheralModulesFragment extends ConnectedPeripheralFragment {
             case MODULE_DFU:
                 if (singlePeripheralIdentifier != null) {
                     fragment = DfuFragment.newInstance(singlePeripheralIdentifier);
+                } else {
+                    fragment = FleetDfuFragment.newInstance();      // Update all the connected peripherals
                 }
                 break;
         }
@@ -497,7 +508,7 @@ public class PeripheralModulesFragment extends ConnectedPeripheralFragment {
 
         private int[] getMenuItems() {
             if (mConnectionMode == CONNECTIONMODE_MULTIPLEPERIPHERAL) {
-                return new int[]{MODULE_UART, MODULE_PLOTTER};
+                return new int[]{MODULE_UART, MODULE_PLOTTER, MODULE_DFU};
             } else if (mBlePeripheral == null) {
                 return new int[]{};
             } else {
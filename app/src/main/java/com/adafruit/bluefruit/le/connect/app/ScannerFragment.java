@@ -73,6 +73,9 @@ import java.util.Locale;
 import no.nordicsemi.android.support.v18.scanner.ScanRecord;
 
 public class ScannerFragment extends Fragment implements ScannerStatusFragmentDialog.onScannerStatusCancelListener {
+    // Config
+    private final static boolean kKeepScanningInBackground = true;         // If true, scanning continues (in balanced batch mode) while the scanner is not visible but the app is, instead of being stopped. It also continues in batch mode while the app is in background. MainActivity stops it when a dfu starts
+
     // Constants
     private final static String TAG = ScannerFragment.class.getSimpleName();
 
@@ -480,6 +483,7 @@ public class ScannerFragment extends Fragment implements ScannerStatusFragmentDi
             boolean isDfuInProgress = activity instanceof MainActivity && ((MainActivity) activity).isIsDfuInProgress();
             if (!isDfuInProgress) {
                 try {
+                    mScannerViewModel.setIsScanningInForeground(true);
                     startScanning();
                 } catch (SecurityException e) {
                     Log.d(TAG, "Scanning can't resume: " + e);
@@ -495,7 +499,11 @@ public class ScannerFragment extends Fragment implements ScannerStatusFragmentDi
         super.onPause();
 
         try {
-            mScannerViewModel.stop();
+            if (kKeepScanningInBackground) {
+                mScannerViewModel.setIsScanningInForeground(false);
+            } else {
+                mScannerViewModel.stop();
+            }
         } catch (SecurityException e) {
             Log.d(TAG, "Security exception: " + e);
         }
@@ -4,31 +4,44 @@ import android.animation.ObjectAnimator;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothGatt;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.RadioGroup;
+import android.widget.SeekBar;
 import android.widget.TextView;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
+import androidx.fragment.app.FragmentActivity;
 
 import com.adafruit.bluefruit.le.connect.R;
-import com.adafruit.bluefruit.le.connect.ble.BleUtils;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.UartDataManager;
 import com.adafruit.bluefruit.le.connect.utils.DialogUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.Semaphore;
 
@@ -39,6 +52,12 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
     // Config
     private final static float kColdHue = 270;         // Hue for coldest color
     private final static float kHotHue = 0;            // Hue for hottest color
+    private final static int kMaxFrameValues = 32 * 24;  // Largest supported sensor (MLX90640)
+    private final static String kRecordingsDirectory = "thermal";      // Subdirectory of the files dir. Must match provider_paths.xml
+    private final static float[] kReplaySpeeds = {1, 2, 4, 8, 16};
+
+    // Constants
+    private static final String kAuthorityField = ".fileprovider";          // Same as the authority field on the manifest provider
 
     // UI
     private TextView mUartWaitingTextView;
@@ -46,17 +65,29 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
     private TextView mUpperTempTextView;
     private ImageView mCameraImageView;
     private ThermalGradientView mThermalScaleView;
+    private TextView mRecordingTextView;
+    private View mReplayLayout;
+    private Button mReplayPlayButton;
+    private Button mReplaySpeedButton;
+    private SeekBar mReplaySeekBar;
+    private TextView mReplayTimeTextView;
 
     // Data
     private UartDataManager mUartDataManager;
     private BlePeripheralUart mBlePeripheralUart;
     private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private boolean mIsColorEnabled = true;
-    private boolean mIsFilterEnabled = true;
-    private String mTextCachedBuffer = "";
-    private final Semaphore mTextCachedBufferSemaphore = new Semaphore(1, true);
-    private float mMinTemperature = Float.MAX_VALUE;
-    private float mMaxTemperature = -Float.MAX_VALUE;
+    private final ThermalColorizer mColorizer = new ThermalColorizer(mIsColorEnabled, kColdHue, kHotHue);
+    private final ThermalFrameParser mFrameParser = new ThermalFrameParser(kMaxFrameValues, this::processFrame);
+    private final Semaphore mFrameParserSemaphore = new Semaphore(1, true);
+    private boolean mIsUartReady = false;
+
+    // Recording
+    private volatile ThermalRecordingWriter mRecordingWriter;
+    private ThermalRecordingPlayer mRecordingPlayer;
+    private volatile boolean mIsReplaying = false;          // Live frames are still recorded while replaying, but not displayed
+    private boolean mIsReplaySeekBarTracking = false;
+    private int mReplaySpeedIndex = 0;
 
     // region Fragment Lifecycle
     public static ThermalCameraFragment newInstance(@Nullable String singlePeripheralIdentifier) {
@@ -93,12 +124,18 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
         colorModeRadioGroup.check(mIsColorEnabled ? R.id.colorModeColorButton : R.id.colorModeMonochromeButton);
         colorModeRadioGroup.setOnCheckedChangeListener((radioGroup, i) -> {
             mIsColorEnabled = i == R.id.colorModeColorButton;
+            mColorizer.setColorMode(mIsColorEnabled, kColdHue, kHotHue);
             mThermalScaleView.updateGradient();
         });
 
         RadioGroup magnificationRadioGroup = view.findViewById(R.id.magnificationRadioGroup);
-        magnificationRadioGroup.check(mIsFilterEnabled ? R.id.magnificationFilteredButton : R.id.magnificationPixelatedButton);
-        magnificationRadioGroup.setOnCheckedChangeListener((radioGroup, i) -> mIsFilterEnabled = i == R.id.magnificationFilteredButton);
+        final int interpolation = mColorizer.getInterpolation();
+        magnificationRadioGroup.check(interpolation == ThermalColorizer.INTERPOLATION_NEAREST ? R.id.magnificationPixelatedButton : (interpolation == ThermalColorizer.INTERPOLATION_BILINEAR ? R.id.magnificationBilinearButton : R.id.magnificationBicubicButton));
+        magnificationRadioGroup.setOnCheckedChangeListener((radioGroup, i) -> mColorizer.setInterpolation(i == R.id.magnificationPixelatedButton ? ThermalColorizer.INTERPOLATION_NEAREST : (i == R.id.magnificationBilinearButton ? ThermalColorizer.INTERPOLATION_BILINEAR : ThermalColorizer.INTERPOLATION_BICUBIC)));
+
+        RadioGroup rangeRadioGroup = view.findViewById(R.id.rangeRadioGroup);
+        rangeRadioGroup.check(mColorizer.isFixedRange() ? R.id.rangeFixedButton : R.id.rangeAutoButton);
+        rangeRadioGroup.setOnCheckedChangeListener((radioGroup, i) -> mColorizer.setFixedRangeEnabled(i == R.id.rangeFixedButton));       // Fixes the current range
 
         mCameraImageView = view.findViewById(R.id.cameraImageView);
         mLowerTempTextView = view.findViewById(R.id.lowerTempTextView);
@@ -106,16 +143,69 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
         mThermalScaleView = view.findViewById(R.id.thermalScaleView);
         mThermalScaleView.setThermalCameraFragment(this);
 
+        mRecordingTextView = view.findViewById(R.id.recordingTextView);
+        mReplayLayout = view.findViewById(R.id.replayLayout);
+        mReplayPlayButton = view.findViewById(R.id.replayPlayButton);
+        mReplayPlayButton.setOnClickListener(v -> {
+            if (mRecordingPlayer != null) {
+                final boolean wasPlaying = mRecordingPlayer.isPlaying();
+                if (wasPlaying) {
+                    mRecordingPlayer.pause();
+                } else {
+                    mRecordingPlayer.play();
+                }
+                mReplayPlayButton.setText(wasPlaying ? R.string.thermalcamera_replay_play : R.string.thermalcamera_replay_pause);
+            }
+        });
+        mReplaySpeedButton = view.findViewById(R.id.replaySpeedButton);
+        mReplaySpeedButton.setOnClickListener(v -> {
+            mReplaySpeedIndex = (mReplaySpeedIndex + 1) % kReplaySpeeds.length;
+            if (mRecordingPlayer != null) {
+                mRecordingPlayer.setSpeed(kReplaySpeeds[mReplaySpeedIndex]);
+            }
+            updateReplaySpeedUI();
+        });
+        mReplaySeekBar = view.findViewById(R.id.replaySeekBar);
+        mReplaySeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser && mRecordingPlayer != null) {
+                    mRecordingPlayer.seek(progress);
+                    updateReplayTimeUI(progress);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                mIsReplaySeekBarTracking = true;
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                mIsReplaySeekBarTracking = false;
+            }
+        });
+        mReplayTimeTextView = view.findViewById(R.id.replayTimeTextView);
+        Button replayLiveButton = view.findViewById(R.id.replayLiveButton);
+        replayLiveButton.setOnClickListener(v -> stopReplay());
+        updateReplaySpeedUI();
+
         // Setup
         Context context = getContext();
         if (context != null) {
-            mUartDataManager = new UartDataManager(context, this, true);
+            mUartDataManager = new UartDataManager(context, this, false);       // No rx cache: the frame parser keeps the partial frames
             setupUart();
         }
     }
 
     @Override
     public void onDestroy() {
+        stopRecording();
+        if (mRecordingPlayer != null) {
+            mRecordingPlayer.release();
+            mRecordingPlayer = null;
+        }
+
         if (mUartDataManager != null) {
             Context context = getContext();
             if (context != null) {
@@ -130,172 +220,392 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
         super.onDestroy();
     }
 
-    /*
     @Override
-    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+    public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
-        inflater.inflate(R.menu.menu_help, menu);
+        inflater.inflate(R.menu.menu_thermalcamera, menu);
     }
 
     @Override
-    public boolean onOptionsItemSelected(MenuItem item) {
-        FragmentActivity activity = getActivity();
+    public void onPrepareOptionsMenu(@NonNull Menu menu) {
+        super.onPrepareOptionsMenu(menu);
 
-        switch (item.getItemId()) {
-            case R.id.action_help:
-                if (activity != null) {
-                    FragmentManager fragmentManager = activity.getSupportFragmentManager();
-                    if (fragmentManager != null) {
-                        CommonHelpFragment helpFragment = CommonHelpFragment.newInstance(getString(R.string.thermalcamera_help_title), getString(R.string.thermalcamera_help_text));
-                        FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction()
-                                .replace(R.id.contentLayout, helpFragment, "Help");
-                        fragmentTransaction.addToBackStack(null);
-                        fragmentTransaction.commit();
-                    }
-                }
-                return true;
+        MenuItem recordItem = menu.findItem(R.id.action_record);
+        if (recordItem != null) {
+            recordItem.setTitle(mRecordingWriter != null ? R.string.thermalcamera_record_stop : R.string.thermalcamera_record_start);
+        }
+    }
 
-            default:
-                return super.onOptionsItemSelected(item);
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        final int itemId = item.getItemId();
+        if (itemId == R.id.action_record) {
+            if (mRecordingWriter != null) {
+                stopRecording();
+            } else {
+                startRecording();
+            }
+            return true;
+        } else if (itemId == R.id.action_recordings) {
+            showRecordingsDialog();
+            return true;
+        } else {
+            return super.onOptionsItemSelected(item);
         }
     }
-    */
     // endregion
 
     // region Process
-    private boolean isTemperatureReadReceived() {
-        return mMinTemperature < Float.MAX_VALUE && mMaxTemperature > -Float.MAX_VALUE;
-    }
-
-    private void processBuffer(String dataString) {
+    private void processBuffer(@NonNull byte[] data) {
         try {
-            mTextCachedBufferSemaphore.acquire();
+            mFrameParserSemaphore.acquire();
         } catch (InterruptedException e) {
             Log.w(TAG, "InterruptedException: " + e);
         }
 
-        mTextCachedBuffer += dataString;
+        mFrameParser.append(data);
 
-        boolean finished = false;
-        do {
-            final int startOffset = mTextCachedBuffer.indexOf('[');
-            final int endOffset = mTextCachedBuffer.indexOf(']');
-            if (startOffset >= 0 && endOffset > startOffset) {
-                String imageComponentString = mTextCachedBuffer.substring(startOffset + 1, endOffset);
-                imageComponentString = imageComponentString.replace(" ", "").replace("\n", "").replace("\r", "");
+        mFrameParserSemaphore.release();
+    }
 
-                String[] imageComponents = imageComponentString.split(",");
-                Float[] imageValues = new Float[imageComponents.length];
-                for (int i = 0; i < imageComponents.length; i++) {
-                    try {
-                        imageValues[i] = Float.valueOf(imageComponents[i]);
-                    } catch (NumberFormatException ignored) {
+    private final BitmapDrawable[] mBitmapDrawables = new BitmapDrawable[2];        // Drawables for the colorizer front and back bitmaps. Only used on the main thread
+
+    // Called by the parser for each complete frame. values is reused by the parser, so it should not be kept
+    private void processFrame(@NonNull float[] values, int count) {
+        ThermalRecordingWriter recordingWriter = mRecordingWriter;
+        if (recordingWriter != null) {
+            try {
+                recordingWriter.append(values, ThermalColorizer.widthForCount(count), ThermalColorizer.heightForCount(count));
+            } catch (IOException e) {
+                Log.w(TAG, "Error writing recording: " + e);
+                mMainHandler.post(() -> {
+                    if (mRecordingWriter == recordingWriter) {
+                        stopRecording();
+                        showErrorDialog(R.string.thermalcamera_recording_error_write);
                     }
-                }
+                });
+            }
+        }
 
-                // Update max and min
-                for (float value : imageValues) {
-                    if (value > mMaxTemperature) {
-                        mMaxTemperature = value;
-                    }
-                    if (value < mMinTemperature) {
-                        mMinTemperature = value;
-                    }
-                }
+        if (!mIsReplaying) {
+            renderFrame(values, count);
+        }
+    }
 
-                // Create updated image
-                createImage(imageValues);
+    // Renders a live or a replayed frame
+    private synchronized void renderFrame(@NonNull float[] values, int count) {
+        if (!mColorizer.colorize(values, count)) {
+            return;
+        }
 
-                // Remove processed text
-                mTextCachedBuffer = endOffset < mTextCachedBuffer.length() ? mTextCachedBuffer.substring(endOffset + 1) : "";
-            } else if (endOffset >= 0 && (startOffset < 0 || endOffset <= startOffset)) {
-                // Remove orphaned text
-                mTextCachedBuffer = endOffset < mTextCachedBuffer.length() ? mTextCachedBuffer.substring(endOffset + 1) : "";
-            } else {
-                finished = true;
-            }
+        final boolean isFilterEnabled = mColorizer.getInterpolation() != ThermalColorizer.INTERPOLATION_NEAREST;
+        final float minTemperature = mColorizer.getRangeMin();
+        final float maxTemperature = mColorizer.getRangeMax();
+        mMainHandler.post(() -> onImageUpdated(isFilterEnabled, minTemperature, maxTemperature));
+    }
 
-        } while (!finished);
+    // endregion
 
-        mTextCachedBufferSemaphore.release();
+    // region UI
+    @MainThread
+    private void updateThermalUI(boolean isReady) {
+        mIsUartReady = isReady;
+        mUartWaitingTextView.setVisibility(isReady || mIsReplaying ? View.GONE : View.VISIBLE);
     }
 
-    private Bitmap mCachedBitmap = null;
-    private int mCachedBitmapDimen = 0;
-    private int[] mCachedBitmapPixels;
-    private BitmapDrawable mBitmapDrawable;
+    @MainThread
+    private void onImageUpdated(boolean isFilterEnabled, float minTemperature, float maxTemperature) {
+        if (!isAdded() || getView() == null) {
+            return;
+        }
 
-    private void createImage(Float[] values) {
-        final Float temperatureRange = mMaxTemperature - mMinTemperature;
+        // Display the last rendered frame (null if it was already displayed by a previous call, when several frames are rendered before the main thread runs)
+        Bitmap bitmap = mColorizer.swapBuffers();
+        if (bitmap != null) {
+            BitmapDrawable bitmapDrawable = getBitmapDrawable(bitmap);
+            bitmapDrawable.setFilterBitmap(isFilterEnabled);
+            mCameraImageView.setImageDrawable(bitmapDrawable);
+        }
 
-        // Generate bitmap if needed
-        final int dimen = (int) Math.floor(Math.sqrt(values.length));
-        if (dimen != mCachedBitmapDimen || mCachedBitmap == null) {
-            mCachedBitmapDimen = dimen;
-            if (mCachedBitmap != null) {
-                mCachedBitmap.recycle();
-            }
-            mCachedBitmap = Bitmap.createBitmap(dimen, dimen, Bitmap.Config.RGB_565);
-            mCachedBitmapPixels = new int[values.length];
+        if (mThermalScaleView.getAlpha() == 0 && mColorizer.hasRange()) {
+            mThermalScaleView.updateGradient();
 
-            mBitmapDrawable = new BitmapDrawable(getResources(), mCachedBitmap);        // Create bitmap drawable to control filtering method
+            ObjectAnimator anim = ObjectAnimator.ofFloat(mThermalScaleView, "alpha", 1f);
+            anim.setDuration(300);
+            anim.start();
         }
 
-        // Normalize values between 0 and 1
-        for (int i = 0; i < values.length; i++) {
-            final float normalizedValue = (values[i] - mMinTemperature) / temperatureRange;
-            final int color = temperatureComponentsForValue(normalizedValue);
-            mCachedBitmapPixels[i] = color;
+        final Locale defaultLocale = Locale.getDefault();
+        mLowerTempTextView.setText(String.format(defaultLocale, "%.2f", minTemperature));
+        mUpperTempTextView.setText(String.format(defaultLocale, "%.2f", maxTemperature));
+
+        ThermalRecordingWriter recordingWriter = mRecordingWriter;
+        if (recordingWriter != null) {
+            mRecordingTextView.setText(getString(R.string.thermalcamera_recording_format, formatDuration(recordingWriter.getElapsedMillis()), recordingWriter.getFrameCount()));
+        }
+    }
+
+    @MainThread
+    private @NonNull
+    BitmapDrawable getBitmapDrawable(@NonNull Bitmap bitmap) {
+        for (BitmapDrawable bitmapDrawable : mBitmapDrawables) {
+            if (bitmapDrawable != null && bitmapDrawable.getBitmap() == bitmap) {
+                return bitmapDrawable;
+            }
         }
-        mCachedBitmap.setPixels(mCachedBitmapPixels, 0, dimen, 0, 0, dimen, dimen);
 
-        mMainHandler.post(() -> onImageUpdated(mBitmapDrawable));
+        // The colorizer creates a new bitmap when the size changes (sensor or interpolation changed)
+        mBitmapDrawables[1] = mBitmapDrawables[0];
+        mBitmapDrawables[0] = new BitmapDrawable(getResources(), bitmap);        // Create bitmap drawable to control filtering method
+        return mBitmapDrawables[0];
+    }
+
+    @MainThread
+    private void showErrorDialog(int messageId) {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setMessage(messageId)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+        DialogUtils.keepDialogOnOrientationChanges(dialog);
     }
 
     // endregion
 
-    // region UI
+    // region Recording
+    private @Nullable
+    File getRecordingsDirectory() {
+        Context context = getContext();
+        return context == null ? null : new File(context.getFilesDir(), kRecordingsDirectory);
+    }
+
     @MainThread
-    private void updateThermalUI(boolean isReady) {
-        mUartWaitingTextView.setVisibility(isReady ? View.GONE : View.VISIBLE);
+    private void startRecording() {
+        File directory = getRecordingsDirectory();
+        if (directory == null || mRecordingWriter != null) {
+            return;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        final String filename = "thermal_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + "." + ThermalRecordingWriter.kFileExtension;
+        try {
+            mRecordingWriter = new ThermalRecordingWriter(new File(directory, filename));
+            Log.d(TAG, "Recording started: " + filename);
+        } catch (IOException e) {
+            Log.w(TAG, "Error creating recording: " + e);
+            showErrorDialog(R.string.thermalcamera_recording_error_write);
+        }
+
+        mRecordingTextView.setText(getString(R.string.thermalcamera_recording_format, formatDuration(0), 0));
+        mRecordingTextView.setVisibility(mRecordingWriter != null ? View.VISIBLE : View.GONE);
+        invalidateOptionsMenu();
     }
 
     @MainThread
-    private void onImageUpdated(BitmapDrawable bitmapDrawable) {
+    private void stopRecording() {
+        ThermalRecordingWriter recordingWriter = mRecordingWriter;
+        if (recordingWriter == null) {
+            return;
+        }
 
-        bitmapDrawable.setFilterBitmap(mIsFilterEnabled);
+        mRecordingWriter = null;
+        recordingWriter.close();        // Waits for the frame being appended (if any)
 
-        mCameraImageView.setImageDrawable(bitmapDrawable);
+        if (mRecordingTextView != null) {
+            mRecordingTextView.setVisibility(View.GONE);
+        }
+        invalidateOptionsMenu();
+    }
 
-        if (mThermalScaleView.getAlpha() == 0 && isTemperatureReadReceived()) {
-            mThermalScaleView.updateGradient();
+    private void invalidateOptionsMenu() {
+        FragmentActivity activity = getActivity();
+        if (activity != null) {
+            activity.invalidateOptionsMenu();
+        }
+    }
 
-            ObjectAnimator anim = ObjectAnimator.ofFloat(mThermalScaleView, "alpha", 1f);
-            anim.setDuration(300);
-            anim.start();
+    @MainThread
+    private void showRecordingsDialog() {
+        Context context = getContext();
+        File directory = getRecordingsDirectory();
+        if (context == null || directory == null) {
+            return;
         }
 
-        final Locale defaultLocale = Locale.getDefault();
-        mLowerTempTextView.setText(String.format(defaultLocale, "%.2f", mMinTemperature));
-        mUpperTempTextView.setText(String.format(defaultLocale, "%.2f", mMaxTemperature));
+        // Recordings (except the one being recorded), newest first
+        final ThermalRecordingWriter recordingWriter = mRecordingWriter;
+        final File activeFile = recordingWriter != null ? recordingWriter.getFile() : null;
+        File[] files = directory.listFiles(file -> file.getName().endsWith("." + ThermalRecordingWriter.kFileExtension) && !file.equals(activeFile));
+        if (files == null || files.length == 0) {
+            showErrorDialog(R.string.thermalcamera_recordings_empty);
+            return;
+        }
+        Arrays.sort(files, (file1, file2) -> Long.compare(file2.lastModified(), file1.lastModified()));
+
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getName() + " (" + Formatter.formatShortFileSize(context, files[i].length()) + ")";
+        }
+
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle(R.string.thermalcamera_recordings_title)
+                .setItems(names, (dialogInterface, which) -> showRecordingActionsDialog(files[which]))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        DialogUtils.keepDialogOnOrientationChanges(dialog);
+    }
+
+    @MainThread
+    private void showRecordingActionsDialog(@NonNull File file) {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        String[] actions = {getString(R.string.thermalcamera_recording_play), getString(R.string.thermalcamera_recording_share), getString(R.string.thermalcamera_recording_delete)};
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle(file.getName())
+                .setItems(actions, (dialogInterface, which) -> {
+                    switch (which) {
+                        case 0:
+                            startReplay(file);
+                            break;
+                        case 1:
+                            shareRecording(file);
+                            break;
+                        case 2:
+                            if (mRecordingPlayer == null || !file.equals(mRecordingPlayer.getReader().getFile())) {
+                                //noinspection ResultOfMethodCallIgnored
+                                file.delete();
+                            }
+                            break;
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        DialogUtils.keepDialogOnOrientationChanges(dialog);
+    }
+
+    private void shareRecording(@NonNull File file) {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        final String authority = context.getApplicationContext().getPackageName() + kAuthorityField;
+        Uri fileUri = FileProvider.getUriForFile(context.getApplicationContext(), authority, file);
+
+        Intent sendIntent = new Intent();
+        sendIntent.setAction(Intent.ACTION_SEND);
+        sendIntent.putExtra(Intent.EXTRA_STREAM, fileUri);
+        sendIntent.setType("application/octet-stream");
+        sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(sendIntent, getResources().getText(R.string.thermalcamera_recording_share)));
     }
 
+    private static @NonNull
+    String formatDuration(long millis) {
+        final long seconds = millis / 1000;
+        return String.format(Locale.US, "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
     // endregion
 
-    // region Color
-    private final float[] temperatureComponentsForValueCachedColor = new float[]{0f, 0.7f, 0.5f};        // To avoid allocating memory, preserve a float array for temporal colors
+    // region Replay
+    @MainThread
+    private void startReplay(@NonNull File file) {
+        ThermalRecordingReader reader;
+        try {
+            reader = new ThermalRecordingReader(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Error opening recording: " + e);
+            showErrorDialog(R.string.thermalcamera_recording_error_open);
+            return;
+        }
 
-    public int temperatureComponentsForValue(float value) {
+        if (reader.getFrameCount() == 0) {
+            reader.close();
+            showErrorDialog(R.string.thermalcamera_recording_error_open);
+            return;
+        }
+
+        if (mRecordingPlayer != null) {
+            mRecordingPlayer.release();
+        }
+        mRecordingPlayer = new ThermalRecordingPlayer(reader, kMaxFrameValues, new ThermalRecordingPlayer.Listener() {
+            @Override
+            public void onPlaybackFrame(@NonNull float[] values, int count, int frameIndex) {
+                renderFrame(values, count);
+                mMainHandler.post(() -> updateReplayPositionUI(frameIndex));
+            }
 
-        if (mIsColorEnabled) {
-            final float hue = kColdHue + (kHotHue - kColdHue) * value;
-            temperatureComponentsForValueCachedColor[0] = hue;
+            @Override
+            public void onPlaybackFinished() {
+                mMainHandler.post(() -> mReplayPlayButton.setText(R.string.thermalcamera_replay_play));
+            }
+        });
+        mIsReplaying = true;
+
+        mReplaySeekBar.setMax(reader.getFrameCount() - 1);
+        mReplaySeekBar.setProgress(0);
+        mReplayLayout.setVisibility(View.VISIBLE);
+        mUartWaitingTextView.setVisibility(View.GONE);
+
+        mRecordingPlayer.setSpeed(kReplaySpeeds[mReplaySpeedIndex]);
+        mRecordingPlayer.seek(0);
+        mRecordingPlayer.play();
+        mReplayPlayButton.setText(R.string.thermalcamera_replay_pause);
+        updateReplayTimeUI(0);
+    }
 
-            return Color.HSVToColor(temperatureComponentsForValueCachedColor);
-        } else {
-            final int valueByte = (int) (value * 255f);
-            return Color.rgb(valueByte, valueByte, valueByte);
+    @MainThread
+    private void stopReplay() {
+        if (mRecordingPlayer != null) {
+            mRecordingPlayer.release();
+            mRecordingPlayer = null;
         }
+        mIsReplaying = false;
+
+        mReplayLayout.setVisibility(View.GONE);
+        updateThermalUI(mIsUartReady);
+    }
+
+    @MainThread
+    private void updateReplayPositionUI(int frameIndex) {
+        if (mRecordingPlayer == null) {
+            return;
+        }
+
+        if (!mIsReplaySeekBarTracking) {
+            mReplaySeekBar.setProgress(frameIndex);
+        }
+        updateReplayTimeUI(frameIndex);
+    }
+
+    @MainThread
+    private void updateReplayTimeUI(int frameIndex) {
+        if (mRecordingPlayer == null) {
+            return;
+        }
+
+        ThermalRecordingReader reader = mRecordingPlayer.getReader();
+        mReplayTimeTextView.setText(String.format(Locale.US, "%s / %s", formatDuration(reader.getFrameTimestamp(frameIndex)), formatDuration(reader.getDuration())));
+    }
+
+    @MainThread
+    private void updateReplaySpeedUI() {
+        mReplaySpeedButton.setText(getString(R.string.thermalcamera_replay_speed_format, (int) kReplaySpeeds[mReplaySpeedIndex]));
+    }
+    // endregion
+
+    // region Color
+    // Color for a value between 0 and 1 (used by ThermalGradientView)
+    public int temperatureComponentsForValue(float value) {
+        return mColorizer.colorForValue(value);
     }
 
     // endregion
@@ -338,7 +648,7 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
     /*
     private void uartRxCacheReset() {
         mUartDataManager.clearRxCache(mBlePeripheral.getIdentifier());
-        mTextCachedBuffer = "";
+        mFrameParser.reset();
     }*/
 
     // endregion
@@ -347,9 +657,7 @@ public class ThermalCameraFragment extends ConnectedPeripheralFragment implement
 
     @Override
     public void onUartRx(@NonNull byte[] data, @Nullable String peripheralIdentifier) {
-        String dataString = BleUtils.bytesToText(data, false);
-        processBuffer(dataString);
-        mUartDataManager.removeRxCacheFirst(data.length, peripheralIdentifier);
+        processBuffer(data);
     }
 
     // endregion
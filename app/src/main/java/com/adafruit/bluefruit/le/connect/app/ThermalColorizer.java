@@ -0,0 +1,339 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+// Converts the thermal camera frames to bitmaps:
+// - Range: automatic (the low and high percentiles of each frame, combined over a sliding window of recent frames, so the range follows the scene temperature without flickering) or fixed
+// - Colors: precomputed 256 entries lookup table for the hue (color) or grayscale (monochrome) modes
+// - Upscaling: nearest (the frame is rendered at the sensor resolution, to be displayed without filtering), bilinear or bicubic
+// - Output: double buffered. Frames are rendered into the back bitmap (on the thread that receives them) and the displaying thread takes it with swapBuffers, so a bitmap is never modified while it is displayed
+// The per frame cost doesn't depend on the frame contents: the sort of the percentiles is O(n log n) on the sensor values and the interpolation weights are precomputed
+class ThermalColorizer {
+    // Config
+    private static final int kAutoRangeWindowFrames = 16;
+    private static final float kLowPercentile = 0.02f;
+    private static final float kHighPercentile = 0.98f;
+    private static final float kMinAutoRange = 1f;          // In degrees. Avoids amplifying the sensor noise when the scene has an uniform temperature
+    private static final int kUpscaledTargetWidth = 256;    // Approximate width of the upscaled bitmaps
+
+    // Constants
+    static final int INTERPOLATION_NEAREST = 0;
+    static final int INTERPOLATION_BILINEAR = 1;
+    static final int INTERPOLATION_BICUBIC = 2;
+
+    private static final int kLutSize = 256;
+
+    // Color
+    private final int[] mLut = new int[kLutSize];
+
+    // Range
+    private boolean mIsFixedRange = false;
+    private final float[] mWindowLows = new float[kAutoRangeWindowFrames];
+    private final float[] mWindowHighs = new float[kAutoRangeWindowFrames];
+    private int mWindowCount = 0;
+    private int mWindowIndex = 0;
+    private float mRangeMin = Float.NaN;
+    private float mRangeMax = Float.NaN;
+    private float[] mSortedValues = new float[0];
+
+    // Image
+    private int mInterpolation = INTERPOLATION_BICUBIC;
+    private int mSourceCount = 0;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mScaledInterpolation = -1;           // Interpolation used to compute the current weights
+    private int[] mXIndices, mYIndices;              // Source indices for each output column/row (taps per output value)
+    private float[] mXWeights, mYWeights;
+    private int mTaps;
+    private float[] mNormalized = new float[0];
+    private float[] mHorizontalPass = new float[0];
+    private int[] mPixels = new int[0];
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mBackBufferIndex = 0;
+    private boolean mIsBackBufferReady = false;
+
+    ThermalColorizer(boolean isColorEnabled, float coldHue, float hotHue) {
+        setColorMode(isColorEnabled, coldHue, hotHue);
+    }
+
+    // region Settings
+    synchronized void setColorMode(boolean isColorEnabled, float coldHue, float hotHue) {
+        final float[] hsv = new float[]{0f, 0.7f, 0.5f};
+        for (int i = 0; i < kLutSize; i++) {
+            final float value = i / (float) (kLutSize - 1);
+            if (isColorEnabled) {
+                hsv[0] = coldHue + (hotHue - coldHue) * value;
+                mLut[i] = Color.HSVToColor(hsv);
+            } else {
+                final int valueByte = Math.round(value * 255f);
+                mLut[i] = Color.rgb(valueByte, valueByte, valueByte);
+            }
+        }
+    }
+
+    synchronized void setInterpolation(int interpolation) {
+        mInterpolation = interpolation;
+    }
+
+    synchronized int getInterpolation() {
+        return mInterpolation;
+    }
+
+    // Fixes the range to the current one (or disables the fixed range)
+    synchronized void setFixedRangeEnabled(boolean enabled) {
+        if (enabled && hasRange()) {
+            setFixedRange(mRangeMin, mRangeMax);
+        } else {
+            mIsFixedRange = false;
+        }
+    }
+
+    synchronized void setFixedRange(float min, float max) {
+        mIsFixedRange = true;
+        mRangeMin = Math.min(min, max);
+        mRangeMax = Math.max(min, max);
+    }
+
+    synchronized boolean isFixedRange() {
+        return mIsFixedRange;
+    }
+
+    synchronized boolean hasRange() {
+        return !Float.isNaN(mRangeMin) && !Float.isNaN(mRangeMax);
+    }
+
+    synchronized float getRangeMin() {
+        return mRangeMin;
+    }
+
+    synchronized float getRangeMax() {
+        return mRangeMax;
+    }
+
+    // Color for a value between 0 and 1
+    synchronized int colorForValue(float value) {
+        return mLut[lutIndex(value)];
+    }
+    // endregion
+
+    // region Colorize
+    // Renders the frame into the back bitmap. Returns false if the frame is not valid
+    synchronized boolean colorize(@NonNull float[] values, int count) {
+        if (count <= 0) {
+            return false;
+        }
+
+        updateDimensions(count);
+        updateRange(values, count);
+
+        // Normalize
+        final float range = mRangeMax - mRangeMin;
+        final float scale = range > 0 ? 1f / range : 0;
+        final int sourceCount = mSourceWidth * mSourceHeight;
+        for (int i = 0; i < sourceCount; i++) {
+            mNormalized[i] = (values[i] - mRangeMin) * scale;
+        }
+
+        // Scale and colorize
+        updateScaling();
+        if (mTaps == 1) {
+            for (int i = 0; i < sourceCount; i++) {
+                mPixels[i] = mLut[lutIndex(mNormalized[i])];
+            }
+        } else {
+            // Separable interpolation: horizontal pass (source rows) and then vertical pass
+            for (int y = 0; y < mSourceHeight; y++) {
+                final int rowOffset = y * mSourceWidth;
+                final int outputOffset = y * mOutputWidth;
+                for (int x = 0; x < mOutputWidth; x++) {
+                    float sum = 0;
+                    final int tapsOffset = x * mTaps;
+                    for (int t = 0; t < mTaps; t++) {
+                        sum += mNormalized[rowOffset + mXIndices[tapsOffset + t]] * mXWeights[tapsOffset + t];
+                    }
+                    mHorizontalPass[outputOffset + x] = sum;
+                }
+            }
+
+            for (int y = 0; y < mOutputHeight; y++) {
+                final int tapsOffset = y * mTaps;
+                final int outputOffset = y * mOutputWidth;
+                for (int x = 0; x < mOutputWidth; x++) {
+                    float sum = 0;
+                    for (int t = 0; t < mTaps; t++) {
+                        sum += mHorizontalPass[mYIndices[tapsOffset + t] * mOutputWidth + x] * mYWeights[tapsOffset + t];
+                    }
+                    mPixels[outputOffset + x] = mLut[lutIndex(sum)];
+                }
+            }
+        }
+
+        Bitmap bitmap = mBitmaps[mBackBufferIndex];
+        if (bitmap == null || bitmap.getWidth() != mOutputWidth || bitmap.getHeight() != mOutputHeight) {
+            bitmap = Bitmap.createBitmap(mOutputWidth, mOutputHeight, Bitmap.Config.RGB_565);
+            mBitmaps[mBackBufferIndex] = bitmap;
+        }
+        bitmap.setPixels(mPixels, 0, mOutputWidth, 0, 0, mOutputWidth, mOutputHeight);
+        mIsBackBufferReady = true;
+        return true;
+    }
+
+    // Returns the last rendered bitmap, that becomes the front buffer (it is not modified until the next swap), or null if no frame has been rendered since the previous swap.
+    // Should be called from the thread that displays the bitmaps, and the previous front bitmap should not be displayed after this call
+    synchronized @Nullable
+    Bitmap swapBuffers() {
+        if (!mIsBackBufferReady) {
+            return null;
+        }
+
+        final Bitmap bitmap = mBitmaps[mBackBufferIndex];
+        mBackBufferIndex = 1 - mBackBufferIndex;
+        mIsBackBufferReady = false;
+        return bitmap;
+    }
+
+    private void updateDimensions(int count) {
+        if (count == mSourceCount) {
+            return;
+        }
+
+        mSourceCount = count;
+        mSourceWidth = widthForCount(count);
+        mSourceHeight = heightForCount(count);
+        mNormalized = new float[mSourceWidth * mSourceHeight];
+        mScaledInterpolation = -1;
+        // The previous ranges are from a different sensor
+        mWindowCount = 0;
+        mWindowIndex = 0;
+        Arrays.fill(mWindowLows, 0);
+        Arrays.fill(mWindowHighs, 0);
+    }
+    // endregion
+
+    // region Range
+    private void updateRange(@NonNull float[] values, int count) {
+        if (mIsFixedRange) {
+            return;
+        }
+
+        // Percentiles of the current frame
+        if (mSortedValues.length < count) {
+            mSortedValues = new float[count];
+        }
+        System.arraycopy(values, 0, mSortedValues, 0, count);
+        Arrays.sort(mSortedValues, 0, count);
+        final float low = mSortedValues[Math.round(kLowPercentile * (count - 1))];
+        final float high = mSortedValues[Math.round(kHighPercentile * (count - 1))];
+
+        // Add to the window
+        mWindowLows[mWindowIndex] = low;
+        mWindowHighs[mWindowIndex] = high;
+        mWindowIndex = (mWindowIndex + 1) % kAutoRangeWindowFrames;
+        mWindowCount = Math.min(mWindowCount + 1, kAutoRangeWindowFrames);
+
+        // Range for the window
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < mWindowCount; i++) {
+            min = Math.min(min, mWindowLows[i]);
+            max = Math.max(max, mWindowHighs[i]);
+        }
+
+        if (max - min < kMinAutoRange) {
+            final float center = (min + max) / 2;
+            min = center - kMinAutoRange / 2;
+            max = center + kMinAutoRange / 2;
+        }
+
+        mRangeMin = min;
+        mRangeMax = max;
+    }
+    // endregion
+
+    // region Scaling
+    private void updateScaling() {
+        if (mScaledInterpolation == mInterpolation) {
+            return;
+        }
+        mScaledInterpolation = mInterpolation;
+
+        if (mInterpolation == INTERPOLATION_NEAREST) {
+            mTaps = 1;
+            mOutputWidth = mSourceWidth;
+            mOutputHeight = mSourceHeight;
+        } else {
+            mTaps = mInterpolation == INTERPOLATION_BICUBIC ? 4 : 2;
+            final int scale = Math.max(1, kUpscaledTargetWidth / mSourceWidth);
+            mOutputWidth = mSourceWidth * scale;
+            mOutputHeight = mSourceHeight * scale;
+
+            mXIndices = new int[mOutputWidth * mTaps];
+            mXWeights = new float[mOutputWidth * mTaps];
+            computeWeights(mSourceWidth, mOutputWidth, mXIndices, mXWeights);
+            mYIndices = new int[mOutputHeight * mTaps];
+            mYWeights = new float[mOutputHeight * mTaps];
+            computeWeights(mSourceHeight, mOutputHeight, mYIndices, mYWeights);
+
+            mHorizontalPass = new float[mSourceHeight * mOutputWidth];
+        }
+
+        mPixels = new int[mOutputWidth * mOutputHeight];
+    }
+
+    private void computeWeights(int sourceLength, int outputLength, @NonNull int[] indices, @NonNull float[] weights) {
+        final float ratio = sourceLength / (float) outputLength;
+        for (int i = 0; i < outputLength; i++) {
+            final float position = (i + 0.5f) * ratio - 0.5f;         // Align pixel centers
+            final int base = (int) Math.floor(position);
+            final float t = position - base;
+            final int offset = i * mTaps;
+
+            if (mTaps == 2) {
+                indices[offset] = clamp(base, sourceLength);
+                indices[offset + 1] = clamp(base + 1, sourceLength);
+                weights[offset] = 1 - t;
+                weights[offset + 1] = t;
+            } else {
+                // Catmull-Rom
+                final float t2 = t * t;
+                final float t3 = t2 * t;
+                for (int k = 0; k < 4; k++) {
+                    indices[offset + k] = clamp(base - 1 + k, sourceLength);
+                }
+                weights[offset] = 0.5f * (-t3 + 2 * t2 - t);
+                weights[offset + 1] = 0.5f * (3 * t3 - 5 * t2 + 2);
+                weights[offset + 2] = 0.5f * (-3 * t3 + 4 * t2 + t);
+                weights[offset + 3] = 0.5f * (t3 - t2);
+            }
+        }
+    }
+    // endregion
+
+    // region Utils
+    // Sensor dimensions for the number of values received in a frame
+    static int widthForCount(int count) {
+        return count == 32 * 24 ? 32 : (int) Math.floor(Math.sqrt(count));      // MLX90640 or square sensors (i.e. AMG8833: 8x8)
+    }
+
+    static int heightForCount(int count) {
+        return count == 32 * 24 ? 24 : (int) Math.floor(Math.sqrt(count));
+    }
+
+    private static int clamp(int index, int length) {
+        return index < 0 ? 0 : (index >= length ? length - 1 : index);
+    }
+
+    private static int lutIndex(float value) {
+        final int index = (int) (value * (kLutSize - 1) + 0.5f);
+        return index < 0 ? 0 : (index >= kLutSize ? kLutSize - 1 : index);
+    }
+    // endregion
+}
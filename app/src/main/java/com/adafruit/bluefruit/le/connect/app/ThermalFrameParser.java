@@ -0,0 +1,166 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import androidx.annotation.NonNull;
+
+// Streaming parser for the thermal camera frames: "[v0, v1, v2, ...]" where each value is a decimal number (i.e. "23.25", "-1.5e1").
+// Works directly on the received bytes and keeps its state between calls, so frames can be split across any number of notifications and each byte is processed only once
+// (the time to parse a frame doesn't depend on how much data is pending). The values are written to a reusable float array.
+// Whitespace is ignored. Bytes outside brackets are discarded. A frame with invalid characters, or with more than maxValues values, is discarded.
+// Not thread safe: data should be appended from a single thread (the uart rx thread)
+class ThermalFrameParser {
+    // Config
+    private static final int kMaxMantissaDigits = 9;       // More significant digits are ignored (floats only have ~7 significant digits)
+
+    // Constants
+    private static final double[] kPowersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10};
+
+    // Listener. Called from the thread that appended the data. values is reused: the contents are only valid until the listener returns
+    interface Listener {
+        void onFrame(@NonNull float[] values, int count);
+    }
+
+    // Data
+    private final Listener mListener;
+    private final float[] mValues;
+    private int mCount;
+    private boolean mIsInsideFrame = false;
+    private boolean mIsFrameValid;
+
+    // Current value
+    private boolean mHasDigits;
+    private boolean mIsNegative;
+    private boolean mHasDecimalPoint;
+    private boolean mIsInExponent;
+    private boolean mIsExponentNegative;
+    private boolean mHasExponentDigits;
+    private int mMantissa;
+    private int mMantissaDigits;
+    private int mDecimalExponent;      // Exponent applied to the mantissa (fraction digits and ignored digits)
+    private int mExponent;
+
+    ThermalFrameParser(int maxValues, @NonNull Listener listener) {
+        mValues = new float[maxValues];
+        mListener = listener;
+    }
+
+    void reset() {
+        mIsInsideFrame = false;
+        resetValue();
+    }
+
+    void append(@NonNull byte[] data) {
+        append(data, 0, data.length);
+    }
+
+    void append(@NonNull byte[] data, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final byte c = data[i];
+
+            if (c == '[') {
+                // Start a new frame (an unfinished frame is discarded)
+                mIsInsideFrame = true;
+                mIsFrameValid = true;
+                mCount = 0;
+                resetValue();
+            } else if (!mIsInsideFrame) {
+                // Skip bytes outside a frame
+            } else if (c == ']') {
+                endValue();
+                mIsInsideFrame = false;
+                if (mIsFrameValid && mCount > 0) {
+                    mListener.onFrame(mValues, mCount);
+                }
+            } else if (c == ',') {
+                endValue();
+            } else if (mIsFrameValid && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                if (!appendValueCharacter(c)) {
+                    mIsFrameValid = false;
+                }
+            }
+        }
+    }
+
+    // region Value
+    private boolean appendValueCharacter(byte c) {
+        if (c >= '0' && c <= '9') {
+            final int digit = c - '0';
+            if (mIsInExponent) {
+                if (mExponent < 1000) {
+                    mExponent = mExponent * 10 + digit;
+                }
+                mHasExponentDigits = true;
+            } else {
+                if (mMantissaDigits < kMaxMantissaDigits) {
+                    if (mMantissa != 0 || digit != 0) {
+                        mMantissa = mMantissa * 10 + digit;
+                        mMantissaDigits++;
+                    }
+                    if (mHasDecimalPoint) {
+                        mDecimalExponent--;
+                    }
+                } else if (!mHasDecimalPoint) {
+                    mDecimalExponent++;         // Ignored integer digit
+                }
+                mHasDigits = true;
+            }
+            return true;
+        } else if (c == '-' || c == '+') {
+            if (mIsInExponent) {
+                if (mHasExponentDigits) {
+                    return false;
+                }
+                mIsExponentNegative = c == '-';
+            } else {
+                if (mHasDigits || mHasDecimalPoint) {
+                    return false;
+                }
+                mIsNegative = c == '-';
+            }
+            return true;
+        } else if (c == '.') {
+            if (mHasDecimalPoint || mIsInExponent) {
+                return false;
+            }
+            mHasDecimalPoint = true;
+            return true;
+        } else if ((c == 'e' || c == 'E') && mHasDigits && !mIsInExponent) {
+            mIsInExponent = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void endValue() {
+        if (mIsFrameValid && (mHasDigits || mHasDecimalPoint)) {
+            if (!mHasDigits || (mIsInExponent && !mHasExponentDigits) || mCount >= mValues.length) {
+                mIsFrameValid = false;
+            } else {
+                final int exponent = mDecimalExponent + (mIsExponentNegative ? -mExponent : mExponent);
+                double value = mMantissa;
+                if (exponent > 0) {
+                    value *= exponent < kPowersOfTen.length ? kPowersOfTen[exponent] : Math.pow(10, exponent);
+                } else if (exponent < 0) {
+                    value /= -exponent < kPowersOfTen.length ? kPowersOfTen[-exponent] : Math.pow(10, -exponent);
+                }
+                mValues[mCount++] = (float) (mIsNegative ? -value : value);
+            }
+        }
+        resetValue();
+    }
+
+    private void resetValue() {
+        mHasDigits = false;
+        mIsNegative = false;
+        mHasDecimalPoint = false;
+        mIsInExponent = false;
+        mIsExponentNegative = false;
+        mHasExponentDigits = false;
+        mMantissa = 0;
+        mMantissaDigits = 0;
+        mDecimalExponent = 0;
+        mExponent = 0;
+    }
+    // endregion
+}
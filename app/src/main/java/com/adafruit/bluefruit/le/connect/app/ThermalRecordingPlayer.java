@@ -0,0 +1,162 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+// Plays a thermal recording on a background thread, at the original speed or faster. Frames are scheduled against a clock anchor (uptime and recording time)
+// instead of adding the delays between frames, so the playback doesn't drift. If the rendering can't keep up (i.e. at high speeds), the late frames are skipped
+class ThermalRecordingPlayer {
+    // Log
+    private final static String TAG = ThermalRecordingPlayer.class.getSimpleName();
+
+    // Config
+    private static final long kMaxLateMillis = 100;     // Frames are skipped if the playback is late by more than this time
+
+    // Listener. Called on the player thread. values is reused: the contents are only valid until the listener returns
+    interface Listener {
+        void onPlaybackFrame(@NonNull float[] values, int count, int frameIndex);
+
+        void onPlaybackFinished();
+    }
+
+    // Data
+    private final ThermalRecordingReader mReader;
+    private final Listener mListener;
+    private final float[] mValues;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mStepRunnable = this::step;
+
+    private volatile int mFrameIndex = 0;
+    private volatile boolean mIsPlaying = false;
+    private float mSpeed = 1;
+    private long mAnchorUptime;
+    private long mAnchorTimestamp;
+
+    ThermalRecordingPlayer(@NonNull ThermalRecordingReader reader, int maxValues, @NonNull Listener listener) {
+        mReader = reader;
+        mListener = listener;
+        mValues = new float[maxValues];
+
+        mThread = new HandlerThread("ThermalRecordingPlayer");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    // region Actions
+    void play() {
+        mHandler.post(() -> {
+            if (mIsPlaying) {
+                return;
+            }
+            if (mFrameIndex >= mReader.getFrameCount() - 1) {
+                mFrameIndex = 0;            // Restart if finished
+            }
+            mIsPlaying = true;
+            resetAnchor();
+            step();
+        });
+    }
+
+    void pause() {
+        mHandler.post(() -> {
+            mIsPlaying = false;
+            mHandler.removeCallbacks(mStepRunnable);
+        });
+    }
+
+    boolean isPlaying() {
+        return mIsPlaying;
+    }
+
+    void setSpeed(float speed) {
+        mHandler.post(() -> {
+            mSpeed = speed;
+            resetAnchor();
+        });
+    }
+
+    // Shows the frame. If playing, continues from the frame
+    void seek(int frameIndex) {
+        mHandler.post(() -> {
+            if (mReader.getFrameCount() == 0) {
+                return;
+            }
+
+            mFrameIndex = Math.max(0, Math.min(frameIndex, mReader.getFrameCount() - 1));
+            mHandler.removeCallbacks(mStepRunnable);
+            if (mIsPlaying) {
+                resetAnchor();
+                step();
+            } else {
+                showFrame(mFrameIndex);
+            }
+        });
+    }
+
+    int getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    @NonNull
+    ThermalRecordingReader getReader() {
+        return mReader;
+    }
+
+    void release() {
+        mIsPlaying = false;
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(mReader::close);
+        mThread.quitSafely();
+    }
+    // endregion
+
+    // region Playback
+    private void resetAnchor() {
+        mAnchorUptime = SystemClock.uptimeMillis();
+        mAnchorTimestamp = mReader.getFrameCount() > 0 ? mReader.getFrameTimestamp(mFrameIndex) : 0;
+    }
+
+    private void step() {
+        final int frameCount = mReader.getFrameCount();
+        if (!mIsPlaying || mFrameIndex >= frameCount) {
+            return;
+        }
+
+        showFrame(mFrameIndex);
+
+        if (mFrameIndex >= frameCount - 1) {
+            mIsPlaying = false;
+            mListener.onPlaybackFinished();
+            return;
+        }
+
+        // Schedule the next frame (skipping the frames that are already late)
+        final long now = SystemClock.uptimeMillis();
+        final long playbackTimestamp = mAnchorTimestamp + (long) ((now - mAnchorUptime) * mSpeed);
+        int nextIndex = mFrameIndex + 1;
+        if (mReader.getFrameTimestamp(nextIndex) < playbackTimestamp - kMaxLateMillis * mSpeed) {
+            nextIndex = Math.max(nextIndex, mReader.frameIndexForTimestamp(playbackTimestamp));
+        }
+        mFrameIndex = nextIndex;
+
+        final long nextUptime = mAnchorUptime + (long) ((mReader.getFrameTimestamp(nextIndex) - mAnchorTimestamp) / mSpeed);
+        mHandler.postAtTime(mStepRunnable, Math.max(now, nextUptime));
+    }
+
+    private void showFrame(int frameIndex) {
+        try {
+            final int count = mReader.readFrame(frameIndex, mValues, null);
+            mListener.onPlaybackFrame(mValues, count, frameIndex);
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading frame " + frameIndex + ": " + e);
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,179 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import android.util.Half;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Reads a recording created by ThermalRecordingWriter. On open, the frame headers are scanned to build an index with the file offset and timestamp of each frame,
+// so seeking to a frame or to a time doesn't need to read the previous frames. The file is read through a memory mapped window that moves along the file,
+// so long recordings don't need to be mapped (or loaded) completely
+class ThermalRecordingReader {
+    // Config
+    private static final int kMapWindowSize = 8 * 1024 * 1024;
+
+    // Data
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final long mStartTime;
+    private long[] mFrameOffsets = new long[1024];
+    private int[] mFrameTimestamps = new int[1024];
+    private int mFrameCount = 0;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mWindowEnd;
+
+    ThermalRecordingReader(@NonNull File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mFileSize = mChannel.size();
+
+        try {
+            // Header
+            if (mFileSize < ThermalRecordingWriter.kHeaderSize) {
+                throw new IOException("Invalid recording file");
+            }
+            MappedByteBuffer buffer = window(0, ThermalRecordingWriter.kHeaderSize);
+            final int magic = buffer.getInt();
+            final int version = buffer.getShort() & 0xFFFF;
+            final int headerSize = buffer.getShort() & 0xFFFF;
+            mStartTime = buffer.getLong();
+            if (magic != ThermalRecordingWriter.kMagic || version != ThermalRecordingWriter.kVersion || headerSize < ThermalRecordingWriter.kHeaderSize) {
+                throw new IOException("Invalid recording file");
+            }
+
+            buildIndex(headerSize);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // region Index
+    private void buildIndex(long position) throws IOException {
+        int previousTimestamp = 0;
+        while (position + ThermalRecordingWriter.kFrameHeaderSize <= mFileSize) {
+            MappedByteBuffer buffer = window(position, ThermalRecordingWriter.kFrameHeaderSize);
+            final int timestamp = buffer.getInt();
+            final int width = buffer.getShort() & 0xFFFF;
+            final int height = buffer.getShort() & 0xFFFF;
+            final int count = width * height;
+            final long frameSize = ThermalRecordingWriter.kFrameHeaderSize + count * 2L;
+
+            // Stop at the unused (zero filled) tail of a recording that was not closed, or at a truncated frame
+            if (count <= 0 || count > ThermalRecordingWriter.kMaxFrameValues || timestamp < previousTimestamp || position + frameSize > mFileSize) {
+                break;
+            }
+
+            if (mFrameCount == mFrameOffsets.length) {
+                mFrameOffsets = Arrays.copyOf(mFrameOffsets, mFrameCount * 2);
+                mFrameTimestamps = Arrays.copyOf(mFrameTimestamps, mFrameCount * 2);
+            }
+            mFrameOffsets[mFrameCount] = position;
+            mFrameTimestamps[mFrameCount] = timestamp;
+            mFrameCount++;
+
+            previousTimestamp = timestamp;
+            position += frameSize;
+        }
+    }
+
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Start time of the recording in ms since epoch
+    long getStartTime() {
+        return mStartTime;
+    }
+
+    // Time of the frame in ms since the start of the recording
+    int getFrameTimestamp(int index) {
+        return mFrameTimestamps[index];
+    }
+
+    int getDuration() {
+        return mFrameCount > 0 ? mFrameTimestamps[mFrameCount - 1] : 0;
+    }
+
+    // Returns the last frame with a timestamp less or equal than the time (ms since the start of the recording)
+    int frameIndexForTimestamp(long timestamp) {
+        int low = 0;
+        int high = mFrameCount - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (mFrameTimestamps[middle] <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return Math.max(0, low);
+    }
+    // endregion
+
+    // region Frames
+    // Reads the frame values into the array. Returns the number of values read. The frame dimensions are returned in dimensions (width, height) if not null
+    synchronized int readFrame(int index, @NonNull float[] values, @Nullable int[] dimensions) throws IOException {
+        final long position = mFrameOffsets[index];
+        MappedByteBuffer buffer = window(position, ThermalRecordingWriter.kFrameHeaderSize);
+        buffer.getInt();        // Timestamp
+        final int width = buffer.getShort() & 0xFFFF;
+        final int height = buffer.getShort() & 0xFFFF;
+        final int count = Math.min(width * height, values.length);
+
+        buffer = window(position + ThermalRecordingWriter.kFrameHeaderSize, count * 2);
+        for (int i = 0; i < count; i++) {
+            values[i] = Half.toFloat(buffer.getShort());
+        }
+
+        if (dimensions != null) {
+            dimensions[0] = width;
+            dimensions[1] = height;
+        }
+        return count;
+    }
+
+    synchronized void close() {
+        mWindow = null;
+        try {
+            mChannel.close();
+            mRandomAccessFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+    // endregion
+
+    // region Utils
+    // Returns the mapped window positioned at the file position. The window is moved if it doesn't contain length bytes from position
+    private @NonNull
+    MappedByteBuffer window(long position, int length) throws IOException {
+        if (mWindow == null || position < mWindowStart || position + length > mWindowEnd) {
+            final long size = Math.min(Math.max(kMapWindowSize, length), mFileSize - position);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            mWindow.order(ByteOrder.LITTLE_ENDIAN);
+            mWindowStart = position;
+            mWindowEnd = position + size;
+        }
+        mWindow.position((int) (position - mWindowStart));
+        return mWindow;
+    }
+    // endregion
+}
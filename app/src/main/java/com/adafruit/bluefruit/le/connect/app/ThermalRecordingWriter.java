@@ -0,0 +1,135 @@
+package com.adafruit.bluefruit.le.connect.app;
+
+import android.os.SystemClock;
+import android.util.Half;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Appends thermal frames to a recording file. Format (little endian):
+// - Header (kHeaderSize bytes): magic "BLTH", version (uint16), header size (uint16), start time (int64, ms since epoch), reserved
+// - Frames: timestamp (uint32, ms since the start), width (uint16), height (uint16), width * height values (float16)
+// The file is written through memory mapped chunks, so each frame is a memory copy (no syscall per frame). The unused tail of the last chunk is zero filled,
+// so if the app is killed before close, the reader stops at the first frame with zero dimensions and the previous frames are still valid
+class ThermalRecordingWriter {
+    // Log
+    private final static String TAG = ThermalRecordingWriter.class.getSimpleName();
+
+    // Format
+    static final int kMagic = 0x48544C42;       // "BLTH" in little endian
+    static final int kVersion = 1;
+    static final int kHeaderSize = 32;
+    static final int kFrameHeaderSize = 8;
+    static final int kMaxFrameValues = 0xFFFF;
+    static final String kFileExtension = "thermal";
+
+    // Config
+    private static final int kMapChunkSize = 1024 * 1024;
+
+    // Data
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mStartElapsedRealtime;
+    private MappedByteBuffer mBuffer;
+    private long mBufferStart;          // File position of the mapped chunk
+    private long mPosition;             // File position for the next frame
+    private int mFrameCount = 0;
+    private boolean mIsClosed = false;
+
+    ThermalRecordingWriter(@NonNull File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mChannel.truncate(0);
+        mStartElapsedRealtime = SystemClock.elapsedRealtime();
+
+        try {
+            map(0, kHeaderSize);
+            mBuffer.putInt(kMagic);
+            mBuffer.putShort((short) kVersion);
+            mBuffer.putShort((short) kHeaderSize);
+            mBuffer.putLong(System.currentTimeMillis());
+            mPosition = kHeaderSize;
+        } catch (IOException e) {
+            mChannel.close();
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    // region Actions
+    synchronized void append(@NonNull float[] values, int width, int height) throws IOException {
+        final int count = width * height;
+        if (mIsClosed || count <= 0 || count > kMaxFrameValues || count > values.length) {
+            return;
+        }
+
+        final int frameSize = kFrameHeaderSize + count * 2;
+        if (mPosition + frameSize > mBufferStart + mBuffer.capacity()) {
+            map(mPosition, frameSize);
+        }
+        mBuffer.position((int) (mPosition - mBufferStart));
+
+        mBuffer.putInt((int) (SystemClock.elapsedRealtime() - mStartElapsedRealtime));
+        mBuffer.putShort((short) width);
+        mBuffer.putShort((short) height);
+        for (int i = 0; i < count; i++) {
+            mBuffer.putShort(Half.toHalf(values[i]));
+        }
+
+        mPosition += frameSize;
+        mFrameCount++;
+    }
+
+    // Flushes the mapped data and truncates the file to the frames written
+    synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+
+        try {
+            mBuffer.force();
+            mBuffer = null;
+            mChannel.truncate(mPosition);
+            mChannel.close();
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing recording: " + e);
+        }
+        Log.d(TAG, "Recording closed: " + mFrameCount + " frames, " + mPosition + " bytes");
+    }
+
+    synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getElapsedMillis() {
+        return SystemClock.elapsedRealtime() - mStartElapsedRealtime;
+    }
+
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+    // endregion
+
+    // region Utils
+    private void map(long position, int minSize) throws IOException {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(kMapChunkSize, minSize));     // Mapping beyond the end of the file grows it
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBufferStart = position;
+    }
+    // endregion
+}
@@ -6,12 +6,12 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Log;
@@ -33,6 +33,7 @@ import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
+import androidx.core.content.FileProvider;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
@@ -42,20 +43,28 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import com.adafruit.bluefruit.le.connect.R;
+import com.adafruit.bluefruit.le.connect.app.terminal.TerminalLineBuffer;
+import com.adafruit.bluefruit.le.connect.app.terminal.TerminalView;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.ble.ByteFormatter;
 import com.adafruit.bluefruit.le.connect.ble.UartPacket;
 import com.adafruit.bluefruit.le.connect.ble.UartPacketManagerBase;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
+import com.adafruit.bluefruit.le.connect.dfu.ProgressFragmentDialog;
 import com.adafruit.bluefruit.le.connect.mqtt.MqttManager;
 import com.adafruit.bluefruit.le.connect.mqtt.MqttSettings;
 import com.adafruit.bluefruit.le.connect.utils.KeyboardUtils;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 // TODO: register
 public abstract class UartBaseFragment extends ConnectedPeripheralFragment implements UartPacketManagerBase.Listener, MqttManager.MqttManagerListener {
@@ -64,7 +73,9 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
 
     // Configuration
     public final static int kDefaultMaxPacketsToPaintAsText = 500;
+    private final static int kMaxTerminalLines = 5000;          // Lines kept in the text buffer. Older lines are discarded
     private final static int kInfoColor = Color.parseColor("#F21625");
+    private static final String kAuthorityField = ".fileprovider";          // Same as the authority field on the manifest provider
 
     // Constants
     private final static String kPreferences = "UartActivity_prefs";
@@ -81,7 +92,7 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
     protected final static int UARTDISPLAYMODE_TERMINAL = 2;
 
     // UI
-    private EditText mBufferTextView;
+    private TerminalView mBufferTextView;
     private RecyclerView mBufferRecyclerView;
     protected TimestampItemAdapter mBufferItemAdapter;
     private EditText mSendEditText;
@@ -119,10 +130,16 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
     private boolean mIsEolEnabled;
     private int mEolCharactersId;
 
-    private final SpannableStringBuilder mTextSpanBuffer = new SpannableStringBuilder();
+    private final TerminalLineBuffer mTextLineBuffer = new TerminalLineBuffer(kMaxTerminalLines);
+    private final StringBuilder mFormatBuilder = new StringBuilder();                                  // Reused to format each packet
+    private final Map<String, ByteFormatter.NewlineNormalizer> mRxNewlineNormalizers = new HashMap<>();     // Keep the "\r\n" state between packets. One per peripheral and direction, so a "\r" at the end of a packet doesn't affect the packets of other streams
+    private final Map<String, ByteFormatter.NewlineNormalizer> mTxNewlineNormalizers = new HashMap<>();
 
     protected MqttManager mMqttManager;
 
+    private Future<?> mExportFuture;
+    private ProgressFragmentDialog mExportProgressDialog;
+
     private int maxPacketsToPaintAsText;
     private int mPacketsCacheLastSize = 0;
 
@@ -190,9 +207,7 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
 
         // Buffer
         mBufferTextView = view.findViewById(R.id.bufferTextView);
-        if (mBufferTextView != null) {
-            mBufferTextView.setKeyListener(null);     // make it not editable
-        }
+        mBufferTextView.setBuffer(mTextLineBuffer);
 
         // Send Text
         mSendEditText = view.findViewById(R.id.sendEditText);
@@ -342,6 +357,11 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
 
     @Override
     public void onDestroy() {
+        cancelExport();
+        dismissExportProgressDialog();
+        if (mUartData != null) {
+            mUartData.flush();          // Deliver the packets still waiting for a frame
+        }
         mUartData = null;
 
         // Disconnect mqtt
@@ -604,15 +624,6 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
         mBufferRecyclerView.setBackgroundColor(isReady ? Color.TRANSPARENT : 0xaaaaaa);
     }
 
-    private void addTextToSpanBuffer(SpannableStringBuilder spanBuffer, String text, int color, boolean isBold) {
-        final int from = spanBuffer.length();
-        spanBuffer.append(text);
-        spanBuffer.setSpan(new ForegroundColorSpan(color), from, from + text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        if (isBold) {
-            spanBuffer.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), from, from + text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-    }
-
     @MainThread
     private void updateBytesUI() {
         if (mUartData != null) {
@@ -642,8 +653,9 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
         final boolean isUIInTableMode = isUIInTableMode();
         if (!isUIInTableMode) {
             mPacketsCacheLastSize = 0;
-            mTextSpanBuffer.clear();
-            mBufferTextView.setText("");
+            mTextLineBuffer.clear();
+            resetNewlineNormalizers();
+            mBufferTextView.scrollToBottom();
         }
     }
 
@@ -660,10 +672,16 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
                 mBufferRecyclerView.smoothScrollToPosition(Math.max(bufferSize - 1, 0));
 
             } else {
-                if (packetsCacheSize > maxPacketsToPaintAsText) {
+                if (packetsCacheSize < mPacketsCacheLastSize) {        // The packets cache has been cleared
+                    mPacketsCacheLastSize = 0;
+                    mTextLineBuffer.clear();
+                    resetNewlineNormalizers();
+                }
+
+                // Only append the new packets. If too many have arrived since the last refresh, skip the older ones
+                if (packetsCacheSize - mPacketsCacheLastSize > maxPacketsToPaintAsText) {
                     mPacketsCacheLastSize = packetsCacheSize - maxPacketsToPaintAsText;
-                    mTextSpanBuffer.clear();
-                    addTextToSpanBuffer(mTextSpanBuffer, getString(R.string.uart_text_dataomitted) + "\n", kInfoColor, false);
+                    mTextLineBuffer.append("\n" + getString(R.string.uart_text_dataomitted) + "\n", kInfoColor, false);
                 }
 
                 // Log.d(TAG, "update packets: "+(bufferSize-mPacketsCacheLastSize));
@@ -672,8 +690,7 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
                     onUartPacketText(packet);
                 }
 
-                mBufferTextView.setText(mTextSpanBuffer);
-                mBufferTextView.setSelection(0, mTextSpanBuffer.length());        // to automatically scroll to the end
+                mBufferTextView.onBufferChanged();
             }
 
             mPacketsCacheLastSize = packetsCacheSize;
@@ -692,11 +709,32 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
             final boolean isBold = isFontBoldForPacket(newPacket);
 
             final byte[] bytes = newPacket.getData();
-            final String formattedData = mShowDataInHexFormat ? BleUtils.bytesToHex2(bytes) : BleUtils.bytesToText(bytes, true);
-            addTextToSpanBuffer(mTextSpanBuffer, formattedData, color, isBold);
+            mFormatBuilder.setLength(0);
+            if (mShowDataInHexFormat) {
+                ByteFormatter.appendHex(mFormatBuilder, bytes, ' ');
+            } else {
+                newlineNormalizerForPacket(newPacket).appendText(mFormatBuilder, bytes);
+            }
+            mTextLineBuffer.append(mFormatBuilder, color, isBold);
         }
     }
 
+    private @NonNull
+    ByteFormatter.NewlineNormalizer newlineNormalizerForPacket(@NonNull UartPacket packet) {
+        Map<String, ByteFormatter.NewlineNormalizer> normalizers = packet.getMode() == UartPacket.TRANSFERMODE_RX ? mRxNewlineNormalizers : mTxNewlineNormalizers;
+        ByteFormatter.NewlineNormalizer normalizer = normalizers.get(packet.getPeripheralId());
+        if (normalizer == null) {
+            normalizer = new ByteFormatter.NewlineNormalizer();
+            normalizers.put(packet.getPeripheralId(), normalizer);
+        }
+        return normalizer;
+    }
+
+    private void resetNewlineNormalizers() {
+        mRxNewlineNormalizers.clear();
+        mTxNewlineNormalizers.clear();
+    }
+
     private static SpannableString stringFromPacket(UartPacket packet, boolean useHexMode, int color, boolean isBold) {
         final byte[] bytes = packet.getData();
         final String formattedData = useHexMode ? BleUtils.bytesToHex2(bytes) : BleUtils.bytesToText(bytes, true);
@@ -776,62 +814,112 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
     // region Export
 
     private void export() {
-        List<UartPacket> packets = mUartData.getPacketsCache();
+        // Note: only the packet references are copied, so the snapshot is cheap even for long sessions
+        List<UartPacket> packets = mUartData.getPacketsCacheSnapshot();
         if (packets.isEmpty()) {
             showDialogWarningNoTextToExport();
         } else {
-
-            final int maxPacketsToExport = 1000;        // exportText uses a parcelable to send the text. If the text is too big a TransactionTooLargeException is thrown
-            final int numPacketsToExport = Math.min(maxPacketsToExport, packets.size());
-            List<UartPacket> packetsToExport = new ArrayList<>(numPacketsToExport);
-            for (int i = Math.max(0, packets.size() - numPacketsToExport); i < packets.size(); i++) {
-                UartPacket packet = packets.get(i);
-                packetsToExport.add(new UartPacket(packet));
-            }
-
             // Export format dialog
             AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
             builder.setTitle(R.string.uart_export_format_subtitle);
 
-            final String[] formats = {"txt", "csv", "json"};
-            builder.setItems(formats, (dialog, which) -> {
-                switch (which) {
-                    case 0: { // txt
-                        String result = UartDataExport.packetsAsText(packetsToExport, mShowDataInHexFormat);
-                        exportText(result);
-                        break;
-                    }
-                    case 1: { // csv
-                        String result = UartDataExport.packetsAsCsv(packetsToExport, mShowDataInHexFormat);
-                        exportText(result);
-                        break;
-                    }
-                    case 2: { // json
-                        String result = UartDataExport.packetsAsJson(packetsToExport, mShowDataInHexFormat);
-                        exportText(result);
-                        break;
-                    }
-                }
-            });
+            builder.setItems(UartDataExport.kFormatNames, (dialog, which) -> exportToFile(packets, which));
 
             AlertDialog dialog = builder.create();
             dialog.show();
         }
     }
 
-    private void exportText(@Nullable String text) {
-        // Note: text is sent in a parcelable. It shouldn't be too big to avoid TransactionTooLargeException
-        if (text != null && !text.isEmpty()) {
-            Intent sendIntent = new Intent();
-            sendIntent.setAction(Intent.ACTION_SEND);
-            sendIntent.putExtra(Intent.EXTRA_TEXT, text);
-            sendIntent.setType("text/plain");
-            startActivity(Intent.createChooser(sendIntent, getResources().getText(R.string.uart_export_format_title)));
-        } else {
-            showDialogWarningNoTextToExport();
+    private void exportToFile(@NonNull List<UartPacket> packets, int format) {
+        Context context = getContext();
+        if (context == null) {
+            return;
         }
+
+        // Progress fragment
+        FragmentManager fragmentManager = getFragmentManager();
+        if (fragmentManager != null) {
+            dismissExportProgressDialog();
+
+            mExportProgressDialog = ProgressFragmentDialog.newInstance(context.getString(R.string.uart_export_progress));
+            mExportProgressDialog.show(fragmentManager, null);
+            fragmentManager.executePendingTransactions();
+
+            mExportProgressDialog.setIndeterminate(false);
+            mExportProgressDialog.setOnCancelListener(dialog -> {
+                cancelExport();
+                dismissExportProgressDialog();
+            });
+        }
+
+        cancelExport();
+        mExportFuture = UartDataExport.exportToFile(context, packets, format, mShowDataInHexFormat, new UartDataExport.Listener() {
+            @Override
+            public void onExportProgress(int percent) {
+                if (mExportFuture != null && mExportProgressDialog != null) {
+                    mExportProgressDialog.setProgress(percent);
+                }
+            }
+
+            @Override
+            public void onExportFinished(@NonNull File file, @NonNull String mimeType) {
+                if (mExportFuture == null || mExportFuture.isCancelled()) {        // Cancelled
+                    return;
+                }
+                mExportFuture = null;
+                dismissExportProgressDialog();
+                shareExportedFile(file, mimeType);
+            }
+
+            @Override
+            public void onExportFailed(@NonNull Exception exception) {
+                if (mExportFuture == null || mExportFuture.isCancelled()) {        // Cancelled
+                    return;
+                }
+                mExportFuture = null;
+                dismissExportProgressDialog();
+
+                Context context = getContext();
+                if (context != null) {
+                    new AlertDialog.Builder(context)
+                            .setMessage(R.string.uart_export_error)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                }
+            }
+        });
     }
 
+    private void shareExportedFile(@NonNull File file, @NonNull String mimeType) {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        final String authority = context.getApplicationContext().getPackageName() + kAuthorityField;
+        Uri fileUri = FileProvider.getUriForFile(context.getApplicationContext(), authority, file);
+
+        Intent sendIntent = new Intent();
+        sendIntent.setAction(Intent.ACTION_SEND);
+        sendIntent.putExtra(Intent.EXTRA_STREAM, fileUri);
+        sendIntent.setType(mimeType);
+        sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(sendIntent, getResources().getText(R.string.uart_export_format_title)));
+    }
+
+    private void cancelExport() {
+        if (mExportFuture != null) {
+            mExportFuture.cancel(true);
+            mExportFuture = null;
+        }
+    }
+
+    private void dismissExportProgressDialog() {
+        if (mExportProgressDialog != null) {
+            mExportProgressDialog.dismiss();
+            mExportProgressDialog = null;
+        }
+    }
 
     private void showDialogWarningNoTextToExport() {
         final AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
@@ -845,8 +933,9 @@ public abstract class UartBaseFragment extends ConnectedPeripheralFragment imple
 
     // region UartPacketManagerBase.Listener
 
+    // Called once per frame with all the packets received since the previous one. The text is refreshed by its own timer, so only the counters are updated here
     @Override
-    public void onUartPacket(UartPacket packet) {
+    public void onUartPacketBatch(@NonNull List<UartPacket> packets) {
         updateBytesUI();
     }
 
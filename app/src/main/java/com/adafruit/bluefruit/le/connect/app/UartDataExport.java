@@ -1,107 +1,375 @@
 package com.adafruit.bluefruit.le.connect.app;
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.ble.ByteFormatter;
 import com.adafruit.bluefruit.le.connect.ble.UartPacket;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Writes uart packets to a file in the cache directory. The packets are streamed through a buffered writer on a background thread, so the export size is not limited by memory or by the Intent transaction size
 class UartDataExport {
+    // Log
+    private final static String TAG = UartDataExport.class.getSimpleName();
+
+    // Formats
+    static final int kFormat_Text = 0;
+    static final int kFormat_Csv = 1;
+    static final int kFormat_Json = 2;
+    static final int kFormat_Binary = 3;
+    static final String[] kFormatNames = {"txt", "csv", "json", "bin"};               // Also used as file extension
+    private static final String[] kFormatMimeTypes = {"text/plain", "text/csv", "application/json", "application/octet-stream"};
+
+    // Config
+    private static final String kExportDirectory = "export";          // Subdirectory of the cache dir. Must match provider_paths.xml
+    private static final String kExportFilename = "uart";
+    private static final long kExportFileMaxAgeMillis = 24 * 60 * 60 * 1000;     // Older exports are deleted when a new export starts (each export has an unique filename, so a file that is being shared is not overwritten)
+    private static final int kBufferSize = 64 * 1024;
+    private static final int kProgressPacketsInterval = 2048;        // Check progress (and cancellation) each time this number of packets has been written
+
+    // Listener
+    interface Listener {
+        void onExportProgress(int percent);
+
+        void onExportFinished(@NonNull File file, @NonNull String mimeType);
+
+        void onExportFailed(@NonNull Exception exception);
+    }
 
-    static String packetsAsText(List<UartPacket> packets, boolean isHexFormat) {
-        // Compile all data
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        for (UartPacket packet : packets) {
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // region Actions
+    // Exports the packets in a background thread. Listener methods are called on the main thread. Cancel the returned future to stop the export
+    static @NonNull
+    Future<?> exportToFile(@NonNull Context context, @NonNull List<UartPacket> packets, int format, boolean isHexFormat, @NonNull Listener listener) {
+        final File directory = new File(context.getCacheDir(), kExportDirectory);
+        final String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        final File file = new File(directory, kExportFilename + "_" + timestamp + "." + kFormatNames[format]);
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final AtomicReference<Future<?>> futureReference = new AtomicReference<>();
+
+        Future<?> future = sExecutor.submit(() -> {
+            final ProgressReporter progressReporter = new ProgressReporter(packets.size(), mainHandler, listener);
             try {
-                dataStream.write(packet.getData());
+                //noinspection ResultOfMethodCallIgnored
+                directory.mkdirs();
+                deleteOldExports(directory);
+
+                final long startTime = System.currentTimeMillis();
+                try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file), kBufferSize)) {
+                    if (format == kFormat_Binary) {
+                        writePacketsAsBinary(packets, outputStream, progressReporter);
+                    } else {
+                        try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), kBufferSize)) {
+                            switch (format) {
+                                case kFormat_Csv:
+                                    writePacketsAsCsv(packets, isHexFormat, writer, progressReporter);
+                                    break;
+                                case kFormat_Json:
+                                    writePacketsAsJson(packets, isHexFormat, writer, progressReporter);
+                                    break;
+                                default:
+                                    writePacketsAsText(packets, isHexFormat, writer, progressReporter);
+                                    break;
+                            }
+                        }
+                    }
+                }
+                Log.d(TAG, "Exported " + packets.size() + " packets to " + file.getName() + " in " + (System.currentTimeMillis() - startTime) + "ms");
+
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();         // Cancelled after the last progress check
+                }
+
+                mainHandler.post(() -> {
+                    // The export could have been cancelled while the result was waiting on the main thread queue
+                    final Future<?> exportFuture = futureReference.get();
+                    if (exportFuture != null && exportFuture.isCancelled()) {
+                        Log.d(TAG, "Export cancelled");
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    } else {
+                        listener.onExportFinished(file, kFormatMimeTypes[format]);
+                    }
+                });
             } catch (IOException e) {
-                e.printStackTrace();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (e instanceof InterruptedIOException) {
+                    Log.d(TAG, "Export cancelled");
+                } else {
+                    Log.w(TAG, "Export error: " + e);
+                    mainHandler.post(() -> listener.onExportFailed(e));
+                }
             }
+        });
+        futureReference.set(future);       // Set before any posted result runs (the results are posted to this thread)
+        return future;
+    }
+
+    private static void deleteOldExports(@NonNull File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
         }
 
-        // Convert to text
-        byte[] data = dataStream.toByteArray();
-        return isHexFormat ? BleUtils.bytesToHex2(data) : BleUtils.bytesToText(data, true);
+        final long minTime = System.currentTimeMillis() - kExportFileMaxAgeMillis;
+        for (File file : files) {
+            if (file.lastModified() < minTime) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
     }
+    // endregion
 
-    static String packetsAsCsv(List<UartPacket> packets, boolean isHexFormat) {
-        StringBuilder text = new StringBuilder("Timestamp,Mode,Data\r\n");        // csv Header
+    // region Formats
+    private static void writePacketsAsText(@NonNull List<UartPacket> packets, boolean isHexFormat, @NonNull Writer writer, @NonNull ProgressReporter progressReporter) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        // One decoder per peripheral and direction: a character or a "\r\n" split between packets is only joined with the next packet of the same stream
+        Map<String, StreamingTextDecoder> rxTextDecoders = new HashMap<>();
+        Map<String, StreamingTextDecoder> txTextDecoders = new HashMap<>();
+
+        final int numPackets = packets.size();
+        for (int i = 0; i < numPackets; i++) {
+            final UartPacket packet = packets.get(i);
+            final byte[] data = packet.getData();
+            builder.setLength(0);
+            if (isHexFormat) {
+                ByteFormatter.appendHex(builder, data, ' ');
+            } else {
+                Map<String, StreamingTextDecoder> textDecoders = packet.getMode() == UartPacket.TRANSFERMODE_RX ? rxTextDecoders : txTextDecoders;
+                StreamingTextDecoder textDecoder = textDecoders.get(packet.getPeripheralId());
+                if (textDecoder == null) {
+                    textDecoder = new StreamingTextDecoder();
+                    textDecoders.put(packet.getPeripheralId(), textDecoder);
+                }
+                textDecoder.decode(data, builder, false);
+            }
+            writer.append(builder);
+            progressReporter.packetWritten(i);
+        }
+
+        // Flush incomplete characters
+        for (Map<String, StreamingTextDecoder> textDecoders : Arrays.asList(rxTextDecoders, txTextDecoders)) {
+            for (StreamingTextDecoder textDecoder : textDecoders.values()) {
+                builder.setLength(0);
+                textDecoder.decode(new byte[0], builder, true);
+                writer.append(builder);
+            }
+        }
+    }
+
+    private static void writePacketsAsCsv(@NonNull List<UartPacket> packets, boolean isHexFormat, @NonNull Writer writer, @NonNull ProgressReporter progressReporter) throws IOException {
+        writer.write("Timestamp,Mode,Data\r\n");        // csv Header
 
         DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss:SSS", Locale.US);
+        Date date = new Date();
+        StringBuilder dataBuilder = new StringBuilder();
 
-        for (UartPacket packet : packets) {
-            Date date = new Date(packet.getTimestamp());
+        final int numPackets = packets.size();
+        for (int i = 0; i < numPackets; i++) {
+            final UartPacket packet = packets.get(i);
+            date.setTime(packet.getTimestamp());
             String dateString = dateFormat.format(date).replace(",", ".");      //  comma messes with csv, so replace it by a point
             String mode = packet.getMode() == UartPacket.TRANSFERMODE_RX ? "RX" : "TX";
-            String dataString = isHexFormat ? BleUtils.bytesToHex2(packet.getData()) : BleUtils.bytesToText(packet.getData(), true);
+            formatData(dataBuilder, packet.getData(), isHexFormat);
 
             // Remove newline characters from data (it messes with the csv format and Excel wont recognize it)
-            dataString = dataString.trim();
-            text.append(String.format(Locale.ENGLISH, "%s,%s,%s\r\n", dateString, mode, dataString));
-        }
+            int start = 0;
+            int end = dataBuilder.length();
+            while (start < end && dataBuilder.charAt(start) <= ' ') start++;
+            while (end > start && dataBuilder.charAt(end - 1) <= ' ') end--;
 
-        return text.toString();
+            writer.append(dateString).append(',').append(mode).append(',').append(dataBuilder, start, end).append("\r\n");
+            progressReporter.packetWritten(i);
+        }
     }
 
-    @Nullable
-    static String packetsAsJson(List<UartPacket> packets, boolean isHexFormat) {
-
-        JSONArray jsonItemsArray = new JSONArray();
+    // Same layout as JSONObject.toString(2), but written item by item
+    private static void writePacketsAsJson(@NonNull List<UartPacket> packets, boolean isHexFormat, @NonNull Writer writer, @NonNull ProgressReporter progressReporter) throws IOException {
+        writer.write("{\n  \"items\": [");
+        StringBuilder dataBuilder = new StringBuilder();
 
-        for (UartPacket packet : packets) {
+        final int numPackets = packets.size();
+        for (int i = 0; i < numPackets; i++) {
+            final UartPacket packet = packets.get(i);
             long unixTime = packet.getTimestamp() / 1000L;
             String mode = packet.getMode() == UartPacket.TRANSFERMODE_RX ? "RX" : "TX";
-            String dataString = isHexFormat ? BleUtils.bytesToHex2(packet.getData()) : BleUtils.bytesToText(packet.getData(), true);
+            formatData(dataBuilder, packet.getData(), isHexFormat);
 
-            JSONObject jsonItem = new JSONObject();
-            try {
-                jsonItem.put("timestamp", unixTime);
-                jsonItem.put("mode", mode);
-                jsonItem.put("data", dataString);
-                jsonItemsArray.put(jsonItem);
-            } catch (JSONException e) {
-                e.printStackTrace();
+            writer.write(i == 0 ? "\n    {\n      \"timestamp\": " : ",\n    {\n      \"timestamp\": ");
+            writer.write(Long.toString(unixTime));
+            writer.write(",\n      \"mode\": \"");
+            writer.write(mode);
+            writer.write("\",\n      \"data\": ");
+            writeJsonString(writer, dataBuilder);
+            writer.write("\n    }");
+            progressReporter.packetWritten(i);
+        }
+
+        writer.write(numPackets > 0 ? "\n  ]\n}" : "]\n}");
+    }
+
+    private static void writePacketsAsBinary(@NonNull List<UartPacket> packets, @NonNull OutputStream outputStream, @NonNull ProgressReporter progressReporter) throws IOException {
+        final int numPackets = packets.size();
+        for (int i = 0; i < numPackets; i++) {
+            outputStream.write(packets.get(i).getData());
+            progressReporter.packetWritten(i);
+        }
+    }
+    // endregion
+
+    // region Utils
+    // Formats a single packet (newlines are normalized inside the packet)
+    private static void formatData(@NonNull StringBuilder builder, @NonNull byte[] data, boolean isHexFormat) {
+        builder.setLength(0);
+        if (isHexFormat) {
+            ByteFormatter.appendHex(builder, data, ' ');
+        } else {
+            ByteFormatter.appendText(builder, data);
+            new ByteFormatter.NewlineNormalizer().normalize(builder, 0);
+        }
+    }
+
+    private static void writeJsonString(@NonNull Writer writer, @NonNull CharSequence text) throws IOException {
+        writer.write('"');
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    writer.write('\\');
+                    writer.write(c);
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
             }
         }
+        writer.write('"');
+    }
 
-        String result = null;
-        JSONObject json = new JSONObject();
-        try {
-            json.put("items", jsonItemsArray);
-            result = json.toString(2);
-        } catch (JSONException e) {
-            e.printStackTrace();
+    // Posts progress to the main thread (only when the percent changes) and stops the export if the thread has been interrupted
+    private static class ProgressReporter {
+        private final int mTotal;
+        private final Handler mMainHandler;
+        private final Listener mListener;
+        private int mLastPercent = -1;
+
+        ProgressReporter(int total, @NonNull Handler mainHandler, @NonNull Listener listener) {
+            mTotal = total;
+            mMainHandler = mainHandler;
+            mListener = listener;
         }
 
-        return result;
+        void packetWritten(int index) throws InterruptedIOException {
+            if (index % kProgressPacketsInterval != 0) {
+                return;
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+
+            final int percent = (int) ((index * 100L) / Math.max(1, mTotal));
+            if (percent != mLastPercent) {
+                mLastPercent = percent;
+                mMainHandler.post(() -> mListener.onExportProgress(percent));
+            }
+        }
     }
 
-    @Nullable
-    static byte[] packetsAsBinary(List<UartPacket> packets) {
-        if (!packets.isEmpty()) {
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            for (UartPacket packet : packets) {
-                try {
-                    dataStream.write(packet.getData());
-                } catch (IOException e) {
-                    e.printStackTrace();
+    // Decodes UTF-8 text that arrives split in packets (a character can be split between two packets) and normalizes the newlines
+    private static class StreamingTextDecoder {
+        private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer mInputBuffer = ByteBuffer.allocate(1024);
+        private final CharBuffer mOutputBuffer = CharBuffer.allocate(1024);
+        private final ByteFormatter.NewlineNormalizer mNewlineNormalizer = new ByteFormatter.NewlineNormalizer();
+
+        void decode(@NonNull byte[] data, @NonNull StringBuilder builder, boolean endOfInput) {
+            final int start = builder.length();
+            int offset = 0;
+            do {
+                // Fill the input buffer (it can contain the bytes of an incomplete character from the previous packet)
+                final int count = Math.min(mInputBuffer.remaining(), data.length - offset);
+                mInputBuffer.put(data, offset, count);
+                offset += count;
+
+                mInputBuffer.flip();
+                final boolean isLastChunk = endOfInput && offset == data.length;
+                while (mDecoder.decode(mInputBuffer, mOutputBuffer, isLastChunk).isOverflow()) {
+                    drainOutput(builder);
                 }
-            }
+                if (isLastChunk) {
+                    while (mDecoder.flush(mOutputBuffer).isOverflow()) {
+                        drainOutput(builder);
+                    }
+                }
+                drainOutput(builder);
+                mInputBuffer.compact();
+            } while (offset < data.length);
 
-            return dataStream.toByteArray();
-        } else {
-            return null;
+            mNewlineNormalizer.normalize(builder, start);
+        }
+
+        private void drainOutput(@NonNull StringBuilder builder) {
+            mOutputBuffer.flip();
+            builder.append(mOutputBuffer);
+            mOutputBuffer.clear();
         }
     }
+    // endregion
 }
@@ -5,15 +5,10 @@ import static android.Manifest.permission.BLUETOOTH_CONNECT;
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothGatt;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.DataSetObserver;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -26,11 +21,11 @@ import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.ble.UartPacket;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralEventBus;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
 import com.adafruit.bluefruit.le.connect.ble.central.UartPacketManager;
@@ -111,7 +106,7 @@ public class UartModeFragment extends UartBaseFragment {
             }
 
             // Register onConnect listener to setup Uart if peripheral is reconnected
-            registerGattReceiver(context);
+            BlePeripheralEventBus.getInstance().subscribe(mPeripheralEventSubscriber, BlePeripheralEventBus.EVENT_RECONNECTING | BlePeripheralEventBus.EVENT_RECONNECTED, true);      // Sticky, so a reconnection that started before the view was created is shown
         }
 
         // Setup Uart
@@ -126,10 +121,7 @@ public class UartModeFragment extends UartBaseFragment {
     public void onDestroyView() {
         super.onDestroyView();
 
-        Context context = getContext();
-        if (context != null) {
-            unregisterGattReceiver(context);
-        }
+        BlePeripheralEventBus.getInstance().unsubscribe(mPeripheralEventSubscriber);
     }
 
     // endregion
@@ -395,7 +387,7 @@ public class UartModeFragment extends UartBaseFragment {
         if (title != null) {
             mTerminalTitle = title;
             updateTerminalTitle();
-            return new UartPacket(packet.getPeripheralId(), packet.getMode(), remainingText.getBytes(StandardCharsets.UTF_8));
+            return new UartPacket(packet.getPeripheralId(), packet.getTimestamp(), packet.getTimestampNanos(), packet.getMode(), remainingText.getBytes(StandardCharsets.UTF_8));
         } else {
             return packet;
         }
@@ -430,44 +422,52 @@ public class UartModeFragment extends UartBaseFragment {
     // endregion
 
 
-    // region Broadcast Listener
-    private void registerGattReceiver(@NonNull Context context) {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BlePeripheral.kBlePeripheral_OnConnected);
-        filter.addAction(BlePeripheral.kBlePeripheral_OnReconnecting);
-        LocalBroadcastManager.getInstance(context).registerReceiver(mGattUpdateReceiver, filter);
-    }
+    // region Peripheral Events
+    private final BlePeripheralEventBus.Subscriber mPeripheralEventSubscriber = event -> {
+        final String identifier = event.getIdentifier();
+        BlePeripheralUart blePeripheralUart = getBlePeripheralUartWithIdentifier(identifier);
+        if (blePeripheralUart == null) {
+            return;     // Not used by this module
+        }
 
-    private void unregisterGattReceiver(@NonNull Context context) {
-        LocalBroadcastManager.getInstance(context).unregisterReceiver(mGattUpdateReceiver);
-    }
+        if (event.type == BlePeripheralEventBus.EVENT_RECONNECTED) {
+            if (event.isReplay) {
+                return;     // Reconnected before the view was created, so the uart has been enabled by setupUart
+            }
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            final String identifier = intent.getStringExtra(BlePeripheral.kExtra_deviceAddress);
-            if (identifier != null) {
-                if (BlePeripheral.kBlePeripheral_OnConnected.equals(action)) {
-                    try {
-                        Log.d(TAG, "Reconnection detected. Setup UART");
-
-                        mBlePeripheral.discoverServices(status -> {
-                            final Handler mainHandler = new Handler(Looper.getMainLooper());
-                            mainHandler.post(() -> setupUart(true));
-                        });
-                    } catch (SecurityException e) {
-                        Log.e(TAG, "kBlePeripheral_OnConnected security exception: " + e);
-                    }
+            // Services have been rediscovered by BlePeripheral. Enable notifications again (the received data is kept)
+            Log.d(TAG, "Reconnection detected. Restore UART for: " + identifier);
+            blePeripheralUart.uartRestore(status -> mMainHandler.post(() -> {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    updateUartReadyUI(isUartEnabledForAllPeripherals());
+                } else {
+                    Log.w(TAG, "Uart restore error for: " + identifier);
                 }
-            } else if (BlePeripheral.kBlePeripheral_OnReconnecting.equals(action)) {
-                Log.d(TAG, "Disconnection detected. Disconnect UART");
-                updateUartReadyUI(false);
-            } else {
-                Log.w(TAG, "UartModeFragment mGattUpdateReceiver with null peripheral");
-            }
+            }));
+        } else if (event.type == BlePeripheralEventBus.EVENT_RECONNECTING) {
+            Log.d(TAG, "Disconnection detected. Disconnect UART");
+            updateUartReadyUI(false);
         }
     };
+
+    private @Nullable
+    BlePeripheralUart getBlePeripheralUartWithIdentifier(@NonNull String identifier) {
+        for (BlePeripheralUart blePeripheralUart : mBlePeripheralsUart) {
+            if (identifier.equals(blePeripheralUart.getIdentifier())) {
+                return blePeripheralUart;
+            }
+        }
+        return null;
+    }
+
+    private boolean isUartEnabledForAllPeripherals() {
+        for (BlePeripheralUart blePeripheralUart : mBlePeripheralsUart) {
+            if (!blePeripheralUart.isUartEnabled()) {
+                return false;
+            }
+        }
+        return true;
+    }
     // endregion
 
     // region Mqtt
@@ -0,0 +1,335 @@
+package com.adafruit.bluefruit.le.connect.app.imagetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Compressed image transfer ('!Z' command). Only used with sketches that answer the capabilities query. As with the other commands, a checksum byte (BlePeripheralUart.appendCrc) is added when sent:
+// Query:  [ '!' ] [ 'K' ]
+// Reply:  [ '!' ] [ 'K' ] [ uint8 version ] [ uint8 supported codecs bitmask: CODEC_* ] [ checksum ]
+// Image:  [ '!' ] [ 'Z' ] [ uint8 compression: COMPRESSION_* ] [ uint8 bit depth: 16 or 24 ] [ uint16 width ] [ uint16 height ] [ uint32 pixels length ] [ uint32 pixels crc32 ] [ uint32 payload length ] [ payload ]
+// All multi-byte values are little endian. The crc32 (the standard zip polynomial) is calculated over the decompressed pixels, in the same format used by the '!I' command (rgb565 little endian or rgb888).
+// Compressions:
+// - COMPRESSION_RLE: runs of pixels. Control byte < 128: (control + 1) literal pixels follow. Control byte >= 128: the next pixel is repeated (control - 126) times
+// - COMPRESSION_LZ4: the pixels compressed with the lz4 block format (no frame header)
+// - COMPRESSION_QOI: a standard qoi image (3 channels). 16 bit images are expanded to rgb888 (each component shifted left), so the decoder gets the rgb565 pixels back by shifting them right
+// CODEC_PALETTE is not a compression: it signals that the sketch also accepts palette-indexed eink images ('!P' command, see ImageTransferPaletteEncoder)
+class ImageTransferCodecs {
+    // Constants
+    static final int CODEC_RLE = 1;
+    static final int CODEC_LZ4 = 1 << 1;
+    static final int CODEC_QOI = 1 << 2;
+    static final int CODEC_PALETTE = 1 << 3;
+
+    static final int COMPRESSION_RLE = 1;
+    static final int COMPRESSION_LZ4 = 2;
+    static final int COMPRESSION_QOI = 3;
+
+    private static final int kHeaderLength = 2 + 1 + 1 + 2 + 2 + 4 + 4 + 4;
+
+    private static final int kRleMaxLiteralPixels = 128;
+    private static final int kRleMaxRunPixels = 129;
+
+    private static final int kLz4HashBits = 12;
+    private static final int kLz4MinMatch = 4;
+    private static final int kLz4LastLiterals = 5;
+    private static final int kLz4MatchSafeDistance = 12;        // The last match has to start at least 12 bytes before the end of the block
+    private static final int kLz4MaxOffset = 65535;
+
+    private static final int kQoiHeaderLength = 14;
+    private static final byte[] kQoiEndMarker = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    // region Capabilities
+    static @NonNull
+    byte[] capabilitiesQueryCommand() {
+        return new byte[]{'!', 'K'};
+    }
+
+    // Returns the codecs bitmask or 0 if the reply is not a valid capabilities reply (i.e. sketches that don't support compression) or its checksum doesn't match
+    static int parseCapabilitiesReply(@Nullable byte[] reply) {
+        if (reply == null || reply.length < 5 || reply[0] != '!' || reply[1] != 'K') {
+            return 0;
+        }
+
+        // Checksum (same as BlePeripheralUart.appendCrc): the inverted sum of the previous bytes
+        byte checksum = 0;
+        for (int i = 0; i < 4; i++) {
+            checksum += reply[i];
+        }
+        if ((byte) ~checksum != reply[4]) {
+            return 0;
+        }
+
+        return reply[3] & 0xFF;
+    }
+    // endregion
+
+    // region Encode
+    // Returns the '!Z' command with the smallest payload produced by the supported codecs, or null if no supported codec makes the image smaller than the raw pixels
+    static @Nullable
+    byte[] encodeCommand(@NonNull byte[] pixels, int width, int height, int bitDepth, int codecs) {
+        final int bytesPerPixel = bitDepth / 8;
+
+        int bestCompression = 0;
+        byte[] bestPayload = null;
+        int bestLength = pixels.length;
+
+        if ((codecs & CODEC_RLE) != 0) {
+            final byte[] payload = encodeRle(pixels, bytesPerPixel);
+            if (payload.length < bestLength) {
+                bestCompression = COMPRESSION_RLE;
+                bestPayload = payload;
+                bestLength = payload.length;
+            }
+        }
+        if ((codecs & CODEC_LZ4) != 0) {
+            final byte[] payload = encodeLz4(pixels);
+            if (payload.length < bestLength) {
+                bestCompression = COMPRESSION_LZ4;
+                bestPayload = payload;
+                bestLength = payload.length;
+            }
+        }
+        if ((codecs & CODEC_QOI) != 0) {
+            final byte[] payload = encodeQoi(pixels, width, height, bitDepth);
+            if (payload.length < bestLength) {
+                bestCompression = COMPRESSION_QOI;
+                bestPayload = payload;
+                bestLength = payload.length;
+            }
+        }
+
+        if (bestPayload == null) {
+            return null;
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(pixels);
+
+        ByteBuffer buffer = ByteBuffer.allocate(kHeaderLength + bestLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) '!');
+        buffer.put((byte) 'Z');
+        buffer.put((byte) bestCompression);
+        buffer.put((byte) bitDepth);
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+        buffer.putInt(pixels.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.putInt(bestLength);
+        buffer.put(bestPayload);
+        return buffer.array();
+    }
+    // endregion
+
+    // region RLE
+    static @NonNull
+    byte[] encodeRle(@NonNull byte[] pixels, int bytesPerPixel) {
+        final int numPixels = pixels.length / bytesPerPixel;
+        ByteBuffer buffer = ByteBuffer.allocate(pixels.length + (numPixels + kRleMaxLiteralPixels - 1) / kRleMaxLiteralPixels);     // Worst case: all literals
+
+        int literalStart = 0;
+        int i = 0;
+        while (i < numPixels) {
+            // Length of the run starting at i
+            int run = 1;
+            while (i + run < numPixels && run < kRleMaxRunPixels && isSamePixel(pixels, i, i + run, bytesPerPixel)) {
+                run++;
+            }
+
+            if (run >= 2) {
+                writeRleLiterals(pixels, literalStart, i, bytesPerPixel, buffer);
+                buffer.put((byte) (run + 126));
+                buffer.put(pixels, i * bytesPerPixel, bytesPerPixel);
+                i += run;
+                literalStart = i;
+            } else {
+                i++;
+            }
+        }
+        writeRleLiterals(pixels, literalStart, numPixels, bytesPerPixel, buffer);
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void writeRleLiterals(@NonNull byte[] pixels, int start, int end, int bytesPerPixel, @NonNull ByteBuffer buffer) {
+        while (start < end) {
+            final int count = Math.min(end - start, kRleMaxLiteralPixels);
+            buffer.put((byte) (count - 1));
+            buffer.put(pixels, start * bytesPerPixel, count * bytesPerPixel);
+            start += count;
+        }
+    }
+
+    private static boolean isSamePixel(@NonNull byte[] pixels, int a, int b, int bytesPerPixel) {
+        final int offsetA = a * bytesPerPixel;
+        final int offsetB = b * bytesPerPixel;
+        for (int i = 0; i < bytesPerPixel; i++) {
+            if (pixels[offsetA + i] != pixels[offsetB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // endregion
+
+    // region LZ4
+    static @NonNull
+    byte[] encodeLz4(@NonNull byte[] data) {
+        final int length = data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length + length / 255 + 16).order(ByteOrder.LITTLE_ENDIAN);     // Worst case: incompressible data
+
+        int[] hashTable = new int[1 << kLz4HashBits];
+        Arrays.fill(hashTable, -1);
+
+        final int matchStartLimit = length - kLz4MatchSafeDistance;
+        final int matchEndLimit = length - kLz4LastLiterals;
+        int anchor = 0;
+        int i = 0;
+        while (i < matchStartLimit) {
+            final int sequence = readInt(data, i);
+            final int hash = (sequence * -1640531535) >>> (32 - kLz4HashBits);
+            final int reference = hashTable[hash];
+            hashTable[hash] = i;
+
+            if (reference >= 0 && i - reference <= kLz4MaxOffset && readInt(data, reference) == sequence) {
+                int matchLength = kLz4MinMatch;
+                while (i + matchLength < matchEndLimit && data[reference + matchLength] == data[i + matchLength]) {
+                    matchLength++;
+                }
+
+                final int tokenPosition = writeLz4Literals(data, anchor, i - anchor, buffer);
+                buffer.putShort((short) (i - reference));
+                writeLz4MatchLength(matchLength - kLz4MinMatch, tokenPosition, buffer);
+
+                i += matchLength;
+                anchor = i;
+            } else {
+                i++;
+            }
+        }
+
+        // Last literals
+        writeLz4Literals(data, anchor, length - anchor, buffer);
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // Writes the token (with the literals length) and the literals. Returns the token position, so the match length can be added to it later
+    private static int writeLz4Literals(@NonNull byte[] data, int start, int literalsLength, @NonNull ByteBuffer buffer) {
+        final int tokenPosition = buffer.position();
+        buffer.put((byte) (Math.min(literalsLength, 15) << 4));
+        if (literalsLength >= 15) {
+            int remaining = literalsLength - 15;
+            while (remaining >= 255) {
+                buffer.put((byte) 255);
+                remaining -= 255;
+            }
+            buffer.put((byte) remaining);
+        }
+        buffer.put(data, start, literalsLength);
+        return tokenPosition;
+    }
+
+    private static void writeLz4MatchLength(int length, int tokenPosition, @NonNull ByteBuffer buffer) {
+        buffer.put(tokenPosition, (byte) (buffer.get(tokenPosition) | Math.min(length, 15)));
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                buffer.put((byte) 255);
+                remaining -= 255;
+            }
+            buffer.put((byte) remaining);
+        }
+    }
+    // endregion
+
+    // region QOI
+    static @NonNull
+    byte[] encodeQoi(@NonNull byte[] pixels, int width, int height, int bitDepth) {
+        final int numPixels = width * height;
+        ByteBuffer buffer = ByteBuffer.allocate(kQoiHeaderLength + numPixels * 4 + kQoiEndMarker.length).order(ByteOrder.BIG_ENDIAN);       // Worst case: every pixel as QOI_OP_RGB
+        buffer.put(new byte[]{'q', 'o', 'i', 'f'});
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.put((byte) 3);       // Channels: rgb
+        buffer.put((byte) 0);       // Colorspace: sRGB
+
+        int[] index = new int[64];
+        int previous = 0xFF000000;      // Initial pixel: r=0, g=0, b=0, a=255
+        int run = 0;
+        for (int i = 0; i < numPixels; i++) {
+            final int pixel = bitDepth == 24 ? rgb888Pixel(pixels, i) : rgb565Pixel(pixels, i);
+
+            if (pixel == previous) {
+                run++;
+                if (run == 62 || i == numPixels - 1) {
+                    buffer.put((byte) (0xC0 | (run - 1)));     // QOI_OP_RUN
+                    run = 0;
+                }
+                continue;
+            }
+
+            if (run > 0) {
+                buffer.put((byte) (0xC0 | (run - 1)));     // QOI_OP_RUN
+                run = 0;
+            }
+
+            final int r = (pixel >> 16) & 0xFF;
+            final int g = (pixel >> 8) & 0xFF;
+            final int b = pixel & 0xFF;
+            final int indexPosition = (r * 3 + g * 5 + b * 7 + 255 * 11) % 64;
+            if (index[indexPosition] == pixel) {
+                buffer.put((byte) indexPosition);      // QOI_OP_INDEX
+            } else {
+                index[indexPosition] = pixel;
+
+                final int dr = (byte) (r - ((previous >> 16) & 0xFF));
+                final int dg = (byte) (g - ((previous >> 8) & 0xFF));
+                final int db = (byte) (b - (previous & 0xFF));
+                final int drDg = dr - dg;
+                final int dbDg = db - dg;
+
+                if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                    buffer.put((byte) (0x40 | ((dr + 2) << 4) | ((dg + 2) << 2) | (db + 2)));       // QOI_OP_DIFF
+                } else if (dg >= -32 && dg <= 31 && drDg >= -8 && drDg <= 7 && dbDg >= -8 && dbDg <= 7) {
+                    buffer.put((byte) (0x80 | (dg + 32)));      // QOI_OP_LUMA
+                    buffer.put((byte) (((drDg + 8) << 4) | (dbDg + 8)));
+                } else {
+                    buffer.put((byte) 0xFE);        // QOI_OP_RGB
+                    buffer.put((byte) r);
+                    buffer.put((byte) g);
+                    buffer.put((byte) b);
+                }
+            }
+            previous = pixel;
+        }
+        buffer.put(kQoiEndMarker);
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+    // endregion
+
+    // region Utils
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    private static int rgb888Pixel(@NonNull byte[] pixels, int i) {
+        final int offset = i * 3;
+        return 0xFF000000 | ((pixels[offset] & 0xFF) << 16) | ((pixels[offset + 1] & 0xFF) << 8) | (pixels[offset + 2] & 0xFF);
+    }
+
+    private static int rgb565Pixel(@NonNull byte[] pixels, int i) {
+        final int offset = i * 2;
+        final int rgb16 = (pixels[offset] & 0xFF) | ((pixels[offset + 1] & 0xFF) << 8);       // Little endian
+        final int r = ((rgb16 >> 11) & 0x1F) << 3;
+        final int g = ((rgb16 >> 5) & 0x3F) << 2;
+        final int b = (rgb16 & 0x1F) << 3;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+    // endregion
+}
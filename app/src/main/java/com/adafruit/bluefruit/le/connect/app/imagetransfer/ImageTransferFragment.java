@@ -50,6 +50,7 @@ import androidx.fragment.app.FragmentTransaction;
 import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.app.CommonHelpFragment;
 import com.adafruit.bluefruit.le.connect.app.ConnectedPeripheralFragment;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.UartPacketManager;
 import com.adafruit.bluefruit.le.connect.dfu.ProgressFragmentDialog;
@@ -77,6 +78,8 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
     private static final boolean kShowInterleaveControls = true;
     private static final int kDefaultInterlavedWithoutResponseCount = 50;
     private static final String kAuthorityField = ".fileprovider";          // Same as the authority field on the manifest provider
+    private static final boolean kIsImageCompressionEnabled = true;         // Send compressed images ('!Z' command) to the sketches that support it
+    private static final int kCapabilitiesReplyTimeout = 1000;              // in millis
 
     // Constants
     private static final int kActivityRequestCode_pickFromGallery = 1;
@@ -91,6 +94,7 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
     private final static String kPreferences_interleavedWithoutResponseCount = "interleaved_withoutresponse_count";
     private final static String kPreferences_isColorSpace24Bits = "is_color_space_24_bits";
     private final static String kPreferences_isEInkModeEnabled = "is_eink_mode_enabled";
+    private final static String kPreferences_isEInkPackedFormatEnabled = "is_eink_packed_format_enabled";
 
     private final Size kDefaultResolution = new Size(64, 64);
 
@@ -112,6 +116,10 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
     private int mInterleavedWithoutResponseCount;
     private boolean mIsColorSpace24Bits;
     private boolean mIsEInkModeEnabled;
+    private boolean mIsEInkPackedFormatEnabled;         // Send eink images as palette indices ('!P' command) instead of rgb
+    private byte[] mEInkIndices;                        // Palette indices of the current eink image
+    private int[] mEInkPalette;
+    private int mImageCodecs = -1;                      // Compression codecs supported by the sketch (ImageTransferCodecs.CODEC_*). -1 if not checked yet
     private Bitmap mBitmap;
     private ProgressFragmentDialog mProgressDialog;
 
@@ -164,6 +172,7 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
         mInterleavedWithoutResponseCount = preferences.getInt(kPreferences_interleavedWithoutResponseCount, kDefaultInterlavedWithoutResponseCount);
         mIsColorSpace24Bits = preferences.getBoolean(kPreferences_isColorSpace24Bits, false);
         mIsEInkModeEnabled = preferences.getBoolean(kPreferences_isEInkModeEnabled, false);
+        mIsEInkPackedFormatEnabled = preferences.getBoolean(kPreferences_isEInkPackedFormatEnabled, false);
 
         // UI
         mUartWaitingTextView = view.findViewById(R.id.uartWaitingTextView);
@@ -276,13 +285,22 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
         mColorSpaceButton = view.findViewById(R.id.colorSpaceButton);
         updateColorSpaceUI();
         mColorSpaceButton.setOnClickListener(v -> {
-            mIsColorSpace24Bits = !mIsColorSpace24Bits;
+            // In eink mode the packed format is also available: 16-bit -> 24-bit -> packed -> 16-bit
+            if (mIsEInkModeEnabled && mIsEInkPackedFormatEnabled) {
+                mIsEInkPackedFormatEnabled = false;
+                mIsColorSpace24Bits = false;
+            } else if (mIsEInkModeEnabled && mIsColorSpace24Bits) {
+                mIsEInkPackedFormatEnabled = true;
+            } else {
+                mIsColorSpace24Bits = !mIsColorSpace24Bits;
+            }
             updateColorSpaceUI();
 
             // Save to preferences
             SharedPreferences settings = context.getSharedPreferences(kPreferences, Context.MODE_PRIVATE);
             SharedPreferences.Editor editor = settings.edit();
             editor.putBoolean(kPreferences_isColorSpace24Bits, mIsColorSpace24Bits);
+            editor.putBoolean(kPreferences_isEInkPackedFormatEnabled, mIsEInkPackedFormatEnabled);
             editor.apply();
         });
 
@@ -299,7 +317,20 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
         });
 
         Button sendButton = view.findViewById(R.id.sendButton);
-        sendButton.setOnClickListener(view1 -> sendImage(mInterleavedWithoutResponseCount, mIsColorSpace24Bits));
+        sendButton.setOnClickListener(view1 -> {
+            if (isEInkPackedFormatAvailable()) {
+                checkImageCodecs(codecs -> {
+                    if ((codecs & ImageTransferCodecs.CODEC_PALETTE) != 0) {
+                        sendEInkPackedImage(mInterleavedWithoutResponseCount);
+                    } else {
+                        Log.w(TAG, "eink packed format not supported by the sketch. Sending rgb");
+                        sendImage(mInterleavedWithoutResponseCount, mIsColorSpace24Bits);
+                    }
+                });
+            } else {
+                sendImage(mInterleavedWithoutResponseCount, mIsColorSpace24Bits);
+            }
+        });
 
         mResolutionContainerViewGroup.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
             @Override
@@ -356,11 +387,20 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
     }
 
 
+    // region Link Profile
+    @Override
+    protected int getLinkProfile() {
+        return BlePeripheral.LINK_PROFILE_BULK;
+    }
+
+    // endregion
+
     // region Uart
     private void start() {
         Log.d(TAG, "ImageTransfer start");
 
         // Enable Uart
+        mImageCodecs = -1;
         mBlePeripheralUart = new BlePeripheralUart(mBlePeripheral);
         mBlePeripheralUart.uartEnable(mUartManager, status -> mMainHandler.post(() -> {
             mUartWaitingTextView.setVisibility(status == BluetoothGatt.GATT_SUCCESS ? View.GONE : View.VISIBLE);
@@ -426,7 +466,15 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
     }
 
     private void updateColorSpaceUI() {
-        mColorSpaceButton.setText(mIsColorSpace24Bits ? R.string.imagetransfer_colorspace_24bit : R.string.imagetransfer_colorspace_16bit);
+        if (mIsEInkModeEnabled && mIsEInkPackedFormatEnabled) {
+            mColorSpaceButton.setText(R.string.imagetransfer_colorspace_einkpacked);
+        } else {
+            mColorSpaceButton.setText(mIsColorSpace24Bits ? R.string.imagetransfer_colorspace_24bit : R.string.imagetransfer_colorspace_16bit);
+        }
+    }
+
+    private boolean isEInkPackedFormatAvailable() {
+        return mIsEInkModeEnabled && mIsEInkPackedFormatEnabled && mEInkIndices != null && mEInkPalette != null;
     }
 
     private void updateResolutionUI() {
@@ -474,8 +522,13 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
         if (mBitmap != null) {
             Bitmap transformedBitmap = ImageUtils.scaleAndRotateImage(mBitmap, mResolution, mImageRotationDegrees, Color.BLACK);
 
+            mEInkIndices = null;
+            mEInkPalette = null;
             if (isEInkModeEnabled) {
-                transformedBitmap = ImageUtils.applyEInkModeToImage(context, transformedBitmap);
+                final byte[] indices = new byte[transformedBitmap.getWidth() * transformedBitmap.getHeight()];
+                transformedBitmap = ImageUtils.applyEInkModeToImage(context, transformedBitmap, indices);
+                mEInkIndices = indices;
+                mEInkPalette = ImageUtils.getEInkPalette(context);
             }
 
             BitmapDrawable bitmapDrawable = new BitmapDrawable(getResources(), transformedBitmap);        // Create bitmap drawable to control filtering method
@@ -486,6 +539,7 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
 
         //
         updateResolutionUI();
+        updateColorSpaceUI();
     }
 
 
@@ -869,23 +923,73 @@ public class ImageTransferFragment extends ConnectedPeripheralFragment implement
         }
 
         rgbaBitmap.recycle();
+        rgbaBytes = null;
 
         // Send command
-        ByteBuffer buffer = ByteBuffer.allocate(2 + 1 + 2 + 2 + rgbSize).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        final int bitDepth = isColorSpace24Bits ? 24 : 16;
+        final byte[] pixels = rgbBytes;
+        checkImageCodecs(codecs -> {
+            byte[] result = null;
+            if (kIsImageCompressionEnabled && (codecs & (ImageTransferCodecs.CODEC_RLE | ImageTransferCodecs.CODEC_LZ4 | ImageTransferCodecs.CODEC_QOI)) != 0) {
+                // Command: '!Z'
+                result = ImageTransferCodecs.encodeCommand(pixels, width, height, bitDepth, codecs);
+                if (result != null) {
+                    Log.d(TAG, "Send compressed image: " + result.length + " bytes (raw: " + pixels.length + " bytes). Compression: " + result[2]);
+                }
+            }
 
-        // Command: '!I'
-        String prefix = "!I";
-        buffer.put(prefix.getBytes());
-        buffer.put((byte) (isColorSpace24Bits ? 24 : 16));
-        buffer.putShort((short) width);
-        buffer.putShort((short) height);
-        buffer.put(rgbBytes);
+            if (result == null) {
+                // Command: '!I'
+                ByteBuffer buffer = ByteBuffer.allocate(2 + 1 + 2 + 2 + pixels.length).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                String prefix = "!I";
+                buffer.put(prefix.getBytes());
+                buffer.put((byte) bitDepth);
+                buffer.putShort((short) width);
+                buffer.putShort((short) height);
+                buffer.put(pixels);
+                result = buffer.array();
+            }
 
-        byte[] result = buffer.array();
+            sendCrcData(result, packetWithResponseEveryPacketCount);
+        });
+    }
 
-        sendCrcData(result, packetWithResponseEveryPacketCount);
+    private interface ImageCodecsHandler {
+        void codecs(int codecs);
+    }
 
-        rgbaBytes = null;
+    // Asks the sketch for the compression codecs and image formats that it supports ('!K' command, see ImageTransferCodecs). Sketches that don't reply (older versions) only receive uncompressed rgb images
+    private void checkImageCodecs(@NonNull ImageCodecsHandler handler) {
+        if (mBlePeripheralUart == null) {
+            handler.codecs(0);
+            return;
+        }
+        if (mImageCodecs >= 0) {
+            handler.codecs(mImageCodecs);
+            return;
+        }
+
+        final byte[] command = BlePeripheralUart.appendCrc(ImageTransferCodecs.capabilitiesQueryCommand());
+        mUartManager.sendAndWaitReply(mBlePeripheralUart, command, null, kCapabilitiesReplyTimeout, (status, value) -> mMainHandler.post(() -> {
+            final int codecs = status == BluetoothGatt.GATT_SUCCESS ? ImageTransferCodecs.parseCapabilitiesReply(value) : 0;
+            Log.d(TAG, "Image codecs supported: " + codecs);
+            mImageCodecs = codecs;
+            handler.codecs(codecs);
+        }));
+    }
+
+    // Sends the eink image as palette indices ('!P' command, see ImageTransferPaletteEncoder). Uses the indices produced by the dithering, so colors don't have to be matched again
+    private void sendEInkPackedImage(int packetWithResponseEveryPacketCount) {
+        final Bitmap bitmap = ((BitmapDrawable) mCameraImageView.getDrawable()).getBitmap();
+        final byte[] command = ImageTransferPaletteEncoder.encodeCommand(mEInkIndices, bitmap.getWidth(), bitmap.getHeight(), mEInkPalette);
+        if (command == null) {
+            Log.w(TAG, "eink palette not supported by the packed format. Sending rgb");
+            sendImage(packetWithResponseEveryPacketCount, mIsColorSpace24Bits);
+            return;
+        }
+
+        Log.d(TAG, "Send eink packed image: " + command.length + " bytes");
+        sendCrcData(command, packetWithResponseEveryPacketCount);
     }
 
     private void sendCrcData(byte[] data, int packetWithResponseEveryPacketCount) {
@@ -0,0 +1,120 @@
+package com.adafruit.bluefruit.le.connect.app.imagetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Encodes a palette-indexed image (i.e. the output of the eink dithering) for the '!P' image transfer command:
+// [ '!' ] [ 'P' ] [ uint8 encoding ] [ uint16 width ] [ uint16 height ] [ uint8 palette count ] [ palette colors: uint16 RGB565 each ] [ uint32 payload length ] [ payload ]
+// All multi-byte values are little endian. Encodings:
+// - ENCODING_BITPLANES: one 1-bit plane for each bit of the palette index (1 plane for 2 colors, 2 planes for 3-4 colors). Plane 0 has the least significant bit. Each plane is stored by rows,
+//   most significant bit first, and each row is padded to a byte boundary (the layout used by the eink display buffers)
+// - ENCODING_RLE: runs of the same index. Each byte is [ index: 2 bits ] [ run length - 1: 6 bits ]
+// The encoder uses the smallest of the two. The command is only sent to sketches that report ImageTransferCodecs.CODEC_PALETTE in the '!K' capabilities reply
+class ImageTransferPaletteEncoder {
+    // Constants
+    static final int ENCODING_BITPLANES = 1;
+    static final int ENCODING_RLE = 2;
+
+    static final int kMaxPaletteColors = 4;
+    private static final int kMaxRunLength = 64;
+    private static final int kHeaderLength = 2 + 1 + 2 + 2 + 1;
+
+    // Returns null if the palette has more colors than supported
+    static @Nullable
+    byte[] encodeCommand(@NonNull byte[] indices, int width, int height, @NonNull int[] palette) {
+        if (palette.length == 0 || palette.length > kMaxPaletteColors) {
+            return null;
+        }
+
+        final int numPlanes = palette.length <= 2 ? 1 : 2;
+        final int bitplanesLength = numPlanes * ((width + 7) / 8) * height;
+        final int rleLength = rleLength(indices, width * height);
+        final boolean isRle = rleLength < bitplanesLength;
+        final int payloadLength = isRle ? rleLength : bitplanesLength;
+
+        ByteBuffer buffer = ByteBuffer.allocate(kHeaderLength + palette.length * 2 + 4 + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) '!');
+        buffer.put((byte) 'P');
+        buffer.put((byte) (isRle ? ENCODING_RLE : ENCODING_BITPLANES));
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+        buffer.put((byte) palette.length);
+        for (int color : palette) {
+            buffer.putShort((short) rgb565(color));
+        }
+        buffer.putInt(payloadLength);
+
+        if (isRle) {
+            encodeRle(indices, width * height, buffer);
+        } else {
+            encodeBitplanes(indices, width, height, numPlanes, buffer);
+        }
+
+        return buffer.array();
+    }
+
+    // region Encodings
+    private static void encodeBitplanes(@NonNull byte[] indices, int width, int height, int numPlanes, @NonNull ByteBuffer buffer) {
+        for (int plane = 0; plane < numPlanes; plane++) {
+            for (int y = 0; y < height; y++) {
+                final int offset = y * width;
+                int value = 0;
+                int bits = 0;
+                for (int x = 0; x < width; x++) {
+                    value = (value << 1) | ((indices[offset + x] >> plane) & 1);
+                    bits++;
+                    if (bits == 8) {
+                        buffer.put((byte) value);
+                        value = 0;
+                        bits = 0;
+                    }
+                }
+                if (bits > 0) {
+                    buffer.put((byte) (value << (8 - bits)));       // Row padding
+                }
+            }
+        }
+    }
+
+    private static int rleLength(@NonNull byte[] indices, int numPixels) {
+        int length = 0;
+        int i = 0;
+        while (i < numPixels) {
+            i += runLength(indices, i, numPixels);
+            length++;
+        }
+        return length;
+    }
+
+    private static void encodeRle(@NonNull byte[] indices, int numPixels, @NonNull ByteBuffer buffer) {
+        int i = 0;
+        while (i < numPixels) {
+            final int run = runLength(indices, i, numPixels);
+            buffer.put((byte) (((indices[i] & 0x03) << 6) | (run - 1)));
+            i += run;
+        }
+    }
+
+    private static int runLength(@NonNull byte[] indices, int start, int numPixels) {
+        final byte index = indices[start];
+        final int end = Math.min(numPixels, start + kMaxRunLength);
+        int i = start + 1;
+        while (i < end && indices[i] == index) {
+            i++;
+        }
+        return i - start;
+    }
+    // endregion
+
+    // region Utils
+    private static int rgb565(int color) {
+        final int r = (color >> 16) & 0xFF;
+        final int g = (color >> 8) & 0xFF;
+        final int b = color & 0xFF;
+        return ((r & 0xF8) << 8) | ((g & 0xFC) << 3) | (b >>> 3);
+    }
+    // endregion
+}
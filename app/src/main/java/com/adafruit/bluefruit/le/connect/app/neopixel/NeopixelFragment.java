@@ -38,6 +38,7 @@ import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.app.CommonHelpFragment;
 import com.adafruit.bluefruit.le.connect.app.ConnectedPeripheralFragment;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.UartPacketManager;
 import com.adafruit.bluefruit.le.connect.utils.DialogUtils;
@@ -305,6 +306,14 @@ public class NeopixelFragment extends ConnectedPeripheralFragment implements Neo
     }
     // endregion
 
+    // region Link Profile
+    @Override
+    protected int getLinkProfile() {
+        return BlePeripheral.LINK_PROFILE_INTERACTIVE;
+    }
+
+    // endregion
+
     // region Actions
     private void start() {
         Log.d(TAG, "Neopixel start");
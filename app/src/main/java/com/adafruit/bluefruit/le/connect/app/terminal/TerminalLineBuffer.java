@@ -0,0 +1,189 @@
+package com.adafruit.bluefruit.le.connect.app.terminal;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+// Circular buffer of text lines. Each line stores its characters and the styles as runs (run end + attribute), so appending text never creates span objects.
+// When the buffer is full, the oldest line is recycled for the new one. Lines longer than kMaxLineLength (i.e. hex mode or streams without newlines) continue in a new line,
+// so the layout and drawing cost of a line stays bounded
+public class TerminalLineBuffer {
+    // Constants
+    private static final int kInitialLineCapacity = 64;
+    private static final int kMaxLineLength = 1024;
+    private static final int kInitialRunCapacity = 2;
+    private static final long kAttributeBoldFlag = 1L << 32;
+
+    // region Line
+    public static class Line {
+        private char[] mChars = new char[kInitialLineCapacity];
+        private int mLength = 0;
+        private int[] mRunEnds = new int[kInitialRunCapacity];
+        private long[] mRunAttributes = new long[kInitialRunCapacity];
+        private int mRunCount = 0;
+
+        // Row layout (wrapping) cache, managed by TerminalView
+        int[] mRowStarts = new int[1];
+        int mRowCount = 0;
+        int mLayoutLength = -1;         // Length of the line when the layout was computed
+        int mLayoutGeneration = -1;     // TerminalView layout generation (changes with the width or the text size)
+
+        void clear() {
+            mLength = 0;
+            mRunCount = 0;
+            mLayoutLength = -1;
+        }
+
+        void append(@NonNull CharSequence text, int start, int end, long attribute) {
+            final int count = end - start;
+            if (count <= 0) {
+                return;
+            }
+
+            // Text
+            if (mLength + count > mChars.length) {
+                mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mLength + count));
+            }
+            for (int i = start; i < end; i++) {
+                mChars[mLength++] = text.charAt(i);
+            }
+
+            // Style: extend the last run if it has the same attribute
+            if (mRunCount > 0 && mRunAttributes[mRunCount - 1] == attribute) {
+                mRunEnds[mRunCount - 1] = mLength;
+            } else {
+                if (mRunCount == mRunEnds.length) {
+                    mRunEnds = Arrays.copyOf(mRunEnds, mRunCount * 2);
+                    mRunAttributes = Arrays.copyOf(mRunAttributes, mRunCount * 2);
+                }
+                mRunEnds[mRunCount] = mLength;
+                mRunAttributes[mRunCount] = attribute;
+                mRunCount++;
+            }
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        // Note: returns the internal array. Only the first length() characters are valid
+        public char[] getChars() {
+            return mChars;
+        }
+
+        public int getRunCount() {
+            return mRunCount;
+        }
+
+        public int getRunEnd(int run) {
+            return mRunEnds[run];
+        }
+
+        public int getRunColor(int run) {
+            return (int) mRunAttributes[run];
+        }
+
+        public boolean isRunBold(int run) {
+            return (mRunAttributes[run] & kAttributeBoldFlag) != 0;
+        }
+    }
+    // endregion
+
+    // Data
+    private final Line[] mLines;
+    private int mFirstIndex = 0;            // Index in mLines of the oldest line
+    private int mCount = 0;
+    private long mFirstLineNumber = 0;      // Absolute number of the oldest line (number of lines that have been discarded)
+
+    public TerminalLineBuffer(int maxLines) {
+        mLines = new Line[Math.max(1, maxLines)];
+    }
+
+    // region Actions
+    public void append(@NonNull CharSequence text, int color, boolean isBold) {
+        final long attribute = (color & 0xffffffffL) | (isBold ? kAttributeBoldFlag : 0);
+
+        if (mCount == 0) {
+            addLine();
+        }
+
+        final int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                appendToLastLine(text, start, i, attribute);
+                addLine();
+                start = i + 1;
+            }
+        }
+        appendToLastLine(text, start, length, attribute);
+    }
+
+    private void appendToLastLine(@NonNull CharSequence text, int start, int end, long attribute) {
+        while (start < end) {
+            Line line = lastLine();
+            if (line.length() >= kMaxLineLength) {
+                addLine();
+                line = lastLine();
+            }
+
+            final int chunkEnd = Math.min(end, start + kMaxLineLength - line.length());
+            line.append(text, start, chunkEnd, attribute);
+            start = chunkEnd;
+        }
+    }
+
+    public void clear() {
+        mFirstLineNumber += mCount;
+        mFirstIndex = 0;
+        mCount = 0;
+    }
+
+    private void addLine() {
+        Line line;
+        if (mCount < mLines.length) {
+            final int index = (mFirstIndex + mCount) % mLines.length;
+            line = mLines[index];
+            if (line == null) {
+                line = new Line();
+                mLines[index] = line;
+            }
+            mCount++;
+        } else {
+            // Full: recycle the oldest line
+            line = mLines[mFirstIndex];
+            mFirstIndex = (mFirstIndex + 1) % mLines.length;
+            mFirstLineNumber++;
+        }
+        line.clear();
+    }
+
+    private Line lastLine() {
+        return mLines[(mFirstIndex + mCount - 1) % mLines.length];
+    }
+    // endregion
+
+    // region Getters
+    public int getLineCount() {
+        return mCount;
+    }
+
+    // Absolute line number of the oldest line kept in the buffer. Absolute line numbers don't change when old lines are discarded
+    public long getFirstLineNumber() {
+        return mFirstLineNumber;
+    }
+
+    public long getLastLineNumber() {
+        return mFirstLineNumber + mCount - 1;
+    }
+
+    public @NonNull
+    Line getLineWithNumber(long lineNumber) {
+        final int position = (int) (lineNumber - mFirstLineNumber);
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("line " + lineNumber + " not in buffer");
+        }
+        return mLines[(mFirstIndex + position) % mLines.length];
+    }
+    // endregion
+}
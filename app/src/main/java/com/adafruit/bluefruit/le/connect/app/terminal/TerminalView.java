@@ -0,0 +1,706 @@
+package com.adafruit.bluefruit.le.connect.app.terminal;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.ActionMode;
+import android.view.GestureDetector;
+import android.view.HapticFeedbackConstants;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.OverScroller;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+// Draws the lines of a TerminalLineBuffer. Only the rows that fit in the view are drawn, so the drawing cost doesn't depend on the buffer size.
+// Lines are wrapped using the measured glyph widths (tabs advance to the next tab stop) and the row breaks are cached on each line, so only the appended text is measured.
+// The view follows the output (sticks to the last line) unless the user scrolls up. A long press starts a text selection (drag to extend it) that can be copied
+public class TerminalView extends View {
+    // Config
+    private static final float kDefaultTextSizeSp = 14;
+    private static final int kTabStopSpaces = 8;
+    private static final int kSelectionColor = 0x80ffffff;
+
+    // Data
+    private TerminalLineBuffer mBuffer;
+    private final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mSelectionPaint = new Paint();
+    private float mTabWidth;
+    private float mRowHeight;
+    private float mBaselineOffset;
+    private int mLayoutGeneration = 0;         // Incremented when the cached row layouts are no longer valid (width or text size changed)
+    private float[] mCharWidths = new float[256];
+
+    private boolean mIsFollowingOutput = true;
+    private long mAnchorLineNumber;         // Line displayed at the bottom of the view (when not following the output)
+    private int mAnchorVisibleRows;         // Number of rows of the anchor line that are visible (starting from its first row)
+    private float mPendingScrollPixels = 0;
+
+    private final GestureDetector mGestureDetector;
+    private final OverScroller mScroller;
+    private int mLastFlingY;
+
+    // Selection
+    private boolean mHasSelection = false;
+    private boolean mIsSelectionDragging = false;
+    private boolean mWasFollowingOutputBeforeSelection;
+    private long mSelectionAnchorLine;      // Where the selection started (the other end follows the finger)
+    private int mSelectionAnchorOffset;
+    private long mSelectionStartLine;
+    private int mSelectionStartOffset;
+    private long mSelectionEndLine;
+    private int mSelectionEndOffset;
+    private float mLastTouchY;
+    private ActionMode mActionMode;
+
+    private long mHitLineNumber;            // Result of findPosition
+    private int mHitOffset;
+
+    // region Setup
+    public TerminalView(Context context) {
+        this(context, null);
+    }
+
+    public TerminalView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TerminalView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mSelectionPaint.setColor(kSelectionColor);
+        setTextSize(kDefaultTextSizeSp);
+
+        mScroller = new OverScroller(context);
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(@NonNull MotionEvent e) {
+                mScroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapUp(@NonNull MotionEvent e) {
+                if (mHasSelection) {
+                    clearSelection();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onLongPress(@NonNull MotionEvent e) {
+                startSelection(e.getX(), e.getY());
+            }
+
+            @Override
+            public boolean onScroll(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float distanceX, float distanceY) {
+                scrollByPixels(-distanceY);
+                return true;
+            }
+
+            @Override
+            public boolean onFling(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float velocityX, float velocityY) {
+                mLastFlingY = 0;
+                mScroller.fling(0, 0, 0, (int) velocityY, 0, 0, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                postInvalidateOnAnimation();
+                return true;
+            }
+        });
+    }
+
+    public void setTextSize(float sizeSp) {
+        mTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, sizeSp, getResources().getDisplayMetrics()));
+        mTabWidth = kTabStopSpaces * mTextPaint.measureText(" ");
+        Paint.FontMetrics fontMetrics = mTextPaint.getFontMetrics();
+        mRowHeight = fontMetrics.descent - fontMetrics.ascent + fontMetrics.leading;
+        mBaselineOffset = -fontMetrics.ascent;
+        mLayoutGeneration++;
+        invalidate();
+    }
+
+    public void setBuffer(@Nullable TerminalLineBuffer buffer) {
+        mBuffer = buffer;
+        mLayoutGeneration++;        // The lines of the new buffer could have been laid out by other view
+        clearSelection();
+        scrollToBottom();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            mLayoutGeneration++;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mActionMode != null) {
+            mActionMode.finish();
+        }
+        super.onDetachedFromWindow();
+    }
+    // endregion
+
+    // region Actions
+    // Call after appending text to the buffer
+    public void onBufferChanged() {
+        if (mBuffer != null && !mIsFollowingOutput && mAnchorLineNumber < mBuffer.getFirstLineNumber()) {
+            // The anchor line has been discarded
+            mAnchorLineNumber = mBuffer.getFirstLineNumber();
+            mAnchorVisibleRows = 1;
+        }
+        if (mHasSelection && (mBuffer == null || mSelectionEndLine < mBuffer.getFirstLineNumber())) {
+            // The selected lines have been discarded
+            clearSelection();
+        }
+        invalidate();
+    }
+
+    public void scrollToBottom() {
+        mIsFollowingOutput = true;
+        mPendingScrollPixels = 0;
+        mScroller.forceFinished(true);
+        invalidate();
+    }
+
+    public boolean isFollowingOutput() {
+        return mIsFollowingOutput;
+    }
+    // endregion
+
+    // region Layout
+    private float getAvailableWidth() {
+        return Math.max(1, getWidth() - getPaddingLeft() - getPaddingRight());
+    }
+
+    private float tabAdvance(float x) {
+        return mTabWidth - (x % mTabWidth);
+    }
+
+    // Computes the row breaks of the line. If only text has been appended since the last layout, the layout continues from the start of the last row
+    private void layoutLine(@NonNull TerminalLineBuffer.Line line) {
+        final int length = line.length();
+        if (line.mLayoutGeneration == mLayoutGeneration && line.mLayoutLength == length) {
+            return;
+        }
+
+        int rowCount = 0;
+        if (line.mLayoutGeneration == mLayoutGeneration && line.mLayoutLength >= 0 && line.mLayoutLength < length && line.mRowCount > 0) {
+            rowCount = line.mRowCount - 1;
+        }
+        final int start = rowCount > 0 ? line.mRowStarts[rowCount] : 0;
+        final char[] chars = line.getChars();
+        final int count = length - start;
+        if (mCharWidths.length < count) {
+            mCharWidths = new float[Math.max(count, mCharWidths.length * 2)];
+        }
+        if (count > 0) {
+            mTextPaint.getTextWidths(chars, start, count, mCharWidths);        // Surrogate pairs and combining marks get the width on the first char and 0 on the others
+        }
+
+        final float width = getAvailableWidth();
+        int[] rowStarts = line.mRowStarts;
+        rowStarts[rowCount++] = start;
+        float x = 0;
+        for (int i = start; i < length; i++) {
+            float advance = chars[i] == '\t' ? tabAdvance(x) : mCharWidths[i - start];
+            if (x + advance > width && i > rowStarts[rowCount - 1] && !Character.isLowSurrogate(chars[i])) {
+                // Wrap
+                if (rowCount == rowStarts.length) {
+                    rowStarts = Arrays.copyOf(rowStarts, rowCount * 2);
+                }
+                rowStarts[rowCount++] = i;
+                x = 0;
+                if (chars[i] == '\t') {
+                    advance = tabAdvance(0);
+                }
+            }
+            x += advance;
+        }
+
+        line.mRowStarts = rowStarts;
+        line.mRowCount = rowCount;
+        line.mLayoutLength = length;
+        line.mLayoutGeneration = mLayoutGeneration;
+    }
+
+    private int rowsForLine(@NonNull TerminalLineBuffer.Line line) {
+        layoutLine(line);
+        return Math.max(1, line.mRowCount);
+    }
+
+    private static int rowStart(@NonNull TerminalLineBuffer.Line line, int row) {
+        return line.mRowStarts[row];
+    }
+
+    private static int rowEnd(@NonNull TerminalLineBuffer.Line line, int row) {
+        return row + 1 < line.mRowCount ? line.mRowStarts[row + 1] : line.length();
+    }
+
+    private int getVisibleRows() {
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        return Math.max(1, (int) Math.ceil(height / mRowHeight));
+    }
+
+    // Measures the text from start to end (tabs advance to the next tab stop). x is the position of start relative to the start of the row
+    private float advanceText(@NonNull char[] chars, int start, int end, float x) {
+        int pieceStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || chars[i] == '\t') {
+                if (i > pieceStart) {
+                    x += mTextPaint.measureText(chars, pieceStart, i - pieceStart);
+                }
+                if (i < end) {
+                    x += tabAdvance(x);
+                }
+                pieceStart = i + 1;
+            }
+        }
+        return x;
+    }
+    // endregion
+
+    // region Scroll
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mLastTouchY = event.getY();
+
+        if (mIsSelectionDragging) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_MOVE:
+                    extendSelection(event.getX(), event.getY());
+                    return true;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    mIsSelectionDragging = false;
+                    getParent().requestDisallowInterceptTouchEvent(false);
+                    startSelectionActionMode();
+                    return true;
+            }
+        }
+
+        return mGestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            final int y = mScroller.getCurrY();
+            scrollByPixels(y - mLastFlingY);
+            mLastFlingY = y;
+            if (mIsFollowingOutput) {
+                mScroller.forceFinished(true);
+            } else {
+                postInvalidateOnAnimation();
+            }
+        }
+    }
+
+    // Positive values move the content down (show older lines)
+    private void scrollByPixels(float pixels) {
+        if (mBuffer == null || mBuffer.getLineCount() == 0) {
+            return;
+        }
+
+        mPendingScrollPixels += pixels;
+        final int rows = (int) (mPendingScrollPixels / mRowHeight);
+        if (rows == 0) {
+            return;
+        }
+        mPendingScrollPixels -= rows * mRowHeight;
+
+        if (mIsFollowingOutput) {
+            pinAnchorToLastLine();
+        }
+
+        if (rows > 0) {
+            scrollUpRows(rows);
+        } else {
+            scrollDownRows(-rows);
+        }
+        invalidate();
+    }
+
+    private void pinAnchorToLastLine() {
+        mAnchorLineNumber = mBuffer.getLastLineNumber();
+        mAnchorVisibleRows = rowsForLine(mBuffer.getLineWithNumber(mAnchorLineNumber));
+    }
+
+    private void scrollUpRows(int rows) {
+        // Don't scroll past the point where the first line is at the top of the view
+        final int maxRows = Math.max(0, countRowsAboveAnchor(getVisibleRows() + rows) - getVisibleRows());
+        int remaining = Math.min(rows, maxRows);
+        if (remaining > 0) {
+            mIsFollowingOutput = false;
+        }
+        while (remaining > 0) {
+            if (mAnchorVisibleRows > remaining) {
+                mAnchorVisibleRows -= remaining;
+                remaining = 0;
+            } else {
+                remaining -= mAnchorVisibleRows;
+                mAnchorLineNumber--;
+                mAnchorVisibleRows = rowsForLine(mBuffer.getLineWithNumber(mAnchorLineNumber));
+            }
+        }
+    }
+
+    private void scrollDownRows(int rows) {
+        int remaining = rows;
+        while (remaining > 0 && !mIsFollowingOutput) {
+            final int lineRows = rowsForLine(mBuffer.getLineWithNumber(mAnchorLineNumber));
+            final int hiddenRows = lineRows - mAnchorVisibleRows;
+            if (hiddenRows >= remaining) {
+                mAnchorVisibleRows += remaining;
+                remaining = 0;
+            } else if (mAnchorLineNumber < mBuffer.getLastLineNumber()) {
+                remaining -= hiddenRows + 1;
+                mAnchorLineNumber++;
+                mAnchorVisibleRows = 1;
+            } else {
+                remaining = 0;
+                mAnchorVisibleRows = lineRows;
+            }
+
+            if (mAnchorLineNumber == mBuffer.getLastLineNumber() && mAnchorVisibleRows >= rowsForLine(mBuffer.getLineWithNumber(mAnchorLineNumber)) && !mHasSelection) {
+                mIsFollowingOutput = true;
+            }
+        }
+    }
+
+    // Counts the rows from the anchor (inclusive) to the first line, stopping at maxRows
+    private int countRowsAboveAnchor(int maxRows) {
+        int rows = mAnchorVisibleRows;
+        long lineNumber = mAnchorLineNumber - 1;
+        while (rows < maxRows && lineNumber >= mBuffer.getFirstLineNumber()) {
+            rows += rowsForLine(mBuffer.getLineWithNumber(lineNumber));
+            lineNumber--;
+        }
+        return rows;
+    }
+    // endregion
+
+    // region Selection
+    private void startSelection(float x, float y) {
+        if (mBuffer == null || mBuffer.getLineCount() == 0 || !findPosition(x, y)) {
+            return;
+        }
+
+        // Stop following the output while selecting, so the selected text doesn't move
+        mWasFollowingOutputBeforeSelection = mIsFollowingOutput;
+        if (mIsFollowingOutput) {
+            pinAnchorToLastLine();
+            mIsFollowingOutput = false;
+        }
+
+        mHasSelection = true;
+        mIsSelectionDragging = true;
+        mSelectionAnchorLine = mHitLineNumber;
+        mSelectionAnchorOffset = mHitOffset;
+        setSelection(mHitLineNumber, mHitOffset, mHitLineNumber, Math.min(mHitOffset + 1, mBuffer.getLineWithNumber(mHitLineNumber).length()));
+        getParent().requestDisallowInterceptTouchEvent(true);
+        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        invalidate();
+    }
+
+    private void extendSelection(float x, float y) {
+        if (!mHasSelection || !findPosition(x, y)) {
+            return;
+        }
+
+        if (mHitLineNumber < mSelectionAnchorLine || (mHitLineNumber == mSelectionAnchorLine && mHitOffset < mSelectionAnchorOffset)) {
+            setSelection(mHitLineNumber, mHitOffset, mSelectionAnchorLine, mSelectionAnchorOffset);
+        } else {
+            setSelection(mSelectionAnchorLine, mSelectionAnchorOffset, mHitLineNumber, mHitOffset);
+        }
+        invalidate();
+    }
+
+    private void setSelection(long startLine, int startOffset, long endLine, int endOffset) {
+        mSelectionStartLine = startLine;
+        mSelectionStartOffset = startOffset;
+        mSelectionEndLine = endLine;
+        mSelectionEndOffset = endOffset;
+    }
+
+    private void selectAll() {
+        if (mBuffer == null || mBuffer.getLineCount() == 0) {
+            return;
+        }
+
+        mHasSelection = true;
+        setSelection(mBuffer.getFirstLineNumber(), 0, mBuffer.getLastLineNumber(), mBuffer.getLineWithNumber(mBuffer.getLastLineNumber()).length());
+        invalidate();
+    }
+
+    private void clearSelection() {
+        if (!mHasSelection) {
+            return;
+        }
+
+        mHasSelection = false;
+        mIsSelectionDragging = false;
+        if (mActionMode != null) {
+            mActionMode.finish();
+        }
+        if (mWasFollowingOutputBeforeSelection) {
+            scrollToBottom();
+        }
+        invalidate();
+    }
+
+    private @NonNull
+    String getSelectedText() {
+        StringBuilder text = new StringBuilder();
+        if (mBuffer == null || mBuffer.getLineCount() == 0) {
+            return text.toString();
+        }
+
+        final long firstLine = Math.max(mSelectionStartLine, mBuffer.getFirstLineNumber());
+        final long lastLine = Math.min(mSelectionEndLine, mBuffer.getLastLineNumber());
+        for (long lineNumber = firstLine; lineNumber <= lastLine; lineNumber++) {
+            final TerminalLineBuffer.Line line = mBuffer.getLineWithNumber(lineNumber);
+            final int start = lineNumber == mSelectionStartLine ? Math.min(mSelectionStartOffset, line.length()) : 0;
+            final int end = lineNumber == mSelectionEndLine ? Math.min(mSelectionEndOffset, line.length()) : line.length();
+            if (end > start) {
+                text.append(line.getChars(), start, end - start);
+            }
+            if (lineNumber < lastLine) {
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private void copySelection() {
+        ClipboardManager clipboardManager = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboardManager != null) {
+            clipboardManager.setPrimaryClip(ClipData.newPlainText(null, getSelectedText()));
+        }
+    }
+
+    private void startSelectionActionMode() {
+        if (mActionMode != null) {
+            mActionMode.invalidateContentRect();
+            return;
+        }
+
+        mActionMode = startActionMode(new ActionMode.Callback2() {
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                menu.add(Menu.NONE, android.R.id.copy, 0, android.R.string.copy);
+                menu.add(Menu.NONE, android.R.id.selectAll, 1, android.R.string.selectAll);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                final int itemId = item.getItemId();
+                if (itemId == android.R.id.copy) {
+                    copySelection();
+                    mode.finish();
+                    return true;
+                } else if (itemId == android.R.id.selectAll) {
+                    selectAll();
+                    mode.invalidateContentRect();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+                mActionMode = null;
+                clearSelection();
+            }
+
+            @Override
+            public void onGetContentRect(ActionMode mode, View view, Rect outRect) {
+                final int y = (int) Math.max(0, Math.min(mLastTouchY, getHeight()));
+                outRect.set(0, (int) Math.max(0, y - mRowHeight), getWidth(), y);
+            }
+        }, ActionMode.TYPE_FLOATING);
+    }
+
+    // Finds the line and the character offset at the view coordinates. Points above or below the text are clamped to the first or last visible row
+    private boolean findPosition(float x, float y) {
+        if (mBuffer == null || mBuffer.getLineCount() == 0) {
+            return false;
+        }
+
+        long lineNumber;
+        int row;
+        if (mIsFollowingOutput) {
+            lineNumber = mBuffer.getLastLineNumber();
+            row = rowsForLine(mBuffer.getLineWithNumber(lineNumber)) - 1;
+        } else {
+            lineNumber = mAnchorLineNumber;
+            row = Math.min(mAnchorVisibleRows, rowsForLine(mBuffer.getLineWithNumber(lineNumber))) - 1;
+        }
+
+        // Walk the rows up from the bottom row until the row that contains y
+        float rowTop = getHeight() - getPaddingBottom() - mRowHeight;
+        final long firstLineNumber = mBuffer.getFirstLineNumber();
+        while (y < rowTop && rowTop > getPaddingTop()) {
+            if (row > 0) {
+                row--;
+            } else if (lineNumber > firstLineNumber) {
+                lineNumber--;
+                row = rowsForLine(mBuffer.getLineWithNumber(lineNumber)) - 1;
+            } else {
+                break;
+            }
+            rowTop -= mRowHeight;
+        }
+
+        // Character in the row
+        final TerminalLineBuffer.Line line = mBuffer.getLineWithNumber(lineNumber);
+        final char[] chars = line.getChars();
+        final int start = rowStart(line, row);
+        final int end = rowEnd(line, row);
+        final float targetX = x - getPaddingLeft();
+        if (mCharWidths.length < end - start) {
+            mCharWidths = new float[Math.max(end - start, mCharWidths.length * 2)];
+        }
+        if (end > start) {
+            mTextPaint.getTextWidths(chars, start, end - start, mCharWidths);
+        }
+        float charX = 0;
+        int offset = start;
+        while (offset < end) {
+            final float advance = chars[offset] == '\t' ? tabAdvance(charX) : mCharWidths[offset - start];
+            if (charX + advance / 2 > targetX) {
+                break;
+            }
+            charX += advance;
+            offset++;
+        }
+        if (offset < end && Character.isLowSurrogate(chars[offset])) {
+            offset++;
+        }
+
+        mHitLineNumber = lineNumber;
+        mHitOffset = offset;
+        return true;
+    }
+    // endregion
+
+    // region Draw
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (mBuffer == null || mBuffer.getLineCount() == 0) {
+            return;
+        }
+
+        final float top = getPaddingTop();
+        final float left = getPaddingLeft();
+
+        long lineNumber;
+        int visibleRows;
+        if (mIsFollowingOutput) {
+            lineNumber = mBuffer.getLastLineNumber();
+            visibleRows = rowsForLine(mBuffer.getLineWithNumber(lineNumber));
+        } else {
+            lineNumber = mAnchorLineNumber;
+            visibleRows = Math.min(mAnchorVisibleRows, rowsForLine(mBuffer.getLineWithNumber(lineNumber)));      // the number of rows changes if the width changes
+        }
+
+        // Draw from the bottom up, only the rows that are visible
+        float rowTop = getHeight() - getPaddingBottom() - mRowHeight;
+        final long firstLineNumber = mBuffer.getFirstLineNumber();
+        while (rowTop + mRowHeight > top && lineNumber >= firstLineNumber) {
+            final TerminalLineBuffer.Line line = mBuffer.getLineWithNumber(lineNumber);
+            for (int row = visibleRows - 1; row >= 0 && rowTop + mRowHeight > top; row--) {
+                final int start = rowStart(line, row);
+                final int end = rowEnd(line, row);
+                if (mHasSelection && lineNumber >= mSelectionStartLine && lineNumber <= mSelectionEndLine) {
+                    drawRowSelection(canvas, line, lineNumber, start, end, row == line.mRowCount - 1, left, rowTop);
+                }
+                drawRow(canvas, line, start, end, left, rowTop + mBaselineOffset);
+                rowTop -= mRowHeight;
+            }
+
+            lineNumber--;
+            if (lineNumber >= firstLineNumber) {
+                visibleRows = rowsForLine(mBuffer.getLineWithNumber(lineNumber));
+            }
+        }
+    }
+
+    private void drawRowSelection(@NonNull Canvas canvas, @NonNull TerminalLineBuffer.Line line, long lineNumber, int start, int end, boolean isLastRow, float left, float rowTop) {
+        final int selectionStart = Math.max(start, lineNumber == mSelectionStartLine ? mSelectionStartOffset : 0);
+        final boolean isNewlineSelected = lineNumber < mSelectionEndLine;
+        final int selectionEnd = Math.min(end, lineNumber == mSelectionEndLine ? mSelectionEndOffset : end);
+        if (selectionEnd <= selectionStart && !(isNewlineSelected && isLastRow && selectionStart <= end)) {
+            return;
+        }
+
+        final char[] chars = line.getChars();
+        final float startX = advanceText(chars, start, selectionStart, 0);
+        float endX = advanceText(chars, selectionStart, selectionEnd, startX);
+        if (isNewlineSelected && isLastRow) {
+            endX += mTabWidth / kTabStopSpaces;          // Show the selected newline as a space
+        }
+        canvas.drawRect(left + startX, rowTop, left + endX, rowTop + mRowHeight, mSelectionPaint);
+    }
+
+    private void drawRow(@NonNull Canvas canvas, @NonNull TerminalLineBuffer.Line line, int start, int end, float left, float baseline) {
+        final char[] chars = line.getChars();
+        float x = 0;
+        int runStart = 0;
+        for (int run = 0; run < line.getRunCount() && runStart < end; run++) {
+            final int runEnd = line.getRunEnd(run);
+            final int segmentStart = Math.max(start, runStart);
+            final int segmentEnd = Math.min(end, runEnd);
+            if (segmentEnd > segmentStart) {
+                mTextPaint.setColor(line.getRunColor(run));
+                mTextPaint.setFakeBoldText(line.isRunBold(run));      // fake bold doesn't change the glyph advances
+                x = drawSegment(canvas, chars, segmentStart, segmentEnd, left, x, baseline);
+            }
+            runStart = runEnd;
+        }
+        mTextPaint.setColor(Color.BLACK);
+    }
+
+    // Draws the text between tabs. Returns the x position after the segment
+    private float drawSegment(@NonNull Canvas canvas, @NonNull char[] chars, int start, int end, float left, float x, float baseline) {
+        int pieceStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || chars[i] == '\t') {
+                if (i > pieceStart) {
+                    canvas.drawText(chars, pieceStart, i - pieceStart, left + x, baseline, mTextPaint);
+                    x += mTextPaint.measureText(chars, pieceStart, i - pieceStart);
+                }
+                if (i < end) {
+                    x += tabAdvance(x);
+                }
+                pieceStart = i + 1;
+            }
+        }
+        return x;
+    }
+    // endregion
+}
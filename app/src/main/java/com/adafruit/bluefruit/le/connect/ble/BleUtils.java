@@ -170,17 +170,9 @@ public class BleUtils {
 */
 
 
-    private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
-
     public static String bytesToHex(byte[] bytes) {
         if (bytes != null) {
-            char[] hexChars = new char[bytes.length * 2];
-            for (int j = 0; j < bytes.length; j++) {
-                int v = bytes[j] & 0xFF;
-                hexChars[j * 2] = hexArray[v >>> 4];
-                hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-            }
-            return new String(hexChars);
+            return ByteFormatter.hexString(bytes, (char) 0);
         } else return null;
     }
 
@@ -198,23 +190,20 @@ public class BleUtils {
 
     // TODO: merge all these byteToXXX functions and remove unused ones
 
+    // Note: for per-packet formatting use ByteFormatter directly with a reused StringBuilder
     public static String bytesToHex2(byte[] bytes) {
-        StringBuilder stringBuffer = new StringBuilder();
-        for (byte aByte : bytes) {
-            String charString = String.format("%02X", aByte);
-
-            stringBuffer.append(charString).append(" ");
-        }
-        return stringBuffer.toString();
+        return ByteFormatter.hexString(bytes, ' ');
     }
 
     public static @NonNull
     String bytesToText(byte[] bytes, boolean simplifyNewLine) {
-        String text = new String(bytes, StandardCharsets.UTF_8);
         if (simplifyNewLine) {
-            text = text.replaceAll("(\\r\\n|\\r)", "\n");
+            StringBuilder builder = new StringBuilder(bytes.length);
+            new ByteFormatter.NewlineNormalizer().appendText(builder, bytes);
+            return builder.toString();
+        } else {
+            return new String(bytes, StandardCharsets.UTF_8);
         }
-        return text;
     }
 
     /*
@@ -223,13 +212,12 @@ public class BleUtils {
     }*/
 
     public static String bytesToHexWithSpaces(byte[] bytes) {
-        StringBuilder newString = new StringBuilder();
-        for (byte aByte : bytes) {
-            String byteHex = String.format("%02X", aByte);
-            newString.append(byteHex).append(" ");
-
+        StringBuilder builder = new StringBuilder(bytes.length * 3);
+        ByteFormatter.appendHex(builder, bytes, ' ');
+        if (builder.length() > 0) {
+            builder.setLength(builder.length() - 1);        // remove last separator
         }
-        return newString.toString().trim();
+        return builder.toString();
     }
 
     public static String getUuidStringFromByteArray(byte[] bytes) {
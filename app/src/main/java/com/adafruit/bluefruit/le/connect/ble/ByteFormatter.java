@@ -0,0 +1,109 @@
+package com.adafruit.bluefruit.le.connect.ble;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+// Table-driven formatting of raw bytes as hex or text. The append methods write into a StringBuilder supplied (and reused) by the caller, so formatting a packet doesn't create intermediate strings
+public class ByteFormatter {
+    // Constants
+    private static final char[] kHexDigits = "0123456789ABCDEF".toCharArray();
+    private static final char[] kHexTable = new char[256 * 2];          // Two hex digits for each byte value
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            kHexTable[i * 2] = kHexDigits[i >>> 4];
+            kHexTable[i * 2 + 1] = kHexDigits[i & 0x0F];
+        }
+    }
+
+    // region Hex
+    // Appends each byte as two hex digits. If separator is not 0, it is appended after each byte (including the last one)
+    public static void appendHex(@NonNull StringBuilder builder, @NonNull byte[] bytes, int offset, int length, char separator) {
+        builder.ensureCapacity(builder.length() + length * (separator != 0 ? 3 : 2));
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final int index = (bytes[i] & 0xFF) * 2;
+            builder.append(kHexTable[index]).append(kHexTable[index + 1]);
+            if (separator != 0) {
+                builder.append(separator);
+            }
+        }
+    }
+
+    public static void appendHex(@NonNull StringBuilder builder, @NonNull byte[] bytes, char separator) {
+        appendHex(builder, bytes, 0, bytes.length, separator);
+    }
+
+    public static @NonNull
+    String hexString(@NonNull byte[] bytes, char separator) {
+        final char[] chars = new char[bytes.length * (separator != 0 ? 3 : 2)];
+        int position = 0;
+        for (byte aByte : bytes) {
+            final int index = (aByte & 0xFF) * 2;
+            chars[position++] = kHexTable[index];
+            chars[position++] = kHexTable[index + 1];
+            if (separator != 0) {
+                chars[position++] = separator;
+            }
+        }
+        return new String(chars);
+    }
+    // endregion
+
+    // region Text
+    // Appends the bytes decoded as UTF-8. Pure ASCII data (the usual case for uart traffic) is copied directly without going through the charset decoder
+    public static void appendText(@NonNull StringBuilder builder, @NonNull byte[] bytes, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] < 0) {
+                // Non-ASCII byte found: decode the rest with the charset
+                builder.append(new String(bytes, i, end - i, StandardCharsets.UTF_8));
+                return;
+            }
+            builder.append((char) bytes[i]);
+        }
+    }
+
+    public static void appendText(@NonNull StringBuilder builder, @NonNull byte[] bytes) {
+        appendText(builder, bytes, 0, bytes.length);
+    }
+    // endregion
+
+    // region NewlineNormalizer
+    // Converts "\r\n" and "\r" into "\n". It keeps the carriage return state between calls, so a "\r\n" split across two packets produces a single newline
+    public static class NewlineNormalizer {
+        private boolean mIsLastCharCarriageReturn = false;
+
+        public void reset() {
+            mIsLastCharCarriageReturn = false;
+        }
+
+        // Normalizes the characters of builder from start (inclusive) to the end, in place
+        public void normalize(@NonNull StringBuilder builder, int start) {
+            final int length = builder.length();
+            int position = start;
+            for (int i = start; i < length; i++) {
+                final char c = builder.charAt(i);
+                if (c == '\r') {
+                    builder.setCharAt(position++, '\n');
+                    mIsLastCharCarriageReturn = true;
+                } else {
+                    if (c != '\n' || !mIsLastCharCarriageReturn) {
+                        builder.setCharAt(position++, c);
+                    }
+                    mIsLastCharCarriageReturn = false;
+                }
+            }
+            builder.setLength(position);
+        }
+
+        // Appends the bytes decoded as UTF-8 with the newlines normalized
+        public void appendText(@NonNull StringBuilder builder, @NonNull byte[] bytes) {
+            final int start = builder.length();
+            ByteFormatter.appendText(builder, bytes);
+            normalize(builder, start);
+        }
+    }
+    // endregion
+}
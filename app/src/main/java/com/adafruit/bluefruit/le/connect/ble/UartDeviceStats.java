@@ -0,0 +1,93 @@
+package com.adafruit.bluefruit.le.connect.ble;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Uart counters of a peripheral. Counters are atomic (updated from the peripheral event loops and the threads that send data). The throughput is only updated by the rx producer
+// and the latency (time since the packet was received until it is delivered to the listener) only on the main thread
+public class UartDeviceStats {
+    // Config
+    private static final long kThroughputWindowNanos = 1000 * 1000000L;
+
+    // Data
+    private final AtomicLong mReceivedBytes = new AtomicLong(0);
+    private final AtomicLong mReceivedPackets = new AtomicLong(0);
+    private final AtomicLong mSentBytes = new AtomicLong(0);
+
+    // Throughput
+    private long mWindowStartNanos = 0;
+    private long mWindowBytes = 0;
+    private volatile long mLastReceivedNanos = 0;
+    private volatile double mReceivedBytesPerSecond = 0;
+
+    // Latency
+    private volatile long mAverageLatencyNanos = 0;
+    private volatile long mMaxLatencyNanos = 0;
+
+    // region Getters
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    public long getReceivedPackets() {
+        return mReceivedPackets.get();
+    }
+
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    // Throughput measured in the last complete window. 0 if nothing has been received recently
+    public double getReceivedBytesPerSecond() {
+        return SystemClock.elapsedRealtimeNanos() - mLastReceivedNanos < 2 * kThroughputWindowNanos ? mReceivedBytesPerSecond : 0;
+    }
+
+    public long getAverageLatencyNanos() {
+        return mAverageLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+    // endregion
+
+    // region Update
+    void addSentBytes(int length) {
+        mSentBytes.addAndGet(length);
+    }
+
+    void onReceived(int length, long timestampNanos) {
+        mReceivedBytes.addAndGet(length);
+        mReceivedPackets.incrementAndGet();
+
+        if (mWindowStartNanos == 0) {
+            mWindowStartNanos = timestampNanos;
+        }
+        mWindowBytes += length;
+        final long elapsed = timestampNanos - mWindowStartNanos;
+        if (elapsed >= kThroughputWindowNanos) {
+            mReceivedBytesPerSecond = mWindowBytes * 1e9 / elapsed;
+            mWindowStartNanos = timestampNanos;
+            mWindowBytes = 0;
+        }
+        mLastReceivedNanos = timestampNanos;
+    }
+
+    void onDelivered(long latencyNanos) {
+        mAverageLatencyNanos = mAverageLatencyNanos == 0 ? latencyNanos : (mAverageLatencyNanos * 7 + latencyNanos) / 8;        // Exponential moving average
+        if (latencyNanos > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latencyNanos;
+        }
+    }
+
+    void reset() {
+        mReceivedBytes.set(0);
+        mReceivedPackets.set(0);
+        mSentBytes.set(0);
+        mReceivedBytesPerSecond = 0;
+        mAverageLatencyNanos = 0;
+        mMaxLatencyNanos = 0;
+    }
+    // endregion
+}
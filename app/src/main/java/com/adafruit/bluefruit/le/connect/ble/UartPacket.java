@@ -1,5 +1,7 @@
 package com.adafruit.bluefruit.le.connect.ble;
 
+import android.os.SystemClock;
+
 import java.util.Arrays;
 
 public class UartPacket {
@@ -8,16 +10,18 @@ public class UartPacket {
 
     private final String mPeripheralId;
     private final long mTimestamp;        // in millis
+    private final long mTimestampNanos;   // elapsedRealtimeNanos. Monotonic, used to order packets from different peripherals
     private final int mMode;
     private byte[] mData;
 
     public UartPacket(String peripheralId, int mode, byte[] data) {
-        this(peripheralId, System.currentTimeMillis(), mode, data);
+        this(peripheralId, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos(), mode, data);
     }
 
     public UartPacket(UartPacket uartPacket) {
         mPeripheralId = uartPacket.mPeripheralId;
         mTimestamp = uartPacket.mTimestamp;
+        mTimestampNanos = uartPacket.mTimestampNanos;
         mMode = uartPacket.mMode;
         if (uartPacket.mData != null) {
             mData = Arrays.copyOf(uartPacket.mData, uartPacket.mData.length);
@@ -26,8 +30,14 @@ public class UartPacket {
 
     @SuppressWarnings("WeakerAccess")
     public UartPacket(String peripheralId, long timestamp, int mode, byte[] data) {
+        this(peripheralId, timestamp, SystemClock.elapsedRealtimeNanos(), mode, data);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public UartPacket(String peripheralId, long timestamp, long timestampNanos, int mode, byte[] data) {
         mPeripheralId = peripheralId;
         mTimestamp = timestamp;
+        mTimestampNanos = timestampNanos;
         mMode = mode;
         mData = data;
     }
@@ -40,6 +50,10 @@ public class UartPacket {
         return mTimestamp;
     }
 
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
     public int getMode() {
         return mMode;
     }
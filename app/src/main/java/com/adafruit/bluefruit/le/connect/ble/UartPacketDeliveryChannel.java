@@ -0,0 +1,127 @@
+package com.adafruit.bluefruit.le.connect.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Delivers uart packets to a listener on the main thread, coalescing all the packets received between two display frames into a single batch.
+// Packets can be offered from any thread without locking. Only one message is posted to the main looper per frame, no matter how many packets arrive.
+// Each batch is sorted by the packets monotonic timestamp, so the packets of several peripherals (received on their own event loops) or sent from different threads are delivered in the order they were created.
+// Packets created in the last kReorderWindowNanos are kept for the next frame, in case an older packet from another thread has not been offered yet.
+// If no frame arrives (i.e. the screen is off) the batch is delivered by a delayed message after kFrameFallbackMillis, so the pending packets don't grow without bound
+public class UartPacketDeliveryChannel {
+    // Config
+    private static final long kReorderWindowNanos = 10 * 1000000L;
+    private static final long kFrameFallbackMillis = 100;
+
+    // Listener
+    public interface BatchListener {
+        void onUartPacketBatch(@NonNull List<UartPacket> packets);        // The list is only valid during the call
+    }
+
+    // Data
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final WeakReference<BatchListener> mWeakListener;
+    private final ConcurrentLinkedQueue<UartPacket> mPendingPackets = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mIsFrameScheduled = new AtomicBoolean(false);
+    private final List<UartPacket> mReorderBuffer = new ArrayList<>();        // Packets waiting to be delivered, sorted by timestamp (only accessed from the main thread)
+    private final List<UartPacket> mBatch = new ArrayList<>();        // Reused between frames (only accessed from the main thread)
+
+    private static final Comparator<UartPacket> kTimestampComparator = (packet1, packet2) -> Long.compare(packet1.getTimestampNanos(), packet2.getTimestampNanos());
+
+    public UartPacketDeliveryChannel(@Nullable BatchListener listener) {
+        mWeakListener = new WeakReference<>(listener);
+    }
+
+    // region Actions
+    public void offer(@NonNull UartPacket packet) {
+        if (mWeakListener.get() == null) {
+            return;
+        }
+
+        mPendingPackets.add(packet);
+        scheduleFrame();
+    }
+
+    // Delivers now all the packets waiting for the next frame
+    @MainThread
+    public void flush() {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mMainHandler.removeCallbacks(mFallbackRunnable);
+        deliverBatch(Long.MAX_VALUE);
+    }
+    // endregion
+
+    // region Frame
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> deliverBatch(SystemClock.elapsedRealtimeNanos() - kReorderWindowNanos);      // frameTimeNanos uses a different clock than the packets timestamps
+
+    private final Runnable mFallbackRunnable = () -> {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        deliverBatch(SystemClock.elapsedRealtimeNanos() - kReorderWindowNanos);
+    };
+
+    private final Runnable mScheduleFrameRunnable = () -> {
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        mMainHandler.postDelayed(mFallbackRunnable, kFrameFallbackMillis);
+    };
+
+    private void scheduleFrame() {
+        if (mIsFrameScheduled.compareAndSet(false, true)) {
+            // Choreographer has to be obtained on the main thread (it is thread-local)
+            mMainHandler.post(mScheduleFrameRunnable);
+        }
+    }
+
+    // Delivers the packets with a timestamp older than watermark
+    private void deliverBatch(long watermark) {
+        mMainHandler.removeCallbacks(mFallbackRunnable);
+        mIsFrameScheduled.set(false);       // Cleared before draining, so packets added during the delivery schedule a new frame
+
+        UartPacket packet;
+        boolean isSorted = true;
+        while ((packet = mPendingPackets.poll()) != null) {
+            final int size = mReorderBuffer.size();
+            if (size > 0 && mReorderBuffer.get(size - 1).getTimestampNanos() > packet.getTimestampNanos()) {
+                isSorted = false;
+            }
+            mReorderBuffer.add(packet);
+        }
+        if (!isSorted) {
+            Collections.sort(mReorderBuffer, kTimestampComparator);     // Stable, and almost linear because the packets are mostly in order
+        }
+
+        int count = 0;
+        while (count < mReorderBuffer.size() && mReorderBuffer.get(count).getTimestampNanos() <= watermark) {
+            count++;
+        }
+        if (count > 0) {
+            final List<UartPacket> deliveredPackets = mReorderBuffer.subList(0, count);
+            mBatch.addAll(deliveredPackets);
+            deliveredPackets.clear();
+
+            BatchListener listener = mWeakListener.get();
+            if (listener != null) {
+                listener.onUartPacketBatch(Collections.unmodifiableList(mBatch));
+            }
+            mBatch.clear();
+        }
+
+        if (!mReorderBuffer.isEmpty()) {
+            scheduleFrame();        // Deliver the recent packets in the next frame
+        }
+    }
+    // endregion
+}
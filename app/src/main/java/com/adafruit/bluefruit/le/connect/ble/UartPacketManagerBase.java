@@ -4,6 +4,8 @@ import android.bluetooth.BluetoothGatt;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
@@ -15,35 +17,40 @@ import com.adafruit.bluefruit.le.connect.mqtt.MqttSettings;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UartPacketManagerBase implements BlePeripheralUart.UartRxHandler {
     // Log
     private final static String TAG = UartPacketManagerBase.class.getSimpleName();
 
-    // Listener
-    public interface Listener {
-        void onUartPacket(UartPacket packet);
+    // Listener: packets (received and sent) are delivered in batches, one per display frame
+    public interface Listener extends UartPacketDeliveryChannel.BatchListener {
     }
 
     // Data
     //private boolean mIsEnabled = false;
     protected final Handler mMainHandler = new Handler(Looper.getMainLooper());
-    protected WeakReference<Listener> mWeakListener;
+    private final WeakReference<Listener> mWeakListener;
+    private final UartPacketDeliveryChannel mDeliveryChannel;
     protected List<UartPacket> mPackets = new ArrayList<>();
     protected Semaphore mPacketsSemaphore = new Semaphore(1, true);
     private final boolean mIsPacketCacheEnabled;
     protected Context mContext;
     protected MqttManager mMqttManager;
 
-    protected long mReceivedBytes = 0;
-    protected long mSentBytes = 0;
+    protected final AtomicLong mReceivedBytes = new AtomicLong(0);        // Atomic, so the UI can read them at any time without synchronizing with the rx thread
+    protected final AtomicLong mSentBytes = new AtomicLong(0);
+    private final Map<String, UartDeviceStats> mDeviceStats = new ConcurrentHashMap<>();      // Key: peripheral identifier
 
     public UartPacketManagerBase(@NonNull Context context, @Nullable Listener listener, boolean isPacketCacheEnabled, @Nullable MqttManager mqttManager) {
         mContext = context.getApplicationContext();
         mIsPacketCacheEnabled = isPacketCacheEnabled;
         mMqttManager = mqttManager;
         mWeakListener = new WeakReference<>(listener);
+        mDeliveryChannel = new UartPacketDeliveryChannel(mBatchListener);
     }
 
     // region Received data: UartRxHandler
@@ -68,23 +75,53 @@ public class UartPacketManagerBase implements BlePeripheralUart.UartRxHandler {
             }
         }
 
-        try {
-            mPacketsSemaphore.acquire();
-        } catch (InterruptedException e) {
-            Log.w(TAG, "InterruptedException: " + e);
-        }
-        mReceivedBytes += data.length;
+        mReceivedBytes.addAndGet(data.length);
+        getStats(identifier).onReceived(data.length, uartPacket.getTimestampNanos());
+        addPacket(uartPacket);
+    }
+
+    // Adds the packet to the cache on the producer thread (so the cache and the exports don't depend on the display frames) and queues it for the listener, that receives a batch per frame
+    protected void addPacket(@NonNull UartPacket uartPacket) {
         if (mIsPacketCacheEnabled) {
-            mPackets.add(uartPacket);
+            try {
+                mPacketsSemaphore.acquire();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "InterruptedException: " + e);
+            }
+            // Keep the cache sorted by timestamp. Packets from other threads are rarely out of order, so the position is searched from the end
+            int index = mPackets.size();
+            while (index > 0 && mPackets.get(index - 1).getTimestampNanos() > uartPacket.getTimestampNanos()) {
+                index--;
+            }
+            mPackets.add(index, uartPacket);
+            mPacketsSemaphore.release();
+        }
+
+        if (mWeakListener.get() != null) {
+            mDeliveryChannel.offer(uartPacket);
+        }
+    }
+
+    // Delivers now the packets waiting for the next frame. Should be called when the manager is no longer used, so the last packets reach the listener
+    @MainThread
+    public void flush() {
+        mDeliveryChannel.flush();
+    }
+
+    private final UartPacketDeliveryChannel.BatchListener mBatchListener = this::onPacketBatch;      // Kept, because the delivery channel holds a weak reference
+
+    private void onPacketBatch(@NonNull List<UartPacket> packets) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        for (UartPacket packet : packets) {
+            if (packet.getMode() == UartPacket.TRANSFERMODE_RX) {
+                getStats(packet.getPeripheralId()).onDelivered(now - packet.getTimestampNanos());
+            }
         }
 
-        // Send data to delegate
         Listener listener = mWeakListener.get();
         if (listener != null) {
-            mMainHandler.post(() -> listener.onUartPacket(uartPacket));
+            listener.onUartPacketBatch(packets);
         }
-
-        mPacketsSemaphore.release();
     }
 
     public void clearPacketsCache() {
@@ -95,6 +132,18 @@ public class UartPacketManagerBase implements BlePeripheralUart.UartRxHandler {
         return mPackets;
     }
 
+    // Returns a copy of the packets list (the packets themselves are not copied), so it can be iterated from a background thread while new packets arrive
+    public List<UartPacket> getPacketsCacheSnapshot() {
+        try {
+            mPacketsSemaphore.acquire();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "InterruptedException: " + e);
+        }
+        List<UartPacket> snapshot = new ArrayList<>(mPackets);
+        mPacketsSemaphore.release();
+        return snapshot;
+    }
+
     /*
     public void setEnabled(@NonNull Context context, boolean enabled) {
         if (enabled != mIsEnabled) {
@@ -112,48 +161,59 @@ public class UartPacketManagerBase implements BlePeripheralUart.UartRxHandler {
 
     // region Counters
     public void resetCounters() {
-        mReceivedBytes = 0;
-        mSentBytes = 0;
+        mReceivedBytes.set(0);
+        mSentBytes.set(0);
+        for (UartDeviceStats stats : mDeviceStats.values()) {
+            stats.reset();
+        }
+    }
+
+    protected void addSentBytes(@Nullable String identifier, int length) {
+        mSentBytes.addAndGet(length);
+        getStats(identifier).addSentBytes(length);
+    }
+
+    // Counters, throughput and latency of a peripheral (identifier can be null for packets not associated to a peripheral)
+    public @NonNull
+    UartDeviceStats getStats(@Nullable String identifier) {
+        final String key = identifier != null ? identifier : "";
+        UartDeviceStats stats = mDeviceStats.get(key);
+        if (stats == null) {
+            stats = new UartDeviceStats();
+            final UartDeviceStats previousStats = mDeviceStats.putIfAbsent(key, stats);
+            if (previousStats != null) {
+                stats = previousStats;
+            }
+        }
+        return stats;
     }
 
     public long getReceivedBytes() {
-        return mReceivedBytes;
+        return mReceivedBytes.get();
     }
 
     public long getSentBytes() {
-        return mSentBytes;
+        return mSentBytes.get();
     }
 
     // endregion
 
     /*
-    // region Broadcast Listener
+    // region Peripheral Events
     private void registerGattReceiver(@NonNull Context context) {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BlePeripheral.kBlePeripheral_OnConnected);
-        filter.addAction(BlePeripheral.kBlePeripheral_OnDisconnected);
-        LocalBroadcastManager.getInstance(context).registerReceiver(mGattUpdateReceiver, filter);
+        BlePeripheralEventBus.getInstance().subscribe(mPeripheralEventSubscriber, BlePeripheralEventBus.EVENT_CONNECTED | BlePeripheralEventBus.EVENT_DISCONNECTED, false);
     }
 
     private void unregisterGattReceiver(@NonNull Context context) {
-        LocalBroadcastManager.getInstance(context).unregisterReceiver(mGattUpdateReceiver);
-    }
-
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            final String identifier = intent.getStringExtra(BlePeripheral.kExtra_deviceAddress);
-            if (identifier != null) {
-                if (BlePeripheral.kBlePeripheral_OnConnected.equals(action)) {
-                    clearPacketsCache();
-                } else if (BlePeripheral.kBlePeripheral_OnDisconnected.equals(action)) {
-                    clearPacketsCache();
-                    mPacketsSemaphore.release();     // Force signal if was waiting
-                }
-            } else {
-                Log.w(TAG, "UartPacketManagerBase mGattUpdateReceiver with null peripheral");
-            }
+        BlePeripheralEventBus.getInstance().unsubscribe(mPeripheralEventSubscriber);
+    }
+
+    private final BlePeripheralEventBus.Subscriber mPeripheralEventSubscriber = event -> {
+        if (event.type == BlePeripheralEventBus.EVENT_CONNECTED) {
+            clearPacketsCache();
+        } else if (event.type == BlePeripheralEventBus.EVENT_DISCONNECTED) {
+            clearPacketsCache();
+            mPacketsSemaphore.release();     // Force signal if was waiting
         }
     };
     // endregion
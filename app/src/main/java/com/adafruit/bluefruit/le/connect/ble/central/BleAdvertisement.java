@@ -0,0 +1,146 @@
+package com.adafruit.bluefruit.le.connect.ble.central;
+
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.adafruit.bluefruit.le.connect.ble.BleUtils;
+import com.adafruit.bluefruit.le.connect.utils.UriBeaconUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.support.v18.scanner.ScanRecord;
+
+// Advertisement data parsed once from a scan record. BlePeripheral keeps the last one and only replaces it when the raw advertised bytes change, so the UI can query it as often as needed without parsing
+public class BleAdvertisement {
+    // Constants
+    private static final ParcelUuid kUartServiceParcelUuid = new ParcelUuid(BlePeripheralUart.kUartServiceUUID);
+    private static final byte[] kUriBeaconPrefix = {0x03, 0x03, (byte) 0xD8, (byte) 0xFE};
+    private static final int kInvalidTxPower = -255;
+
+    // Data
+    private final byte[] mRawBytes;
+    private final int mDeviceType;
+    private final List<ParcelUuid> mServiceUuids;
+    private final SparseArray<byte[]> mManufacturerData;
+    private final int mTxPowerLevel;
+
+    private String mBeaconManufacturerId;       // Only for kDeviceType_Beacon
+    private String mBeaconMajor;                // Only for kDeviceType_Beacon
+    private String mBeaconMinor;                // Only for kDeviceType_Beacon
+    private String mUri;                        // Only for kDeviceType_UriBeacon
+
+    static final BleAdvertisement kEmpty = new BleAdvertisement(null);
+
+    BleAdvertisement(@Nullable ScanRecord scanRecord) {
+        final byte[] advertisedData = scanRecord != null ? scanRecord.getBytes() : null;
+        mRawBytes = advertisedData;
+        mServiceUuids = scanRecord != null ? scanRecord.getServiceUuids() : null;
+        mManufacturerData = scanRecord != null ? scanRecord.getManufacturerSpecificData() : null;
+        mTxPowerLevel = scanRecord != null ? scanRecord.getTxPowerLevel() : kInvalidTxPower;
+
+        // Check if is an iBeacon ( 0x02, 0x01, a flag byte, 0x1A, 0xFF, manufacturer (2bytes), 0x02, 0x15)
+        final boolean isBeacon = advertisedData != null && advertisedData.length > 8 && advertisedData[0] == 0x02 && advertisedData[1] == 0x01 && advertisedData[3] == 0x1A && advertisedData[4] == (byte) 0xFF && advertisedData[7] == 0x02 && advertisedData[8] == 0x15;
+        if (isBeacon) {
+            mDeviceType = BleScanner.kDeviceType_Beacon;
+            parseBeacon(advertisedData);
+        } else if (isUriBeacon(advertisedData)) {
+            mDeviceType = BleScanner.kDeviceType_UriBeacon;
+            mUri = UriBeaconUtils.getUriFromAdvertisingPacket(advertisedData);
+        } else if (mServiceUuids != null && mServiceUuids.contains(kUartServiceParcelUuid)) {
+            mDeviceType = BleScanner.kDeviceType_Uart;
+        } else {
+            mDeviceType = BleScanner.kDeviceType_Unknown;
+        }
+    }
+
+    // region Parse
+    private static boolean isUriBeacon(@Nullable byte[] advertisedData) {
+        if (advertisedData == null || advertisedData.length <= 7) {
+            return false;
+        }
+
+        for (int i = 0; i < kUriBeaconPrefix.length; i++) {
+            if (advertisedData[i] != kUriBeaconPrefix[i]) {
+                return false;
+            }
+        }
+        return advertisedData[5] == 0x16 && advertisedData[6] == kUriBeaconPrefix[2] && advertisedData[7] == kUriBeaconPrefix[3];
+    }
+
+    private void parseBeacon(@NonNull byte[] advertisedBytes) {
+        if (advertisedBytes.length > 6) {
+            final byte[] manufacturerBytes = {advertisedBytes[6], advertisedBytes[5]};      // Little endian
+            mBeaconManufacturerId = BleUtils.bytesToHex(manufacturerBytes);
+        }
+
+        if (advertisedBytes.length > 26) {
+            final byte[] majorBytes = {advertisedBytes[25], advertisedBytes[26]};           // Big endian
+            mBeaconMajor = BleUtils.bytesToHex(majorBytes);
+        }
+
+        if (advertisedBytes.length > 28) {
+            final byte[] minorBytes = {advertisedBytes[27], advertisedBytes[28]};           // Big endian
+            mBeaconMinor = BleUtils.bytesToHex(minorBytes);
+        }
+    }
+
+    // Returns true if the advertisement was parsed from the same raw bytes (so there is no need to parse it again)
+    boolean hasSameBytes(@Nullable ScanRecord scanRecord) {
+        final byte[] bytes = scanRecord != null ? scanRecord.getBytes() : null;
+        return Arrays.equals(mRawBytes, bytes);
+    }
+    // endregion
+
+    // region Getters
+    public @Nullable
+    byte[] getRawBytes() {
+        return mRawBytes;
+    }
+
+    public int getDeviceType() {
+        return mDeviceType;
+    }
+
+    public @Nullable
+    List<ParcelUuid> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    public @Nullable
+    SparseArray<byte[]> getManufacturerData() {
+        return mManufacturerData;
+    }
+
+    public boolean isTxPowerLevelValid() {
+        return mTxPowerLevel > kInvalidTxPower;
+    }
+
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    public @Nullable
+    String getBeaconManufacturerId() {
+        return mBeaconManufacturerId;
+    }
+
+    public @Nullable
+    String getBeaconMajor() {
+        return mBeaconMajor;
+    }
+
+    public @Nullable
+    String getBeaconMinor() {
+        return mBeaconMinor;
+    }
+
+    public @Nullable
+    String getUri() {
+        return mUri;
+    }
+    // endregion
+}
@@ -12,17 +12,18 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
-import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.IntRange;
+import androidx.annotation.Keep;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.adafruit.bluefruit.le.connect.BuildConfig;
 import com.adafruit.bluefruit.le.connect.ble.BleUtils;
@@ -32,8 +33,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
 import no.nordicsemi.android.support.v18.scanner.ScanRecord;
@@ -55,20 +54,22 @@ public class BlePeripheral {
     public static final int STATE_CONNECTED = BluetoothProfile.STATE_CONNECTED;
     public static final int STATE_DISCONNECTING = BluetoothProfile.STATE_DISCONNECTING;
 
+    // Link profiles: connection parameters (priority, phy, mtu) requested for each kind of workload
+    public static final int LINK_PROFILE_BALANCED = 0;          // Default. Uses the connection config flags (kSetPhy_2M, kSetPreferredMtuSize)
+    public static final int LINK_PROFILE_BULK = 1;              // Maximum throughput: high priority, 2M phy and maximum mtu (image transfer, dfu)
+    public static final int LINK_PROFILE_INTERACTIVE = 2;       // Minimum latency: high priority and 2M phy (controller, neopixel)
+    public static final int LINK_PROFILE_LOW_POWER = 3;         // Idle: low power priority and 1M phy
+
     //  Config
     private final static boolean kDebugCommands = BuildConfig.DEBUG && true;         // Set a identifier for each command and verifies that the command processed is the one expected
     private final static boolean kProfileTimeouts = BuildConfig.DEBUG && true;
-    private final static String kPrefix = "com.adafruit.bluefruit.bleperipheral.";
 
     private static final int kDefaultMtuSize = 20;
 
-    public final static String kBlePeripheral_OnConnecting = kPrefix + "connecting";
-    public final static String kBlePeripheral_OnConnected = kPrefix + "connected";
-    public final static String kBlePeripheral_OnDisconnected = kPrefix + "disconnected";
-    public final static String kBlePeripheral_OnReconnecting = kPrefix + "reconnecting";
-    public final static String kBlePeripheral_OnRssiUpdated = kPrefix + "rssiUpdated";
-    public final static String kExtra_deviceAddress = kPrefix + "extra_deviceAddress";
-    public final static String kExtra_expectedDisconnect = kPrefix + "extra_expectedDisconnect";
+    private static final int kBulkWriteInitialCredits = 2;          // Writes that can be waiting for onCharacteristicWrite when a bulk write starts
+    private static final int kBulkWriteMaxCredits = 8;
+    private static final long kBulkWriteRetryDelayMillis = 5;       // Delay before retrying a write rejected because the stack is busy (and there are no writes pending that will trigger a retry)
+    private static final int kBulkWriteMaxConsecutiveRetries = 200;
 
     public final static UUID kClientCharacteristicConfigUUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
@@ -77,26 +78,112 @@ public class BlePeripheral {
 
     // Data
     private ScanResult mScanResult;
-    private LocalBroadcastManager mLocalBroadcastManager;
-    private BluetoothGatt mBluetoothGatt;
+    private BleAdvertisement mAdvertisement = BleAdvertisement.kEmpty;
+    private volatile BluetoothGatt mBluetoothGatt;        // Only changed on the event loop. Other threads have to read it into a local before using it
+    private volatile AttributeIndex mAttributeIndex = null;        // Services and characteristics by uuid. Built when services are discovered
 
-    private int mConnectionState = STATE_DISCONNECTED;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private boolean mIsSupervisedConnect = false;        // The current connection was started by the ReconnectSupervisor (only accessed on the event loop)
     private final CommandQueue mCommandQueue = new CommandQueue();
-    private final Map<String, NotifyHandler> mNotifyHandlers = new HashMap<>();
+    private final SparseArray<NotifyHandler> mNotifyHandlers = new SparseArray<>();        // Key: characteristic handle (see getCharacteristicHandle)
     private final List<CaptureReadHandler> mCaptureReadHandlers = new ArrayList<>();
 
     private int mRssi = 0;
     private int mMtuSize = kDefaultMtuSize;
+    private volatile int mLinkProfile = LINK_PROFILE_BALANCED;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mRxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mConnectionInterval = 0;        // In units of 1.25ms. 0 if unknown
+    private int mConnectionLatency = 0;
+    private int mSupervisionTimeout = 0;        // In units of 10ms
 
     private boolean cachedNameNeedsUpdate = true;     // false if the cached name has been recovered (cachedName could be null, so testing for null is not enough)
     private String cachedName = null;           // Cached name
     private String cachedAddress = null;        // Cached address
 
     private Context mConnectionContext = null;
-    private boolean isAutoreconnectOnDisconnectionEnabled = false;
+    private volatile boolean isAutoreconnectOnDisconnectionEnabled = false;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile HandlerThread mEventThread;        // Serial event loop that owns the peripheral state (command queue, notify and capture handlers). Created on connect
+    private volatile Handler mEventHandler;
 
     // region BluetoothGattCallback
+    // Gatt callbacks are received on binder threads. They are forwarded to the peripheral event loop, so the state is only accessed from one thread and slow listeners don't block the Bluetooth stack
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            runOnEventLoop(() -> mGattEventHandler.onConnectionStateChange(gatt, status, newState));
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onServicesDiscovered(gatt, status));
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onCharacteristicRead(gatt, characteristic, status));
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onCharacteristicWrite(gatt, characteristic, status));
+        }
+
+        // Android 13+: the value is a parameter. Note: super is not called because the default implementation calls the deprecated method
+        @Override
+        public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+            runOnEventLoop(() -> mGattEventHandler.onCharacteristicChanged(characteristic, value));
+        }
+
+        // Android 12 and older: the value is read now, because the next notification could overwrite it before the event loop processes this one
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            final byte[] value = characteristic.getValue();
+            runOnEventLoop(() -> mGattEventHandler.onCharacteristicChanged(characteristic, value != null ? value : new byte[0]));
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onDescriptorRead(gatt, descriptor, status));
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onDescriptorWrite(gatt, descriptor, status));
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onReadRemoteRssi(gatt, rssi, status));
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onMtuChanged(gatt, mtu, status));
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onPhyUpdate(gatt, txPhy, rxPhy, status));
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onPhyRead(gatt, txPhy, rxPhy, status));
+        }
+
+        // Note: hidden in the public sdk (so no @Override) but called by the system on Android 8+. It is the only way to know the negotiated connection interval
+        @Keep
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            runOnEventLoop(() -> mGattEventHandler.onConnectionUpdated(interval, latency, timeout, status));
+        }
+    };
+
+    // Processes the gatt callbacks on the event loop
+    private final GattEventHandler mGattEventHandler = new GattEventHandler();
+
+    private class GattEventHandler extends BluetoothGattCallback {
         @SuppressLint("InlinedApi")
         @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
         @Override
@@ -108,19 +195,18 @@ public class BlePeripheral {
                 mConnectionState = STATE_CONNECTED;
                 isAutoreconnectOnDisconnectionEnabled = true;
 
-                // Phy
-                if (kSetPhy_2M) {
-                    Log.d(TAG, "Set Phy to 2M");
-                    setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
-                }
+                // Connection parameters
+                applyLinkProfile();
 
-                // MTU
-                if (kSetPreferredMtuSize) {
-                    // Increase MTU packet size
-                    requestMtu(kPreferredMtuSize, null);          // Note: requestMtu only affects to WriteWithoutResponse
+                // Published from the event loop (as the disconnection), so subscribers can't receive them in the wrong order
+                if (mIsSupervisedConnect) {
+                    mMainHandler.post(() -> {
+                        ReconnectSupervisor.getInstance().onConnected(BlePeripheral.this);
+                        restoreAfterReconnection();
+                    });
+                } else {
+                    publishEvent(BlePeripheralEventBus.EVENT_CONNECTED);
                 }
-
-                localBroadcastUpdate(kBlePeripheral_OnConnected, getIdentifier());
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.d(TAG, "onConnectionStateChange STATE_DISCONNECTED");
                 notifyConnectionFinished();
@@ -133,6 +219,7 @@ public class BlePeripheral {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             super.onServicesDiscovered(gatt, status);
 
+            mAttributeIndex = status == BluetoothGatt.GATT_SUCCESS ? new AttributeIndex(gatt.getServices()) : null;
             finishExecutingCommand(status);
         }
 
@@ -142,9 +229,8 @@ public class BlePeripheral {
 
             Log.d(TAG, "onCharacteristicRead");
             if (kDebugCommands) {
-                final String identifier = getCharacteristicIdentifier(characteristic);
                 BleCommand command = mCommandQueue.first();
-                if (command.mType == BleCommand.BLECOMMANDTYPE_READCHARACTERISTIC && identifier.equals(command.mIdentifier)) {
+                if (command.mType == BleCommand.BLECOMMANDTYPE_READCHARACTERISTIC && getCharacteristicHandle(characteristic) == command.mHandle) {
                     finishExecutingCommand(status);
                 } else {
                     Log.w(TAG, "Warning: onCharacteristicRead with no matching command");
@@ -159,20 +245,21 @@ public class BlePeripheral {
             super.onCharacteristicWrite(gatt, characteristic, status);
 
             BleCommand command = mCommandQueue.first();
-            if (command != null && !command.mIsCancelled && command.mType == BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTICANDWAITNOTIFY) {
+            if (command != null && !command.mIsCancelled && command.mType == BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTICBULK) {
+                ((BulkWriteCommand) command).onWrite(status);
+            } else if (command != null && !command.mIsCancelled && command.mType == BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTICANDWAITNOTIFY) {
                 if (kHackToAvoidProblemsWhenWriteIsReceivedBeforeChangedOnWriteWithResponse) {
                     Log.d(TAG, "onCharacteristicWrite. Ignored");
                     // TODO: fixit
                     // This is not totally correct. If onCharacteristicChanged arrives before onCharacteristicWrite, onCharacteristicChanged should not finishExecutingCommand and wait should be executed when this function is called
                 } else {
                     Log.d(TAG, "onCharacteristicWrite. Waiting for response");
-                    final String identifier = getCharacteristicIdentifier(characteristic);
-                    if (kDebugCommands && !identifier.equals(command.mIdentifier)) {
+                    if (kDebugCommands && getCharacteristicHandle(characteristic) != command.mHandle) {
                         Log.w(TAG, "Warning: onCharacteristicWrite with no matching command");
                     }
 
                     BleCommandCaptureReadParameters readParameters = (BleCommandCaptureReadParameters) command.mExtra;
-                    CaptureReadHandler captureReadHandler = new CaptureReadHandler(readParameters.readIdentifier, readParameters.completionHandler, readParameters.timeout, mTimeoutRemoveCaptureHandler);
+                    CaptureReadHandler captureReadHandler = new CaptureReadHandler(readParameters.readHandle, readParameters.completionHandler, readParameters.timeout, mTimeoutRemoveCaptureHandler, getEventHandler());
                     Log.d(TAG, "onCharacteristicWrite: add captureReadHandler");
                     mCaptureReadHandlers.add(captureReadHandler);
                 }
@@ -189,13 +276,10 @@ public class BlePeripheral {
             }
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-
+        void onCharacteristicChanged(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
             //Log.d(TAG, "onCharacteristicChanged. numCaptureReadHandlers: " + mCaptureReadHandlers.size());
 
-            final String identifier = getCharacteristicIdentifier(characteristic);
+            final int handle = getCharacteristicHandle(characteristic);
             final int status = BluetoothGatt.GATT_SUCCESS;          // On Android, there is no error reported for this callback, so we assume it is SUCCESS
 
             // Check if waiting to capture this read
@@ -203,23 +287,23 @@ public class BlePeripheral {
             boolean hasCaptureHandler = false;
 
             // Remove capture handler
-            final int captureHandlerIndex = getCaptureHandlerIndex(identifier);
+            final int captureHandlerIndex = getCaptureHandlerIndex(handle);
             if (captureHandlerIndex >= 0) {
                 hasCaptureHandler = true;
                 CaptureReadHandler captureReadHandler = mCaptureReadHandlers.remove(captureHandlerIndex);
 
                 // Cancel timeout handler
-                if (captureReadHandler.mTimeoutTimer != null) {
+                if (captureReadHandler.mTimeoutRunnable != null) {
                     if (kProfileTimeouts) {
-                        Log.d(TAG, "Cancel timeout: " + captureReadHandler.mIdentifier + ". elapsed millis:" + (System.currentTimeMillis() - captureReadHandler.mTimeoutStartingMillis));
+                        Log.d(TAG, "Cancel timeout: " + captureReadHandler.mHandle + ". elapsed millis:" + (System.currentTimeMillis() - captureReadHandler.mTimeoutStartingMillis));
                     }
-                    captureReadHandler.mTimeoutTimer.cancel();
-                    captureReadHandler.mTimeoutTimer = null;
+                    captureReadHandler.cancelTimeout();
                 }
 
                 // Send result
-                byte[] value = characteristic.getValue();
-                Log.d(TAG, "onCharacteristicChanged: send result to captureReadHandler:" + BleUtils.bytesToHex2(value));
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "onCharacteristicChanged: send result to captureReadHandler:" + BleUtils.bytesToHex2(value));
+                }
                 captureReadHandler.mResult.read(status, value);
 
                 isNotifyOmitted = captureReadHandler.mIsNotifyOmitted;
@@ -227,9 +311,9 @@ public class BlePeripheral {
 
             // Notify
             if (!isNotifyOmitted) {
-                NotifyHandler notifyHandler = mNotifyHandlers.get(identifier);
+                NotifyHandler notifyHandler = mNotifyHandlers.get(handle);
                 if (notifyHandler != null) {
-                    notifyHandler.notify(status);
+                    notifyHandler.notify(status, value);
                 }
             }
 
@@ -243,9 +327,8 @@ public class BlePeripheral {
             super.onDescriptorRead(gatt, descriptor, status);
 
             if (kDebugCommands) {
-                final String identifier = getDescriptorIdentifier(descriptor.getCharacteristic().getService().getUuid(), descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
                 BleCommand command = mCommandQueue.first();
-                if (command.mType == BleCommand.BLECOMMANDTYPE_READDESCRIPTOR && identifier.equals(command.mIdentifier)) {
+                if (command.mType == BleCommand.BLECOMMANDTYPE_READDESCRIPTOR && getCharacteristicHandle(descriptor.getCharacteristic()) == command.mHandle && descriptor.getUuid().equals(command.mExtra)) {
                     finishExecutingCommand(status);
                 } else {
                     Log.w(TAG, "Warning: onDescriptorRead with no matching command");
@@ -259,12 +342,10 @@ public class BlePeripheral {
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
 
-            //final String identifier = getDescriptorIdentifier(descriptor.getCharacteristic().getService().getUuid(), descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
             BleCommand command = mCommandQueue.first();
             if (command != null && command.mType == BleCommand.BLECOMMANDTYPE_SETNOTIFY) {
                 if (kDebugCommands) {
-                    final String identifier = getCharacteristicIdentifier(descriptor.getCharacteristic());
-                    if (identifier.equals(command.mIdentifier)) {
+                    if (getCharacteristicHandle(descriptor.getCharacteristic()) == command.mHandle) {
                         //Log.d(TAG, "Set Notify descriptor write: " + status);
                         finishExecutingCommand(status);
                     } else {
@@ -290,7 +371,7 @@ public class BlePeripheral {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 mRssi = rssi;
 
-                localBroadcastUpdate(kBlePeripheral_OnRssiUpdated, getIdentifier());
+                publishEvent(BlePeripheralEventBus.EVENT_RSSI_UPDATED);
             } else {
                 Log.w(TAG, "onReadRemoteRssi error: " + status);
             }
@@ -302,6 +383,7 @@ public class BlePeripheral {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 mMtuSize = mtu;
                 Log.d(TAG, "Mtu changed: " + mtu);
+                publishEvent(BlePeripheralEventBus.EVENT_LINK_PARAMETERS_UPDATED);
             } else {
                 Log.d(TAG, "Error changing mtu to: " + mtu + " status: " + status);
 
@@ -319,6 +401,7 @@ public class BlePeripheral {
             super.onPhyUpdate(gatt, txPhy, rxPhy, status);
 
             Log.d(TAG, "onPhyUpdate -> tx: " + txPhy + " rx: " + rxPhy + " status: " + status);
+            updatePhy(txPhy, rxPhy, status);
         }
 
         @Override
@@ -326,8 +409,27 @@ public class BlePeripheral {
             super.onPhyRead(gatt, txPhy, rxPhy, status);
 
             Log.d(TAG, "onPhyRead -> tx: " + txPhy + " rx: " + rxPhy + " status: " + status);
+            updatePhy(txPhy, rxPhy, status);
+        }
+
+        void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+            Log.d(TAG, "onConnectionUpdated -> interval: " + (interval * 1.25f) + "ms latency: " + latency + " timeout: " + (timeout * 10) + "ms status: " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mConnectionInterval = interval;
+                mConnectionLatency = latency;
+                mSupervisionTimeout = timeout;
+                publishEvent(BlePeripheralEventBus.EVENT_LINK_PARAMETERS_UPDATED);
+            }
         }
-    };
+
+        private void updatePhy(int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+                publishEvent(BlePeripheralEventBus.EVENT_LINK_PARAMETERS_UPDATED);
+            }
+        }
+    }
 
     //
     BlePeripheral(ScanResult scanResult) {
@@ -343,6 +445,32 @@ public class BlePeripheral {
         return getMtuSize() - 3;        // 3 bytes are used for internal purposes so the maximum size is MTU-3
     }
 
+    public int getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    // BluetoothDevice.PHY_LE_1M, PHY_LE_2M or PHY_LE_CODED
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    // Returns 0 if unknown
+    public float getConnectionIntervalMillis() {
+        return mConnectionInterval * 1.25f;
+    }
+
+    public int getConnectionLatency() {
+        return mConnectionLatency;
+    }
+
+    public int getSupervisionTimeoutMillis() {
+        return mSupervisionTimeout * 10;
+    }
+
     public int getLastRssi() {
         return mRssi;
     }
@@ -408,6 +536,12 @@ public class BlePeripheral {
 
     void replaceScanResult(ScanResult scanResult) {
         mScanResult = scanResult;
+
+        // Only parse the advertisement if the raw data has changed
+        final ScanRecord scanRecord = scanResult.getScanRecord();
+        if (mAdvertisement == BleAdvertisement.kEmpty || !mAdvertisement.hasSameBytes(scanRecord)) {
+            mAdvertisement = new BleAdvertisement(scanRecord);
+        }
     }
 
     public int getConnectionState() {
@@ -444,13 +578,26 @@ public class BlePeripheral {
         return mScanResult.getScanRecord();
     }
 
+    public @NonNull
+    BleAdvertisement getAdvertisement() {
+        return mAdvertisement;
+    }
+
     public int getRssi() {
         return mScanResult.getRssi();
     }
 
     public void reset() {
         mRssi = 0;
+        runOnEventLoop(this::resetEventLoopState);        // If not connected there is no event loop and the state will be reset on the next connect
+    }
+
+    // Must be called on the event loop
+    private void resetEventLoopState() {
         mNotifyHandlers.clear();
+        for (CaptureReadHandler captureReadHandler : mCaptureReadHandlers) {
+            captureReadHandler.cancelTimeout();
+        }
         mCaptureReadHandlers.clear();
         BleCommand firstCommand = mCommandQueue.first();
         if (firstCommand != null) {
@@ -471,75 +618,229 @@ public class BlePeripheral {
     @MainThread
     public void connect(Context context) {
         mConnectionContext = context;
-        mLocalBroadcastManager = LocalBroadcastManager.getInstance(context);
-        BluetoothDevice device = mScanResult.getDevice();
-        mCommandQueue.clear();
+        final boolean isSupervisedConnect = ReconnectSupervisor.getInstance().isSupervisedConnect(this);
+        final BluetoothDevice device = mScanResult.getDevice();
         mConnectionState = STATE_CONNECTING;
-        localBroadcastUpdate(kBlePeripheral_OnConnecting, getIdentifier());
+        publishEvent(BlePeripheralEventBus.EVENT_CONNECTING);
 
         BleManager.getInstance().cancelDiscovery();        // Always cancel discovery before connecting
-        mBluetoothGatt = device.connectGatt(context, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
 
-        if (mBluetoothGatt == null) {
-            Log.e(TAG, "connectGatt Error. Returns null");
-        }
+        // connectGatt is called on the event loop, so the gatt is only set and closed there, and its callbacks are processed after it has been set
+        startEventLoop();
+        runOnEventLoop(() -> {
+            resetEventLoopState();
+            resetLinkParameters();
+            mIsSupervisedConnect = isSupervisedConnect;
+
+            BluetoothGatt gatt = null;
+            try {
+                gatt = device.connectGatt(context, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+            } catch (SecurityException e) {
+                Log.e(TAG, "connectGatt security exception: " + e);
+            }
+            mBluetoothGatt = gatt;
+
+            if (gatt == null) {
+                Log.e(TAG, "connectGatt Error. Returns null");
+                notifyConnectionFinished();         // No callback will be received, so finish the connection now
+            }
+        });
     }
 
     @SuppressLint("InlinedApi")
     @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
     @MainThread
     public void disconnect() {
-        if (mBluetoothGatt != null) {
+        ReconnectSupervisor reconnectSupervisor = ReconnectSupervisor.getInstance();
+        if (mBluetoothGatt == null && reconnectSupervisor.isWaitingToReconnect(this)) {
+            // Waiting for the next reconnection attempt: cancel it
+            reconnectSupervisor.cancel(this);
+            isAutoreconnectOnDisconnectionEnabled = false;
+            publishEvent(BlePeripheralEventBus.EVENT_DISCONNECTED, true);
+            return;
+        }
+
+        if (mConnectionState == STATE_DISCONNECTED) {
+            return;
+        }
+
+        // Processed on the event loop, after a connect that could be pending
+        runOnEventLoop(() -> {
+            final BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null) {
+                return;
+            }
+
             final boolean wasConnecting = mConnectionState == STATE_CONNECTING;
             mConnectionState = STATE_DISCONNECTING;     // Important: set to disconnecting to signal that the disconnection was expected (check notifyConnectionFinished code)
-            mBluetoothGatt.disconnect();
+            try {
+                gatt.disconnect();
+            } catch (SecurityException e) {
+                Log.e(TAG, "disconnect security exception: " + e);
+            }
 
             if (wasConnecting) {        // Force a disconnect broadcast because it will not be generated by the OS
                 notifyConnectionFinished();
             }
-        }
+        });
     }
 
     public boolean isDisconnected() {
         return mConnectionState == STATE_DISCONNECTED;
     }
 
+    // Disconnected, but waiting for an automatic reconnection attempt
+    @MainThread
+    public boolean isWaitingToReconnect() {
+        return mConnectionState == STATE_DISCONNECTED && ReconnectSupervisor.getInstance().isWaitingToReconnect(this);
+    }
+
+    // Must be called on the event loop
     @SuppressLint("InlinedApi")
     @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
     private void notifyConnectionFinished() {
         final boolean isExpected = mConnectionState == STATE_DISCONNECTING;
         mConnectionState = STATE_DISCONNECTED;
+        final Context context = mConnectionContext;
         if (isExpected) {
-            localBroadcastUpdate(kBlePeripheral_OnDisconnected, getIdentifier(), kExtra_expectedDisconnect, kExtra_expectedDisconnect);     // Send a extra parameter (kExtra_expectedDisconnect) with any value, so it is known that was expected (and no message errors are displayed to the user)
+            isAutoreconnectOnDisconnectionEnabled = false;
+            mMainHandler.post(() -> ReconnectSupervisor.getInstance().cancel(this));
+            publishEvent(BlePeripheralEventBus.EVENT_DISCONNECTED, true);     // Expected, so no message errors are displayed to the user
         } else {
-            if (isAutoreconnectOnDisconnectionEnabled) {
-                Log.d(TAG, "Trying to reconnect to peripheral: " + getName());
-                localBroadcastUpdate(kBlePeripheral_OnReconnecting, getIdentifier());
-                Handler mainHandler = new Handler(Looper.getMainLooper());
-                mainHandler.post(() -> connect(mConnectionContext));
+            if (isAutoreconnectOnDisconnectionEnabled && context != null) {
+                // The supervisor decides when to retry (and if the retry budget allows it)
+                mMainHandler.post(() -> {
+                    if (!isDisconnected() || !isAutoreconnectOnDisconnectionEnabled) {
+                        return;     // connect or disconnect called in the meantime
+                    }
+                    if (ReconnectSupervisor.getInstance().scheduleReconnect(this, context)) {
+                        Log.d(TAG, "Trying to reconnect to peripheral: " + getName());
+                        publishEvent(BlePeripheralEventBus.EVENT_RECONNECTING);
+                    } else {
+                        isAutoreconnectOnDisconnectionEnabled = false;
+                        publishEvent(BlePeripheralEventBus.EVENT_DISCONNECTED);
+                    }
+                });
             } else {
-                localBroadcastUpdate(kBlePeripheral_OnDisconnected, getIdentifier());
+                isAutoreconnectOnDisconnectionEnabled = false;
+                publishEvent(BlePeripheralEventBus.EVENT_DISCONNECTED);
             }
-            isAutoreconnectOnDisconnectionEnabled = false;
         }
         closeBluetoothGatt();
-        //mLocalBroadcastManager = null;
+        stopEventLoop();
         mConnectionContext = null;
     }
 
+    // After an automatic reconnection the services have to be discovered again (the previous ones are no longer valid) before the listeners can use the peripheral
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    @MainThread
+    private void restoreAfterReconnection() {
+        discoverServices(status -> {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                publishEvent(BlePeripheralEventBus.EVENT_RECONNECTED);       // Published on the event loop, as the disconnection
+                mMainHandler.post(() -> ReconnectSupervisor.getInstance().onReconnectFinished(this));
+            } else {
+                final BluetoothGatt gatt = mBluetoothGatt;
+                if (gatt != null) {
+                    Log.w(TAG, "Error discovering services after reconnection");
+                    gatt.disconnect();        // Treated as an unexpected disconnection, so it will be retried if the budget allows it
+                }
+            }
+        });
+    }
+
+    // Link parameters are negotiated again on each connection
+    private void resetLinkParameters() {
+        mMtuSize = kDefaultMtuSize;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+        mConnectionInterval = 0;
+        mConnectionLatency = 0;
+        mSupervisionTimeout = 0;
+    }
+
+    // Modules should set the profile for their workload when they start. It is applied now if connected, or when the connection is established
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    public void setLinkProfile(int linkProfile) {
+        if (linkProfile == mLinkProfile) {
+            return;
+        }
+
+        mLinkProfile = linkProfile;
+        if (mConnectionState == STATE_CONNECTED) {
+            runOnEventLoop(this::applyLinkProfile);
+        }
+    }
+
+    // Must be called on the event loop
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    private void applyLinkProfile() {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            return;
+        }
+
+        int connectionPriority;
+        int phyMask;
+        boolean isMaxMtuNeeded;
+        switch (mLinkProfile) {
+            case LINK_PROFILE_BULK:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                phyMask = BluetoothDevice.PHY_LE_2M_MASK;
+                isMaxMtuNeeded = true;
+                break;
+            case LINK_PROFILE_INTERACTIVE:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                phyMask = BluetoothDevice.PHY_LE_2M_MASK;
+                isMaxMtuNeeded = kSetPreferredMtuSize;
+                break;
+            case LINK_PROFILE_LOW_POWER:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                phyMask = BluetoothDevice.PHY_LE_1M_MASK;
+                isMaxMtuNeeded = kSetPreferredMtuSize;
+                break;
+            default:
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                phyMask = kSetPhy_2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                isMaxMtuNeeded = kSetPreferredMtuSize;
+                break;
+        }
+        Log.d(TAG, "Apply link profile: " + mLinkProfile);
+
+        // Priority
+        if (!gatt.requestConnectionPriority(connectionPriority)) {
+            Log.w(TAG, "requestConnectionPriority failed");
+        }
+
+        // Phy
+        if (phyMask == BluetoothDevice.PHY_LE_2M_MASK ? mTxPhy != BluetoothDevice.PHY_LE_2M : mTxPhy != BluetoothDevice.PHY_LE_1M) {
+            setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+
+        // MTU (it can't be decreased once negotiated, so it is only requested if it is lower than the preferred size)
+        if (isMaxMtuNeeded && mMtuSize < kPreferredMtuSize) {
+            requestMtu(kPreferredMtuSize, null);          // Note: requestMtu only affects to WriteWithoutResponse
+        }
+    }
+
     @SuppressLint("InlinedApi")
     @RequiresPermission(value = BLUETOOTH_CONNECT)
     public boolean readRssi() {
         // if true: Caller should wait for onReadRssi callback. False when rssi read is not available
-        return mBluetoothGatt != null && mBluetoothGatt.readRemoteRssi();
+        final BluetoothGatt gatt = mBluetoothGatt;
+        return gatt != null && gatt.readRemoteRssi();
     }
 
     @SuppressLint("InlinedApi")
     @RequiresPermission(value = BLUETOOTH_CONNECT)
     public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
-        if (mBluetoothGatt != null) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt != null) {
             Log.d(TAG, "setPreferredPhy");
-            mBluetoothGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+            gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
             //mBluetoothGatt.readPhy();
         }
     }
@@ -547,42 +848,84 @@ public class BlePeripheral {
     @SuppressLint("InlinedApi")
     @RequiresPermission(value = BLUETOOTH_CONNECT)
     public void readPhy() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.readPhy();
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt != null) {
+            gatt.readPhy();
         }
     }
     // endregion
 
     // region CommandQueue
 
+    // Must be called on the event loop
     @SuppressLint("InlinedApi")
     @RequiresPermission(value = BLUETOOTH_CONNECT)
-    @MainThread
     private void closeBluetoothGatt() {
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close();
-            mCommandQueue.clear();
+            runOnEventLoop(mCommandQueue::clear);       // Processed before the event loop finishes
             mBluetoothGatt = null;
+            mAttributeIndex = null;
         }
     }
 
-    private void localBroadcastUpdate(@NonNull final String action, @NonNull String deviceAddress) {
-        localBroadcastUpdate(action, deviceAddress, null, null);
+    private void publishEvent(int type) {
+        publishEvent(type, false);
     }
 
-    private void localBroadcastUpdate(@NonNull final String action, @NonNull String deviceAddress, @Nullable String extraParamKey, @Nullable String extraParamValue) {
-        if (mLocalBroadcastManager != null) {
-            final Intent intent = new Intent(action);
-            intent.putExtra(kExtra_deviceAddress, deviceAddress);
-            if (extraParamKey != null) {
-                intent.putExtra(extraParamKey, extraParamValue);
-            }
-            mLocalBroadcastManager.sendBroadcast(intent);
+    private void publishEvent(int type, boolean isExpectedDisconnect) {
+        BlePeripheralEventBus.getInstance().publish(type, this, isExpectedDisconnect);
+    }
+
+    // region Event loop
+    private void startEventLoop() {
+        if (mEventThread == null) {
+            HandlerThread eventThread = new HandlerThread("BlePeripheral-" + getIdentifier());
+            eventThread.start();
+            mEventHandler = new Handler(eventThread.getLooper());
+            mEventThread = eventThread;
+        }
+    }
+
+    // Pending events are processed before the thread finishes
+    private void stopEventLoop() {
+        HandlerThread eventThread = mEventThread;
+        if (eventThread != null) {
+            mEventThread = null;
+            mEventHandler = null;
+            eventThread.quitSafely();
         }
-        else {
-            Log.w(TAG, "localBroadcastUpdate with invalid manager");
+    }
+
+    // Handler used to run code on the event loop (or the main thread if there is no event loop because the peripheral is not connected)
+    private @NonNull
+    Handler getEventHandler() {
+        final Handler eventHandler = mEventHandler;
+        return eventHandler != null ? eventHandler : mMainHandler;
+    }
+
+    // The state is only accessed from the event loop thread. If there is no event loop (not connected) or it is finishing, the runnable is dropped instead of running it on the caller thread
+    // @return false if the runnable has been dropped
+    private boolean runOnEventLoop(@NonNull Runnable runnable) {
+        final Handler eventHandler = mEventHandler;
+        if (eventHandler != null && eventHandler.getLooper().isCurrentThread()) {
+            runnable.run();
+            return true;
+        } else if (eventHandler != null && eventHandler.post(runnable)) {      // post returns false if the event loop is finishing
+            return true;
+        } else {
+            Log.w(TAG, "Event loop not running. Event dropped for peripheral: " + getIdentifier());
+            return false;
+        }
+    }
+
+    // Commands added while not connected are rejected (the completion handler is called with a failure status on the main thread)
+    private void addCommand(@NonNull BleCommand command) {
+        if (!runOnEventLoop(() -> mCommandQueue.add(command))) {
+            mMainHandler.post(() -> command.completion(BluetoothGatt.GATT_FAILURE));
         }
     }
+    // endregion
 
     private void finishExecutingCommand(int status) {
         BleCommand command = mCommandQueue.first();
@@ -593,7 +936,16 @@ public class BlePeripheral {
     }
 
     public void discoverServices(CompletionHandler completionHandler) {
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_DISCOVERSERVICES, null, completionHandler) {
+        final CompletionHandler discoveryCompletionHandler = status -> {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                publishEvent(BlePeripheralEventBus.EVENT_SERVICES_DISCOVERED);
+            }
+            if (completionHandler != null) {
+                completionHandler.completion(status);
+            }
+        };
+
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_DISCOVERSERVICES, BleCommand.kNoHandle, discoveryCompletionHandler) {
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
             @Override
@@ -605,7 +957,7 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public boolean isDiscoveringServices() {
@@ -616,41 +968,73 @@ public class BlePeripheral {
 
     // region Commands
 
-    private String getCharacteristicIdentifier(@NonNull BluetoothGattCharacteristic characteristic) {
-        return getCharacteristicIdentifier(characteristic.getService().getUuid(), characteristic.getUuid());
-    }
-
-    private String getCharacteristicIdentifier(@NonNull UUID serviceUUID, @NonNull UUID characteristicUUID) {
-        return serviceUUID + characteristicUUID.toString();
-    }
-
-    private String getDescriptorIdentifier(@NonNull UUID serviceUUID, @NonNull UUID characteristicUUID, @NonNull UUID descriptorUUID) {
-        return serviceUUID + characteristicUUID.toString() + descriptorUUID;
+    // Identifies a characteristic without allocating. Since Android 7 the instance id is the characteristic attribute handle, which is unique in the peripheral GATT table and doesn't change when services are discovered again
+    private static int getCharacteristicHandle(@NonNull BluetoothGattCharacteristic characteristic) {
+        return characteristic.getInstanceId();
     }
 
     public @Nullable
     List<BluetoothGattService> getServices() {
         // This function requires that service discovery has been completed for the given device or returns null
-        return mBluetoothGatt == null ? null : mBluetoothGatt.getServices();
+        final BluetoothGatt gatt = mBluetoothGatt;
+        return gatt == null ? null : gatt.getServices();
     }
 
     public @Nullable
     BluetoothGattService getService(@NonNull UUID uuid) {
         // This function requires that service discovery has been completed for the given device.
         // If multiple instance of the service exist, it returns the first one
-        return mBluetoothGatt == null ? null : mBluetoothGatt.getService(uuid);
+        final AttributeIndex attributeIndex = mAttributeIndex;
+        if (attributeIndex != null) {
+            return attributeIndex.mServices.get(uuid);
+        }
+        final BluetoothGatt gatt = mBluetoothGatt;
+        return gatt == null ? null : gatt.getService(uuid);
     }
 
     public @Nullable
     BluetoothGattCharacteristic getCharacteristic(@NonNull UUID characteristicUUID, @NonNull UUID serviceUUID) {
         // This function requires that service discovery has been completed for the given device.
+        final AttributeIndex attributeIndex = mAttributeIndex;
+        if (attributeIndex != null) {
+            final Map<UUID, BluetoothGattCharacteristic> characteristics = attributeIndex.mCharacteristics.get(serviceUUID);
+            return characteristics == null ? null : characteristics.get(characteristicUUID);
+        }
         BluetoothGattService service = getService(serviceUUID);
         return service == null ? null : service.getCharacteristic(characteristicUUID);
     }
 
+    // Lookup tables for getService and getCharacteristic, so modules don't iterate the gatt services each time. Like BluetoothGatt, only the first instance of a service or characteristic with the same uuid is indexed
+    private static class AttributeIndex {
+        final Map<UUID, BluetoothGattService> mServices = new HashMap<>();
+        final Map<UUID, Map<UUID, BluetoothGattCharacteristic>> mCharacteristics = new HashMap<>();        // Key: service uuid
+
+        AttributeIndex(@NonNull List<BluetoothGattService> services) {
+            for (BluetoothGattService service : services) {
+                if (mServices.containsKey(service.getUuid())) {
+                    continue;
+                }
+                mServices.put(service.getUuid(), service);
+
+                Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (!characteristics.containsKey(characteristic.getUuid())) {
+                        characteristics.put(characteristic.getUuid(), characteristic);
+                    }
+                }
+                mCharacteristics.put(service.getUuid(), characteristics);
+            }
+        }
+    }
+
     public void characteristicEnableNotify(@NonNull final BluetoothGattCharacteristic characteristic, NotifyHandler notifyHandler, CompletionHandler completionHandler) {
-        final String identifier = getCharacteristicIdentifier(characteristic);
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_SETNOTIFY, kDebugCommands ? identifier : null, completionHandler) {
+        characteristicEnableNotify(characteristic, notifyHandler, null, completionHandler);
+    }
+
+    public void characteristicEnableNotify(@NonNull final BluetoothGattCharacteristic characteristic, NotifyHandler notifyHandler, @Nullable Handler deliveryHandler, CompletionHandler completionHandler) {
+        final int handle = getCharacteristicHandle(characteristic);
+        final NotifyHandler deliveredNotifyHandler = notifyHandlerWithDelivery(notifyHandler, deliveryHandler);
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_SETNOTIFY, handle, completionHandler) {
 
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
@@ -658,7 +1042,7 @@ public class BlePeripheral {
             public void execute() {
                 BluetoothGattDescriptor descriptor = characteristic.getDescriptor(kClientCharacteristicConfigUUID);
                 if (mBluetoothGatt != null && descriptor != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-                    mNotifyHandlers.put(identifier, notifyHandler);
+                    mNotifyHandlers.put(handle, deliveredNotifyHandler);
                     mBluetoothGatt.setCharacteristicNotification(characteristic, true);
                     descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
                     mBluetoothGatt.writeDescriptor(descriptor);
@@ -669,12 +1053,12 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public void characteristicDisableNotify(@NonNull final BluetoothGattCharacteristic characteristic, CompletionHandler completionHandler) {
-        final String identifier = getCharacteristicIdentifier(characteristic);
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_SETNOTIFY, kDebugCommands ? identifier : null, completionHandler) {
+        final int handle = getCharacteristicHandle(characteristic);
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_SETNOTIFY, handle, completionHandler) {
 
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
@@ -683,7 +1067,7 @@ public class BlePeripheral {
 
                 BluetoothGattDescriptor descriptor = characteristic.getDescriptor(kClientCharacteristicConfigUUID);
                 if (mBluetoothGatt != null && descriptor != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-                    mNotifyHandlers.remove(identifier);
+                    mNotifyHandlers.remove(handle);
                     descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
                     mBluetoothGatt.writeDescriptor(descriptor);
                 } else {
@@ -692,15 +1076,32 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public void characteristicUpdateNotify(@NonNull final BluetoothGattCharacteristic characteristic, NotifyHandler notifyHandler) {
-        final String identifier = getCharacteristicIdentifier(characteristic);
-        NotifyHandler previousNotifyHandler = mNotifyHandlers.put(identifier, notifyHandler);
-        if (previousNotifyHandler == null) {
-            Log.d(TAG, "trying to update inexistent notifyHandler for characteristic: " + characteristic.getUuid().toString());
+        characteristicUpdateNotify(characteristic, notifyHandler, null);
+    }
+
+    public void characteristicUpdateNotify(@NonNull final BluetoothGattCharacteristic characteristic, NotifyHandler notifyHandler, @Nullable Handler deliveryHandler) {
+        final int handle = getCharacteristicHandle(characteristic);
+        final NotifyHandler deliveredNotifyHandler = notifyHandlerWithDelivery(notifyHandler, deliveryHandler);
+        runOnEventLoop(() -> {
+            NotifyHandler previousNotifyHandler = mNotifyHandlers.get(handle);
+            mNotifyHandlers.put(handle, deliveredNotifyHandler);
+            if (previousNotifyHandler == null) {
+                Log.d(TAG, "trying to update inexistent notifyHandler for characteristic: " + characteristic.getUuid().toString());
+            }
+        });
+    }
+
+    // Notify handlers are called on the peripheral event loop. If deliveryHandler is not null, the call is posted to it instead (i.e. a handler on the main looper to receive them on the main thread)
+    private @Nullable
+    NotifyHandler notifyHandlerWithDelivery(@Nullable NotifyHandler notifyHandler, @Nullable Handler deliveryHandler) {
+        if (notifyHandler == null || deliveryHandler == null) {
+            return notifyHandler;
         }
+        return (status, value) -> deliveryHandler.post(() -> notifyHandler.notify(status, value));
     }
 
     public void readCharacteristic(@NonNull BluetoothGattService service, UUID characteristicUUID, @Nullable DataReadHandler dataReadHandler) {
@@ -732,8 +1133,7 @@ public class BlePeripheral {
     }
 
     public void readCharacteristic(@NonNull BluetoothGattCharacteristic characteristic, @Nullable CompletionHandler completionHandler) {
-        final String identifier = kDebugCommands ? getCharacteristicIdentifier(characteristic.getService().getUuid(), characteristic.getUuid()) : null;
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_READCHARACTERISTIC, identifier, completionHandler) {
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_READCHARACTERISTIC, getCharacteristicHandle(characteristic), completionHandler) {
 
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
@@ -753,11 +1153,11 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public void writeCharacteristic(@NonNull BluetoothGattCharacteristic characteristic, int writeType, @NonNull byte[] data, @Nullable CompletionHandler completionHandler) {
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTIC, kDebugCommands ? getCharacteristicIdentifier(characteristic) : null, completionHandler) {
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTIC, getCharacteristicHandle(characteristic), completionHandler) {
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
             @Override
@@ -793,14 +1193,23 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
+    }
+
+    // Writes data split in packets of getMaxPacketLength() bytes. The whole transfer is a single command, and packets are sent as soon as the stack accepts them instead of waiting for the callback of each one.
+    // withResponseEveryPacketCount: each packet after withResponseEveryPacketCount packets without response is written with response (so a peripheral that is not processing the data fast enough can slow down the transfer). 0: all packets with response. Negative: all without response
+    public @NonNull
+    BulkWriteOperation writeCharacteristicBulk(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data, int withResponseEveryPacketCount, @Nullable ProgressHandler progressHandler, @Nullable CompletionHandler completionHandler) {
+        BulkWriteCommand command = new BulkWriteCommand(characteristic, data, withResponseEveryPacketCount, progressHandler, completionHandler);
+        addCommand(command);
+        return command;
     }
 
     public void writeCharacteristicAndCaptureNotify(@NonNull BluetoothGattCharacteristic characteristic, int writeType, @NonNull byte[] data, @Nullable CompletionHandler completionHandler, @NonNull BluetoothGattCharacteristic readCharacteristic, int readTimeout, @Nullable CaptureReadCompletionHandler readCompletionHandler) {
-        final String readIdentifier = getCharacteristicIdentifier(readCharacteristic);
-        BleCommandCaptureReadParameters captureReadParameters = new BleCommandCaptureReadParameters(readIdentifier, readCompletionHandler, readTimeout);
+        final int readHandle = getCharacteristicHandle(readCharacteristic);
+        BleCommandCaptureReadParameters captureReadParameters = new BleCommandCaptureReadParameters(readHandle, readCompletionHandler, readTimeout);
 
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTICANDWAITNOTIFY, getCharacteristicIdentifier(characteristic), completionHandler, captureReadParameters) {
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_WRITECHARACTERISTICANDWAITNOTIFY, getCharacteristicHandle(characteristic), completionHandler, captureReadParameters) {
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
             @Override
@@ -815,14 +1224,14 @@ public class BlePeripheral {
                         // Simulate response if needed
                         if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
                             if (!isCancelled()) {
-                                CaptureReadHandler captureReadHandler = new CaptureReadHandler(readIdentifier, readCompletionHandler, readTimeout, mTimeoutRemoveCaptureHandler);
+                                CaptureReadHandler captureReadHandler = new CaptureReadHandler(readHandle, readCompletionHandler, readTimeout, mTimeoutRemoveCaptureHandler, getEventHandler());
                                 mCaptureReadHandlers.add(captureReadHandler);
                             }
 
                             finishExecutingCommand(BluetoothGatt.GATT_SUCCESS);
                         } else if (kHackToAvoidProblemsWhenWriteIsReceivedBeforeChangedOnWriteWithResponse) {
                             if (!isCancelled()) {
-                                CaptureReadHandler captureReadHandler = new CaptureReadHandler(readIdentifier, readCompletionHandler, readTimeout, mTimeoutRemoveCaptureHandler);
+                                CaptureReadHandler captureReadHandler = new CaptureReadHandler(readHandle, readCompletionHandler, readTimeout, mTimeoutRemoveCaptureHandler, getEventHandler());
                                 mCaptureReadHandlers.add(captureReadHandler);
                             }
 
@@ -839,7 +1248,7 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public void readDescriptor(@NonNull BluetoothGattService service, UUID characteristicUUID, UUID descriptorUUID, CompletionHandler completionHandler) {
@@ -853,8 +1262,7 @@ public class BlePeripheral {
     }
 
     public void readDescriptor(@NonNull BluetoothGattCharacteristic characteristic, UUID descriptorUUID, CompletionHandler completionHandler) {
-        final String identifier = kDebugCommands ? getDescriptorIdentifier(characteristic.getService().getUuid(), characteristic.getUuid(), descriptorUUID) : null;
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_READDESCRIPTOR, identifier, completionHandler) {
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_READDESCRIPTOR, getCharacteristicHandle(characteristic), completionHandler, descriptorUUID) {
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
             @Override
@@ -869,12 +1277,11 @@ public class BlePeripheral {
                 }
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     public void requestMtu(@IntRange(from = 23, to = 517) int mtuSize, CompletionHandler completionHandler) {
-        final String identifier = null;
-        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_REQUESTMTU, identifier, completionHandler) {
+        BleCommand command = new BleCommand(BleCommand.BLECOMMANDTYPE_REQUESTMTU, BleCommand.kNoHandle, completionHandler) {
             @SuppressLint("InlinedApi")
             @RequiresPermission(value = BLUETOOTH_CONNECT)
             @Override
@@ -884,7 +1291,7 @@ public class BlePeripheral {
                 mBluetoothGatt.requestMtu(mtuSize);
             }
         };
-        mCommandQueue.add(command);
+        addCommand(command);
     }
 
     /*
@@ -910,8 +1317,12 @@ public class BlePeripheral {
         void progress(float progress);
     }
 
+    public interface BulkWriteOperation {
+        void cancel();          // Stops sending new packets. The completion handler is called with GATT_SUCCESS when the packets already sent have been processed
+    }
+
     public interface NotifyHandler {
-        void notify(int status);
+        void notify(int status, @NonNull byte[] value);
     }
 
     public interface DataReadHandler {
@@ -922,7 +1333,7 @@ public class BlePeripheral {
         void read(int status, @Nullable byte[] value);
 
         interface TimeoutAction {
-            void execute(String identifier);
+            void execute(int characteristicHandle);
         }
     }
 
@@ -932,51 +1343,56 @@ public class BlePeripheral {
     public static final int kPeripheralReadTimeoutError = -1;       // Value should be different that errors defined in BluetoothGatt.GATT_*
 
     static class CaptureReadHandler {
-        private final String mIdentifier;
+        private final int mHandle;
         private final CaptureReadCompletionHandler mResult;
-        private Timer mTimeoutTimer;
+        private Handler mTimeoutHandler;
+        private Runnable mTimeoutRunnable;
         private long mTimeoutStartingMillis;        // only used for debug (kProfileTimeouts)
-        private CaptureReadCompletionHandler.TimeoutAction mTimeoutAction;
         private final boolean mIsNotifyOmitted;
 
-        CaptureReadHandler(String identifier, CaptureReadCompletionHandler result, int timeout, @Nullable CaptureReadCompletionHandler.TimeoutAction timeoutAction) {
-            this(identifier, result, timeout, timeoutAction, false);
+        CaptureReadHandler(int handle, CaptureReadCompletionHandler result, int timeout, @Nullable CaptureReadCompletionHandler.TimeoutAction timeoutAction, @NonNull Handler timeoutHandler) {
+            this(handle, result, timeout, timeoutAction, timeoutHandler, false);
         }
 
-        CaptureReadHandler(String identifier, CaptureReadCompletionHandler result, int timeout, @Nullable CaptureReadCompletionHandler.TimeoutAction timeoutAction, boolean isNotifyOmitted) {
-            mIdentifier = identifier;
+        // Note: the timeout is scheduled on timeoutHandler (the peripheral event loop), so it can't run at the same time that the notification is processed
+        CaptureReadHandler(int handle, CaptureReadCompletionHandler result, int timeout, @Nullable CaptureReadCompletionHandler.TimeoutAction timeoutAction, @NonNull Handler timeoutHandler, boolean isNotifyOmitted) {
+            mHandle = handle;
             mResult = result;
             mIsNotifyOmitted = isNotifyOmitted;
 
             // Setup timeout if not zero
             if (timeout > 0 && timeoutAction != null) {
-                mTimeoutAction = timeoutAction;
-
-                mTimeoutTimer = new Timer();
                 if (kProfileTimeouts) {
                     mTimeoutStartingMillis = System.currentTimeMillis();
-                    Log.d(TAG, "Start timeout:  " + identifier + ". millis:" + mTimeoutStartingMillis);
+                    Log.d(TAG, "Start timeout:  " + handle + ". millis:" + mTimeoutStartingMillis);
                 }
-                mTimeoutTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        if (kProfileTimeouts) {
-                            Log.d(TAG, "Fire timeout:   " + identifier + ". elapsed millis:" + (System.currentTimeMillis() - mTimeoutStartingMillis));
-                        }
-                        mResult.read(kPeripheralReadTimeoutError, null);
-                        mTimeoutAction.execute(identifier);
+                mTimeoutHandler = timeoutHandler;
+                mTimeoutRunnable = () -> {
+                    if (kProfileTimeouts) {
+                        Log.d(TAG, "Fire timeout:   " + handle + ". elapsed millis:" + (System.currentTimeMillis() - mTimeoutStartingMillis));
                     }
-                }, timeout);
+                    mTimeoutRunnable = null;
+                    mResult.read(kPeripheralReadTimeoutError, null);
+                    timeoutAction.execute(handle);
+                };
+                mTimeoutHandler.postDelayed(mTimeoutRunnable, timeout);
+            }
+        }
+
+        void cancelTimeout() {
+            if (mTimeoutRunnable != null) {
+                mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+                mTimeoutRunnable = null;
             }
         }
     }
 
-    private int getCaptureHandlerIndex(String identifier) {
+    private int getCaptureHandlerIndex(int handle) {
         boolean found = false;
         int i = 0;
         if (mCaptureReadHandlers.size() > 0) {
             while (i < mCaptureReadHandlers.size() && !found) {
-                if (mCaptureReadHandlers.get(i).mIdentifier.equals(identifier)) {
+                if (mCaptureReadHandlers.get(i).mHandle == handle) {
                     found = true;
                 } else {
                     i++;
@@ -986,9 +1402,9 @@ public class BlePeripheral {
         return found ? i : -1;
     }
 
-    private final CaptureReadCompletionHandler.TimeoutAction mTimeoutRemoveCaptureHandler = identifier -> {        // Default behaviour for a capture handler timeout
+    private final CaptureReadCompletionHandler.TimeoutAction mTimeoutRemoveCaptureHandler = handle -> {        // Default behaviour for a capture handler timeout. Note: runs on the event loop
         // Remove capture handler
-        final int captureHandlerIndex = getCaptureHandlerIndex(identifier);
+        final int captureHandlerIndex = getCaptureHandlerIndex(handle);
         if (captureHandlerIndex >= 0) {
             mCaptureReadHandlers.remove(captureHandlerIndex);
         }
@@ -996,12 +1412,12 @@ public class BlePeripheral {
     };
 
     static class BleCommandCaptureReadParameters {
-        final String readIdentifier;
+        final int readHandle;
         final CaptureReadCompletionHandler completionHandler;
         final int timeout;
 
-        BleCommandCaptureReadParameters(@NonNull String readIdentifier, @Nullable CaptureReadCompletionHandler completionHandler, int timeout) {
-            this.readIdentifier = readIdentifier;
+        BleCommandCaptureReadParameters(int readHandle, @Nullable CaptureReadCompletionHandler completionHandler, int timeout) {
+            this.readHandle = readHandle;
             this.completionHandler = completionHandler;
             this.timeout = timeout;
         }
@@ -1021,22 +1437,25 @@ public class BlePeripheral {
         static final int BLECOMMANDTYPE_READDESCRIPTOR = 6;
         static final int BLECOMMANDTYPE_REQUESTMTU = 7;
         //static final int BLECOMMANDTYPE_SETPREFERREDPHY = 8;
+        static final int BLECOMMANDTYPE_WRITECHARACTERISTICBULK = 9;
+
+        static final int kNoHandle = -1;         // For commands not related to a characteristic
 
         // Data
         private final int mType;
-        private final String mIdentifier;
+        private final int mHandle;             // Characteristic handle (used to check that gatt callbacks match the command)
         private boolean mIsCancelled = false;
         private final CompletionHandler mCompletionHandler;
         private final Object mExtra;
 
         //
-        BleCommand(int type, @Nullable String identifier, @Nullable CompletionHandler completionHandler) {
-            this(type, identifier, completionHandler, null);
+        BleCommand(int type, int handle, @Nullable CompletionHandler completionHandler) {
+            this(type, handle, completionHandler, null);
         }
 
-        BleCommand(int type, @Nullable String identifier, @Nullable CompletionHandler completionHandler, @Nullable Object extra) {
+        BleCommand(int type, int handle, @Nullable CompletionHandler completionHandler, @Nullable Object extra) {
             mType = type;
-            mIdentifier = identifier;
+            mHandle = handle;
             mCompletionHandler = completionHandler;
             mExtra = extra;
         }
@@ -1060,6 +1479,159 @@ public class BlePeripheral {
         abstract void execute();
     }
 
+    // Writes a sequence of packets with flow control based on credits: each accepted write uses a credit and each onCharacteristicWrite returns it.
+    // The number of credits adapts to the stack pacing: it grows by one with each write processed and it is reduced to the number of writes pending when writeCharacteristic returns false (stack busy). Rejected writes are retried
+    private class BulkWriteCommand extends BleCommand implements BulkWriteOperation {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final byte[] mData;
+        private final int mWithResponseEveryPacketCount;
+        private final ProgressHandler mProgressHandler;
+
+        private int mPacketSize;
+        private int mNumPackets;
+        private byte[] mPacketBuffer;               // Reused for all the packets of mPacketSize bytes (the value is copied by writeCharacteristic)
+        private int mNextPacket = 0;
+        private int mNumPacketsProcessed = 0;
+        private int mNumWritesPending = 0;          // Writes accepted and waiting for onCharacteristicWrite
+        private boolean mIsWaitingForResponse = false;
+        private int mCredits = kBulkWriteInitialCredits;
+        private int mConsecutiveRetries = 0;
+        private boolean mIsRetryScheduled = false;
+        private boolean mIsExecuting = false;
+        private boolean mIsStopped = false;
+        private boolean mIsFinished = false;
+        private int mStatus = BluetoothGatt.GATT_SUCCESS;
+
+        private final Runnable mRetryRunnable = () -> {
+            synchronized (BulkWriteCommand.this) {
+                mIsRetryScheduled = false;
+            }
+            writePackets();
+        };
+
+        BulkWriteCommand(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] data, int withResponseEveryPacketCount, @Nullable ProgressHandler progressHandler, @Nullable CompletionHandler completionHandler) {
+            super(BLECOMMANDTYPE_WRITECHARACTERISTICBULK, getCharacteristicHandle(characteristic), completionHandler);
+            mCharacteristic = characteristic;
+            mData = data;
+            mWithResponseEveryPacketCount = withResponseEveryPacketCount;
+            mProgressHandler = progressHandler;
+        }
+
+        @Override
+        void execute() {
+            synchronized (this) {
+                mPacketSize = Math.max(1, getMaxPacketLength());      // Read when the command starts, so a mtu negotiated after the command was queued is used
+                mNumPackets = Math.max(1, (mData.length + mPacketSize - 1) / mPacketSize);
+                mPacketBuffer = new byte[mPacketSize];
+                mIsExecuting = true;
+            }
+            writePackets();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mIsStopped = true;
+            }
+            runOnEventLoop(this::writePackets);     // finishes the command if there are no writes pending. Run on the event loop (cancel can be called from any thread), so it doesn't race with onWrite
+        }
+
+        // Called from onCharacteristicWrite
+        void onWrite(int status) {
+            float progress;
+            synchronized (this) {
+                mNumWritesPending = Math.max(0, mNumWritesPending - 1);
+                mNumPacketsProcessed++;
+                mIsWaitingForResponse = false;
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mCredits = Math.min(kBulkWriteMaxCredits, mCredits + 1);
+                } else {
+                    Log.w(TAG, "Bulk write error " + status + " on packet " + (mNumPacketsProcessed - 1));
+                    mStatus = status;
+                    mIsStopped = true;
+                }
+                progress = mNumPacketsProcessed / (float) mNumPackets;
+            }
+
+            if (mProgressHandler != null && progress < 1) {
+                mProgressHandler.progress(progress);        // Note: progress 1 is sent just before finishing
+            }
+            writePackets();
+        }
+
+        @SuppressLint("InlinedApi")
+        @RequiresPermission(value = BLUETOOTH_CONNECT)
+        private void writePackets() {
+            boolean isFinished = false;
+            synchronized (this) {
+                if (!mIsExecuting || mIsFinished) {
+                    return;
+                }
+
+                while (!mIsStopped && mNextPacket < mNumPackets && mNumWritesPending < mCredits && !mIsWaitingForResponse) {
+                    final boolean isWithResponse = !kForceWriteWithoutResponse && mWithResponseEveryPacketCount >= 0 && (mNextPacket % (mWithResponseEveryPacketCount + 1)) == mWithResponseEveryPacketCount;
+                    if (isWithResponse && mNumWritesPending > 0) {
+                        break;      // Wait until the previous packets have been processed, so the response acknowledges all of them
+                    }
+
+                    if (mBluetoothGatt == null) {
+                        Log.w(TAG, "mBluetoothGatt is null");
+                        mStatus = BluetoothGatt.GATT_FAILURE;
+                        mIsStopped = true;
+                        break;
+                    }
+
+                    final int offset = mNextPacket * mPacketSize;
+                    final int length = Math.min(mPacketSize, mData.length - offset);
+                    final byte[] packet;
+                    if (length == mPacketSize) {
+                        System.arraycopy(mData, offset, mPacketBuffer, 0, length);
+                        packet = mPacketBuffer;
+                    } else {
+                        packet = Arrays.copyOfRange(mData, offset, offset + length);
+                    }
+
+                    mCharacteristic.setWriteType(isWithResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    mCharacteristic.setValue(packet);
+                    if (mBluetoothGatt.writeCharacteristic(mCharacteristic)) {
+                        mNextPacket++;
+                        mNumWritesPending++;
+                        mIsWaitingForResponse = isWithResponse;
+                        mConsecutiveRetries = 0;
+                    } else {
+                        // Stack busy: reduce the credits to the writes that it has accepted and retry
+                        mCredits = Math.max(1, mNumWritesPending);
+                        if (mNumWritesPending == 0) {       // If there are writes pending, their onCharacteristicWrite will retry
+                            mConsecutiveRetries++;
+                            if (mConsecutiveRetries > kBulkWriteMaxConsecutiveRetries) {
+                                Log.w(TAG, "writeCharacteristic could not be initiated");
+                                mStatus = BluetoothGatt.GATT_FAILURE;
+                                mIsStopped = true;
+                            } else if (!mIsRetryScheduled) {
+                                mIsRetryScheduled = true;
+                                getEventHandler().postDelayed(mRetryRunnable, kBulkWriteRetryDelayMillis);
+                            }
+                        }
+                        break;
+                    }
+                }
+
+                if (mNumWritesPending == 0 && (mIsStopped || mNumPacketsProcessed >= mNumPackets)) {
+                    mIsFinished = true;
+                    isFinished = true;
+                    getEventHandler().removeCallbacks(mRetryRunnable);
+                }
+            }
+
+            if (isFinished) {
+                if (mProgressHandler != null && mStatus == BluetoothGatt.GATT_SUCCESS && mNumPacketsProcessed >= mNumPackets) {
+                    mProgressHandler.progress(1);
+                }
+                finishExecutingCommand(mStatus);
+            }
+        }
+    }
+
     static class CommandQueue {
         @NonNull
         private final List<BleCommand> mQueue = new ArrayList<>();
@@ -2,6 +2,8 @@ package com.adafruit.bluefruit.le.connect.ble.central;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -26,6 +28,7 @@ public class BlePeripheralBattery {
     @NonNull
     private final BlePeripheral mBlePeripheral;
     private int mCurrentBatteryLevel = -1;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());       // UpdateHandler is called on the main thread
 
     // region Initialization
     public BlePeripheralBattery(@NonNull BlePeripheral blePeripheral) {
@@ -64,22 +67,25 @@ public class BlePeripheralBattery {
         // Read current value
         mBlePeripheral.readCharacteristic(batteryCharacteristic, (status, data) -> {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mCurrentBatteryLevel = getBatteryLevel(batteryCharacteristic);
-                updateHandler.onBatteryLevelChanged(mCurrentBatteryLevel);
+                final int level = getBatteryLevel(batteryCharacteristic);
+                mMainHandler.post(() -> {
+                    mCurrentBatteryLevel = level;
+                    updateHandler.onBatteryLevelChanged(level);
+                });
             } else {
                 Log.w(TAG, "Error reading battery level");
             }
         });
 
-        // Enable notifications to receive value changes
-        mBlePeripheral.characteristicEnableNotify(batteryCharacteristic, status -> {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mCurrentBatteryLevel = getBatteryLevel(batteryCharacteristic);
+        // Enable notifications to receive value changes (delivered on the main thread)
+        mBlePeripheral.characteristicEnableNotify(batteryCharacteristic, (status, value) -> {
+            if (status == BluetoothGatt.GATT_SUCCESS && value.length > 0) {
+                mCurrentBatteryLevel = value[0] & 0xFF;
                 updateHandler.onBatteryLevelChanged(mCurrentBatteryLevel);
             } else {
                 Log.w(TAG, "Error reading notify battery level");
             }
-        }, null);
+        }, mMainHandler, null);
     }
 
     public void stopReadingBatteryLevel(@Nullable BlePeripheral.CompletionHandler completionHandler) {
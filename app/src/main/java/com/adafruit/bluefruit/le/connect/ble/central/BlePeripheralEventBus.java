@@ -0,0 +1,238 @@
+package com.adafruit.bluefruit.le.connect.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Publishes the connection events of the peripherals to the subscribers, with a direct reference to the peripheral (so subscribers don't have to look it up by identifier).
+// Publishing doesn't lock: subscribers are kept in a copy-on-write list and each one has its own queue, drained serially on the executor chosen by the subscriber (the main thread by default),
+// so each subscriber receives the events in publication order even if they are published from different threads.
+// The last connection state of each peripheral is kept (sticky), and it is replayed to new subscribers that ask for it (i.e. fragments created after the peripheral connected). Events carry a sequence
+// number, so a replayed state that is older than an event already delivered to a subscriber is discarded. The state of a peripheral is removed when the scanner forgets it
+public class BlePeripheralEventBus {
+    // Log
+    private final static String TAG = BlePeripheralEventBus.class.getSimpleName();
+
+    // Events
+    public static final int EVENT_CONNECTING = 1;
+    public static final int EVENT_CONNECTED = 1 << 1;
+    public static final int EVENT_SERVICES_DISCOVERED = 1 << 2;
+    public static final int EVENT_DISCONNECTED = 1 << 3;
+    public static final int EVENT_RECONNECTING = 1 << 4;
+    public static final int EVENT_RECONNECTED = 1 << 5;                 // Sent instead of EVENT_CONNECTED after an automatic reconnection (services have already been discovered)
+    public static final int EVENT_RSSI_UPDATED = 1 << 6;
+    public static final int EVENT_LINK_PARAMETERS_UPDATED = 1 << 7;     // mtu, phy or connection interval changed
+
+    public static final int EVENTS_CONNECTION_STATE = EVENT_CONNECTING | EVENT_CONNECTED | EVENT_SERVICES_DISCOVERED | EVENT_DISCONNECTED | EVENT_RECONNECTING | EVENT_RECONNECTED;     // Events that are kept as the sticky state
+    public static final int EVENTS_ALL = 0xFF;
+
+    public static class Event {
+        public final int type;
+        @NonNull
+        public final BlePeripheral blePeripheral;
+        public final boolean isExpectedDisconnect;      // Only for EVENT_DISCONNECTED: true if the disconnection was requested (so no error messages should be displayed to the user)
+        public final long timestampNanos;
+        public final boolean isReplay;                  // true if it is the sticky state replayed on subscribe (the event happened before the subscription)
+        final long sequence;
+
+        Event(int type, @NonNull BlePeripheral blePeripheral, boolean isExpectedDisconnect, long sequence) {
+            this.type = type;
+            this.blePeripheral = blePeripheral;
+            this.isExpectedDisconnect = isExpectedDisconnect;
+            this.timestampNanos = SystemClock.elapsedRealtimeNanos();
+            this.isReplay = false;
+            this.sequence = sequence;
+        }
+
+        // Replay of a sticky state
+        private Event(@NonNull Event event) {
+            this.type = event.type;
+            this.blePeripheral = event.blePeripheral;
+            this.isExpectedDisconnect = event.isExpectedDisconnect;
+            this.timestampNanos = event.timestampNanos;
+            this.isReplay = true;
+            this.sequence = event.sequence;
+        }
+
+        public @NonNull
+        String getIdentifier() {
+            return blePeripheral.getIdentifier();
+        }
+    }
+
+    // Subscriber
+    public interface Subscriber {
+        void onPeripheralEvent(@NonNull Event event);
+    }
+
+    private static class Subscription {
+        final Subscriber subscriber;
+        final int eventMask;
+        final Executor executor;
+        final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+        final Map<String, Long> lastStateSequences = new HashMap<>();      // Only accessed while draining (that is serial)
+        volatile boolean isActive = true;
+
+        Subscription(@NonNull Subscriber subscriber, int eventMask, @NonNull Executor executor) {
+            this.subscriber = subscriber;
+            this.eventMask = eventMask;
+            this.executor = executor;
+        }
+
+        void offer(@NonNull Event event) {
+            queue.add(event);
+            if (isDrainScheduled.compareAndSet(false, true)) {
+                executor.execute(mDrainRunnable);
+            }
+        }
+
+        private final Runnable mDrainRunnable = this::drain;
+
+        private void drain() {
+            isDrainScheduled.set(false);        // Cleared before draining, so events added during the delivery schedule a new drain
+
+            Event event;
+            while ((event = queue.poll()) != null) {
+                if (!isActive) {
+                    queue.clear();
+                    return;
+                }
+
+                if ((event.type & EVENTS_CONNECTION_STATE) != 0) {
+                    final String identifier = event.getIdentifier();
+                    final Long lastSequence = lastStateSequences.get(identifier);
+                    if (lastSequence != null && event.sequence <= lastSequence) {
+                        continue;       // Stale state (i.e. a replay of a state older than an event already delivered)
+                    }
+                    lastStateSequences.put(identifier, event.sequence);
+                }
+
+                subscriber.onPeripheralEvent(event);
+            }
+        }
+    }
+
+    // Singleton
+    private static final BlePeripheralEventBus mInstance = new BlePeripheralEventBus();
+
+    // Data
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mMainExecutor = mMainHandler::post;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final Map<String, Event> mLastStates = new ConcurrentHashMap<>();          // Key: peripheral identifier
+    private final AtomicLong mSequence = new AtomicLong(0);
+
+    public static BlePeripheralEventBus getInstance() {
+        return mInstance;
+    }
+
+    private BlePeripheralEventBus() {
+    }
+
+    // region Subscribe
+    // Subscribes to the events in eventMask (EVENT_*), delivered on the main thread. If isStickyReplayEnabled, the last connection state of each known peripheral is delivered first
+    public void subscribe(@NonNull Subscriber subscriber, int eventMask, boolean isStickyReplayEnabled) {
+        subscribe(subscriber, eventMask, isStickyReplayEnabled, mMainExecutor);
+    }
+
+    public void subscribe(@NonNull Subscriber subscriber, int eventMask, boolean isStickyReplayEnabled, @NonNull Executor executor) {
+        if (findSubscription(subscriber) != null) {
+            Log.w(TAG, "subscribe: already subscribed");
+            return;
+        }
+
+        Subscription subscription = new Subscription(subscriber, eventMask, executor);
+        mSubscriptions.add(subscription);
+
+        if (isStickyReplayEnabled) {
+            for (Event event : mLastStates.values()) {
+                if ((event.type & eventMask) != 0) {
+                    subscription.offer(new Event(event));
+                }
+            }
+        }
+    }
+
+    public void unsubscribe(@NonNull Subscriber subscriber) {
+        Subscription subscription = findSubscription(subscriber);
+        if (subscription != null) {
+            subscription.isActive = false;      // Pending events are not delivered
+            mSubscriptions.remove(subscription);
+        }
+    }
+    // endregion
+
+    // region Publish
+    void publish(int type, @NonNull BlePeripheral blePeripheral) {
+        publish(type, blePeripheral, false);
+    }
+
+    void publish(int type, @NonNull BlePeripheral blePeripheral, boolean isExpectedDisconnect) {
+        final Event event = new Event(type, blePeripheral, isExpectedDisconnect, mSequence.incrementAndGet());
+
+        if ((type & EVENTS_CONNECTION_STATE) != 0) {
+            updateLastState(event);
+        }
+
+        for (Subscription subscription : mSubscriptions) {
+            if ((subscription.eventMask & type) != 0) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    // Last connection state published for the peripheral (null if unknown)
+    public @Nullable
+    Event getLastState(@NonNull String identifier) {
+        return mLastStates.get(identifier);
+    }
+
+    // Called when the peripheral is no longer known, so the state doesn't keep a reference to it
+    void removeLastState(@NonNull String identifier) {
+        mLastStates.remove(identifier);
+    }
+    // endregion
+
+    // region Utils
+    private void updateLastState(@NonNull Event event) {
+        // Compare-and-set loop, so an event published concurrently with an older sequence doesn't replace a newer state
+        final String identifier = event.getIdentifier();
+        while (true) {
+            final Event previousEvent = mLastStates.get(identifier);
+            if (previousEvent == null) {
+                if (mLastStates.putIfAbsent(identifier, event) == null) {
+                    return;
+                }
+            } else if (previousEvent.sequence > event.sequence) {
+                return;
+            } else if (mLastStates.replace(identifier, previousEvent, event)) {
+                return;
+            }
+        }
+    }
+
+    private @Nullable
+    Subscription findSubscription(@NonNull Subscriber subscriber) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.subscriber == subscriber) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+    // endregion
+}
@@ -22,14 +22,13 @@ import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class BlePeripheralUart {
     // Log
     private final static String TAG = BlePeripheralUart.class.getSimpleName();
 
     // Constants
-    private static final UUID kUartServiceUUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    public static final UUID kUartServiceUUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
     private static final UUID kUartTxCharacteristicUUID = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
     private static final UUID kUartRxCharacteristicUUID = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
 
@@ -54,7 +53,11 @@ public class BlePeripheralUart {
     private BluetoothGattCharacteristic mUartTxCharacteristic;
     private BluetoothGattCharacteristic mUartRxCharacteristic;
     private int mUartTxCharacteristicWriteType;
-    private boolean mIsSendSequentiallyCancelled = false;
+    private UUID mUartServiceUUID;              // Parameters used on the last uartEnable (used by uartRestore)
+    private UUID mUartTxCharacteristicUUID;
+    private UUID mUartRxCharacteristicUUID;
+    private WeakReference<UartRxHandler> mWeakUartRxHandler = new WeakReference<>(null);
+    private BlePeripheral.BulkWriteOperation mSendSequentiallyOperation;
 
     // region Initialization
     public BlePeripheralUart(@NonNull BlePeripheral blePeripheral) {
@@ -77,6 +80,11 @@ public class BlePeripheralUart {
     private void uartEnable(@NonNull UUID serviceUUID, @NonNull UUID txCharacteristicUUID, @NonNull UUID rxCharacteristicUUID,
                             @Nullable UartRxHandler uartRxHandler, @Nullable BlePeripheral.CompletionHandler completionHandler) {
 
+        mUartServiceUUID = serviceUUID;
+        mUartTxCharacteristicUUID = txCharacteristicUUID;
+        mUartRxCharacteristicUUID = rxCharacteristicUUID;
+        mWeakUartRxHandler = new WeakReference<>(uartRxHandler);
+
         // Get uart communications characteristic
         mUartTxCharacteristic = mBlePeripheral.getCharacteristic(txCharacteristicUUID, serviceUUID);
         mUartRxCharacteristic = mBlePeripheral.getCharacteristic(rxCharacteristicUUID, serviceUUID);
@@ -91,11 +99,10 @@ public class BlePeripheralUart {
             // Prepare notification handler
             WeakReference<UartRxHandler> weakUartRxHandler = new WeakReference<>(uartRxHandler);
             final String identifier = mBlePeripheral.getIdentifier();
-            BlePeripheral.NotifyHandler notifyHandler = uartRxHandler == null ? null : status -> {
+            BlePeripheral.NotifyHandler notifyHandler = uartRxHandler == null ? null : (status, value) -> {
                 UartRxHandler handler = weakUartRxHandler.get();
                 if (handler != null) {
-                    byte[] data = mUartRxCharacteristic.getValue();
-                    handler.onRxDataReceived(data, identifier, status);
+                    handler.onRxDataReceived(value, identifier, status);
                 }
             };
 
@@ -127,6 +134,20 @@ public class BlePeripheralUart {
         }
     }
 
+    // Enables the uart again after an automatic reconnection (see BlePeripheralEventBus.EVENT_RECONNECTED), using the same parameters as the last uartEnable call.
+    // The characteristics are obtained again because the services have been rediscovered and the previous ones are no longer valid
+    public void uartRestore(@Nullable BlePeripheral.CompletionHandler completionHandler) {
+        if (mUartServiceUUID == null) {
+            Log.w(TAG, "uartRestore called without a previous uartEnable");
+            if (completionHandler != null) {
+                completionHandler.completion(BluetoothGatt.GATT_FAILURE);
+            }
+            return;
+        }
+
+        uartEnable(mUartServiceUUID, mUartTxCharacteristicUUID, mUartRxCharacteristicUUID, mWeakUartRxHandler.get(), completionHandler);
+    }
+
     public boolean isUartEnabled() {
         return mUartRxCharacteristic != null && mUartTxCharacteristic != null && BlePeripheral.isCharacteristicNotifyingForCachedClientConfigDescriptor(mUartRxCharacteristic);
     }
@@ -141,6 +162,7 @@ public class BlePeripheralUart {
         // Clear all Uart specific data
         mUartRxCharacteristic = null;
         mUartTxCharacteristic = null;
+        mUartServiceUUID = null;
     }
 
     @SuppressLint("InlinedApi")
@@ -169,6 +191,12 @@ public class BlePeripheralUart {
         mBlePeripheral.readPhy();
     }
 
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    public void setLinkProfile(int linkProfile) {
+        mBlePeripheral.setLinkProfile(linkProfile);
+    }
+
     // endregion
 
     // region Send
@@ -181,31 +209,21 @@ public class BlePeripheralUart {
             return;
         }
 
-        // Split data in kUartTxMaxBytes bytes packets
-        int offset = 0;
-        AtomicInteger worseStatus = new AtomicInteger(BluetoothGatt.GATT_SUCCESS);
-
-        do {
-            final int packetSize = Math.min(data.length - offset, mBlePeripheral.getMaxPacketLength());
-            final byte[] packet = Arrays.copyOfRange(data, offset, offset + packetSize);
-            offset += packetSize;
-
-            final int finalOffset = offset;
-            mBlePeripheral.writeCharacteristic(mUartTxCharacteristic, mUartTxCharacteristicWriteType, packet, status -> {
-                //Log.d(TAG, "next offset:"+finalOffset);
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.d(TAG, "uart tx write (hex): " + BleUtils.bytesToHex2(packet));
-                } else {
-                    worseStatus.set(status);
-                    Log.w(TAG, "Error " + status + " writing packet");
+        // Split data in packets (done by the bulk write). All packets use the characteristic write type
+        final int withResponseEveryPacketCount = mUartTxCharacteristicWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? -1 : 0;
+        mBlePeripheral.writeCharacteristicBulk(mUartTxCharacteristic, data, withResponseEveryPacketCount, null, status -> {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "uart tx write (hex): " + BleUtils.bytesToHex2(data));
                 }
+            } else {
+                Log.w(TAG, "Error " + status + " writing data");
+            }
 
-                if (finalOffset >= data.length && completionHandler != null) {
-                    completionHandler.completion(worseStatus.get());
-                }
-            });
-
-        } while (offset < data.length);
+            if (completionHandler != null) {
+                completionHandler.completion(status);
+            }
+        });
     }
 
     void sendEachPacketSequentially(@NonNull byte[] data, int withResponseEveryPacketCount, BlePeripheral.ProgressHandler progressHandler, BlePeripheral.CompletionHandler completionHandler) {
@@ -217,49 +235,24 @@ public class BlePeripheralUart {
             return;
         }
 
-        mIsSendSequentiallyCancelled = false;
-
-        uartSendPacket(data, 0, mUartTxCharacteristic, withResponseEveryPacketCount, withResponseEveryPacketCount, progressHandler, completionHandler);
-    }
-
-    void cancelOngoingSendPacketSequentiallyInThread() {
-        mIsSendSequentiallyCancelled = true;
-    }
-
-    private void uartSendPacket(@NonNull byte[] data, int offset, BluetoothGattCharacteristic uartTxCharacteristic, int withResponseEveryPacketCount, int numPacketsRemainingForDelay, BlePeripheral.ProgressHandler progressHandler, BlePeripheral.CompletionHandler completionHandler) {
-        final int packetSize = Math.min(data.length - offset, mBlePeripheral.getMaxPacketLength());
-        final byte[] packet = Arrays.copyOfRange(data, offset, offset + packetSize);
-        final int writeStartingOffset = offset;
-        final int uartTxCharacteristicWriteType = numPacketsRemainingForDelay <= 0 ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;          // Send a packet WRITE_TYPE_DEFAULT to force wait until receive response and avoid dropping packets if the peripheral is not processing them fast enough
-
-        mBlePeripheral.writeCharacteristic(uartTxCharacteristic, uartTxCharacteristicWriteType, packet, status -> {
-            int writtenSize = writeStartingOffset;
-
+        // Send a packet with response every withResponseEveryPacketCount packets to force wait until receive response and avoid dropping packets if the peripheral is not processing them fast enough
+        mSendSequentiallyOperation = mBlePeripheral.writeCharacteristicBulk(mUartTxCharacteristic, data, withResponseEveryPacketCount, progressHandler, status -> {
             if (status != BluetoothGatt.GATT_SUCCESS) {
-                Log.w(TAG, "Error " + status + " writing packet at offset" + writeStartingOffset + " Error: " + status);
-            } else {
-                Log.d(TAG, "uart tx " + (uartTxCharacteristicWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? "withoutResponse" : "withResponse") + " offset " + writeStartingOffset + ": " + BleUtils.bytesToHex2(packet));
-
-                writtenSize += packet.length;
-
-                if (!mIsSendSequentiallyCancelled && writtenSize < data.length) {
-                    //int finalWrittenSize = writtenSize;
-                    //handler.postDelayed(() -> uartSendPacket(handler, data, finalWrittenSize, uartTxCharacteristic, uartTxCharacteristicWriteType, delayBetweenPackets, progressHandler, completionHandler), delayBetweenPackets);
-                    uartSendPacket(data, writtenSize, uartTxCharacteristic, withResponseEveryPacketCount, numPacketsRemainingForDelay <= 0 ? withResponseEveryPacketCount : numPacketsRemainingForDelay - 1, progressHandler, completionHandler);
-                }
-            }
-
-            if (mIsSendSequentiallyCancelled) {
-                completionHandler.completion(BluetoothGatt.GATT_SUCCESS);
-            } else if (writtenSize >= data.length) {
-                progressHandler.progress(1);
-                completionHandler.completion(status);
-            } else {
-                progressHandler.progress(writtenSize / (float) data.length);
+                Log.w(TAG, "Error " + status + " sending packets");
+            } else if (BuildConfig.DEBUG) {
+                Log.d(TAG, "uart tx sequentially finished: " + data.length + " bytes");
             }
+            completionHandler.completion(status);
         });
     }
 
+    void cancelOngoingSendPacketSequentiallyInThread() {
+        if (mSendSequentiallyOperation != null) {
+            mSendSequentiallyOperation.cancel();
+            mSendSequentiallyOperation = null;
+        }
+    }
+
     @SuppressWarnings("SameParameterValue")
     void uartSendAndWaitReply(@NonNull byte[] data, @Nullable BlePeripheral.CompletionHandler writeCompletionHandler, @NonNull BlePeripheral.CaptureReadCompletionHandler readCompletionHandler) {
         uartSendAndWaitReply(data, writeCompletionHandler, kUartReplyDefaultTimeout, readCompletionHandler);
@@ -286,7 +279,9 @@ public class BlePeripheralUart {
             final int finalOffset = offset;
             mBlePeripheral.writeCharacteristicAndCaptureNotify(mUartTxCharacteristic, mUartTxCharacteristicWriteType, packet, status -> {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.d(TAG, "uart tx writeAndWait (hex): " + BleUtils.bytesToHex2(packet));
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "uart tx writeAndWait (hex): " + BleUtils.bytesToHex2(packet));
+                    }
                 } else {
                     Log.w(TAG, "Error " + status + " writing packet");
                 }
@@ -17,19 +17,22 @@ import com.adafruit.bluefruit.le.connect.utils.PermissionsUtils;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
 import no.nordicsemi.android.support.v18.scanner.ScanFilter;
-import no.nordicsemi.android.support.v18.scanner.ScanRecord;
 import no.nordicsemi.android.support.v18.scanner.ScanResult;
 import no.nordicsemi.android.support.v18.scanner.ScanSettings;
 
 public class BleScanner {
     // Config
     private static final int kScanReportDelay = 500;     // in milliseconds
+    private static final int kBackgroundScanReportDelay = 5000;     // in milliseconds. Batch results while the UI is not visible to reduce cpu wakeups
 
     // Constants
     private final static String TAG = BleScanner.class.getSimpleName();
@@ -49,8 +52,11 @@ public class BleScanner {
     // Data
     private WeakReference<BleScannerListener> mWeakListener;
     private final List<BlePeripheral> mPeripheralScanResults = new ArrayList<>();
+    private final Map<String, BlePeripheral> mPeripheralsByIdentifier = new HashMap<>();      // Same peripherals as mPeripheralScanResults. Key: identifier
     private List<ScanFilter> mScanFilters = new ArrayList<>();
     private boolean mIsScanning;
+    private ScanProfile mScanProfile = null;
+    private boolean mIsForeground = true;
 
     private final ScanCallback mScanCallback = new ScanCallback() {
         public void onScanResult(int callbackType, @NonNull ScanResult result) {
@@ -133,7 +139,7 @@ public class BleScanner {
         List<BlePeripheral> connectedPeripherals = new ArrayList<>();
         for (BlePeripheral blePeripheral : mPeripheralScanResults) {
             final int state = blePeripheral.getConnectionState();
-            if (state == BlePeripheral.STATE_CONNECTED || state == BlePeripheral.STATE_CONNECTING) {
+            if (state == BlePeripheral.STATE_CONNECTED || state == BlePeripheral.STATE_CONNECTING || blePeripheral.isWaitingToReconnect()) {       // Note: peripherals waiting to reconnect are included, so disconnectFromAll also cancels their reconnection
                 connectedPeripherals.add(blePeripheral);
             }
         }
@@ -159,17 +165,7 @@ public class BleScanner {
             return null;
         }
 
-        int i = 0;
-        BlePeripheral foundPeripheral = null;
-        while (i < mPeripheralScanResults.size() && foundPeripheral == null) {
-            BlePeripheral blePeripheral = mPeripheralScanResults.get(i);
-            if (blePeripheral.getIdentifier().equals(identifier)) {
-                foundPeripheral = blePeripheral;
-            }
-            i++;
-        }
-
-        return foundPeripheral;
+        return mPeripheralsByIdentifier.get(identifier);
     }
 
     // endregion
@@ -178,20 +174,90 @@ public class BleScanner {
     @SuppressLint("InlinedApi")
     @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
     public void start() {
-        startWithFilters(null);
+        startWithFilters(mScanProfile != null ? mScanProfile.createScanFilters() : null);
     }
 
     @SuppressWarnings("unused")
     @SuppressLint("InlinedApi")
     @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
     public void startFilteringServiceUuid(ParcelUuid uuid) {
+        startFilteringServiceUuids(uuid != null ? Collections.singletonList(uuid) : null);
+    }
+
+    @SuppressWarnings("unused")
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
+    public void startFilteringServiceUuids(@Nullable List<ParcelUuid> uuids) {
+        mScanProfile = new ScanProfile(uuids, null);
+        startWithFilters(mScanProfile.createScanFilters());
+    }
+
+    // Sets the filters that will be offloaded to the bluetooth controller. If scanning, the scan is restarted with the new filters
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
+    public synchronized void setScanProfile(@Nullable ScanProfile scanProfile) {
+        final boolean isSameProfile = scanProfile == null ? mScanProfile == null : scanProfile.equals(mScanProfile);
+        if (isSameProfile) {
+            return;
+        }
+
+        Log.d(TAG, "setScanProfile: " + scanProfile);
+        mScanProfile = scanProfile;
+        if (mIsScanning) {
+            restart(mScanProfile != null ? mScanProfile.createScanFilters() : null);
+        }
+    }
+
+    public @Nullable
+    ScanProfile getScanProfile() {
+        return mScanProfile;
+    }
 
-        List<ScanFilter> scanFilters = new ArrayList<>();
-        if (uuid != null) {
-            scanFilters.add(new ScanFilter.Builder().setServiceUuid(uuid).build());
+    // Foreground scans use low latency and short report delay. Background scans use balanced mode and batch the results. If scanning, the scan is restarted with the new settings
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
+    public synchronized void setForeground(boolean isForeground) {
+        if (isForeground == mIsForeground) {
+            return;
         }
 
-        startWithFilters(scanFilters);
+        Log.d(TAG, "setForeground: " + isForeground);
+        mIsForeground = isForeground;
+        if (mIsScanning) {
+            restart(mScanFilters);
+        }
+    }
+
+    public boolean isForeground() {
+        return mIsForeground;
+    }
+
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
+    private synchronized void restart(@Nullable List<ScanFilter> filters) {
+        // Restart without notifying the listener that scanning has stopped (it is restarted immediately)
+        BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
+        try {
+            scanner.stopScan(mScanCallback);
+        } catch (IllegalStateException e) {     // Exception if the BT adapter is not on
+            Log.d(TAG, "restart illegalStateException" + e.getMessage());
+        }
+        mIsScanning = false;
+
+        startWithFilters(filters);
+    }
+
+    private @NonNull
+    ScanSettings createScanSettings() {
+        if (mIsForeground) {
+            return new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).setReportDelay(kScanReportDelay)
+                    .setUseHardwareBatchingIfSupported(false).build();
+        } else {
+            return new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_BALANCED).setReportDelay(kBackgroundScanReportDelay)
+                    .setUseHardwareBatchingIfSupported(true).build();
+        }
     }
 
     @SuppressLint("InlinedApi")
@@ -199,9 +265,7 @@ public class BleScanner {
     private synchronized void startWithFilters(@Nullable List<ScanFilter> filters) {
             if (!mIsScanning) {
                 BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
-                ScanSettings settings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).setReportDelay(kScanReportDelay)
-                        .setUseHardwareBatchingIfSupported(false).build();
+                ScanSettings settings = createScanSettings();
                 mScanFilters = filters;
                 try {
                     scanner.startScan(mScanFilters, settings, mScanCallback);
@@ -236,7 +300,14 @@ public class BleScanner {
         stop();
 
         // Don't remove connected or connecting peripherals
-        mPeripheralScanResults.removeIf(blePeripheral -> blePeripheral.getConnectionState() == BlePeripheral.STATE_DISCONNECTED);
+        mPeripheralScanResults.removeIf(blePeripheral -> {
+            if (blePeripheral.getConnectionState() != BlePeripheral.STATE_DISCONNECTED) {
+                return false;
+            }
+            mPeripheralsByIdentifier.remove(blePeripheral.getIdentifier());
+            BlePeripheralEventBus.getInstance().removeLastState(blePeripheral.getIdentifier());
+            return true;
+        });
 
         startWithFilters(mScanFilters);
 
@@ -253,75 +324,85 @@ public class BleScanner {
         // Check that the device was not previously found
         final String resultAddress = result.getDevice().getAddress();
 
-        int index = 0;
-        boolean found = false;
-        while (index < mPeripheralScanResults.size() && !found) {
-            if (mPeripheralScanResults.get(index).getIdentifier().equals(resultAddress)) {
-                found = true;
-            } else {
-                index++;
-            }
-        }
-
-        if (found) {
+        BlePeripheral existingPeripheral = mPeripheralsByIdentifier.get(resultAddress);
+        if (existingPeripheral != null) {
             // Replace existing record
-            mPeripheralScanResults.get(index).replaceScanResult(result);
+            existingPeripheral.replaceScanResult(result);
         } else {
             // Add mew record
             BlePeripheral blePeripheral = new BlePeripheral(result);
             mPeripheralScanResults.add(blePeripheral);
+            mPeripheralsByIdentifier.put(resultAddress, blePeripheral);
         }
     }
 
     // endregion
 
-    // region Utils
-    @SuppressWarnings("WeakerAccess")
-    public static final int kDeviceType_Unknown = 0;
-    public static final int kDeviceType_Uart = 1;
-    public static final int kDeviceType_Beacon = 2;
-    public static final int kDeviceType_UriBeacon = 3;
+    // region ScanProfile
+    // Filters that can be evaluated by the bluetooth controller instead of filtering each result in Java
+    public static class ScanProfile {
+        @NonNull
+        private final List<ParcelUuid> mServiceUuids;     // Any of them
+        @Nullable
+        private final String mDeviceName;                 // Exact match (case sensitive)
+
+        public ScanProfile(@Nullable List<ParcelUuid> serviceUuids, @Nullable String deviceName) {
+            mServiceUuids = serviceUuids != null ? new ArrayList<>(serviceUuids) : new ArrayList<>();
+            mDeviceName = deviceName != null && !deviceName.isEmpty() ? deviceName : null;
+        }
 
-    public static int getDeviceType(@NonNull BlePeripheral blePeripheral) {
-        int type = kDeviceType_Unknown;
+        public boolean hasFilters() {
+            return !mServiceUuids.isEmpty() || mDeviceName != null;
+        }
 
-        ScanRecord scanRecord = blePeripheral.getScanRecord();
-        if (scanRecord != null) {
-            byte[] advertisedData = scanRecord.getBytes();
+        @Nullable
+        List<ScanFilter> createScanFilters() {
+            if (!hasFilters()) {
+                return null;
+            }
 
-            // Check if is an iBeacon ( 0x02, 0x01, a flag byte, 0x1A, 0xFF, manufacturer (2bytes), 0x02, 0x15)
-            final boolean isBeacon = advertisedData != null && advertisedData.length > 8 && advertisedData[0] == 0x02 && advertisedData[1] == 0x01 && advertisedData[3] == 0x1A && advertisedData[4] == (byte) 0xFF && advertisedData[7] == 0x02 && advertisedData[8] == 0x15;
-            if (isBeacon) {
-                type = kDeviceType_Beacon;
+            // Note: results that pass any of the filters are reported, so the name is added to each service filter
+            List<ScanFilter> scanFilters = new ArrayList<>();
+            if (mServiceUuids.isEmpty()) {
+                scanFilters.add(new ScanFilter.Builder().setDeviceName(mDeviceName).build());
             } else {
-                // Check if is an URIBeacon
-                final byte[] kUriBeaconPrefix = {0x03, 0x03, (byte) 0xD8, (byte) 0xFE};
-                final boolean isUriBeacon = advertisedData != null && advertisedData.length > 7 && Arrays.equals(Arrays.copyOf(advertisedData, kUriBeaconPrefix.length), kUriBeaconPrefix) && advertisedData[5] == 0x16 && advertisedData[6] == kUriBeaconPrefix[2] && advertisedData[7] == kUriBeaconPrefix[3];
-
-                if (isUriBeacon) {
-                    type = kDeviceType_UriBeacon;
-                } else {
-                    // Check if Uart is contained in the uuids
-                    boolean isUart = false;
-                    List<ParcelUuid> serviceUuids = scanRecord.getServiceUuids();
-                    if (serviceUuids != null) {
-                        ParcelUuid uartUuid = ParcelUuid.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
-                        for (ParcelUuid serviceUuid : serviceUuids) {
-                            if (serviceUuid.equals(uartUuid)) {
-                                isUart = true;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (isUart) {
-                        type = kDeviceType_Uart;
-                    }
+                for (ParcelUuid serviceUuid : mServiceUuids) {
+                    scanFilters.add(new ScanFilter.Builder().setServiceUuid(serviceUuid).setDeviceName(mDeviceName).build());
                 }
             }
+            return scanFilters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ScanProfile)) return false;
+            ScanProfile that = (ScanProfile) o;
+            return mServiceUuids.equals(that.mServiceUuids) && Objects.equals(mDeviceName, that.mDeviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mServiceUuids, mDeviceName);
         }
 
-        return type;
+        @NonNull
+        @Override
+        public String toString() {
+            return "services: " + mServiceUuids + " name: " + mDeviceName;
+        }
+    }
+    // endregion
+
+    // region Utils
+    @SuppressWarnings("WeakerAccess")
+    public static final int kDeviceType_Unknown = 0;
+    public static final int kDeviceType_Uart = 1;
+    public static final int kDeviceType_Beacon = 2;
+    public static final int kDeviceType_UriBeacon = 3;
+
+    public static int getDeviceType(@NonNull BlePeripheral blePeripheral) {
+        return blePeripheral.getAdvertisement().getDeviceType();
     }
 
     // endregion
@@ -0,0 +1,234 @@
+package com.adafruit.bluefruit.le.connect.ble.central;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Reads the values of a list of characteristics and descriptors (a snapshot of the gatt database).
+// - Values are cached by device address and reused for kCacheTtlMillis, so visiting again the same peripheral doesn't read them again
+// - Only a few reads are added to the peripheral command queue at the same time, so the attributes prioritized (i.e. the rows visible on screen) are read before the rest
+// - Results are delivered to the listener on the main thread in batches (at most one every kBatchIntervalMillis)
+public class GattSnapshotReader {
+    // Log
+    private final static String TAG = GattSnapshotReader.class.getSimpleName();
+
+    // Config
+    private static final long kCacheTtlMillis = 60 * 1000;
+    private static final int kMaxReadsInFlight = 2;         // reads added to the command queue at the same time (one executing and one waiting, so there is no gap between reads)
+    private static final long kBatchIntervalMillis = 100;
+
+    // Interfaces
+    public interface Listener {
+        void onValuesRead(@NonNull Map<String, byte[]> values);        // Key: attribute key
+        void onSnapshotFinished();
+    }
+
+    // Attribute to read. If descriptor is null, the value of the characteristic is read
+    public static class Attribute {
+        final String key;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+
+        public Attribute(@NonNull String key, @NonNull BluetoothGattCharacteristic characteristic, @Nullable BluetoothGattDescriptor descriptor) {
+            this.key = key;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+        }
+    }
+
+    private static class CachedValue {
+        final byte[] value;
+        final long timestamp;       // elapsedRealtime
+
+        CachedValue(@NonNull byte[] value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Cache shared by all the readers. Key: device address
+    private static final Map<String, Map<String, CachedValue>> sValuesCache = new HashMap<>();
+
+    // Data
+    @NonNull
+    private final BlePeripheral mBlePeripheral;
+    @NonNull
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Attribute> mPendingAttributes = new ArrayList<>();          // In read order
+    private final Map<String, byte[]> mBatchValues = new LinkedHashMap<>();
+    private int mNumReadsInFlight = 0;
+    private int mGeneration = 0;            // Incremented on start and cancel, so results from a previous snapshot are ignored
+    private boolean mIsBatchScheduled = false;
+    private boolean mIsFinished = true;
+
+    // region Lifecycle
+    public GattSnapshotReader(@NonNull BlePeripheral blePeripheral, @NonNull Listener listener) {
+        mBlePeripheral = blePeripheral;
+        mListener = listener;
+    }
+
+    // Starts reading the attributes. The order of the list is the read order (prioritize can change it later)
+    @MainThread
+    public void start(@NonNull List<Attribute> attributes, boolean isCacheIgnored) {
+        cancel();
+        mIsFinished = false;
+
+        final Map<String, CachedValue> deviceCache = getDeviceCache(mBlePeripheral.getIdentifier());
+        final long now = SystemClock.elapsedRealtime();
+        for (Attribute attribute : attributes) {
+            CachedValue cachedValue = isCacheIgnored ? null : deviceCache.get(attribute.key);
+            if (cachedValue != null && now - cachedValue.timestamp < kCacheTtlMillis) {
+                mBatchValues.put(attribute.key, cachedValue.value);
+            } else {
+                mPendingAttributes.add(attribute);
+            }
+        }
+
+        if (!mBatchValues.isEmpty()) {
+            deliverBatch();     // Cached values are shown immediately
+        }
+        readNext();
+    }
+
+    @MainThread
+    public void cancel() {
+        mGeneration++;
+        mPendingAttributes.clear();
+        mBatchValues.clear();
+        mNumReadsInFlight = 0;      // reads already queued will be ignored (different generation)
+        mMainHandler.removeCallbacks(mDeliverBatchRunnable);
+        mIsBatchScheduled = false;
+        mIsFinished = true;
+    }
+
+    // Moves the attributes with the given keys to the front of the pending reads (keeping their relative order)
+    @MainThread
+    public void prioritize(@NonNull Collection<String> keys) {
+        if (mPendingAttributes.isEmpty() || keys.isEmpty()) {
+            return;
+        }
+
+        final Set<String> keysSet = keys instanceof Set ? (Set<String>) keys : new HashSet<>(keys);
+        List<Attribute> prioritized = new ArrayList<>();
+        List<Attribute> others = new ArrayList<>(mPendingAttributes.size());
+        for (Attribute attribute : mPendingAttributes) {
+            (keysSet.contains(attribute.key) ? prioritized : others).add(attribute);
+        }
+        if (!prioritized.isEmpty()) {
+            mPendingAttributes.clear();
+            mPendingAttributes.addAll(prioritized);
+            mPendingAttributes.addAll(others);
+        }
+    }
+
+    // Removes the cached values for a device
+    public static void clearCache(@NonNull String deviceAddress) {
+        synchronized (sValuesCache) {
+            sValuesCache.remove(deviceAddress);
+        }
+    }
+    // endregion
+
+    // region Read
+    private void readNext() {
+        while (mNumReadsInFlight < kMaxReadsInFlight && !mPendingAttributes.isEmpty()) {
+            final Attribute attribute = mPendingAttributes.remove(0);
+            final int generation = mGeneration;
+            mNumReadsInFlight++;
+
+            if (attribute.descriptor == null) {
+                mBlePeripheral.readCharacteristic(attribute.characteristic, (status, data) -> mMainHandler.post(() -> onRead(generation, attribute, status, data)));
+            } else {
+                final BluetoothGattDescriptor descriptor = attribute.descriptor;
+                mBlePeripheral.readDescriptor(attribute.characteristic, descriptor.getUuid(), status -> {
+                    final byte[] data = status == BluetoothGatt.GATT_SUCCESS ? descriptor.getValue() : null;        // Read on the peripheral event loop, before the next command can change it
+                    mMainHandler.post(() -> onRead(generation, attribute, status, data));
+                });
+            }
+        }
+
+        if (mNumReadsInFlight == 0 && mPendingAttributes.isEmpty() && !mIsFinished) {
+            scheduleBatch();        // Deliver the last values and finish
+        }
+    }
+
+    private void onRead(int generation, @NonNull Attribute attribute, int status, @Nullable byte[] data) {
+        if (generation != mGeneration) {
+            return;     // Cancelled
+        }
+        mNumReadsInFlight--;
+
+        if (status == BluetoothGatt.GATT_SUCCESS && data != null) {
+            mBatchValues.put(attribute.key, data);
+            final Map<String, CachedValue> deviceCache = getDeviceCache(mBlePeripheral.getIdentifier());
+            synchronized (sValuesCache) {
+                deviceCache.put(attribute.key, new CachedValue(data, SystemClock.elapsedRealtime()));
+            }
+            scheduleBatch();
+        } else {
+            Log.d(TAG, "Error " + status + " reading: " + attribute.key);
+        }
+
+        readNext();
+    }
+    // endregion
+
+    // region Batch
+    private final Runnable mDeliverBatchRunnable = this::deliverBatch;
+
+    private void scheduleBatch() {
+        if (!mIsBatchScheduled) {
+            mIsBatchScheduled = true;
+            mMainHandler.postDelayed(mDeliverBatchRunnable, kBatchIntervalMillis);
+        }
+    }
+
+    private void deliverBatch() {
+        mMainHandler.removeCallbacks(mDeliverBatchRunnable);
+        mIsBatchScheduled = false;
+
+        if (!mBatchValues.isEmpty()) {
+            Map<String, byte[]> values = new HashMap<>(mBatchValues);
+            mBatchValues.clear();
+            mListener.onValuesRead(values);
+        }
+
+        if (mNumReadsInFlight == 0 && mPendingAttributes.isEmpty() && !mIsFinished) {
+            mIsFinished = true;
+            mListener.onSnapshotFinished();
+        }
+    }
+    // endregion
+
+    // region Utils
+    private static @NonNull
+    Map<String, CachedValue> getDeviceCache(@NonNull String deviceAddress) {
+        synchronized (sValuesCache) {
+            Map<String, CachedValue> deviceCache = sValuesCache.get(deviceAddress);
+            if (deviceCache == null) {
+                deviceCache = new HashMap<>();
+                sValuesCache.put(deviceAddress, deviceCache);
+            }
+            return deviceCache;
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,225 @@
+package com.adafruit.bluefruit.le.connect.ble.central;
+
+import static android.Manifest.permission.BLUETOOTH_CONNECT;
+import static android.Manifest.permission.BLUETOOTH_SCAN;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Schedules the reconnection of peripherals that have been disconnected unexpectedly.
+// Each retry waits an exponential backoff with random jitter (so peripherals that dropped at the same time don't retry at the same time), the number of retries is limited by a budget, and
+// only a few connectGatt attempts are allowed to run at the same time. The rest wait in a queue until a slot is free
+public class ReconnectSupervisor {
+    // Log
+    private final static String TAG = ReconnectSupervisor.class.getSimpleName();
+
+    // Config
+    private static final long kInitialBackoffMillis = 500;
+    private static final long kMaxBackoffMillis = 30000;
+    private static final int kDefaultRetryBudget = 6;
+    private static final int kDefaultMaxConcurrentConnects = 2;
+
+    // Singleton
+    private static ReconnectSupervisor mInstance = null;
+
+    // Data
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final Map<String, Integer> mAttempts = new HashMap<>();                 // Key: peripheral identifier. Retries done since the last successful connection
+    private final Map<String, Runnable> mScheduledRetries = new HashMap<>();        // Key: peripheral identifier. Retries waiting for their backoff delay
+    private final ArrayDeque<PendingConnect> mPendingConnects = new ArrayDeque<>();   // Retries waiting for a free connection slot
+    private final List<String> mActiveConnects = new ArrayList<>();                 // Identifiers of peripherals with a supervised connectGatt in progress
+    private int mRetryBudget = kDefaultRetryBudget;
+    private int mMaxConcurrentConnects = kDefaultMaxConcurrentConnects;
+
+    private static class PendingConnect {
+        final BlePeripheral blePeripheral;
+        final Context context;
+
+        PendingConnect(@NonNull BlePeripheral blePeripheral, @NonNull Context context) {
+            this.blePeripheral = blePeripheral;
+            this.context = context;
+        }
+    }
+
+    public static ReconnectSupervisor getInstance() {
+        if (mInstance == null) {
+            mInstance = new ReconnectSupervisor();
+        }
+        return mInstance;
+    }
+
+    private ReconnectSupervisor() {
+    }
+
+    // region Settings
+    public int getRetryBudget() {
+        return mRetryBudget;
+    }
+
+    public void setRetryBudget(int retryBudget) {
+        mRetryBudget = Math.max(0, retryBudget);
+    }
+
+    public int getMaxConcurrentConnects() {
+        return mMaxConcurrentConnects;
+    }
+
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    @MainThread
+    public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        mMaxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+        dispatchPendingConnects();
+    }
+    // endregion
+
+    // region Actions
+
+    // Returns false if the retry budget for the peripheral has been used up (in that case nothing is scheduled)
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    @MainThread
+    boolean scheduleReconnect(@NonNull BlePeripheral blePeripheral, @NonNull Context context) {
+        final String identifier = blePeripheral.getIdentifier();
+        releaseSlot(identifier);
+
+        final int attempt = getAttempts(identifier);
+        if (attempt >= mRetryBudget) {
+            Log.d(TAG, "Retry budget exhausted for: " + identifier);
+            mAttempts.remove(identifier);
+            dispatchPendingConnects();
+            return false;
+        }
+        mAttempts.put(identifier, attempt + 1);
+
+        // Exponential backoff with jitter: a random delay between half and the full backoff value
+        final long backoff = Math.min(kMaxBackoffMillis, kInitialBackoffMillis << Math.min(attempt, 16));
+        final long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        Log.d(TAG, "Reconnect " + identifier + " attempt " + (attempt + 1) + "/" + mRetryBudget + " in " + delay + "ms");
+
+        final Context applicationContext = context.getApplicationContext();
+        final Runnable retry = new Runnable() {
+            @SuppressLint("InlinedApi")
+            @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+            @Override
+            public void run() {
+                mScheduledRetries.remove(identifier);
+                mPendingConnects.add(new PendingConnect(blePeripheral, applicationContext));
+                dispatchPendingConnects();
+            }
+        };
+        cancelScheduledRetry(identifier);
+        mScheduledRetries.put(identifier, retry);
+        mMainHandler.postDelayed(retry, delay);
+        dispatchPendingConnects();      // the released slot could be used by another peripheral
+        return true;
+    }
+
+    // Called when a supervised connection attempt has connected. Frees its connection slot (failed attempts free it on scheduleReconnect)
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    @MainThread
+    void onConnected(@NonNull BlePeripheral blePeripheral) {
+        releaseSlot(blePeripheral.getIdentifier());
+        dispatchPendingConnects();
+    }
+
+    // Called when the peripheral is usable again (services discovered). Restores the full retry budget
+    @MainThread
+    void onReconnectFinished(@NonNull BlePeripheral blePeripheral) {
+        mAttempts.remove(blePeripheral.getIdentifier());
+    }
+
+    // Stops any retry scheduled or pending for the peripheral
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    @MainThread
+    void cancel(@NonNull BlePeripheral blePeripheral) {
+        final String identifier = blePeripheral.getIdentifier();
+        cancelScheduledRetry(identifier);
+        removePendingConnect(identifier);
+        releaseSlot(identifier);
+        mAttempts.remove(identifier);
+        dispatchPendingConnects();
+    }
+
+    // Returns true if a retry is waiting for its backoff delay or for a free connection slot
+    @MainThread
+    boolean isWaitingToReconnect(@NonNull BlePeripheral blePeripheral) {
+        final String identifier = blePeripheral.getIdentifier();
+        if (mScheduledRetries.containsKey(identifier)) {
+            return true;
+        }
+        for (PendingConnect pendingConnect : mPendingConnects) {
+            if (pendingConnect.blePeripheral.getIdentifier().equals(identifier)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns true if the current connection attempt of the peripheral was started by the supervisor
+    @MainThread
+    boolean isSupervisedConnect(@NonNull BlePeripheral blePeripheral) {
+        return mActiveConnects.contains(blePeripheral.getIdentifier());
+    }
+    // endregion
+
+    // region Utils
+    private int getAttempts(@NonNull String identifier) {
+        Integer attempts = mAttempts.get(identifier);
+        return attempts != null ? attempts : 0;
+    }
+
+    private void releaseSlot(@NonNull String identifier) {
+        mActiveConnects.remove(identifier);
+    }
+
+    private void cancelScheduledRetry(@NonNull String identifier) {
+        Runnable retry = mScheduledRetries.remove(identifier);
+        if (retry != null) {
+            mMainHandler.removeCallbacks(retry);
+        }
+    }
+
+    private void removePendingConnect(@NonNull String identifier) {
+        mPendingConnects.removeIf(pendingConnect -> pendingConnect.blePeripheral.getIdentifier().equals(identifier));
+    }
+
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(allOf = {BLUETOOTH_SCAN, BLUETOOTH_CONNECT})
+    private void dispatchPendingConnects() {
+        while (mActiveConnects.size() < mMaxConcurrentConnects && !mPendingConnects.isEmpty()) {
+            PendingConnect pendingConnect = mPendingConnects.poll();
+            final BlePeripheral blePeripheral = pendingConnect.blePeripheral;
+            if (!blePeripheral.isDisconnected()) {
+                continue;       // Connected (or connecting) by other means in the meantime
+            }
+
+            mActiveConnects.add(blePeripheral.getIdentifier());
+            Log.d(TAG, "Reconnecting: " + blePeripheral.getIdentifier() + " active: " + mActiveConnects.size());
+            try {
+                blePeripheral.connect(pendingConnect.context);
+            } catch (SecurityException e) {
+                Log.e(TAG, "connect security exception: " + e);
+                mActiveConnects.remove(blePeripheral.getIdentifier());
+            }
+        }
+    }
+    // endregion
+}
@@ -143,33 +143,22 @@ public class UartDataManager implements BlePeripheralUart.UartRxHandler {
     // endregion
 
     /*
-    // region Broadcast Listener
+    // region Peripheral Events
     private void registerGattReceiver(@NonNull Context context) {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BlePeripheral.kBlePeripheral_OnConnected);
-        filter.addAction(BlePeripheral.kBlePeripheral_OnDisconnected);
-        LocalBroadcastManager.getInstance(context).registerReceiver(mGattUpdateReceiver, filter);
+        BlePeripheralEventBus.getInstance().subscribe(mPeripheralEventSubscriber, BlePeripheralEventBus.EVENT_CONNECTED | BlePeripheralEventBus.EVENT_DISCONNECTED, false);
     }
 
     private void unregisterGattReceiver(@NonNull Context context) {
-        LocalBroadcastManager.getInstance(context).unregisterReceiver(mGattUpdateReceiver);
+        BlePeripheralEventBus.getInstance().unsubscribe(mPeripheralEventSubscriber);
     }
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            final String identifier = intent.getStringExtra(BlePeripheral.kExtra_deviceAddress);
-            if (identifier != null) {
-                if (BlePeripheral.kBlePeripheral_OnConnected.equals(action)) {
-                    clearRxCache(identifier);
-                } else if (BlePeripheral.kBlePeripheral_OnDisconnected.equals(action)) {
-                    clearRxCache(identifier);
-                    mRxDataSemaphore.release();     // Force signal if was waiting
-                }
-            } else {
-                Log.w(TAG, "UartDataManager mGattUpdateReceiver with null peripheral");
-            }
+    private final BlePeripheralEventBus.Subscriber mPeripheralEventSubscriber = event -> {
+        final String identifier = event.getIdentifier();
+        if (event.type == BlePeripheralEventBus.EVENT_CONNECTED) {
+            clearRxCache(identifier);
+        } else if (event.type == BlePeripheralEventBus.EVENT_DISCONNECTED) {
+            clearRxCache(identifier);
+            mRxDataSemaphore.release();     // Force signal if was waiting
         }
     };
     // endregion
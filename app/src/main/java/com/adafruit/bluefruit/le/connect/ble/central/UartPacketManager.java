@@ -1,7 +1,6 @@
 package com.adafruit.bluefruit.le.connect.ble.central;
 
 import android.content.Context;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -25,17 +24,17 @@ public class UartPacketManager extends UartPacketManagerBase {
     // region Send data
 
     public void send(@NonNull BlePeripheralUart uartPeripheral, @NonNull byte[] data, BlePeripheral.CompletionHandler completionHandler) {
-        mSentBytes += data.length;
+        addSentBytes(uartPeripheral.getIdentifier(), data.length);
         uartPeripheral.uartSend(data, completionHandler);
     }
 
     public void sendAndWaitReply(@NonNull BlePeripheralUart uartPeripheral, @NonNull byte[] data, @NonNull BlePeripheral.CaptureReadCompletionHandler readCompletionHandler) {
-        mSentBytes += data.length;
+        addSentBytes(uartPeripheral.getIdentifier(), data.length);
         uartPeripheral.uartSendAndWaitReply(data, null, readCompletionHandler);
     }
 
     public void sendAndWaitReply(@NonNull BlePeripheralUart uartPeripheral, @NonNull byte[] data, @Nullable BlePeripheral.CompletionHandler writeCompletionHandler, int readTimeout, @NonNull BlePeripheral.CaptureReadCompletionHandler readCompletionHandler) {
-        mSentBytes += data.length;
+        addSentBytes(uartPeripheral.getIdentifier(), data.length);
         uartPeripheral.uartSendAndWaitReply(data, writeCompletionHandler, readTimeout, readCompletionHandler);
     }
 
@@ -58,18 +57,7 @@ public class UartPacketManager extends UartPacketManagerBase {
         // Create data and send to Uart
         UartPacket uartPacket = new UartPacket(uartPeripheral.getIdentifier(), UartPacket.TRANSFERMODE_TX, data);
 
-        try {
-            mPacketsSemaphore.acquire();        // don't append more data, till the delegate has finished processing it
-        } catch (InterruptedException e) {
-            Log.w(TAG, "InterruptedException: " + e.toString());
-        }
-        mPacketsSemaphore.release();
-
-        Listener listener = mWeakListener.get();
-        mPackets.add(uartPacket);
-        if (listener != null) {
-            mMainHandler.post(() -> listener.onUartPacket(uartPacket));
-        }
+        addPacket(uartPacket);
 
         final boolean isMqttEnabled = mMqttManager != null;
         final boolean shouldBeSent = !wasReceivedFromMqtt || (isMqttEnabled && MqttSettings.getSubscribeBehaviour(mContext) == MqttSettings.kSubscribeBehaviour_Transmit);
@@ -80,7 +68,7 @@ public class UartPacketManager extends UartPacketManagerBase {
     }
 
     public void sendEachPacketSequentially(@NonNull BlePeripheralUart uartPeripheral, @NonNull byte[] data, int withResponseEveryPacketCount, BlePeripheral.ProgressHandler progressHandler, BlePeripheral.CompletionHandler completionHandler) {
-        mSentBytes += data.length;
+        addSentBytes(uartPeripheral.getIdentifier(), data.length);
         uartPeripheral.sendEachPacketSequentially(data, withResponseEveryPacketCount, progressHandler, completionHandler);
     }
 
@@ -1,7 +1,6 @@
 package com.adafruit.bluefruit.le.connect.ble.peripheral;
 
 import android.content.Context;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -24,7 +23,7 @@ public class UartPeripheralModePacketManager extends UartPacketManagerBase {
     // region Send data
 
     public void send(@NonNull UartPeripheralService uartPeripheralService, @NonNull byte[] data/*, BlePeripheral.UpdateDatabaseCompletionHandler completionHandler*/) {
-        mSentBytes += data.length;
+        addSentBytes(null, data.length);
         uartPeripheralService.setRx(data);
     }
 
@@ -43,18 +42,7 @@ public class UartPeripheralModePacketManager extends UartPacketManagerBase {
         // Create data and send to Uart
         UartPacket uartPacket = new UartPacket(null, UartPacket.TRANSFERMODE_TX, data);
 
-        try {
-            mPacketsSemaphore.acquire();        // don't append more data, till the delegate has finished processing it
-        } catch (InterruptedException e) {
-            Log.w(TAG, "InterruptedException: " + e.toString());
-        }
-        mPackets.add(uartPacket);
-        mPacketsSemaphore.release();
-
-        Listener listener = mWeakListener.get();
-        if (listener != null) {
-            mMainHandler.post(() -> listener.onUartPacket(uartPacket));
-        }
+        addPacket(uartPacket);
 
         final boolean isMqttEnabled = mMqttManager != null;
         final boolean shouldBeSent = !wasReceivedFromMqtt || (isMqttEnabled && MqttSettings.getSubscribeBehaviour(mContext) == MqttSettings.kSubscribeBehaviour_Transmit);
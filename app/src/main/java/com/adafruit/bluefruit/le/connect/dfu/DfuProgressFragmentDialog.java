@@ -36,6 +36,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
     // Data
     private String mBlePeripheralAddress;
     private Listener mListener;
+    private DfuProgressListener mDfuTuningListener;
 
     // region Fragment Lifecycle
     public static DfuProgressFragmentDialog newInstance(@NonNull String blePeripheralAddress, @Nullable String message) {
@@ -55,6 +56,8 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         if (bundle != null) {
             mBlePeripheralAddress = bundle.getString(kParamBlePeripheralAddress);
         }
+
+        mDfuTuningListener = DfuTuning.getInstance(requireContext()).getProgressListener();
     }
 
     @Override
@@ -130,6 +133,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         @Override
         public void onDfuProcessStarting(@NonNull final String deviceAddress) {
             Log.d(TAG, "onDfuProcessStarting");
+            mDfuTuningListener.onDfuProcessStarting(deviceAddress);
 
             setIndeterminate(true);
             setProgress(0);
@@ -146,6 +150,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
 
         @Override
         public void onProgressChanged(@NonNull final String deviceAddress, final int percent, final float speed, final float avgSpeed, final int currentPart, final int partsTotal) {
+            mDfuTuningListener.onProgressChanged(deviceAddress, percent, speed, avgSpeed, currentPart, partsTotal);
             Context context = getContext();
 
             //Log.d(TAG, "onProgressChanged: " + percent);
@@ -162,6 +167,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         @Override
         public void onFirmwareValidating(@NonNull final String deviceAddress) {
             Log.d(TAG, "onFirmwareValidating");
+            mDfuTuningListener.onFirmwareValidating(deviceAddress);
             setMessage(R.string.dfu_status_validating);
         }
 
@@ -180,6 +186,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         @Override
         public void onDfuCompleted(@NonNull final String deviceAddress) {
             Log.d(TAG, "onDfuCompleted");
+            mDfuTuningListener.onDfuCompleted(deviceAddress);
             setMessage(R.string.dfu_status_completed);
             mListener.onDfuCompleted(deviceAddress);
         }
@@ -187,6 +194,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         @Override
         public void onDfuAborted(@NonNull final String deviceAddress) {
             Log.d(TAG, "onDfuAborted");
+            mDfuTuningListener.onDfuAborted(deviceAddress);
             setMessage(R.string.dfu_status_aborted);
             mListener.onDfuAborted(deviceAddress);
         }
@@ -194,6 +202,7 @@ public class DfuProgressFragmentDialog extends ProgressFragmentDialog {
         @Override
         public void onError(@NonNull final String deviceAddress, final int error, final int errorType, final String message) {
             Log.d(TAG, "onError: " + message);
+            mDfuTuningListener.onError(deviceAddress, error, errorType, message);
             if (mListener != null) {
                 mListener.onError(deviceAddress, error, errorType, message);
             } else {
@@ -41,4 +41,16 @@ public class DfuService extends DfuBaseService {
     protected void updateForegroundNotification(@NonNull final NotificationCompat.Builder builder) {
         // Customize the foreground service notification here.
     }
+
+    // region Slots
+    // The dfu library runs a single update on each service class, so parallel updates (used by FleetDfuUpdater) need additional service classes. They should also be declared in the manifest
+    public static class Slot1 extends DfuService {
+    }
+
+    public static class Slot2 extends DfuService {
+    }
+
+    public static class Slot3 extends DfuService {
+    }
+    // endregion
 }
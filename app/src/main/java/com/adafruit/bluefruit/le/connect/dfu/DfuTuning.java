@@ -0,0 +1,372 @@
+package com.adafruit.bluefruit.le.connect.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import no.nordicsemi.android.dfu.DfuProgressListener;
+import no.nordicsemi.android.dfu.DfuProgressListenerAdapter;
+
+// Adaptive packet receipt notifications (PRN) and mtu settings for the dfu updates.
+// The first update for a phone model and board model pair uses the fastest level. When an update fails, the pair backs off to the next (more conservative) level, and the level that
+// works is remembered. After kSuccessesBeforeProbing successful updates, the next faster level is probed again (the failure could have been caused by a bad connection and not by the settings).
+// Each update is also recorded in a local history, with the throughput and the duration of each phase.
+// DfuServiceListenerHelper only keeps one progress listener for each device address, so the listeners that are already registered for an update (DfuProgressFragmentDialog and FleetDfuUpdater) forward the events with getProgressListener()
+@MainThread
+public class DfuTuning {
+    // Log
+    private final static String TAG = DfuTuning.class.getSimpleName();
+
+    // Config
+    private static final boolean kIsAdaptiveTuningEnabled = true;      // If false, the most conservative level is always used
+    private static final int kSuccessesBeforeProbing = 5;
+    private static final int kMaxHistoryEntries = 50;
+
+    // Levels, from the fastest to the most conservative. The last one is the previous fixed setting: a number of packets was forced to avoid problems on some devices (for example, MotoG4 with
+    // Android 6) and the mtu was left to the dfu library default
+    private static final int[] kPacketsReceiptNotificationsLevels = {0, 24, 12, 4};        // 0: packet receipt notifications disabled
+    private static final int[] kMtuLevels = {247, 247, 185, 0};                             // 0: the dfu library default is used
+
+    // Results
+    public static final int RESULT_COMPLETED = 0;
+    public static final int RESULT_ERROR = 1;
+    public static final int RESULT_ABORTED = 2;
+
+    // Constants
+    private final static String kPreferences = "DfuTuning_prefs";
+    private final static String kPreferences_LevelPrefix = "level_";
+    private final static String kPreferences_SuccessesPrefix = "successes_";
+    private final static String kPreferences_History = "history";
+
+    // Data Structures
+    static class Settings {
+        final int level;
+        final int packetsReceiptNotifications;
+        final int mtu;
+
+        Settings(int level) {
+            this.level = level;
+            this.packetsReceiptNotifications = kPacketsReceiptNotificationsLevels[level];
+            this.mtu = kMtuLevels[level];
+        }
+    }
+
+    public static class HistoryEntry {
+        public long timestamp;                  // System.currentTimeMillis() at the end of the update
+        public String phoneModel;
+        public String boardModel;
+        public int level;
+        public int packetsReceiptNotifications;
+        public int mtu;
+        public int result;                      // RESULT_*
+        public @Nullable
+        String errorMessage;
+        public long firmwareBytes;              // Size of the hex file
+        public long totalMillis;
+        public long connectMillis;              // Until the dfu process starts
+        public long startMillis;                // Enabling dfu mode and connecting to the bootloader
+        public long uploadMillis;
+        public long validateMillis;             // Validation and disconnection
+        public float uploadBytesPerSecond;      // Average upload speed reported by the dfu library
+
+        @NonNull
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("timestamp", timestamp);
+            json.put("phoneModel", phoneModel);
+            json.put("boardModel", boardModel);
+            json.put("level", level);
+            json.put("prn", packetsReceiptNotifications);
+            json.put("mtu", mtu);
+            json.put("result", result);
+            json.putOpt("error", errorMessage);
+            json.put("firmwareBytes", firmwareBytes);
+            json.put("totalMillis", totalMillis);
+            json.put("connectMillis", connectMillis);
+            json.put("startMillis", startMillis);
+            json.put("uploadMillis", uploadMillis);
+            json.put("validateMillis", validateMillis);
+            json.put("uploadBytesPerSecond", (double) uploadBytesPerSecond);
+            return json;
+        }
+
+        static @NonNull
+        HistoryEntry fromJson(@NonNull JSONObject json) {
+            HistoryEntry entry = new HistoryEntry();
+            entry.timestamp = json.optLong("timestamp");
+            entry.phoneModel = json.optString("phoneModel");
+            entry.boardModel = json.optString("boardModel");
+            entry.level = json.optInt("level");
+            entry.packetsReceiptNotifications = json.optInt("prn");
+            entry.mtu = json.optInt("mtu");
+            entry.result = json.optInt("result");
+            entry.errorMessage = json.has("error") ? json.optString("error") : null;
+            entry.firmwareBytes = json.optLong("firmwareBytes");
+            entry.totalMillis = json.optLong("totalMillis");
+            entry.connectMillis = json.optLong("connectMillis");
+            entry.startMillis = json.optLong("startMillis");
+            entry.uploadMillis = json.optLong("uploadMillis");
+            entry.validateMillis = json.optLong("validateMillis");
+            entry.uploadBytesPerSecond = (float) json.optDouble("uploadBytesPerSecond");
+            return entry;
+        }
+
+        @Override
+        public @NonNull
+        String toString() {
+            return String.format(Locale.US, "%s / %s: level %d (prn %d, mtu %d), result %d, %d bytes in %.1fs (connect %.1fs, start %.1fs, upload %.1fs, validate %.1fs), upload %.0f B/s%s",
+                    phoneModel, boardModel, level, packetsReceiptNotifications, mtu, result, firmwareBytes, totalMillis / 1000.f, connectMillis / 1000.f, startMillis / 1000.f, uploadMillis / 1000.f, validateMillis / 1000.f,
+                    uploadBytesPerSecond, errorMessage != null ? ", error: " + errorMessage : "");
+        }
+    }
+
+    // Singleton
+    private static DfuTuning mInstance = null;
+
+    // Data
+    private final Context mContext;
+    private final Map<String, Session> mSessions = new HashMap<>();         // Key: device address
+
+    public static DfuTuning getInstance(@NonNull Context context) {
+        if (mInstance == null) {
+            mInstance = new DfuTuning(context);
+        }
+        return mInstance;
+    }
+
+    private DfuTuning(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    // region Settings
+    // Returns the settings to use for an update, and starts tracking its progress to adapt the settings and record the history
+    @NonNull
+    Settings startSession(@NonNull String deviceAddress, @Nullable String boardModel, long firmwareBytes) {
+        final String boardKey = boardModel != null ? boardModel : "unknown";
+        final String key = getPhoneModel() + "/" + boardKey;
+        final Settings settings = getSettings(key);
+        Log.d(TAG, "Dfu settings for " + key + ": level " + settings.level + " prn: " + settings.packetsReceiptNotifications + " mtu: " + settings.mtu);
+
+        mSessions.put(deviceAddress, new Session(key, boardKey, settings, firmwareBytes));       // Replaces the previous session for the device (if it didn't finish)
+        return settings;
+    }
+
+    // Listener that updates the session of the device address that sends each event
+    @NonNull
+    DfuProgressListener getProgressListener() {
+        return mProgressListener;
+    }
+
+    private @NonNull
+    Settings getSettings(@NonNull String key) {
+        final int maxLevel = kPacketsReceiptNotificationsLevels.length - 1;
+        if (!kIsAdaptiveTuningEnabled) {
+            return new Settings(maxLevel);
+        }
+
+        final SharedPreferences preferences = getSharedPreferences();
+        int level = Math.min(maxLevel, preferences.getInt(kPreferences_LevelPrefix + key, 0));
+        final int successes = preferences.getInt(kPreferences_SuccessesPrefix + key, 0);
+        if (level > 0 && successes >= kSuccessesBeforeProbing) {
+            level--;        // Probe a faster level
+        }
+        return new Settings(level);
+    }
+
+    private void updateLevel(@NonNull String key, int level, boolean isSuccess) {
+        final SharedPreferences preferences = getSharedPreferences();
+        final int storedLevel = preferences.getInt(kPreferences_LevelPrefix + key, 0);
+        int successes = preferences.getInt(kPreferences_SuccessesPrefix + key, 0);
+        int newLevel = storedLevel;
+
+        if (isSuccess) {
+            if (level < storedLevel) {          // The probe succeeded
+                newLevel = level;
+                successes = 0;
+            } else if (level == storedLevel) {
+                successes++;
+            }
+        } else {
+            newLevel = Math.max(storedLevel, Math.min(level + 1, kPacketsReceiptNotificationsLevels.length - 1));
+            successes = 0;
+        }
+
+        if (newLevel != storedLevel) {
+            Log.d(TAG, "Dfu level for " + key + " changed: " + storedLevel + " -> " + newLevel);
+        }
+
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(kPreferences_LevelPrefix + key, newLevel);
+        editor.putInt(kPreferences_SuccessesPrefix + key, successes);
+        editor.apply();
+    }
+    // endregion
+
+    // region History
+    public @NonNull
+    List<HistoryEntry> getHistory() {
+        List<HistoryEntry> history = new ArrayList<>();
+        final String historyString = getSharedPreferences().getString(kPreferences_History, null);
+        if (historyString != null) {
+            try {
+                JSONArray historyArray = new JSONArray(historyString);
+                for (int i = 0; i < historyArray.length(); i++) {
+                    history.add(HistoryEntry.fromJson(historyArray.getJSONObject(i)));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Error reading dfu history: " + e);
+            }
+        }
+        return history;
+    }
+
+    public void clearHistory() {
+        getSharedPreferences().edit().remove(kPreferences_History).apply();
+    }
+
+    private void addHistoryEntry(@NonNull HistoryEntry entry) {
+        List<HistoryEntry> history = getHistory();
+        history.add(entry);
+        final int firstIndex = Math.max(0, history.size() - kMaxHistoryEntries);
+
+        try {
+            JSONArray historyArray = new JSONArray();
+            for (int i = firstIndex; i < history.size(); i++) {
+                historyArray.put(history.get(i).toJson());
+            }
+            getSharedPreferences().edit().putString(kPreferences_History, historyArray.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Error saving dfu history: " + e);
+        }
+    }
+    // endregion
+
+    // region Session
+    private final DfuProgressListener mProgressListener = new DfuProgressListenerAdapter() {
+        @Override
+        public void onDfuProcessStarting(@NonNull final String deviceAddress) {
+            Session session = mSessions.get(deviceAddress);
+            if (session != null && session.dfuStartingTime == 0) {
+                session.dfuStartingTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        @Override
+        public void onProgressChanged(@NonNull final String deviceAddress, final int percent, final float speed, final float avgSpeed, final int currentPart, final int partsTotal) {
+            Session session = mSessions.get(deviceAddress);
+            if (session != null) {
+                if (session.uploadingTime == 0) {
+                    session.uploadingTime = SystemClock.elapsedRealtime();
+                }
+                session.averageSpeed = avgSpeed;
+            }
+        }
+
+        @Override
+        public void onFirmwareValidating(@NonNull final String deviceAddress) {
+            Session session = mSessions.get(deviceAddress);
+            if (session != null && session.validatingTime == 0) {
+                session.validatingTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        @Override
+        public void onDfuCompleted(@NonNull final String deviceAddress) {
+            finishSession(deviceAddress, RESULT_COMPLETED, null);
+        }
+
+        @Override
+        public void onDfuAborted(@NonNull final String deviceAddress) {
+            finishSession(deviceAddress, RESULT_ABORTED, null);
+        }
+
+        @Override
+        public void onError(@NonNull final String deviceAddress, final int error, final int errorType, final String message) {
+            finishSession(deviceAddress, RESULT_ERROR, message);
+        }
+    };
+
+    private static class Session {
+        final String key;
+        final String boardModel;
+        final Settings settings;
+        final long firmwareBytes;
+        final long startTime = SystemClock.elapsedRealtime();
+        long dfuStartingTime;
+        long uploadingTime;
+        long validatingTime;
+        float averageSpeed;
+
+        Session(@NonNull String key, @NonNull String boardModel, @NonNull Settings settings, long firmwareBytes) {
+            this.key = key;
+            this.boardModel = boardModel;
+            this.settings = settings;
+            this.firmwareBytes = firmwareBytes;
+        }
+    }
+
+    private void finishSession(@NonNull String deviceAddress, int result, @Nullable String errorMessage) {
+        final Session session = mSessions.remove(deviceAddress);
+        if (session == null) {
+            return;
+        }
+
+        final long endTime = SystemClock.elapsedRealtime();
+        HistoryEntry entry = new HistoryEntry();
+        entry.timestamp = System.currentTimeMillis();
+        entry.phoneModel = getPhoneModel();
+        entry.boardModel = session.boardModel;
+        entry.level = session.settings.level;
+        entry.packetsReceiptNotifications = session.settings.packetsReceiptNotifications;
+        entry.mtu = session.settings.mtu;
+        entry.result = result;
+        entry.errorMessage = errorMessage;
+        entry.firmwareBytes = session.firmwareBytes;
+        entry.totalMillis = endTime - session.startTime;
+        entry.connectMillis = phaseMillis(session.startTime, session.dfuStartingTime);
+        entry.startMillis = phaseMillis(session.dfuStartingTime, session.uploadingTime);
+        entry.uploadMillis = phaseMillis(session.uploadingTime, session.validatingTime);
+        entry.validateMillis = phaseMillis(session.validatingTime, endTime);
+        entry.uploadBytesPerSecond = session.averageSpeed * 1000;          // The dfu library reports the speed in bytes/ms
+        Log.d(TAG, "Dfu finished: " + entry);
+        addHistoryEntry(entry);
+
+        // An aborted update (cancelled by the user) doesn't change the settings
+        if (result != RESULT_ABORTED) {
+            updateLevel(session.key, session.settings.level, result == RESULT_COMPLETED);
+        }
+    }
+    // endregion
+
+    // region Utils
+    private @NonNull
+    SharedPreferences getSharedPreferences() {
+        return mContext.getSharedPreferences(kPreferences, Context.MODE_PRIVATE);
+    }
+
+    private static @NonNull
+    String getPhoneModel() {
+        return Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    private static long phaseMillis(long startTime, long endTime) {
+        return startTime > 0 && endTime >= startTime ? endTime - startTime : 0;
+    }
+    // endregion
+}
@@ -18,16 +18,16 @@ import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.utils.NetworkUtils;
 import com.adafruit.bluefruit.le.connect.utils.ThreadUtils;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import no.nordicsemi.android.dfu.DfuBaseService;
 import no.nordicsemi.android.dfu.DfuServiceController;
 import no.nordicsemi.android.dfu.DfuServiceInitiator;
 
@@ -36,15 +36,11 @@ public class DfuUpdater {
     private final static String TAG = DfuUpdater.class.getSimpleName();
 
     // Config
-    private static final int kForceNumberOfPacketsReceiptNotificationsValue = 4;        // Set to 0 to disable hack. Force a number of packets to avoid problems on some devices. For example, MotoG4 with Android 6
     public static final String kDefaultUpdateServerUrl = "https://raw.githubusercontent.com/adafruit/Adafruit_BluefruitLE_Firmware/master/releases.xml";
 
     private static final String kManufacturer = "Adafruit Industries";
     private static final String kDefaultBootloaderVersion = "0.0";
 
-    private static final String kDefaultHexFilename = "firmware.hex";
-    private static final String kDefaultIniFilename = "firmware.ini";
-
     // Constants
     private static final UUID kNordicDeviceFirmwareUpdateServiceUUID = UUID.fromString("00001530-1212-EFDE-1523-785FEABCD123");
     private static final UUID kDeviceInformationServiceUUID = UUID.fromString("0000180A-0000-1000-8000-00805F9B34FB");
@@ -61,6 +57,9 @@ public class DfuUpdater {
     public static final int kDownloadOperation_Software_Hex = 1;
     public static final int kDownloadOperation_Software_Ini = 2;
 
+    private static final String kHexFileExtension = ".hex";         // The dfu library decides if the firmware is in hex or binary format by the file suffix
+    private static final String kInitFileExtension = ".dat";
+
     // Data Structures
     public static class DeviceDfuInfo {
         public String manufacturer;
@@ -300,6 +299,78 @@ public class DfuUpdater {
 
     // endregion
 
+    // region Firmware Files
+    interface FirmwareFilesListener {
+        void onDownloadProgress(int percent);
+
+        void onDownloadCompleted(@Nullable File hexFile, @Nullable File iniFile);        // hexFile is null if the download failed
+    }
+
+    // Downloads the hex and init files of a release in parallel (or gets them from the firmware cache). The returned requests can be used to cancel the download.
+    // The files are kept in the cache until the requests are cancelled, so they should be cancelled when the files are no longer needed (the update has finished)
+    @MainThread
+    static @NonNull
+    List<FirmwareDownloadManager.Request> downloadFirmwareFiles(@NonNull Context context, @NonNull ReleasesParser.BasicVersionInfo versionInfo, @NonNull FirmwareFilesListener listener) {
+        final Uri[] uris = versionInfo.iniFileUrl == null ? new Uri[]{versionInfo.hexFileUrl} : new Uri[]{versionInfo.hexFileUrl, versionInfo.iniFileUrl};
+        final String[] extensions = {kHexFileExtension, kInitFileExtension};
+        final File[] files = new File[uris.length];
+        final long[] downloadedBytes = new long[uris.length];
+        final long[] totalBytes = new long[uris.length];
+        Arrays.fill(totalBytes, -1);
+
+        final List<FirmwareDownloadManager.Request> requests = new ArrayList<>();
+        FirmwareDownloadManager downloadManager = FirmwareDownloadManager.getInstance(context);
+        for (int i = 0; i < uris.length; i++) {
+            final int index = i;
+            Log.d(TAG, "Downloading " + uris[i]);
+            FirmwareDownloadManager.Request request = downloadManager.download(uris[i], extensions[i], new FirmwareDownloadManager.Listener() {
+                @Override
+                public void onDownloadProgress(long downloaded, long total) {
+                    downloadedBytes[index] = downloaded;
+                    totalBytes[index] = total;
+
+                    // Combined progress (only when the size of all the files is known)
+                    long sumDownloaded = 0;
+                    long sumTotal = 0;
+                    for (int j = 0; j < uris.length; j++) {
+                        if (totalBytes[j] <= 0) {
+                            return;
+                        }
+                        sumDownloaded += downloadedBytes[j];
+                        sumTotal += totalBytes[j];
+                    }
+                    listener.onDownloadProgress((int) (sumDownloaded * 100 / sumTotal));
+                }
+
+                @Override
+                public void onDownloadCompleted(@Nullable File file) {
+                    if (file == null) {
+                        // Cancel the other file
+                        for (FirmwareDownloadManager.Request otherRequest : requests) {
+                            otherRequest.cancel();
+                        }
+                        listener.onDownloadCompleted(null, null);
+                        return;
+                    }
+
+                    files[index] = file;
+                    for (File downloadedFile : files) {
+                        if (downloadedFile == null) {
+                            return;         // Wait for the other file
+                        }
+                    }
+
+                    listener.onDownloadCompleted(files[0], files.length > 1 ? files[1] : null);
+                }
+            });
+            requests.add(request);
+        }
+
+        return requests;
+    }
+
+    // endregion
+
     // region Dfu Update
 
     public interface DownloadStateListener {
@@ -310,83 +381,53 @@ public class DfuUpdater {
         void onDownloadFailed();
     }
 
-    public void downloadAndInstall(@NonNull Context context, @NonNull String deviceAddress, @NonNull String deviceName, @NonNull ReleasesParser.BasicVersionInfo versionInfo, @NonNull DownloadStateListener downloadStateListener) {
-        // Cancel previous download task if still running
-        if (sDownloadTask != null) {
-            sDownloadTask.cancel(true);
-            sDownloadTask.setListener(null);
-        }
+    private final List<FirmwareDownloadManager.Request> mDownloadRequests = new ArrayList<>();
 
-        Log.d(TAG, "Downloading " + versionInfo.hexFileUrl);
+    // Downloads the hex and init files in parallel (or gets them from the firmware cache) and starts the update when both are available
+    public void downloadAndInstall(@NonNull Context context, @NonNull String deviceAddress, @NonNull String deviceName, @NonNull ReleasesParser.BasicVersionInfo versionInfo, @NonNull DownloadStateListener downloadStateListener) {
+        // Cancel previous downloads if still running
+        cancelDownloads();
 
-        sDownloadTask = new DownloadTask(context, kDownloadOperation_Software_Hex, new DownloadTask.Listener() {
+        downloadStateListener.onDownloadStarted(kDownloadOperation_Software_Hex);
+        mDownloadRequests.addAll(downloadFirmwareFiles(context, versionInfo, new FirmwareFilesListener() {
             @Override
-            public void onDownloadProgress(int operationId, int progress) {
-                downloadStateListener.onDownloadProgress(progress);
+            public void onDownloadProgress(int percent) {
+                downloadStateListener.onDownloadProgress(percent);
             }
 
             @Override
-            public void onDownloadCompleted(int operationId, @NonNull Uri uri, @Nullable ByteArrayOutputStream result) {
-                if (result != null) {
-                    File file = writeSoftwareDownload(context, uri, result, kDefaultHexFilename);
-                    final boolean success = file != null;
-                    if (success) {
-                        // Check if we also need to download an ini file, or we are good
-                        if (versionInfo.iniFileUrl == null) {
-                            // No init file so, go to install firmware
-                            install(context, deviceAddress, deviceName, file.getAbsolutePath(), null);
-                            sDownloadTask = null;
-                        } else {
-                            // We have to download the ini file too
-                            Log.d(TAG, "Downloading " + versionInfo.iniFileUrl);
-                            sDownloadTask = new DownloadTask(context, kDownloadOperation_Software_Ini, new DownloadTask.Listener() {
-                                @Override
-                                public void onDownloadProgress(int operationId, int progress) {
-                                    downloadStateListener.onDownloadProgress(progress);
-                                }
-
-                                @Override
-                                public void onDownloadCompleted(int operationId, @NonNull Uri uri, @Nullable ByteArrayOutputStream result) {
-                                    if (result != null) {
-                                        File file = writeSoftwareDownload(context, uri, result, kDefaultIniFilename);
-                                        final boolean success = file != null;
-                                        if (success) {
-                                            // We already had the hex file downloaded, and now we also have the ini file. Let's go
-                                            String hexLocalFile = new File(context.getCacheDir(), kDefaultHexFilename).getAbsolutePath();          // get path from the previously downloaded hex file
-                                            install(context, deviceAddress, deviceName, hexLocalFile, file.getAbsolutePath());
-                                        } else {
-                                            downloadStateListener.onDownloadFailed();
-                                            sDownloadTask = null;
-                                        }
-                                    } else {
-                                        downloadStateListener.onDownloadFailed();
-                                    }
-                                }
-                            });
-
-                            downloadStateListener.onDownloadStarted(kDownloadOperation_Software_Ini);
-                            sDownloadTask.execute(versionInfo.iniFileUrl);
-                        }
-                    } else {
-                        downloadStateListener.onDownloadFailed();
-                        sDownloadTask = null;
-                    }
-
-                } else {
+            public void onDownloadCompleted(@Nullable File hexFile, @Nullable File iniFile) {
+                if (hexFile == null) {
+                    cancelDownloads();
                     downloadStateListener.onDownloadFailed();
+                    return;
                 }
-            }
-        });
 
-        downloadStateListener.onDownloadStarted(kDownloadOperation_Software_Hex);
-        sDownloadTask.execute(versionInfo.hexFileUrl);
+                mDfuServiceController = startDfuService(context, deviceAddress, deviceName, versionInfo.boardName, hexFile.getAbsolutePath(), iniFile != null ? iniFile.getAbsolutePath() : null, DfuService.class, true);
+            }
+        }));
+    }
 
+    // Should be called when the update finishes, so the firmware files can be evicted from the cache
+    public void onInstallFinished() {
+        cancelDownloads();
+        mDfuServiceController = null;
+    }
 
+    // Cancels the downloads or releases the downloaded files
+    private void cancelDownloads() {
+        for (FirmwareDownloadManager.Request request : mDownloadRequests) {
+            request.cancel();
+        }
+        mDownloadRequests.clear();
     }
 
     private DfuServiceController mDfuServiceController;
 
-    private void install(@NonNull Context context, @NonNull String deviceAddress, @NonNull String deviceName, @NonNull String localHexPath, @Nullable String localIniPath) {
+    // Starts the update on the given service class (only one update can run on each service class). Notifications should only be enabled when a single update is running,
+    // because all the services use the same notification id. The packet receipt notifications and mtu are chosen by DfuTuning for the phone and board model
+    static @NonNull
+    DfuServiceController startDfuService(@NonNull Context context, @NonNull String deviceAddress, @NonNull String deviceName, @Nullable String boardModel, @NonNull String localHexPath, @Nullable String localIniPath, @NonNull Class<? extends DfuBaseService> serviceClass, boolean isNotificationEnabled) {
 
         //final boolean keepBond = false;
         final DfuServiceInitiator starter = new DfuServiceInitiator(deviceAddress)
@@ -394,9 +435,15 @@ public class DfuUpdater {
                 //.setKeepBond(keepBond);
                 ;
 
-        if (kForceNumberOfPacketsReceiptNotificationsValue != 0) {
+        final DfuTuning.Settings settings = DfuTuning.getInstance(context).startSession(deviceAddress, boardModel, new File(localHexPath).length());
+        if (settings.packetsReceiptNotifications != 0) {
             starter.setPacketsReceiptNotificationsEnabled(true);
-            starter.setPacketsReceiptNotificationsValue(kForceNumberOfPacketsReceiptNotificationsValue);
+            starter.setPacketsReceiptNotificationsValue(settings.packetsReceiptNotifications);
+        } else {
+            starter.setPacketsReceiptNotificationsEnabled(false);
+        }
+        if (settings.mtu != 0) {
+            starter.setMtu(settings.mtu);
         }
 
         /*
@@ -419,20 +466,21 @@ public class DfuUpdater {
             starter.setInitFile(null, localIniPath);
         }
 
-        DfuServiceInitiator.createDfuNotificationChannel(context);
+        if (isNotificationEnabled) {
+            DfuServiceInitiator.createDfuNotificationChannel(context);
+        } else {
+            starter.setForeground(false);
+            starter.setDisableNotification(true);
+        }
 
-        mDfuServiceController = starter.start(context, DfuService.class);
+        return starter.start(context, serviceClass);
     }
 
     public void cancelInstall() {
         Log.d(TAG, "cancelInstall");
 
         // Abort downloads
-        if (sDownloadTask != null) {
-            sDownloadTask.cancel(true);
-            sDownloadTask.setListener(null);
-            sDownloadTask = null;
-        }
+        cancelDownloads();
 
         // Abort updates
         if (mDfuServiceController != null) {
@@ -441,31 +489,4 @@ public class DfuUpdater {
     }
 
     // endregion
-
-    // region Utils
-
-    private File writeSoftwareDownload(@NonNull Context context, @NonNull Uri uri, @NonNull ByteArrayOutputStream result, @NonNull String filename) {
-
-        Log.d(TAG, "Downloaded version: " + uri.toString() + " size: " + result.size() + " -> " + filename);
-
-        File resultFile;
-        File file = new File(context.getCacheDir(), filename);
-
-        BufferedOutputStream bos;
-        boolean success = true;
-        try {
-            bos = new BufferedOutputStream(new FileOutputStream(file));
-            bos.write(result.toByteArray());
-            bos.flush();
-            bos.close();
-        } catch (IOException e) {
-            success = false;
-            Log.e(TAG, "Error writing downloaded version");
-        }
-
-        resultFile = success ? file : null;
-
-        return resultFile;
-    }
-    // endregion
 }
@@ -0,0 +1,479 @@
+package com.adafruit.bluefruit.le.connect.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.adafruit.bluefruit.le.connect.ble.ByteFormatter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Downloads firmware files straight to disk and keeps them in a content-addressed cache.
+// Each download is streamed to a temporary file while its SHA-256 is calculated, and then renamed to "<sha256>.<extension>" (the dfu library uses the extension to know the file format),
+// so identical files downloaded from different urls are only stored once. An index (url -> cached file) is kept in the preferences, so a url that has already been downloaded is not downloaded again,
+// and the least recently used files are removed when the cache grows over kMaxCacheSizeBytes. Files delivered to a request are pinned (never evicted) until the request is released, so the files
+// of an update that is running or waiting to run (i.e. a fleet update queued for a free slot) are not deleted by other downloads.
+// Requests for an url that is already being downloaded share the same download (i.e. when several boards are updated with the same firmware)
+class FirmwareDownloadManager {
+    // Log
+    private final static String TAG = FirmwareDownloadManager.class.getSimpleName();
+
+    // Config
+    private static final int kMaxParallelDownloads = 2;
+    private static final long kMaxCacheSizeBytes = 8 * 1024 * 1024;
+    private static final int kConnectTimeoutMillis = 15000;
+    private static final int kReadTimeoutMillis = 15000;
+    private static final long kWakeLockTimeoutMillis = 10 * 60 * 1000;
+    private static final int kBufferSize = 8192;
+
+    // Constants
+    private static final String kCacheDirectory = "firmware";
+    private static final String kTempFilePrefix = "download_";
+    private static final String kTempFileSuffix = ".tmp";
+    private final static String kPreferences = "FirmwareDownloadManager_prefs";
+
+    // Listener (called on the main thread)
+    interface Listener {
+        void onDownloadProgress(long downloadedBytes, long totalBytes);     // totalBytes is -1 if the server didn't report the length
+
+        void onDownloadCompleted(@Nullable File file);                      // file is null if the download failed. Not called if the request was cancelled. The file is pinned until the request is released
+    }
+
+    // Returned by download(). Used to cancel the download or, once completed, to release the file
+    class Request {
+        private final Listener mListener;
+        private final Download mDownload;
+        private boolean mIsCancelled = false;
+        private boolean mIsFinished = false;
+        private File mFile;                 // Pinned file (only while the request has not been released)
+
+        private Request(@NonNull Listener listener, @NonNull Download download) {
+            mListener = listener;
+            mDownload = download;
+        }
+
+        // Cancels the download if it has not finished, or releases the downloaded file so it can be evicted from the cache
+        @MainThread
+        void cancel() {
+            if (mIsCancelled) {
+                return;
+            }
+            mIsCancelled = true;
+            if (mFile != null) {
+                unpinFile(mFile);
+                mFile = null;
+            }
+            if (mIsFinished) {
+                return;
+            }
+            mDownload.requests.remove(this);
+
+            // Stop the download if nobody else is waiting for it
+            if (mDownload.requests.isEmpty()) {
+                mDownload.isCancelled = true;
+                if (mDownload.future != null) {
+                    mDownload.future.cancel(false);
+                }
+                mDownloads.remove(mDownload.key);
+            }
+        }
+    }
+
+    private static class Download {
+        final String key;
+        final Uri uri;
+        final String extension;
+        final List<Request> requests = new ArrayList<>();       // Only accessed from the main thread
+        volatile boolean isCancelled = false;
+        Future<?> future;
+
+        Download(@NonNull Uri uri, @NonNull String extension) {
+            this.key = uri.toString();
+            this.uri = uri;
+            this.extension = extension;
+        }
+    }
+
+    // Singleton
+    private static FirmwareDownloadManager mInstance = null;
+
+    // Data
+    private final Context mContext;
+    private final File mCacheDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(kMaxParallelDownloads);
+    private final Map<String, Download> mDownloads = new HashMap<>();       // Ongoing downloads. Key: url. Only accessed from the main thread
+    private final Object mCacheLock = new Object();
+    private final Map<String, Integer> mPinCounts = new HashMap<>();        // Files that can't be evicted. Key: filename, value: number of requests that use the file. Guarded by mCacheLock
+
+    @MainThread
+    static FirmwareDownloadManager getInstance(@NonNull Context context) {
+        if (mInstance == null) {
+            mInstance = new FirmwareDownloadManager(context);
+        }
+        return mInstance;
+    }
+
+    private FirmwareDownloadManager(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+        mCacheDirectory = new File(mContext.getCacheDir(), kCacheDirectory);
+
+        // Remove temporary files left by downloads that didn't finish (i.e. the app was killed)
+        mExecutor.execute(() -> {
+            File[] files = mCacheDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(kTempFileSuffix) && !file.delete()) {
+                        Log.w(TAG, "Can't delete temporary file: " + file.getName());
+                    }
+                }
+            }
+        });
+    }
+
+    // region Actions
+    // extension is the suffix (including the dot) of the cached file. It is not taken from the uri, because files picked from a document provider use content uris without extension,
+    // and the dfu library uses the file suffix to decide if a file is in hex or binary format
+    @MainThread
+    @NonNull
+    Request download(@NonNull Uri uri, @NonNull String extension, @NonNull Listener listener) {
+        final String key = uri.toString();
+        Download download = mDownloads.get(key);
+        final boolean isNewDownload = download == null;
+        if (isNewDownload) {
+            download = new Download(uri, extension);
+            mDownloads.put(key, download);
+        } else {
+            Log.d(TAG, "Already downloading: " + key);
+        }
+
+        Request request = new Request(listener, download);
+        download.requests.add(request);
+
+        if (isNewDownload) {
+            final Download finalDownload = download;
+            download.future = mExecutor.submit(() -> {
+                final File file = getOrDownloadFile(finalDownload);
+                mMainHandler.post(() -> onDownloadFinished(finalDownload, file));
+            });
+        }
+
+        return request;
+    }
+    // endregion
+
+    // region Download
+    @MainThread
+    private void onDownloadFinished(@NonNull Download download, @Nullable File file) {
+        if (mDownloads.get(download.key) == download) {
+            mDownloads.remove(download.key);
+        }
+
+        // The file was pinned once by the download. Each request that receives it holds its own pin
+        final List<Request> requests = new ArrayList<>(download.requests);
+        download.requests.clear();
+        if (file != null) {
+            if (download.isCancelled || requests.isEmpty()) {
+                unpinFile(file);
+            } else {
+                for (int i = 1; i < requests.size(); i++) {
+                    pinFile(file);
+                }
+            }
+        }
+        if (download.isCancelled) {
+            return;
+        }
+
+        for (Request request : requests) {
+            request.mIsFinished = true;
+            request.mFile = file;
+        }
+        for (Request request : requests) {
+            request.mListener.onDownloadCompleted(file);
+        }
+    }
+
+    // The file returned is pinned
+    private @Nullable
+    File getOrDownloadFile(@NonNull Download download) {
+        final boolean isRemote = isRemoteUri(download.uri);
+
+        // Check the cache first (local files are always read again because its contents could have changed)
+        if (isRemote) {
+            File cachedFile = getCachedFile(download.key, download.extension);
+            if (cachedFile != null) {
+                Log.d(TAG, "Cache hit: " + download.key + " -> " + cachedFile.getName());
+                return cachedFile;
+            }
+        }
+
+        PowerManager.WakeLock wakeLock = null;
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) {
+            // Keep the CPU running if the user presses the power button during the download
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getName());
+            wakeLock.acquire(kWakeLockTimeoutMillis);
+        }
+
+        try {
+            return downloadFile(download, isRemote);
+        } finally {
+            if (wakeLock != null && wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+    }
+
+    private @Nullable
+    File downloadFile(@NonNull Download download, boolean isRemote) {
+        Log.d(TAG, "Download: " + download.key);
+        if (!mCacheDirectory.exists() && !mCacheDirectory.mkdirs()) {
+            Log.w(TAG, "Can't create cache directory");
+            return null;
+        }
+
+        HttpURLConnection connection = null;
+        File tempFile = null;
+        try {
+            long totalBytes = -1;
+            InputStream input;
+            if (isRemote) {
+                connection = (HttpURLConnection) new URL(download.key).openConnection();
+                connection.setConnectTimeout(kConnectTimeoutMillis);
+                connection.setReadTimeout(kReadTimeoutMillis);
+                connection.connect();
+
+                // expect HTTP 200 OK, so we don't mistakenly save error report instead of the file
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, "Download error " + connection.getResponseCode() + " for: " + download.key);
+                    return null;
+                }
+                totalBytes = connection.getContentLength();
+                input = connection.getInputStream();
+            } else {
+                input = mContext.getContentResolver().openInputStream(download.uri);
+            }
+            if (input == null) {
+                Log.e(TAG, "Download with null input");
+                return null;
+            }
+
+            // Stream to a temporary file calculating the hash
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            tempFile = File.createTempFile(kTempFilePrefix, kTempFileSuffix, mCacheDirectory);
+            try (InputStream inputStream = input; OutputStream output = new FileOutputStream(tempFile)) {
+                byte[] buffer = new byte[kBufferSize];
+                long downloadedBytes = 0;
+                int lastPercent = -1;
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    if (download.isCancelled) {
+                        Log.d(TAG, "Download cancelled: " + download.key);
+                        return null;
+                    }
+
+                    digest.update(buffer, 0, count);
+                    output.write(buffer, 0, count);
+                    downloadedBytes += count;
+
+                    // Progress (only when the percent changes, to avoid flooding the main thread)
+                    final int percent = totalBytes > 0 ? (int) (downloadedBytes * 100 / totalBytes) : -1;
+                    if (percent != lastPercent || totalBytes <= 0) {
+                        lastPercent = percent;
+                        postProgress(download, downloadedBytes, totalBytes);
+                    }
+                }
+            }
+
+            // Move to the content-addressed file
+            final String hash = ByteFormatter.hexString(digest.digest(), (char) 0).toLowerCase(Locale.US);
+            final String filename = hash + download.extension;
+            synchronized (mCacheLock) {
+                File file = new File(mCacheDirectory, filename);
+                if (file.exists()) {
+                    Log.d(TAG, "Same contents already cached: " + filename);
+                    //noinspection ResultOfMethodCallIgnored
+                    file.setLastModified(System.currentTimeMillis());
+                } else if (!tempFile.renameTo(file)) {
+                    Log.w(TAG, "Can't rename downloaded file");
+                    return null;
+                }
+
+                if (isRemote) {
+                    getSharedPreferences().edit().putString(download.key, filename).apply();
+                }
+                pinFile(file);
+                evictCacheFiles();
+
+                Log.d(TAG, "Downloaded: " + download.key + " -> " + filename + " (" + file.length() + " bytes)");
+                return file;
+            }
+
+        } catch (IOException | NoSuchAlgorithmException | SecurityException e) {
+            Log.w(TAG, "Download error: " + e);
+            return null;
+        } finally {
+            if (tempFile != null && tempFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void postProgress(@NonNull Download download, long downloadedBytes, long totalBytes) {
+        mMainHandler.post(() -> {
+            if (download.isCancelled) {
+                return;
+            }
+            for (Request request : download.requests) {
+                request.mListener.onDownloadProgress(downloadedBytes, totalBytes);
+            }
+        });
+    }
+    // endregion
+
+    // region Cache
+    // Returns the cached file for the url (pinned) if it exists with the extension and its contents still match its hash
+    private @Nullable
+    File getCachedFile(@NonNull String key, @NonNull String extension) {
+        synchronized (mCacheLock) {
+            final String filename = getSharedPreferences().getString(key, null);
+            if (filename == null || !filename.endsWith(extension)) {
+                return null;
+            }
+
+            File file = new File(mCacheDirectory, filename);
+            final String hash = file.exists() ? calculateHash(file) : null;
+            if (hash == null || !filename.startsWith(hash)) {
+                Log.w(TAG, "Cached file missing or corrupted: " + filename);
+                getSharedPreferences().edit().remove(key).apply();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return null;
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());       // Used as the last access time for the LRU eviction
+            pinFile(file);
+            return file;
+        }
+    }
+
+    private void pinFile(@NonNull File file) {
+        synchronized (mCacheLock) {
+            final Integer count = mPinCounts.get(file.getName());
+            mPinCounts.put(file.getName(), count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unpinFile(@NonNull File file) {
+        synchronized (mCacheLock) {
+            final Integer count = mPinCounts.get(file.getName());
+            if (count == null || count <= 1) {
+                mPinCounts.remove(file.getName());
+            } else {
+                mPinCounts.put(file.getName(), count - 1);
+            }
+        }
+    }
+
+    // Removes the least recently used files until the cache size is below kMaxCacheSizeBytes. Pinned files (the file just downloaded and the files in use) are always kept. Should be called with mCacheLock held
+    private void evictCacheFiles() {
+        File[] files = mCacheDirectory.listFiles(file -> !file.getName().endsWith(kTempFileSuffix));
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= kMaxCacheSizeBytes) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (totalSize <= kMaxCacheSizeBytes) {
+                break;
+            }
+            if (mPinCounts.containsKey(file.getName())) {
+                continue;
+            }
+
+            final long length = file.length();
+            if (file.delete()) {
+                Log.d(TAG, "Evicted: " + file.getName());
+                totalSize -= length;
+            }
+        }
+
+        // Remove the index entries of the files evicted
+        SharedPreferences preferences = getSharedPreferences();
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof String && !new File(mCacheDirectory, (String) entry.getValue()).exists()) {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+    }
+    // endregion
+
+    // region Utils
+    private SharedPreferences getSharedPreferences() {
+        return mContext.getSharedPreferences(kPreferences, Context.MODE_PRIVATE);
+    }
+
+    private static boolean isRemoteUri(@NonNull Uri uri) {
+        final String scheme = uri.getScheme();
+        return scheme == null || !(scheme.equalsIgnoreCase("file") || scheme.equalsIgnoreCase("content"));
+    }
+
+    private static @Nullable
+    String calculateHash(@NonNull File file) {
+        try (InputStream input = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[kBufferSize];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+            return ByteFormatter.hexString(digest.digest(), (char) 0).toLowerCase(Locale.US);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "Error calculating hash: " + e);
+            return null;
+        }
+    }
+    // endregion
+}
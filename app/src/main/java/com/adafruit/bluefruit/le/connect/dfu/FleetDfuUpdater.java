@@ -0,0 +1,538 @@
+package com.adafruit.bluefruit.le.connect.dfu;
+
+import static android.Manifest.permission.BLUETOOTH_CONNECT;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+
+import com.adafruit.bluefruit.le.connect.R;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+import no.nordicsemi.android.dfu.DfuProgressListener;
+import no.nordicsemi.android.dfu.DfuProgressListenerAdapter;
+import no.nordicsemi.android.dfu.DfuServiceController;
+import no.nordicsemi.android.dfu.DfuServiceListenerHelper;
+
+// Updates the firmware of a list of peripherals (i.e. the peripherals connected in multi-connect mode).
+// All the peripherals are checked with checkUpdatesForPeripheral while they are still connected, and the ones with an update available are queued. The queue is processed with up to
+// maxParallelUpdates updates running at the same time. Each running update uses one of the dfu service classes (slots), so the parallelism is limited to kMaxParallelUpdates.
+// Failed downloads and updates are retried maxRetries times. A report is kept for each device with the result, timing and throughput
+@MainThread
+public class FleetDfuUpdater {
+    // Log
+    private final static String TAG = FleetDfuUpdater.class.getSimpleName();
+
+    // Config
+    private static final long kRetryDelayMillis = 5000;         // Time given to the peripheral to reboot (or to restart the bootloader) before retrying
+
+    // Constants
+    private static final List<Class<? extends DfuBaseService>> kServiceSlots = Arrays.asList(DfuService.class, DfuService.Slot1.class, DfuService.Slot2.class, DfuService.Slot3.class);
+    public static final int kMaxParallelUpdates = kServiceSlots.size();
+
+    // Device states
+    public static final int STATE_CHECKING = 0;
+    public static final int STATE_UP_TO_DATE = 1;           // No update available (or the peripheral doesn't support dfu)
+    public static final int STATE_QUEUED = 2;
+    public static final int STATE_DOWNLOADING = 3;
+    public static final int STATE_UPDATING = 4;
+    public static final int STATE_WAITING_RETRY = 5;
+    public static final int STATE_COMPLETED = 6;
+    public static final int STATE_FAILED = 7;
+    public static final int STATE_CANCELLED = 8;
+
+    // Data Structures
+    public static class DeviceReport {
+        public final @NonNull
+        String address;
+        public final @Nullable
+        String name;
+        public int state = STATE_CHECKING;
+        public @Nullable
+        String currentVersion;
+        public @Nullable
+        String targetVersion;
+        public int attempts;
+        public int progress;                // Percentage of the current download or update
+        public long checkMillis;
+        public long downloadMillis;
+        public long updateMillis;           // Duration of the last update attempt (connection, upload and validation)
+        public long firmwareBytes;          // Size of the hex file
+        public float averageSpeed;          // Average upload speed reported by the dfu library (in kB/s)
+        public @Nullable
+        String errorMessage;
+
+        DeviceReport(@NonNull String address, @Nullable String name) {
+            this.address = address;
+            this.name = name;
+        }
+
+        public boolean isFinished() {
+            return state == STATE_UP_TO_DATE || state >= STATE_COMPLETED;
+        }
+
+        // Effective throughput of the last update attempt, in bytes per second
+        public float getThroughput() {
+            return updateMillis > 0 ? firmwareBytes * 1000.f / updateMillis : 0;
+        }
+    }
+
+    private static class Job {
+        final DeviceReport report;
+        final BlePeripheral blePeripheral;
+        ReleasesParser.BasicVersionInfo versionInfo;
+        File hexFile;
+        File iniFile;
+        List<FirmwareDownloadManager.Request> downloadRequests;
+        DfuServiceController dfuServiceController;
+        int slot = -1;
+        long stepStartMillis;
+
+        Job(@NonNull BlePeripheral blePeripheral, @NonNull DeviceReport report) {
+            this.blePeripheral = blePeripheral;
+            this.report = report;
+        }
+    }
+
+    // Listener (called on the main thread)
+    public interface Listener {
+        void onFleetUpdateChanged(@NonNull DeviceReport report);
+
+        void onFleetUpdateFinished(@NonNull List<DeviceReport> reports);
+    }
+
+    // Data
+    private final Context mContext;
+    private final DfuProgressListener mDfuTuningListener;
+    private final int mMaxParallelUpdates;
+    private final int mMaxRetries;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Job> mJobs = new LinkedHashMap<>();          // Key: device address
+    private final ArrayDeque<Job> mQueue = new ArrayDeque<>();
+    private final Job[] mSlots;
+    private Listener mListener;
+    private boolean mIsRunning = false;
+
+    public FleetDfuUpdater(@NonNull Context context, int maxParallelUpdates, int maxRetries) {
+        mContext = context.getApplicationContext();
+        mDfuTuningListener = DfuTuning.getInstance(context).getProgressListener();          // Forwarded before the job is finished, because a retry starts a new tuning session for the device
+        mMaxParallelUpdates = Math.max(1, Math.min(maxParallelUpdates, kMaxParallelUpdates));
+        mMaxRetries = Math.max(0, maxRetries);
+        mSlots = new Job[mMaxParallelUpdates];
+    }
+
+    // region Actions
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    public void start(@NonNull List<BlePeripheral> blePeripherals, boolean shouldRecommendBetaReleases, @NonNull Listener listener) {
+        if (mIsRunning) {
+            Log.w(TAG, "Fleet update already running. Skipped...");
+            return;
+        }
+
+        mIsRunning = true;
+        mListener = listener;
+        mJobs.clear();
+        mQueue.clear();
+        Arrays.fill(mSlots, null);
+
+        for (BlePeripheral blePeripheral : blePeripherals) {
+            final String address = blePeripheral.getDevice().getAddress();
+            mJobs.put(address, new Job(blePeripheral, new DeviceReport(address, blePeripheral.getName())));
+        }
+        Log.d(TAG, "Fleet update started for " + mJobs.size() + " peripherals. Parallel updates: " + mMaxParallelUpdates);
+
+        DfuServiceListenerHelper.registerProgressListener(mContext, mDfuProgressListener);
+
+        if (mJobs.isEmpty()) {
+            checkFinished();
+            return;
+        }
+
+        // Check all the peripherals first, while they are connected
+        for (Job job : new ArrayList<>(mJobs.values())) {
+            checkUpdates(job, shouldRecommendBetaReleases);
+        }
+    }
+
+    public void cancel() {
+        if (!mIsRunning) {
+            return;
+        }
+
+        Log.d(TAG, "Fleet update cancelled");
+        mMainHandler.removeCallbacksAndMessages(null);        // Pending retries
+        mQueue.clear();
+
+        for (Job job : mJobs.values()) {
+            releaseFiles(job);
+
+            if (job.dfuServiceController != null && job.report.state == STATE_UPDATING) {
+                job.dfuServiceController.abort();
+            }
+            job.dfuServiceController = null;
+
+            if (!job.report.isFinished()) {
+                job.report.state = STATE_CANCELLED;
+                notifyChanged(job);
+            }
+        }
+        Arrays.fill(mSlots, null);
+
+        checkFinished();
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    public @NonNull
+    List<DeviceReport> getReports() {
+        List<DeviceReport> reports = new ArrayList<>();
+        for (Job job : mJobs.values()) {
+            reports.add(job.report);
+        }
+        return reports;
+    }
+    // endregion
+
+    // region Check
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    private void checkUpdates(@NonNull Job job, boolean shouldRecommendBetaReleases) {
+        job.report.state = STATE_CHECKING;
+        job.stepStartMillis = SystemClock.elapsedRealtime();
+        notifyChanged(job);
+
+        // Note: the ignored version is not used. The fleet is updated to the latest release
+        DfuUpdater.checkUpdatesForPeripheral(mContext, job.blePeripheral, false, shouldRecommendBetaReleases, null,
+                (isUpdateAvailable, latestRelease, deviceDfuInfo) -> mMainHandler.post(() -> onCheckFinished(job, isUpdateAvailable, latestRelease, deviceDfuInfo)));
+    }
+
+    private void onCheckFinished(@NonNull Job job, boolean isUpdateAvailable, @Nullable ReleasesParser.FirmwareInfo latestRelease, @Nullable DfuUpdater.DeviceDfuInfo deviceDfuInfo) {
+        if (job.report.isFinished()) {
+            return;         // Cancelled while checking
+        }
+
+        job.report.checkMillis = SystemClock.elapsedRealtime() - job.stepStartMillis;
+        job.report.currentVersion = deviceDfuInfo != null ? deviceDfuInfo.softwareRevision : null;
+
+        if (isUpdateAvailable && latestRelease != null) {
+            Log.d(TAG, job.report.address + ": update available " + job.report.currentVersion + " -> " + latestRelease.version);
+            job.versionInfo = latestRelease;
+            job.report.targetVersion = latestRelease.version;
+            job.report.state = STATE_QUEUED;
+            mQueue.add(job);
+        } else {
+            Log.d(TAG, job.report.address + ": no update available");
+            job.report.state = STATE_UP_TO_DATE;
+        }
+        notifyChanged(job);
+
+        scheduleJobs();
+    }
+    // endregion
+
+    // region Scheduling
+    private void scheduleJobs() {
+        int slot;
+        while (!mQueue.isEmpty() && (slot = getFreeSlot()) >= 0) {
+            Job job = mQueue.poll();
+            job.slot = slot;
+            mSlots[slot] = job;
+            job.report.attempts++;
+
+            if (job.hexFile == null) {
+                download(job);
+            } else {
+                update(job);        // Retrying an update. Files were already downloaded
+            }
+        }
+
+        checkFinished();
+    }
+
+    private int getFreeSlot() {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void releaseSlot(@NonNull Job job) {
+        if (job.slot >= 0 && mSlots[job.slot] == job) {
+            mSlots[job.slot] = null;
+        }
+        job.slot = -1;
+    }
+
+    private void checkFinished() {
+        if (!mIsRunning) {
+            return;
+        }
+
+        for (Job job : mJobs.values()) {
+            if (!job.report.isFinished()) {
+                return;
+            }
+        }
+
+        mIsRunning = false;
+        DfuServiceListenerHelper.unregisterProgressListener(mContext, mDfuProgressListener);
+
+        final List<DeviceReport> reports = getReports();
+        Log.d(TAG, "Fleet update finished:\n" + getReportText(reports));
+        if (mListener != null) {
+            mListener.onFleetUpdateFinished(reports);
+        }
+    }
+    // endregion
+
+    // region Download
+    private void download(@NonNull Job job) {
+        job.report.state = STATE_DOWNLOADING;
+        job.report.progress = 0;
+        job.stepStartMillis = SystemClock.elapsedRealtime();
+        notifyChanged(job);
+
+        job.downloadRequests = DfuUpdater.downloadFirmwareFiles(mContext, job.versionInfo, new DfuUpdater.FirmwareFilesListener() {
+            @Override
+            public void onDownloadProgress(int percent) {
+                job.report.progress = percent;
+                notifyChanged(job);
+            }
+
+            @Override
+            public void onDownloadCompleted(@Nullable File hexFile, @Nullable File iniFile) {
+                job.report.downloadMillis = SystemClock.elapsedRealtime() - job.stepStartMillis;
+                if (hexFile == null) {
+                    releaseFiles(job);
+                    onJobFailed(job, mContext.getString(R.string.dfu_download_error_message));
+                    return;
+                }
+
+                job.hexFile = hexFile;
+                job.iniFile = iniFile;
+                job.report.firmwareBytes = hexFile.length();
+                update(job);
+            }
+        });
+    }
+
+    // The downloaded files are kept in the firmware cache until the job is finished (they are reused for the retries)
+    private void releaseFiles(@NonNull Job job) {
+        if (job.downloadRequests != null) {
+            for (FirmwareDownloadManager.Request request : job.downloadRequests) {
+                request.cancel();
+            }
+            job.downloadRequests = null;
+        }
+        job.hexFile = null;
+        job.iniFile = null;
+    }
+    // endregion
+
+    // region Update
+    private void update(@NonNull Job job) {
+        job.report.state = STATE_UPDATING;
+        job.report.progress = 0;
+        job.report.errorMessage = null;
+        job.stepStartMillis = SystemClock.elapsedRealtime();
+        notifyChanged(job);
+
+        final boolean isNotificationEnabled = mMaxParallelUpdates == 1;
+        Log.d(TAG, job.report.address + ": start update on slot " + job.slot + " (attempt " + job.report.attempts + ")");
+        job.dfuServiceController = DfuUpdater.startDfuService(mContext, job.report.address, job.report.name != null ? job.report.name : job.report.address, job.versionInfo.boardName,
+                job.hexFile.getAbsolutePath(), job.iniFile != null ? job.iniFile.getAbsolutePath() : null, kServiceSlots.get(job.slot), isNotificationEnabled);
+    }
+
+    private void onJobCompleted(@NonNull Job job) {
+        job.report.updateMillis = SystemClock.elapsedRealtime() - job.stepStartMillis;
+        job.report.progress = 100;
+        job.report.state = STATE_COMPLETED;
+        job.dfuServiceController = null;
+        releaseSlot(job);
+        releaseFiles(job);
+        notifyChanged(job);
+
+        scheduleJobs();
+    }
+
+    private void onJobFailed(@NonNull Job job, @Nullable String message) {
+        Log.w(TAG, job.report.address + ": attempt " + job.report.attempts + " failed: " + message);
+        if (job.report.state == STATE_UPDATING) {
+            job.report.updateMillis = SystemClock.elapsedRealtime() - job.stepStartMillis;
+        }
+        job.report.errorMessage = message;
+        job.dfuServiceController = null;
+        releaseSlot(job);
+
+        if (job.report.attempts <= mMaxRetries) {
+            // Retry later. The job goes to the end of the queue, so a peripheral that keeps failing doesn't delay the others
+            job.report.state = STATE_WAITING_RETRY;
+            mMainHandler.postDelayed(() -> {
+                if (job.report.state == STATE_WAITING_RETRY) {
+                    job.report.state = STATE_QUEUED;
+                    mQueue.add(job);
+                    notifyChanged(job);
+                    scheduleJobs();
+                }
+            }, kRetryDelayMillis);
+        } else {
+            job.report.state = STATE_FAILED;
+            releaseFiles(job);
+        }
+        notifyChanged(job);
+
+        scheduleJobs();
+    }
+
+    private @Nullable
+    Job getUpdatingJob(@NonNull String deviceAddress) {
+        Job job = mJobs.get(deviceAddress);
+        return job != null && job.report.state == STATE_UPDATING ? job : null;
+    }
+
+    private final DfuProgressListener mDfuProgressListener = new DfuProgressListenerAdapter() {
+        @Override
+        public void onDfuProcessStarting(@NonNull final String deviceAddress) {
+            if (getUpdatingJob(deviceAddress) != null) {
+                mDfuTuningListener.onDfuProcessStarting(deviceAddress);
+            }
+        }
+
+        @Override
+        public void onProgressChanged(@NonNull final String deviceAddress, final int percent, final float speed, final float avgSpeed, final int currentPart, final int partsTotal) {
+            Job job = getUpdatingJob(deviceAddress);
+            if (job != null) {
+                mDfuTuningListener.onProgressChanged(deviceAddress, percent, speed, avgSpeed, currentPart, partsTotal);
+                job.report.progress = percent;
+                job.report.averageSpeed = avgSpeed;
+                notifyChanged(job);
+            }
+        }
+
+        @Override
+        public void onFirmwareValidating(@NonNull final String deviceAddress) {
+            if (getUpdatingJob(deviceAddress) != null) {
+                mDfuTuningListener.onFirmwareValidating(deviceAddress);
+            }
+        }
+
+        @Override
+        public void onDfuCompleted(@NonNull final String deviceAddress) {
+            Job job = getUpdatingJob(deviceAddress);
+            if (job != null) {
+                mDfuTuningListener.onDfuCompleted(deviceAddress);
+                onJobCompleted(job);
+            }
+        }
+
+        @Override
+        public void onDfuAborted(@NonNull final String deviceAddress) {
+            Job job = getUpdatingJob(deviceAddress);
+            if (job != null) {
+                mDfuTuningListener.onDfuAborted(deviceAddress);
+                onJobFailed(job, mContext.getString(R.string.dfu_updateaborted_message));
+            }
+        }
+
+        @Override
+        public void onError(@NonNull final String deviceAddress, final int error, final int errorType, final String message) {
+            Job job = getUpdatingJob(deviceAddress);
+            if (job != null) {
+                mDfuTuningListener.onError(deviceAddress, error, errorType, message);
+                onJobFailed(job, message);
+            }
+        }
+    };
+    // endregion
+
+    // region Report
+    public static @NonNull
+    String getReportText(@NonNull List<DeviceReport> reports) {
+        int numCompleted = 0, numUpToDate = 0, numFailed = 0;
+        StringBuilder builder = new StringBuilder();
+        for (DeviceReport report : reports) {
+            if (report.state == STATE_COMPLETED) {
+                numCompleted++;
+            } else if (report.state == STATE_UP_TO_DATE) {
+                numUpToDate++;
+            } else if (report.state == STATE_FAILED) {
+                numFailed++;
+            }
+
+            builder.append(String.format(Locale.US, "%s (%s): %s", report.name != null ? report.name : "-", report.address, getStateName(report.state)));
+            if (report.targetVersion != null) {
+                builder.append(String.format(Locale.US, ", %s -> %s, attempts: %d, check: %.1fs, download: %.1fs, update: %.1fs",
+                        report.currentVersion, report.targetVersion, report.attempts, report.checkMillis / 1000.f, report.downloadMillis / 1000.f, report.updateMillis / 1000.f));
+                if (report.state == STATE_COMPLETED) {
+                    builder.append(String.format(Locale.US, ", throughput: %.0f B/s (upload %.2f kB/s)", report.getThroughput(), report.averageSpeed));
+                }
+            } else if (report.currentVersion != null) {
+                builder.append(", version: ").append(report.currentVersion);
+            }
+            if (report.errorMessage != null && report.state != STATE_COMPLETED) {
+                builder.append(", error: ").append(report.errorMessage);
+            }
+            builder.append("\n");
+        }
+        builder.append(String.format(Locale.US, "Total: %d, updated: %d, up to date: %d, failed: %d", reports.size(), numCompleted, numUpToDate, numFailed));
+        return builder.toString();
+    }
+
+    private static @NonNull
+    String getStateName(int state) {
+        switch (state) {
+            case STATE_CHECKING:
+                return "checking";
+            case STATE_UP_TO_DATE:
+                return "up to date";
+            case STATE_QUEUED:
+                return "queued";
+            case STATE_DOWNLOADING:
+                return "downloading";
+            case STATE_UPDATING:
+                return "updating";
+            case STATE_WAITING_RETRY:
+                return "waiting retry";
+            case STATE_COMPLETED:
+                return "completed";
+            case STATE_FAILED:
+                return "failed";
+            case STATE_CANCELLED:
+                return "cancelled";
+            default:
+                return "unknown";
+        }
+    }
+    // endregion
+
+    // region Utils
+    private void notifyChanged(@NonNull Job job) {
+        if (mListener != null) {
+            mListener.onFleetUpdateChanged(job.report);
+        }
+    }
+    // endregion
+}
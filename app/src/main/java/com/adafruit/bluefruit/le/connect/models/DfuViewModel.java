@@ -1,5 +1,8 @@
 package com.adafruit.bluefruit.le.connect.models;
 
+import static android.Manifest.permission.BLUETOOTH_CONNECT;
+
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -7,13 +10,17 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
 import com.adafruit.bluefruit.le.connect.dfu.DfuUpdater;
+import com.adafruit.bluefruit.le.connect.dfu.FleetDfuUpdater;
 import com.adafruit.bluefruit.le.connect.dfu.ReleasesParser;
 import com.adafruit.bluefruit.le.connect.utils.SingleLiveEvent;
 
+import java.util.List;
 import java.util.Map;
 
 public class DfuViewModel extends ViewModel {
@@ -39,6 +46,9 @@ public class DfuViewModel extends ViewModel {
     private final DfuUpdater mDfuUpdater = new DfuUpdater();
     private boolean mIsCheckingFirmwareUpdates = false;
     private final SingleLiveEvent<DfuCheckResult> mDfuCheckResult = new SingleLiveEvent<>();
+    private FleetDfuUpdater mFleetDfuUpdater;
+    private final MutableLiveData<List<FleetDfuUpdater.DeviceReport>> mFleetReports = new MutableLiveData<>();
+    private final SingleLiveEvent<List<FleetDfuUpdater.DeviceReport>> mFleetUpdateFinished = new SingleLiveEvent<>();
 
     /*
     public DfuViewModel(@NonNull Application application) {
@@ -51,6 +61,18 @@ public class DfuViewModel extends ViewModel {
     public SingleLiveEvent<DfuCheckResult> getDfuCheckResult() {
         return mDfuCheckResult;
     }
+
+    public MutableLiveData<List<FleetDfuUpdater.DeviceReport>> getFleetReports() {
+        return mFleetReports;
+    }
+
+    public SingleLiveEvent<List<FleetDfuUpdater.DeviceReport>> getFleetUpdateFinished() {
+        return mFleetUpdateFinished;
+    }
+
+    public boolean isFleetUpdateInProgress() {
+        return mFleetDfuUpdater != null && mFleetDfuUpdater.isRunning();
+    }
     // endregion
 
     // region Actions
@@ -88,6 +110,40 @@ public class DfuViewModel extends ViewModel {
         mDfuUpdater.cancelInstall();
     }
 
+    public void onInstallFinished() {
+        mDfuUpdater.onInstallFinished();
+    }
+
+
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(value = BLUETOOTH_CONNECT)
+    public void startFleetUpdate(@NonNull Context context, @NonNull List<BlePeripheral> blePeripherals, int maxParallelUpdates, int maxRetries, boolean shouldRecommendBetaReleases) {
+        if (isFleetUpdateInProgress()) {
+            Log.w(TAG, "Fleet update already in progress. Skipped...");
+            return;
+        }
+
+        mFleetDfuUpdater = new FleetDfuUpdater(context, maxParallelUpdates, maxRetries);
+        mFleetDfuUpdater.start(blePeripherals, shouldRecommendBetaReleases, new FleetDfuUpdater.Listener() {
+            @Override
+            public void onFleetUpdateChanged(@NonNull FleetDfuUpdater.DeviceReport report) {
+                mFleetReports.setValue(mFleetDfuUpdater.getReports());
+            }
+
+            @Override
+            public void onFleetUpdateFinished(@NonNull List<FleetDfuUpdater.DeviceReport> reports) {
+                mFleetReports.setValue(reports);
+                mFleetUpdateFinished.setValue(reports);
+            }
+        });
+        mFleetReports.setValue(mFleetDfuUpdater.getReports());
+    }
+
+    public void cancelFleetUpdate() {
+        if (mFleetDfuUpdater != null) {
+            mFleetDfuUpdater.cancel();
+        }
+    }
 
     public @Nullable
     Map<String, ReleasesParser.BoardInfo> getReleases(@NonNull Context context, boolean showBetaVersions) {
@@ -95,4 +151,10 @@ public class DfuViewModel extends ViewModel {
     }
 
     // endregion
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        cancelFleetUpdate();
+    }
 }
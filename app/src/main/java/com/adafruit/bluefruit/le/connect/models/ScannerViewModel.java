@@ -8,13 +8,10 @@ import static android.content.Context.MODE_PRIVATE;
 import android.annotation.SuppressLint;
 import android.app.Application;
 import android.bluetooth.BluetoothGatt;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelUuid;
 import android.util.Log;
 
 import androidx.annotation.MainThread;
@@ -26,16 +23,18 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Transformations;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.adafruit.bluefruit.le.connect.R;
 import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheral;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralEventBus;
+import com.adafruit.bluefruit.le.connect.ble.central.BlePeripheralUart;
 import com.adafruit.bluefruit.le.connect.ble.central.BleScanner;
 import com.adafruit.bluefruit.le.connect.utils.LocalizationManager;
 import com.adafruit.bluefruit.le.connect.utils.SingleLiveEvent;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -43,6 +42,8 @@ import java.util.Locale;
 public class ScannerViewModel extends AndroidViewModel implements BleScanner.BleScannerListener {
     // region Constants
     private final static String TAG = ScannerViewModel.class.getSimpleName();
+    private final static int kScanProfileUpdateDelay = 1000;      // in milliseconds. Wait before restarting the scan with new filters (the name filter changes while typing and Android throttles scan restarts)
+    private final static ParcelUuid kUartServiceParcelUuid = new ParcelUuid(BlePeripheralUart.kUartServiceUUID);
     // endregion
 
     // region Data - Scanning
@@ -50,6 +51,7 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
     private final MutableLiveData<Boolean> mIsScanning = new MutableLiveData<>();
     private final MutableLiveData<List<BlePeripheral>> mBlePeripherals = new MutableLiveData<>();
     private final SingleLiveEvent<Integer> mScanningErrorCode = new SingleLiveEvent<>();
+    private final Handler mScanProfileHandler = new Handler(Looper.getMainLooper());
     // endregion
 
     // region Data - Filters
@@ -162,8 +164,8 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
     public ScannerViewModel(@NonNull Application application) {
         super(application);
 
-        // Add broadcast receiver
-        registerGattReceiver();
+        // Observe connection events
+        BlePeripheralEventBus.getInstance().subscribe(mPeripheralEventSubscriber, BlePeripheralEventBus.EVENT_CONNECTING | BlePeripheralEventBus.EVENT_CONNECTED | BlePeripheralEventBus.EVENT_DISCONNECTED | BlePeripheralEventBus.EVENT_RECONNECTED, false);
 
         // Setup scanning
         mIsScanning.setValue(false);
@@ -234,6 +236,8 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
             if (filterData != null && data != null) {
                 data.filterData = filterData;
                 mScanFilterLiveDataMerger.setValue(data);
+
+                scheduleScanProfileUpdate(filterData.createScanProfile());
             }
         });
 
@@ -250,6 +254,7 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
         super.onCleared();
 
         // Stop and remove listener
+        mScanProfileHandler.removeCallbacksAndMessages(null);
         try {
             stop();
         } catch (SecurityException e) {
@@ -260,8 +265,8 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
         }
         saveFilters();      // optional: save filters (useful while debugging because onDestroy is not called and filters are not saved)
 
-        // Unregister receiver
-        unregisterGattReceiver();
+        // Stop observing connection events
+        BlePeripheralEventBus.getInstance().unsubscribe(mPeripheralEventSubscriber);
 
         mScanner = null;
     }
@@ -409,6 +414,13 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
         }
     }
 
+    // Switch between low-latency scanning (UI visible) and balanced batch scanning (UI not visible)
+    @SuppressLint("InlinedApi")
+    @RequiresPermission(anyOf = {ACCESS_FINE_LOCATION, BLUETOOTH_SCAN})
+    public void setIsScanningInForeground(boolean isForeground) {
+        mScanner.setForeground(isForeground);
+    }
+
     @SuppressLint("InlinedApi")
     @RequiresPermission(anyOf = {BLUETOOTH_SCAN})
     public void stop() {
@@ -490,6 +502,18 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
     // endregion
 
     // region Utils
+    private void scheduleScanProfileUpdate(@NonNull BleScanner.ScanProfile scanProfile) {
+        mScanProfileHandler.removeCallbacksAndMessages(null);
+        mScanProfileHandler.postDelayed(() -> {
+            if (mScanner == null) return;
+            try {
+                mScanner.setScanProfile(scanProfile.hasFilters() ? scanProfile : null);
+            } catch (SecurityException e) {
+                Log.w(TAG, "setScanProfile security exception: " + e);
+            }
+        }, kScanProfileUpdateDelay);
+    }
+
     private @NonNull
     String getResultNameForOrdering(BlePeripheral result) {
         String name = result.getName();
@@ -555,6 +579,13 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
             preferencesEditor.apply();
         }
 
+        // Filters that can be offloaded to the bluetooth controller. The rest (rssi, unnamed, non-exact names) are still applied to each result
+        BleScanner.ScanProfile createScanProfile() {
+            final List<ParcelUuid> serviceUuids = isOnlyUartEnabled ? Collections.singletonList(kUartServiceParcelUuid) : null;
+            final boolean isNameFilterOffloadable = name != null && !name.isEmpty() && isNameMatchExact && !isNameMatchCaseInSensitive;
+            return new BleScanner.ScanProfile(serviceUuids, isNameFilterOffloadable ? name : null);
+        }
+
         boolean isAnyFilterEnabled() {
             return (name != null && !name.isEmpty()) || rssi > kMaxRssiValue || isOnlyUartEnabled || !isUnnamedEnabled;
         }
@@ -614,83 +645,63 @@ public class ScannerViewModel extends AndroidViewModel implements BleScanner.Ble
     }
     // endregion
 
-    // region Broadcast Listener
-    private void registerGattReceiver() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BlePeripheral.kBlePeripheral_OnConnecting);
-        filter.addAction(BlePeripheral.kBlePeripheral_OnConnected);
-        filter.addAction(BlePeripheral.kBlePeripheral_OnDisconnected);
-        LocalBroadcastManager.getInstance(getApplication()).registerReceiver(mGattUpdateReceiver, filter);
-    }
-
-    private void unregisterGattReceiver() {
-        LocalBroadcastManager.getInstance(getApplication()).unregisterReceiver(mGattUpdateReceiver);
-    }
-
+    // region Peripheral Events
     private final List<String> mPeripheralsConnectingOrDiscoveringServices = new ArrayList<>();            // Contains identifiers of peripherals that are connecting (connect + discovery)
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            final String identifier = intent.getStringExtra(BlePeripheral.kExtra_deviceAddress);
-
-            if (identifier != null) {
-                final BlePeripheral blePeripheral = getPeripheralWithIdentifier(identifier);
-
-                if (blePeripheral != null) {
-                    if (BlePeripheral.kBlePeripheral_OnConnected.equals(action)) {
-                        // If connected, start service discovery
-                        blePeripheral.discoverServices(status -> {
-                            final Handler mainHandler = new Handler(Looper.getMainLooper());
-                            final Runnable discoveredServicesRunnable = () -> {
-                                mPeripheralsConnectingOrDiscoveringServices.remove(identifier);          // Connection setup finished
-                                Log.d(TAG, "kBlePeripheral_OnConnected ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
-                                if (status == BluetoothGatt.GATT_SUCCESS) {
-                                    // Discovery finished
-                                    mBlePeripheralDiscoveredServices.setValue(blePeripheral);
-
-                                } else {
-                                    final String message = LocalizationManager.getInstance().getString(getApplication(), "peripheraldetails_errordiscoveringservices");
-                                    try {
-                                        blePeripheral.disconnect();
-                                    } catch (SecurityException e) {
-                                        Log.w(TAG, "Disconnect called with no permission: " + e);
-                                    }
-                                    mBlePeripheralsConnectionErrorMessage.setValue(message);
-                                }
-                            };
-                            mainHandler.post(discoveredServicesRunnable);
-                        });
-                    } else if (BlePeripheral.kBlePeripheral_OnDisconnected.equals(action)) {
-                        Log.d(TAG, "kBlePeripheral_OnDisconnected ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
-                        if (mPeripheralsConnectingOrDiscoveringServices.contains(identifier)) {          // If connection setup was still ongoing
-                            final boolean isExpected = intent.getStringExtra(BlePeripheral.kExtra_expectedDisconnect) != null;      // If parameter kExtra_expectedDisconnect is non-null, the disconnect was expected (and no message errors are displayed to the user)
-                            Log.d(TAG, "Expected disconnect: " + isExpected);
-                            if (!isExpected) {
-                                final String message = LocalizationManager.getInstance().getString(getApplication(), "bluetooth_connecting_error");
-                                mBlePeripheralsConnectionErrorMessage.setValue(message);
-                            }
-                            mPeripheralsConnectingOrDiscoveringServices.remove(identifier);
-                        }
-                    } else if (BlePeripheral.kBlePeripheral_OnConnecting.equals(action)) {
-                        if (!mPeripheralsConnectingOrDiscoveringServices.contains(identifier)) {         // peripheral starts connection setup
-                            mPeripheralsConnectingOrDiscoveringServices.add(identifier);
+    private final BlePeripheralEventBus.Subscriber mPeripheralEventSubscriber = event -> {
+        final BlePeripheral blePeripheral = event.blePeripheral;
+        final String identifier = event.getIdentifier();
+        if (mScanner.getPeripheralWithIdentifier(identifier) != blePeripheral) {
+            Log.w(TAG, "ScannerViewModel event for unknown peripheral: " + identifier);       // Only the peripherals found by this scanner are handled
+            return;
+        }
+
+        if (event.type == BlePeripheralEventBus.EVENT_CONNECTED) {
+            // If connected, start service discovery
+            blePeripheral.discoverServices(status -> {
+                final Handler mainHandler = new Handler(Looper.getMainLooper());
+                final Runnable discoveredServicesRunnable = () -> {
+                    mPeripheralsConnectingOrDiscoveringServices.remove(identifier);          // Connection setup finished
+                    Log.d(TAG, "EVENT_CONNECTED ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        // Discovery finished
+                        mBlePeripheralDiscoveredServices.setValue(blePeripheral);
+
+                    } else {
+                        final String message = LocalizationManager.getInstance().getString(getApplication(), "peripheraldetails_errordiscoveringservices");
+                        try {
+                            blePeripheral.disconnect();
+                        } catch (SecurityException e) {
+                            Log.w(TAG, "Disconnect called with no permission: " + e);
                         }
-                        Log.d(TAG, "kBlePeripheral_OnConnecting ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
+                        mBlePeripheralsConnectionErrorMessage.setValue(message);
                     }
-
-                    mBlePeripheralsConnectionChanged.setValue(blePeripheral);
-                    final int numDevicesConnected = mScanner.getConnectedPeripherals().size();
-                    mNumDevicesConnected.setValue(numDevicesConnected);
-
-                } else {
-                    Log.w(TAG, "ScannerViewModel mGattUpdateReceiver with null peripheral");
+                };
+                mainHandler.post(discoveredServicesRunnable);
+            });
+        } else if (event.type == BlePeripheralEventBus.EVENT_DISCONNECTED) {
+            Log.d(TAG, "EVENT_DISCONNECTED ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
+            if (mPeripheralsConnectingOrDiscoveringServices.contains(identifier)) {          // If connection setup was still ongoing
+                Log.d(TAG, "Expected disconnect: " + event.isExpectedDisconnect);
+                if (!event.isExpectedDisconnect) {      // Expected disconnections don't display error messages to the user
+                    final String message = LocalizationManager.getInstance().getString(getApplication(), "bluetooth_connecting_error");
+                    mBlePeripheralsConnectionErrorMessage.setValue(message);
                 }
-            } else {
-                Log.w(TAG, "ScannerViewModel mGattUpdateReceiver with null identifier");
+                mPeripheralsConnectingOrDiscoveringServices.remove(identifier);
             }
+        } else if (event.type == BlePeripheralEventBus.EVENT_RECONNECTED) {
+            // Automatic reconnection: services have already been discovered by the peripheral, and the connection sequence should not start again
+            mPeripheralsConnectingOrDiscoveringServices.remove(identifier);
+        } else if (event.type == BlePeripheralEventBus.EVENT_CONNECTING) {
+            if (!mPeripheralsConnectingOrDiscoveringServices.contains(identifier)) {         // peripheral starts connection setup
+                mPeripheralsConnectingOrDiscoveringServices.add(identifier);
+            }
+            Log.d(TAG, "EVENT_CONNECTING ConnectingOrDiscovering: " + Arrays.toString(mPeripheralsConnectingOrDiscoveringServices.toArray()));
         }
+
+        mBlePeripheralsConnectionChanged.setValue(blePeripheral);
+        final int numDevicesConnected = mScanner.getConnectedPeripherals().size();
+        mNumDevicesConnected.setValue(numDevicesConnected);
     };
     // endregion
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 
@@ -11,6 +12,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Locale;
 
 import magick.ImageInfo;
 import magick.MagickException;
@@ -22,7 +24,70 @@ public class ImageUtils {
     // Log
     private final static String TAG = ImageUtils.class.getSimpleName();
 
+    // Config
+    private final static boolean kBenchmarkEInkConversion = false;     // Logs the time used by the palette quantizer and the ImageMagick conversion for each image
+    private final static int kEInkDitherMode = PaletteQuantizer.DITHER_FLOYDSTEINBERG;
+    private final static int kMinRowsPerThread = 64;
+
+    // Data
+    private static PaletteQuantizer sEInkQuantizer = null;
+
     public static Bitmap applyEInkModeToImage(@NonNull Context context, @NonNull Bitmap bitmap) {
+        return applyEInkModeToImage(context, bitmap, null);
+    }
+
+    // If indices is not null (with a size of width * height), it is filled with the eink palette index of each pixel (see getEInkPalette)
+    public static Bitmap applyEInkModeToImage(@NonNull Context context, @NonNull Bitmap bitmap, @Nullable byte[] indices) {
+        final PaletteQuantizer quantizer = getEInkQuantizer(context);
+        if (quantizer == null) {
+            return null;
+        }
+
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        final int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, height / kMinRowsPerThread));
+        quantizer.quantize(pixels, width, height, kEInkDitherMode, numThreads, indices);
+        Bitmap result = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+
+        if (kBenchmarkEInkConversion) {
+            final long quantizerTime = SystemClock.elapsedRealtimeNanos() - startTime;
+            final long magickStartTime = SystemClock.elapsedRealtimeNanos();
+            applyEInkModeToImageWithImageMagick(context, bitmap);
+            final long magickTime = SystemClock.elapsedRealtimeNanos() - magickStartTime;
+            Log.d(TAG, String.format(Locale.ENGLISH, "eink conversion %dx%d: quantizer (%d threads): %.1fms imagemagick: %.1fms", width, height, numThreads, quantizerTime / 1e6, magickTime / 1e6));
+        }
+
+        return result;
+    }
+
+    public static @Nullable
+    int[] getEInkPalette(@NonNull Context context) {
+        final PaletteQuantizer quantizer = getEInkQuantizer(context);
+        return quantizer == null ? null : quantizer.getPalette();
+    }
+
+    private static synchronized @Nullable
+    PaletteQuantizer getEInkQuantizer(@NonNull Context context) {
+        if (sEInkQuantizer == null) {
+            Bitmap paletteBitmap = FileHelper.getBitmapFromAsset(context, "imagetransfer/eink3color.png");
+            if (paletteBitmap == null) {
+                Log.e(TAG, "Error loading eink palette");
+                return null;
+            }
+
+            int[] palettePixels = new int[paletteBitmap.getWidth() * paletteBitmap.getHeight()];
+            paletteBitmap.getPixels(palettePixels, 0, paletteBitmap.getWidth(), 0, 0, paletteBitmap.getWidth(), paletteBitmap.getHeight());
+            sEInkQuantizer = new PaletteQuantizer(PaletteQuantizer.paletteFromPixels(palettePixels));
+        }
+        return sEInkQuantizer;
+    }
+
+    // Previous implementation. Only used to compare with the palette quantizer (kBenchmarkEInkConversion)
+    public static Bitmap applyEInkModeToImageWithImageMagick(@NonNull Context context, @NonNull Bitmap bitmap) {
 
         Bitmap result = null;
         ImageInfo imageInfo = null;
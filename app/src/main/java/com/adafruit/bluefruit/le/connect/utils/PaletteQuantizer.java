@@ -0,0 +1,317 @@
+package com.adafruit.bluefruit.le.connect.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Maps the pixels of an image to the nearest colors of a palette, with optional dithering. Works directly on ARGB int[] pixels (as returned by Bitmap.getPixels) and doesn't use any Android class,
+// so it can be used (and tested) on the JVM.
+// Error diffusion can run row-parallel: each row is processed by a different thread, that follows the previous row at a distance (wavefront), because a pixel only receives error from the pixels above that are already processed
+public class PaletteQuantizer {
+    // Constants
+    public static final int DITHER_NONE = 0;
+    public static final int DITHER_FLOYDSTEINBERG = 1;
+    public static final int DITHER_ATKINSON = 2;
+    public static final int DITHER_BAYER = 3;
+
+    // Config
+    private static final int kMaxPaletteSizeWithoutCache = 16;     // Bigger palettes use a cache of nearest colors (indexed by the color in RGB555)
+    private static final int kProgressPublishInterval = 32;        // pixels processed by a row before publishing its progress to the next row
+
+    // Constants - Error diffusion. Row offsets are relative to the pixel being processed: {dx, dy, weight}
+    private static final int[][] kFloydSteinbergKernel = {{1, 0, 7}, {-1, 1, 3}, {0, 1, 5}, {1, 1, 1}};
+    private static final int kFloydSteinbergDivisor = 16;
+    private static final int[][] kAtkinsonKernel = {{1, 0, 1}, {2, 0, 1}, {-1, 1, 1}, {0, 1, 1}, {1, 1, 1}, {0, 2, 1}};
+    private static final int kAtkinsonDivisor = 8;      // Only 6/8 of the error is diffused
+
+    private static final int kErrorPadding = 2;         // Columns added at both sides of the error buffers, so kernels don't need bounds checks
+
+    // Constants - Ordered dithering
+    private static final int[] kBayer8x8 = {
+            0, 32, 8, 40, 2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44, 4, 36, 14, 46, 6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+            3, 35, 11, 43, 1, 33, 9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47, 7, 39, 13, 45, 5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21};
+
+    // Data
+    private final int[] mPaletteR;
+    private final int[] mPaletteG;
+    private final int[] mPaletteB;
+    private final int[] mPaletteColors;                 // Opaque ARGB
+    private final int[] mNearestCache;                  // Index: RGB555 color. Value: palette index + 1 (0 = not calculated yet). Null for small palettes
+    private final int mBayerSpread;                     // Amplitude of the ordered dithering threshold for each channel
+
+    // region Lifecycle
+    // Palette colors are ARGB (alpha is ignored). Repeated colors are removed
+    public PaletteQuantizer(@NonNull int[] palette) {
+        final int[] colors = uniqueColors(palette);
+        if (colors.length == 0) {
+            throw new IllegalArgumentException("Empty palette");
+        }
+
+        mPaletteColors = colors;
+        mPaletteR = new int[colors.length];
+        mPaletteG = new int[colors.length];
+        mPaletteB = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            mPaletteR[i] = (colors[i] >> 16) & 0xFF;
+            mPaletteG[i] = (colors[i] >> 8) & 0xFF;
+            mPaletteB[i] = colors[i] & 0xFF;
+        }
+        mNearestCache = colors.length > kMaxPaletteSizeWithoutCache ? new int[1 << 15] : null;
+
+        // Ordered dithering amplitude: the minimum distance between two palette colors (per channel). With a black and white palette it is 255, the usual value for 2 levels
+        int minDistance2 = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            for (int j = i + 1; j < colors.length; j++) {
+                minDistance2 = Math.min(minDistance2, distance2(mPaletteR[i], mPaletteG[i], mPaletteB[i], mPaletteR[j], mPaletteG[j], mPaletteB[j]));
+            }
+        }
+        mBayerSpread = minDistance2 == Integer.MAX_VALUE ? 0 : (int) Math.round(Math.sqrt(minDistance2 / 3.0));
+    }
+
+    public @NonNull
+    int[] getPalette() {
+        return Arrays.copyOf(mPaletteColors, mPaletteColors.length);
+    }
+
+    // Returns the different colors found in the pixels (i.e. to use an image as palette)
+    public static @NonNull
+    int[] paletteFromPixels(@NonNull int[] pixels) {
+        return uniqueColors(pixels);
+    }
+    // endregion
+
+    // region Quantize
+    // Quantizes the pixels in place. The result is opaque. numThreads > 1 enables the row-parallel mode (the result is the same as with one thread)
+    public void quantize(@NonNull int[] pixels, int width, int height, int ditherMode, int numThreads) {
+        quantize(pixels, width, height, ditherMode, numThreads, null);
+    }
+
+    // If indices is not null, the palette index chosen for each pixel is also stored in it (i.e. to send the image as palette indices without matching the colors again)
+    public void quantize(@NonNull int[] pixels, int width, int height, int ditherMode, int numThreads, @Nullable byte[] indices) {
+        if (pixels.length < width * height || (indices != null && indices.length < width * height)) {
+            throw new IllegalArgumentException("pixels array is too small");
+        }
+
+        final int threads = Math.max(1, Math.min(numThreads, height));
+        switch (ditherMode) {
+            case DITHER_FLOYDSTEINBERG:
+                diffuseError(pixels, width, height, kFloydSteinbergKernel, kFloydSteinbergDivisor, threads, indices);
+                break;
+            case DITHER_ATKINSON:
+                diffuseError(pixels, width, height, kAtkinsonKernel, kAtkinsonDivisor, threads, indices);
+                break;
+            case DITHER_BAYER:
+                runRowsInParallel(height, threads, (firstRow, rowStep) -> {
+                    for (int y = firstRow; y < height; y += rowStep) {
+                        orderedRow(pixels, width, y, indices);
+                    }
+                });
+                break;
+            default:
+                runRowsInParallel(height, threads, (firstRow, rowStep) -> {
+                    for (int y = firstRow; y < height; y += rowStep) {
+                        final int offset = y * width;
+                        for (int x = 0; x < width; x++) {
+                            final int color = pixels[offset + x];
+                            final int index = nearestIndex((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+                            pixels[offset + x] = mPaletteColors[index];
+                            if (indices != null) {
+                                indices[offset + x] = (byte) index;
+                            }
+                        }
+                    }
+                });
+                break;
+        }
+    }
+
+    private void orderedRow(@NonNull int[] pixels, int width, int y, @Nullable byte[] indices) {
+        final int offset = y * width;
+        final int bayerRow = (y & 7) * 8;
+        for (int x = 0; x < width; x++) {
+            final int threshold = ((kBayer8x8[bayerRow + (x & 7)] * 2 + 1) * mBayerSpread) / 128 - mBayerSpread / 2;      // In [-spread/2, spread/2)
+            final int color = pixels[offset + x];
+            final int r = clamp(((color >> 16) & 0xFF) + threshold);
+            final int g = clamp(((color >> 8) & 0xFF) + threshold);
+            final int b = clamp((color & 0xFF) + threshold);
+            final int index = nearestIndex(r, g, b);
+            pixels[offset + x] = mPaletteColors[index];
+            if (indices != null) {
+                indices[offset + x] = (byte) index;
+            }
+        }
+    }
+
+    // The error is accumulated (multiplied by the kernel weights) in buffers with the size of the image plus padding. Row y only writes in the rows below, so rows can be processed by different
+    // threads as long as row y+1 doesn't read pixel x until row y has finished with pixel x+1 (the last pixel that diffuses error to it)
+    private void diffuseError(@NonNull int[] pixels, int width, int height, @NonNull int[][] kernel, int divisor, int numThreads, @Nullable byte[] indices) {
+        int maxDx = 0, maxDy = 0;
+        for (int[] entry : kernel) {
+            maxDx = Math.max(maxDx, entry[0]);
+            maxDy = Math.max(maxDy, entry[1]);
+        }
+        final int rowLookAhead = maxDx + 1;          // pixels that row y has to be ahead of row y+1
+
+        final int stride = width + kErrorPadding * 2;
+        final int bufferSize = stride * (height + maxDy);
+        final int[] errorR = new int[bufferSize];
+        final int[] errorG = new int[bufferSize];
+        final int[] errorB = new int[bufferSize];
+        final AtomicIntegerArray progress = numThreads > 1 ? new AtomicIntegerArray(height) : null;     // Pixels completed in each row
+
+        final int[] kernelOffsets = new int[kernel.length];
+        for (int k = 0; k < kernel.length; k++) {
+            kernelOffsets[k] = kernel[k][1] * stride + kernel[k][0];
+        }
+        final int halfDivisor = divisor / 2;
+
+        runRowsInParallel(height, numThreads, (firstRow, rowStep) -> {
+            for (int y = firstRow; y < height; y += rowStep) {
+                final int offset = y * width;
+                final int errorOffset = y * stride + kErrorPadding;
+                int publishedProgress = 0;
+
+                for (int x = 0; x < width; x++) {
+                    // Wait for the previous row
+                    if (progress != null && y > 0) {
+                        final int required = Math.min(width, x + rowLookAhead);
+                        while (progress.get(y - 1) < required) {
+                            Thread.yield();
+                        }
+                    }
+
+                    final int color = pixels[offset + x];
+                    final int e = errorOffset + x;
+                    final int r = clamp(((color >> 16) & 0xFF) + roundedDivide(errorR[e], divisor, halfDivisor));
+                    final int g = clamp(((color >> 8) & 0xFF) + roundedDivide(errorG[e], divisor, halfDivisor));
+                    final int b = clamp((color & 0xFF) + roundedDivide(errorB[e], divisor, halfDivisor));
+
+                    final int index = nearestIndex(r, g, b);
+                    pixels[offset + x] = mPaletteColors[index];
+                    if (indices != null) {
+                        indices[offset + x] = (byte) index;
+                    }
+
+                    final int errR = r - mPaletteR[index];
+                    final int errG = g - mPaletteG[index];
+                    final int errB = b - mPaletteB[index];
+                    for (int k = 0; k < kernelOffsets.length; k++) {
+                        final int target = e + kernelOffsets[k];
+                        final int weight = kernel[k][2];
+                        errorR[target] += errR * weight;
+                        errorG[target] += errG * weight;
+                        errorB[target] += errB * weight;
+                    }
+
+                    if (progress != null && (x + 1 - publishedProgress >= kProgressPublishInterval || x == width - 1)) {
+                        publishedProgress = x + 1;
+                        progress.set(y, publishedProgress);     // Volatile write: the error written for the next rows is visible to the thread that reads this progress
+                    }
+                }
+            }
+        });
+    }
+    // endregion
+
+    // region Threads
+    private interface RowsTask {
+        void run(int firstRow, int rowStep);
+    }
+
+    // Runs the task in numThreads threads. Thread i processes the rows i, i + numThreads, i + 2 * numThreads...
+    private static void runRowsInParallel(int height, int numThreads, @NonNull RowsTask task) {
+        if (numThreads <= 1 || height <= 1) {
+            task.run(0, 1);
+            return;
+        }
+
+        // Dedicated threads (not a shared pool), because the error diffusion rows wait for each other and all of them have to be running at the same time
+        Thread[] threads = new Thread[numThreads - 1];
+        for (int i = 1; i < numThreads; i++) {
+            final int firstRow = i;
+            threads[i - 1] = new Thread(() -> task.run(firstRow, numThreads), "PaletteQuantizer-" + i);
+            threads[i - 1].start();
+        }
+        task.run(0, numThreads);
+
+        for (Thread thread : threads) {
+            boolean isJoined = false;
+            while (!isJoined) {
+                try {
+                    thread.join();
+                    isJoined = true;
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+    // endregion
+
+    // region Utils
+    private int nearestIndex(int r, int g, int b) {
+        if (mNearestCache != null) {
+            final int key = ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+            int cached = mNearestCache[key];
+            if (cached == 0) {
+                cached = nearestIndexSearch((r & 0xF8) | 4, (g & 0xF8) | 4, (b & 0xF8) | 4) + 1;       // Center of the RGB555 cell. Concurrent writes store the same value
+                mNearestCache[key] = cached;
+            }
+            return cached - 1;
+        } else {
+            return nearestIndexSearch(r, g, b);
+        }
+    }
+
+    private int nearestIndexSearch(int r, int g, int b) {
+        int bestIndex = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < mPaletteR.length; i++) {
+            final int distance = distance2(r, g, b, mPaletteR[i], mPaletteG[i], mPaletteB[i]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    private static int distance2(int r0, int g0, int b0, int r1, int g1, int b1) {
+        final int dr = r0 - r1;
+        final int dg = g0 - g1;
+        final int db = b0 - b1;
+        return dr * dr + dg * dg + db * db;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int roundedDivide(int value, int divisor, int halfDivisor) {
+        return value >= 0 ? (value + halfDivisor) / divisor : -((-value + halfDivisor) / divisor);
+    }
+
+    private static @NonNull
+    int[] uniqueColors(@NonNull int[] pixels) {
+        Set<Integer> colors = new LinkedHashSet<>();
+        for (int pixel : pixels) {
+            colors.add(pixel | 0xFF000000);
+        }
+        int[] result = new int[colors.size()];
+        int i = 0;
+        for (int color : colors) {
+            result[i++] = color;
+        }
+        return result;
+    }
+    // endregion
+}
@@ -0,0 +1,235 @@
+package com.adafruit.bluefruit.le.connect.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Checks ByteFormatter against the String based formatting that BleUtils used before (copied below as the reference)
+public class ByteFormatterTest {
+
+    // region Reference (previous BleUtils implementation)
+    private static String legacyBytesToHex2(byte[] bytes) {
+        StringBuilder stringBuffer = new StringBuilder();
+        for (byte aByte : bytes) {
+            String charString = String.format("%02X", aByte);
+            stringBuffer.append(charString).append(" ");
+        }
+        return stringBuffer.toString();
+    }
+
+    private static String legacyBytesToHexWithSpaces(byte[] bytes) {
+        StringBuilder newString = new StringBuilder();
+        for (byte aByte : bytes) {
+            String byteHex = String.format("%02X", aByte);
+            newString.append(byteHex).append(" ");
+        }
+        return newString.toString().trim();
+    }
+
+    private static String legacyBytesToText(byte[] bytes, boolean simplifyNewLine) {
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        if (simplifyNewLine) {
+            text = text.replaceAll("(\\r\\n|\\r)", "\n");
+        }
+        return text;
+    }
+    // endregion
+
+    // region Hex
+    @Test
+    public void hex_allByteValues() {
+        final byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        assertEquals(legacyBytesToHex2(bytes), ByteFormatter.hexString(bytes, ' '));
+        assertEquals(legacyBytesToHex2(bytes).replace(" ", ""), ByteFormatter.hexString(bytes, (char) 0));
+
+        StringBuilder builder = new StringBuilder();
+        ByteFormatter.appendHex(builder, bytes, ' ');
+        assertEquals(legacyBytesToHex2(bytes), builder.toString());
+        builder.setLength(builder.length() - 1);
+        assertEquals(legacyBytesToHexWithSpaces(bytes), builder.toString());
+    }
+
+    @Test
+    public void hex_offsetAndLength() {
+        final byte[] bytes = {0x00, 0x7F, (byte) 0x80, (byte) 0xFF, 0x0A};
+        StringBuilder builder = new StringBuilder("> ");
+        ByteFormatter.appendHex(builder, bytes, 1, 3, '-');
+        assertEquals("> 7F-80-FF-", builder.toString());
+    }
+
+    @Test
+    public void hex_empty() {
+        assertEquals("", ByteFormatter.hexString(new byte[0], ' '));
+        StringBuilder builder = new StringBuilder();
+        ByteFormatter.appendHex(builder, new byte[0], ' ');
+        assertEquals("", builder.toString());
+    }
+    // endregion
+
+    // region Text
+    @Test
+    public void text_ascii() {
+        final byte[] bytes = "Hello Bluefruit\t0123 ~!".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(legacyBytesToText(bytes, false), text(bytes));
+    }
+
+    @Test
+    public void text_utf8() {
+        final byte[] bytes = "abc ñ € 😀 end".getBytes(StandardCharsets.UTF_8);
+        assertEquals(legacyBytesToText(bytes, false), text(bytes));
+    }
+
+    @Test
+    public void text_utf8SplitAcrossPackets() {
+        // Each packet is decoded on its own (as before), so a multibyte sequence split between two packets produces the same replacement characters
+        final byte[] bytes = "x€y😀z".getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= bytes.length; split++) {
+            final byte[] first = copy(bytes, 0, split);
+            final byte[] second = copy(bytes, split, bytes.length);
+
+            StringBuilder builder = new StringBuilder();
+            ByteFormatter.appendText(builder, first);
+            ByteFormatter.appendText(builder, second);
+            assertEquals("split at " + split, legacyBytesToText(first, false) + legacyBytesToText(second, false), builder.toString());
+        }
+    }
+
+    @Test
+    public void text_invalidBytes() {
+        final byte[][] packets = {
+                {(byte) 0xFF, 0x41},                                // Invalid lead byte
+                {0x41, (byte) 0x80, 0x42},                          // Unexpected continuation byte
+                {(byte) 0xC3},                                      // Truncated sequence
+                {(byte) 0xC0, (byte) 0xAF},                         // Overlong encoding
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80},            // Surrogate
+                {0x41, 0x42, (byte) 0xE2, (byte) 0x82, 0x43},       // Truncated sequence after ascii
+        };
+        for (byte[] packet : packets) {
+            assertEquals(legacyBytesToText(packet, false), text(packet));
+        }
+    }
+
+    @Test
+    public void text_randomBytes() {
+        Random random = new Random(1234);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] bytes = new byte[random.nextInt(40)];
+            random.nextBytes(bytes);
+            assertEquals(legacyBytesToText(bytes, false), text(bytes));
+        }
+    }
+    // endregion
+
+    // region Newlines
+    @Test
+    public void newlines_singlePacket() {
+        final String[] samples = {"a\r\nb", "a\rb", "a\nb", "\r\r\n\n\r", "no newlines", "\r\n", "trailing\r"};
+        for (String sample : samples) {
+            final byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+            ByteFormatter.NewlineNormalizer normalizer = new ByteFormatter.NewlineNormalizer();
+            StringBuilder builder = new StringBuilder();
+            normalizer.appendText(builder, bytes);
+            assertEquals(legacyBytesToText(bytes, true), builder.toString());
+        }
+    }
+
+    @Test
+    public void newlines_crlfSplitAcrossPackets() {
+        // The previous implementation produced two newlines here. The normalizer remembers the carriage return
+        ByteFormatter.NewlineNormalizer normalizer = new ByteFormatter.NewlineNormalizer();
+        StringBuilder builder = new StringBuilder();
+        normalizer.appendText(builder, "line1\r".getBytes(StandardCharsets.UTF_8));
+        normalizer.appendText(builder, "\nline2\r\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("line1\nline2\n", builder.toString());
+
+        normalizer.reset();
+        builder.setLength(0);
+        normalizer.appendText(builder, "\nx".getBytes(StandardCharsets.UTF_8));
+        assertEquals("\nx", builder.toString());
+    }
+
+    @Test
+    public void newlines_normalizeOnlyFromStart() {
+        ByteFormatter.NewlineNormalizer normalizer = new ByteFormatter.NewlineNormalizer();
+        StringBuilder builder = new StringBuilder("keep\r\n");
+        builder.append("a\r\nb");
+        normalizer.normalize(builder, 6);
+        assertEquals("keep\r\na\nb", builder.toString());
+    }
+    // endregion
+
+    // region Benchmark
+    @Test
+    public void benchmark() {
+        // Rough timing of the previous and the current formatting of typical uart packets. It only prints the results (timings are too noisy on CI machines to assert them)
+        final int kPacketCount = 2000;
+        final byte[][] packets = new byte[kPacketCount][];
+        Random random = new Random(42);
+        for (int i = 0; i < kPacketCount; i++) {
+            packets[i] = new byte[20 + random.nextInt(224)];
+            for (int j = 0; j < packets[i].length; j++) {
+                packets[i][j] = (byte) (0x20 + random.nextInt(0x5F));      // Printable ascii
+            }
+            packets[i][packets[i].length - 1] = '\r';
+        }
+
+        StringBuilder builder = new StringBuilder();
+        ByteFormatter.NewlineNormalizer normalizer = new ByteFormatter.NewlineNormalizer();
+        for (int round = 0; round < 3; round++) {       // The first rounds are warm-up
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (byte[] packet : packets) {
+                checksum += legacyBytesToHex2(packet).length();
+            }
+            final long legacyHexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] packet : packets) {
+                builder.setLength(0);
+                ByteFormatter.appendHex(builder, packet, ' ');
+                checksum -= builder.length();
+            }
+            final long hexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] packet : packets) {
+                checksum += legacyBytesToText(packet, true).length();
+            }
+            final long legacyTextNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] packet : packets) {
+                builder.setLength(0);
+                normalizer.reset();
+                normalizer.appendText(builder, packet);
+                checksum -= builder.length();
+            }
+            final long textNanos = System.nanoTime() - start;
+
+            assertEquals(0, checksum);
+            System.out.printf("ByteFormatter round %d (ns/packet): hex %d -> %d, text %d -> %d%n", round, legacyHexNanos / kPacketCount, hexNanos / kPacketCount, legacyTextNanos / kPacketCount, textNanos / kPacketCount);
+        }
+    }
+    // endregion
+
+    // region Utils
+    private static String text(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        ByteFormatter.appendText(builder, bytes);
+        return builder.toString();
+    }
+
+    private static byte[] copy(byte[] bytes, int start, int end) {
+        final byte[] result = new byte[end - start];
+        System.arraycopy(bytes, start, result, 0, result.length);
+        return result;
+    }
+    // endregion
+}
@@ -0,0 +1,242 @@
+package com.adafruit.bluefruit.le.connect.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PaletteQuantizerTest {
+    // Config
+    private static final int[] kEInkPalette = {0xFF000000, 0xFFFFFFFF, 0xFFFF0000};       // Same colors as imagetransfer/eink3color.png
+    private static final int[] kDitherModes = {PaletteQuantizer.DITHER_NONE, PaletteQuantizer.DITHER_FLOYDSTEINBERG, PaletteQuantizer.DITHER_ATKINSON, PaletteQuantizer.DITHER_BAYER};
+    private static final int[][] kSizes = {{1, 1}, {1, 17}, {17, 1}, {2, 2}, {3, 5}, {31, 7}, {64, 64}, {296, 128}};
+
+    // region Threads
+    @Test
+    public void sameOutputWithOneAndMultipleThreads() {
+        Random random = new Random(1);
+        for (int[] palette : new int[][]{kEInkPalette, largePalette()}) {
+            PaletteQuantizer quantizer = new PaletteQuantizer(palette);
+            for (int[] size : kSizes) {
+                final int width = size[0], height = size[1];
+                final int[] image = randomImage(random, width, height);
+                for (int ditherMode : kDitherModes) {
+                    final int[] expected = image.clone();
+                    final byte[] expectedIndices = new byte[width * height];
+                    quantizer.quantize(expected, width, height, ditherMode, 1, expectedIndices);
+
+                    for (int numThreads : new int[]{2, 3, 8}) {
+                        final int[] pixels = image.clone();
+                        final byte[] indices = new byte[width * height];
+                        quantizer.quantize(pixels, width, height, ditherMode, numThreads, indices);
+
+                        final String message = "mode " + ditherMode + " size " + width + "x" + height + " threads " + numThreads;
+                        assertArrayEquals(message, expected, pixels);
+                        assertArrayEquals(message, expectedIndices, indices);
+                    }
+                }
+            }
+        }
+    }
+    // endregion
+
+    // region Palette mapping
+    @Test
+    public void paletteColorsMapToThemselves() {
+        for (int[] palette : new int[][]{kEInkPalette, largePalette()}) {
+            PaletteQuantizer quantizer = new PaletteQuantizer(palette);
+            final int[] quantizerPalette = quantizer.getPalette();
+            final int width = quantizerPalette.length, height = 3;
+            final int[] image = new int[width * height];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = quantizerPalette[i % width] & 0x00FFFFFF;        // Alpha is ignored
+            }
+
+            for (int ditherMode : new int[]{PaletteQuantizer.DITHER_NONE, PaletteQuantizer.DITHER_FLOYDSTEINBERG, PaletteQuantizer.DITHER_ATKINSON}) {     // Bayer moves colors by design
+                final int[] pixels = image.clone();
+                final byte[] indices = new byte[image.length];
+                quantizer.quantize(pixels, width, height, ditherMode, 1, indices);
+                for (int i = 0; i < pixels.length; i++) {
+                    assertEquals(quantizerPalette[i % width], pixels[i]);
+                    assertEquals(i % width, indices[i] & 0xFF);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unditheredMatchesNearestColor() {
+        Random random = new Random(2);
+        PaletteQuantizer quantizer = new PaletteQuantizer(kEInkPalette);
+        final int[] palette = quantizer.getPalette();
+        final int[] image = randomImage(random, 50, 40);
+        final int[] pixels = image.clone();
+        quantizer.quantize(pixels, 50, 40, PaletteQuantizer.DITHER_NONE, 1);
+        for (int i = 0; i < image.length; i++) {
+            assertEquals(palette[referenceNearestIndex(palette, image[i])], pixels[i]);
+        }
+    }
+
+    @Test
+    public void paletteFromPixelsRemovesDuplicatesAndAlpha() {
+        final int[] palette = PaletteQuantizer.paletteFromPixels(new int[]{0x00000000, 0xFF000000, 0x80FFFFFF, 0xFFFFFFFF, 0xFFFF0000, 0xFF000000});
+        assertArrayEquals(kEInkPalette, palette);
+    }
+    // endregion
+
+    // region Error diffusion
+    @Test
+    public void errorDiffusionMatchesReferenceAtEdges() {
+        // The reference discards the error that falls outside the image, so it checks that the quantizer doesn't wrap error from the right edge into the left column of the next rows
+        Random random = new Random(3);
+        PaletteQuantizer quantizer = new PaletteQuantizer(kEInkPalette);
+        final int[] palette = quantizer.getPalette();
+        for (int[] size : kSizes) {
+            final int width = size[0], height = size[1];
+            final int[] image = randomImage(random, width, height);
+
+            final int[] floydSteinberg = image.clone();
+            quantizer.quantize(floydSteinberg, width, height, PaletteQuantizer.DITHER_FLOYDSTEINBERG, 1);
+            assertArrayEquals("floyd-steinberg " + width + "x" + height, referenceDiffuseError(image, width, height, palette, kReferenceFloydSteinberg, 16), floydSteinberg);
+
+            final int[] atkinson = image.clone();
+            quantizer.quantize(atkinson, width, height, PaletteQuantizer.DITHER_ATKINSON, 1);
+            assertArrayEquals("atkinson " + width + "x" + height, referenceDiffuseError(image, width, height, palette, kReferenceAtkinson, 8), atkinson);
+        }
+    }
+
+    @Test
+    public void errorDiffusionKeepsMeanIntensity() {
+        PaletteQuantizer quantizer = new PaletteQuantizer(new int[]{0xFF000000, 0xFFFFFFFF});
+        final int width = 64, height = 64;
+        final int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xFF808080);
+        quantizer.quantize(pixels, width, height, PaletteQuantizer.DITHER_FLOYDSTEINBERG, 4);
+
+        int whiteCount = 0;
+        for (int pixel : pixels) {
+            if (pixel == 0xFFFFFFFF) whiteCount++;
+        }
+        final double whiteRatio = whiteCount / (double) pixels.length;
+        assertTrue("white ratio: " + whiteRatio, Math.abs(whiteRatio - 128 / 255.0) < 0.02);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pixelsArrayTooSmall() {
+        new PaletteQuantizer(kEInkPalette).quantize(new int[10], 4, 4, PaletteQuantizer.DITHER_NONE, 1);
+    }
+    // endregion
+
+    // region Benchmark
+    @Test
+    public void benchmark() {
+        // Timing harness (prints the median of several runs). The ImageMagick path that the quantizer replaces is native code that only runs on the device, so it is compared there
+        // (ImageUtils.kBenchmarkEInkConversion). Here the quantizer is compared with the straightforward reference implementation and with itself using several threads
+        final int kRuns = 7;
+        final int width = 800, height = 480;
+        final int[] image = randomImage(new Random(4), width, height);
+        PaletteQuantizer quantizer = new PaletteQuantizer(kEInkPalette);
+        final int[] palette = quantizer.getPalette();
+        final int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        final long referenceNanos = medianNanos(kRuns, () -> referenceDiffuseError(image, width, height, palette, kReferenceFloydSteinberg, 16));
+        System.out.printf("PaletteQuantizer %dx%d reference floyd-steinberg: %.2f ms%n", width, height, referenceNanos / 1e6);
+        for (int ditherMode : kDitherModes) {
+            final long singleNanos = medianNanos(kRuns, () -> quantizer.quantize(image.clone(), width, height, ditherMode, 1));
+            final long parallelNanos = medianNanos(kRuns, () -> quantizer.quantize(image.clone(), width, height, ditherMode, numThreads));
+            System.out.printf("PaletteQuantizer %dx%d mode %d: 1 thread %.2f ms, %d threads %.2f ms%n", width, height, ditherMode, singleNanos / 1e6, numThreads, parallelNanos / 1e6);
+        }
+    }
+
+    private static long medianNanos(int runs, Runnable runnable) {
+        runnable.run();     // Warm-up
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            final long start = System.nanoTime();
+            runnable.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+    // endregion
+
+    // region Reference
+    private static final int[][] kReferenceFloydSteinberg = {{1, 0, 7}, {-1, 1, 3}, {0, 1, 5}, {1, 1, 1}};
+    private static final int[][] kReferenceAtkinson = {{1, 0, 1}, {2, 0, 1}, {-1, 1, 1}, {0, 1, 1}, {1, 1, 1}, {0, 2, 1}};
+
+    // Error diffusion with explicit bounds checks. The error is accumulated multiplied by the weights and divided (rounding half away from zero) when it is applied, like the quantizer
+    private static int[] referenceDiffuseError(int[] image, int width, int height, int[] palette, int[][] kernel, int divisor) {
+        final int[] pixels = image.clone();
+        final int[][] error = new int[width * height][3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int i = y * width + x;
+                final int[] rgb = new int[3];
+                for (int c = 0; c < 3; c++) {
+                    final int channel = (pixels[i] >> (16 - c * 8)) & 0xFF;
+                    final int e = error[i][c];
+                    final int correction = e >= 0 ? (e + divisor / 2) / divisor : -((-e + divisor / 2) / divisor);
+                    rgb[c] = Math.max(0, Math.min(255, channel + correction));
+                }
+
+                final int index = referenceNearestIndex(palette, (rgb[0] << 16) | (rgb[1] << 8) | rgb[2]);
+                pixels[i] = palette[index];
+
+                for (int[] entry : kernel) {
+                    final int tx = x + entry[0], ty = y + entry[1];
+                    if (tx < 0 || tx >= width || ty >= height) continue;
+                    for (int c = 0; c < 3; c++) {
+                        final int paletteChannel = (palette[index] >> (16 - c * 8)) & 0xFF;
+                        error[ty * width + tx][c] += (rgb[c] - paletteChannel) * entry[2];
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static int referenceNearestIndex(int[] palette, int color) {
+        int bestIndex = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int distance = 0;
+            for (int shift = 0; shift <= 16; shift += 8) {
+                final int d = ((color >> shift) & 0xFF) - ((palette[i] >> shift) & 0xFF);
+                distance += d * d;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+    // endregion
+
+    // region Utils
+    private static int[] randomImage(Random random, int width, int height) {
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    // 64 colors (more than the size that enables the nearest color cache). Components are centers of RGB555 cells, so the cache gives the exact result for them
+    private static int[] largePalette() {
+        final int[] palette = new int[64];
+        for (int i = 0; i < palette.length; i++) {
+            final int r = ((i >> 4) & 3) * 80 + 4;
+            final int g = ((i >> 2) & 3) * 80 + 4;
+            final int b = (i & 3) * 80 + 4;
+            palette[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        return palette;
+    }
+    // endregion
+}